@@ -2,6 +2,7 @@ package algorithm.mapmatching;
 
 import algorithm.mapinference.lineclustering.DouglasPeuckerFilter;
 import algorithm.mapmatching.hmm.HMMMapMatching;
+import algorithm.mapmatching.mht.MHTMapMatching;
 import algorithm.mapmatching.simpleHMM.SimpleHMMMatching;
 import algorithm.mapmatching.stmatching.FeatureSTMapMatching;
 import algorithm.mapmatching.weightBased.WeightBasedMapMatching;
@@ -92,6 +93,10 @@ public class MapMatchingMain {
 						+ property.getPropertyString("data.OutlierPct") + "_"
 						+ property.getPropertyString("algorithm.mapmatching.Tolerance");
 				break;
+			case "MHT":
+				parameters = property.getPropertyString("data.DownSample") + "_"
+						+ property.getPropertyString("algorithm.mapmatching.Sigma");
+				break;
 			default:
 				parameters = "null";
 				break;
@@ -174,7 +179,6 @@ public class MapMatchingMain {
 			}
 
 //			Stream<Trajectory> inputTrajStream = TrajectoryReader.readTrajectoriesToStream(inputTrajFolder, downSampleRate, distFunc);
-			List<Trajectory> inputTrajList = TrajectoryReader.readTrajectoriesToList(inputTrajFolder, downSampleRate, distFunc);
 			if (matchingMethod.equals("OF-HMM-old")) {
 				HMMMapMatching mapMatching = new HMMMapMatching(roadMap, property);
 				long loadingTime = System.currentTimeMillis();
@@ -197,9 +201,32 @@ public class MapMatchingMain {
 				MapMatchingMethod mapMatching = chooseMatchMethod(matchingMethod, roadMap, property);
 				long loadingTime = System.currentTimeMillis();
 				LOG.info("Loading complete, loading time: " + (loadingTime - startTaskTime) / 1000.0 + "s.");
-                matchResultList = mapMatching.sequentialMatching(inputTrajList, isOnline);
-//				matchResultList = mapMatching.parallelMatching(inputTrajStream, numOfThreads, isOnline);
-				MatchResultWriter.writeMatchResults(matchResultList, outputMatchResultFolder);
+				if (property.contains("algorithm.mapmatching.UsePipeline")
+						&& property.getPropertyBoolean("algorithm.mapmatching.UsePipeline")) {
+					// read, match and write concurrently without keeping all trajectories in memory
+					new MatchingPipeline(mapMatching, property).run(inputTrajFolder, downSampleRate, distFunc, isOnline,
+							outputMatchResultFolder);
+				} else {
+					boolean isStreaming = isOnline && property.contains("algorithm.mapmatching.UseStreaming")
+							&& property.getPropertyBoolean("algorithm.mapmatching.UseStreaming");
+					if (isStreaming && !mapMatching.isStreamingSupported()) {
+						LOG.warn("Streaming map-matching is not supported by " + matchingMethod + ", use online matching instead.");
+						isStreaming = false;
+					}
+					List<Trajectory> inputTrajList = TrajectoryReader.readTrajectoriesToList(inputTrajFolder, downSampleRate, distFunc);
+					if (isStreaming)
+						matchResultList = mapMatching.streamingMatching(inputTrajList);
+					else if (numOfThreads == 1)
+						matchResultList = mapMatching.sequentialMatching(inputTrajList, isOnline);
+					else if (!isOnline && property.contains("algorithm.mapmatching.UseSplitMatching")
+							&& property.getPropertyBoolean("algorithm.mapmatching.UseSplitMatching"))
+						matchResultList = mapMatching.splitParallelMatching(inputTrajList, numOfThreads,
+								property.getPropertyInteger("algorithm.mapmatching.split.PieceSize"),
+								property.getPropertyInteger("algorithm.mapmatching.split.OverlapSize"));
+					else
+						matchResultList = mapMatching.parallelMatching(inputTrajList, numOfThreads, isOnline);
+					MatchResultWriter.writeMatchResults(matchResultList, outputMatchResultFolder);
+				}
 //				List<Trajectory> trajectoryList = TrajectoryReader.readTrajectoriesToList(inputTrajFolder, downSampleRate, distFunc);
 //				MatchResultWriter.writeTravelHistoryResults(trajectoryList, matchResultList, roadMap, outputMatchResultFolder);
 				LOG.info("Matching complete, matching time: " + (System.currentTimeMillis() - loadingTime) / 1000.0 + "s, total time:" +
@@ -216,6 +243,8 @@ public class MapMatchingMain {
 				return new FeatureSTMapMatching(roadMap, property);
 			case "SCO":
 				return new WeightBasedMapMatching(roadMap, property);
+			case "MHT":
+				return new MHTMapMatching(roadMap, property);
 			default:
 				throw new IllegalArgumentException("The matching method is not found: " + matchingMethod);
 		}
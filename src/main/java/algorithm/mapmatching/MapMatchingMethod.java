@@ -3,13 +3,14 @@ package algorithm.mapmatching;
 import org.apache.log4j.Logger;
 import util.object.spatialobject.Trajectory;
 import util.object.structure.Pair;
+import util.object.structure.PointMatch;
 import util.object.structure.SimpleTrajectoryMatchResult;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -46,6 +47,24 @@ public interface MapMatchingMethod {
 				new SimpleTrajectoryMatchResult("", new ArrayList<>(), new ArrayList<>()));
 	}
 
+	/**
+	 * @return True if the method supports <tt>openSession()</tt> and therefore <tt>streamingMatching()</tt>.
+	 */
+	default boolean isStreamingSupported() {
+		return false;
+	}
+
+	/**
+	 * Start the incremental map-matching of a vehicle in the online scenario. The points are pushed to the returned session as they
+	 * arrive, instead of passing the complete trajectory to <tt>onlineMatching()</tt>.
+	 *
+	 * @param vehicleID The ID of the vehicle.
+	 * @return The matching session of the vehicle.
+	 */
+	default OnlineMatchingSession openSession(String vehicleID) {
+		throw new UnsupportedOperationException("Streaming map-matching is not supported by " + getClass().getSimpleName());
+	}
+
 	/**
 	 * Conduct map-matching in parallel mode.
 	 *
@@ -63,25 +82,31 @@ public interface MapMatchingMethod {
 		if (inputTrajectory == null) {
 			throw new IllegalArgumentException("Trajectory stream for map-matching must not be null.");
 		}
+		return parallelMatching(inputTrajectory.collect(Collectors.toList()), numOfThreads, isOnline);
+	}
 
-		// parallel processing
-		ForkJoinPool forkJoinPool;
-		if (numOfThreads == -1) {
-			forkJoinPool = ForkJoinPool.commonPool();
-		} else {
-			forkJoinPool = new ForkJoinPool(numOfThreads);
+	/**
+	 * Conduct map-matching in parallel mode. The trajectories are scheduled longest-first on dedicated worker threads, see
+	 * <tt>MatchingScheduler</tt>.
+	 *
+	 * @param inputTrajectory The input trajectory list.
+	 * @param numOfThreads    The required number of threads. =-1 if full utilisation is expected.
+	 * @param isOnline        If the current map-matching process is online or offline.
+	 * @return List of map-matching results, in the same order as the input.
+	 * @throws ExecutionException   Errors during parallel processing.
+	 * @throws InterruptedException Concurrent error.
+	 */
+	default List<SimpleTrajectoryMatchResult> parallelMatching(List<Trajectory> inputTrajectory, int numOfThreads, boolean isOnline)
+			throws ExecutionException, InterruptedException {
+
+		if (inputTrajectory == null) {
+			throw new IllegalArgumentException("Trajectory list for map-matching must not be null.");
 		}
+
 		List<SimpleTrajectoryMatchResult> result = new ArrayList<>();
 		if (isOnline) {
-			ForkJoinTask<Stream<Pair<List<Double>, SimpleTrajectoryMatchResult>>> taskResult =
-					forkJoinPool.submit(() -> inputTrajectory.parallel().map(this::onlineMatching));
-
-			LOG.info("Current number of threads for map-matching: " + forkJoinPool.getParallelism());
-			while (!taskResult.isDone())
-				Thread.sleep(5);
-
-			// pull matching result
-			List<Pair<List<Double>, SimpleTrajectoryMatchResult>> tempRes = taskResult.get().collect(Collectors.toList());
+			List<Pair<List<Double>, SimpleTrajectoryMatchResult>> tempRes = MatchingScheduler.match(inputTrajectory, numOfThreads,
+					this::onlineMatching);
 			for (Pair<List<Double>, SimpleTrajectoryMatchResult> tempRe : tempRes) {
 				result.add(tempRe._2());
 			}
@@ -101,17 +126,76 @@ public interface MapMatchingMethod {
 			}
 
 		} else {
-			ForkJoinTask<Stream<SimpleTrajectoryMatchResult>> taskResult =
-					forkJoinPool.submit(() -> inputTrajectory.parallel().map(this::offlineMatching));
-
-			LOG.info("Current number of threads for map-matching: " + forkJoinPool.getParallelism());
-			while (!taskResult.isDone())
-				Thread.sleep(5);
-			result = taskResult.get().collect(Collectors.toList());
+			result = MatchingScheduler.match(inputTrajectory, numOfThreads, this::offlineMatching);
 		}
 		return result;
 	}
 
+	/**
+	 * Conduct offline map-matching in parallel mode, with long trajectories split into overlapping pieces that are matched concurrently,
+	 * see <tt>TrajectorySplitter</tt>. The pieces of all trajectories are scheduled together by <tt>MatchingScheduler</tt>, so a long
+	 * trajectory no longer keeps one thread busy while the others are idle. A trajectory whose pieces can not be stitched is matched
+	 * again as a whole.
+	 *
+	 * @param inputTrajectory The input trajectory list.
+	 * @param numOfThreads    The required number of threads. =-1 if full utilisation is expected.
+	 * @param pieceSize       The maximum number of points in a piece, excluding the overlap.
+	 * @param overlapSize     The number of points shared by adjacent pieces on each side of a cut.
+	 * @return List of map-matching results, in the same order as the input.
+	 * @throws ExecutionException   Errors during parallel processing.
+	 * @throws InterruptedException Concurrent error.
+	 */
+	default List<SimpleTrajectoryMatchResult> splitParallelMatching(List<Trajectory> inputTrajectory, int numOfThreads, int pieceSize,
+																	int overlapSize) throws ExecutionException, InterruptedException {
+		if (inputTrajectory == null) {
+			throw new IllegalArgumentException("Trajectory list for map-matching must not be null.");
+		}
+		TrajectorySplitter splitter = new TrajectorySplitter(pieceSize, overlapSize);
+		List<int[]> cutList = new ArrayList<>(inputTrajectory.size());
+		List<Trajectory> pieceList = new ArrayList<>();
+		for (Trajectory currTraj : inputTrajectory) {
+			int[] cuts = splitter.split(currTraj);
+			cutList.add(cuts);
+			for (int k = 0; k < cuts.length - 1; k++) {
+				pieceList.add(splitter.getPiece(currTraj, cuts, k));
+			}
+		}
+		List<SimpleTrajectoryMatchResult> pieceResultList = MatchingScheduler.match(pieceList, numOfThreads, this::offlineMatching);
+
+		List<SimpleTrajectoryMatchResult> resultList = new ArrayList<>(inputTrajectory.size());
+		List<Integer> unstitchedIndexList = new ArrayList<>();
+		int splitCount = 0;
+		int pieceIndex = 0;
+		for (int i = 0; i < inputTrajectory.size(); i++) {
+			int[] cuts = cutList.get(i);
+			List<SimpleTrajectoryMatchResult> pieceResults = pieceResultList.subList(pieceIndex, pieceIndex + cuts.length - 1);
+			pieceIndex += cuts.length - 1;
+			if (cuts.length > 2) {
+				splitCount++;
+			}
+			SimpleTrajectoryMatchResult currResult = splitter.stitch(inputTrajectory.get(i), cuts, pieceResults);
+			if (currResult == null) {
+				unstitchedIndexList.add(i);
+			}
+			resultList.add(currResult);
+		}
+		if (!unstitchedIndexList.isEmpty()) {
+			List<Trajectory> unstitchedTrajList = new ArrayList<>(unstitchedIndexList.size());
+			for (int index : unstitchedIndexList) {
+				unstitchedTrajList.add(inputTrajectory.get(index));
+			}
+			List<SimpleTrajectoryMatchResult> wholeResultList = MatchingScheduler.match(unstitchedTrajList, numOfThreads,
+					this::offlineMatching);
+			for (int i = 0; i < unstitchedIndexList.size(); i++) {
+				resultList.set(unstitchedIndexList.get(i), wholeResultList.get(i));
+			}
+		}
+		LOG.info("Split matching finished, " + splitCount + " of " + inputTrajectory.size() + " trajectories are split into "
+				+ (pieceList.size() - inputTrajectory.size() + splitCount) + " pieces, " + unstitchedIndexList.size()
+				+ " of them are matched again as a whole.");
+		return resultList;
+	}
+
 	/**
 	 * Conduct map-matching in sequential mode.
 	 *
@@ -141,6 +225,60 @@ public interface MapMatchingMethod {
 		return resultList;
 	}
 
+	/**
+	 * Conduct map-matching in streaming mode. The points of all trajectories are replayed in time order as one stream, each trajectory is
+	 * a vehicle with its own open session, so all vehicles are matched concurrently and their matches are collected as they are emitted.
+	 *
+	 * @param inputTrajectory The input trajectory list.
+	 * @return List of map-matching results, in the same order as the input.
+	 */
+	default List<SimpleTrajectoryMatchResult> streamingMatching(List<Trajectory> inputTrajectory) {
+		if (inputTrajectory == null) {
+			throw new IllegalArgumentException("Trajectory list for map-matching must not be null.");
+		}
+		List<OnlineMatchingSession> sessionList = new ArrayList<>(inputTrajectory.size());
+		List<List<PointMatch>> pointMatchLists = new ArrayList<>(inputTrajectory.size());
+		List<List<String>> routeMatchLists = new ArrayList<>(inputTrajectory.size());
+		// the next point of each vehicle, {trajectory index, point index}, ordered by the point time
+		PriorityQueue<int[]> pointQueue = new PriorityQueue<>(Math.max(inputTrajectory.size(), 1),
+				Comparator.comparingDouble(next -> inputTrajectory.get(next[0]).get(next[1]).time()));
+		for (int i = 0; i < inputTrajectory.size(); i++) {
+			sessionList.add(openSession(inputTrajectory.get(i).getID()));
+			pointMatchLists.add(new ArrayList<>());
+			routeMatchLists.add(new ArrayList<>());
+			if (inputTrajectory.get(i).size() > 0)
+				pointQueue.add(new int[]{i, 0});
+			else
+				sessionList.get(i).close();
+		}
+		double latencySum = 0;
+		long delaySum = 0;
+		long emittedCount = 0;
+		while (!pointQueue.isEmpty()) {
+			int[] next = pointQueue.poll();
+			Trajectory currTraj = inputTrajectory.get(next[0]);
+			List<OnlineMatchResult> emitted = sessionList.get(next[0]).push(currTraj.get(next[1]));
+			if (next[1] == currTraj.size() - 1)
+				emitted.addAll(sessionList.get(next[0]).close());
+			else
+				pointQueue.add(new int[]{next[0], next[1] + 1});
+			for (OnlineMatchResult matchResult : emitted) {
+				pointMatchLists.get(next[0]).add(matchResult.getPointMatch());
+				routeMatchLists.get(next[0]).addAll(matchResult.getRouteFragment());
+				latencySum += matchResult.getLatency();
+				delaySum += matchResult.getEmissionDelay();
+				emittedCount++;
+			}
+		}
+		List<SimpleTrajectoryMatchResult> resultList = new ArrayList<>(inputTrajectory.size());
+		for (int i = 0; i < inputTrajectory.size(); i++)
+			resultList.add(new SimpleTrajectoryMatchResult(inputTrajectory.get(i).getID(), pointMatchLists.get(i), routeMatchLists.get(i)));
+		if (emittedCount > 0)
+			LOG.info("Streaming matching complete, " + inputTrajectory.size() + " vehicles, " + emittedCount + " points, mean latency: "
+					+ latencySum / emittedCount + "s, mean emission delay: " + delaySum / 1000.0 / emittedCount + "us.");
+		return resultList;
+	}
+
     default double trajectoryTime(Trajectory trajectory) {
         return trajectory.get(trajectory.size() - 1).time() - trajectory.get(0).time();
     }
@@ -0,0 +1,236 @@
+package algorithm.mapmatching;
+
+import org.apache.log4j.Logger;
+import util.function.DistanceFunction;
+import util.io.IOService;
+import util.io.TrajectoryReader;
+import util.object.spatialobject.Trajectory;
+import util.object.structure.SimpleTrajectoryMatchResult;
+import util.settings.BaseProperty;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batch map-matching of a trajectory folder as a pipeline of three stages: parallel trajectory readers, matcher workers and one
+ * asynchronous result writer. The stages exchange batches of trajectories and results through bounded queues, so a fast stage blocks
+ * when the next stage falls behind and only a bounded number of trajectories is in memory at any time. The writer output is the same
+ * as <tt>MatchResultWriter.writeMatchResults()</tt>.
+ * <p>
+ * The throughput of each stage and the depth of each queue are logged periodically. The time a stage spends blocked on a full queue
+ * shows which stage is the bottleneck.
+ */
+public class MatchingPipeline {
+	
+	private static final Logger LOG = Logger.getLogger(MatchingPipeline.class);
+	// the end-of-stream markers, compared by identity
+	private static final List<Trajectory> END_OF_TRAJECTORIES = new ArrayList<>();
+	private static final List<SimpleTrajectoryMatchResult> END_OF_RESULTS = new ArrayList<>();
+	
+	private final MapMatchingMethod mapMatching;
+	private final int readerCount;
+	private final int matcherCount;
+	private final int batchSize;
+	private final int queueCapacity;
+	private final long reportInterval;
+	
+	/**
+	 * Create the pipeline with the settings in the map-matching properties.
+	 *
+	 * @param mapMatching The matching method, shared by all matcher workers.
+	 * @param prop        The map-matching properties.
+	 */
+	public MatchingPipeline(MapMatchingMethod mapMatching, BaseProperty prop) {
+		this(mapMatching, prop.contains("algorithm.mapmatching.pipeline.ReaderThreads") ?
+						prop.getPropertyInteger("algorithm.mapmatching.pipeline.ReaderThreads") : 2,
+				prop.contains("algorithm.mapmatching.NumOfThreads") ? prop.getPropertyInteger("algorithm.mapmatching.NumOfThreads") : -1,
+				prop.contains("algorithm.mapmatching.pipeline.BatchSize") ?
+						prop.getPropertyInteger("algorithm.mapmatching.pipeline.BatchSize") : 16,
+				prop.contains("algorithm.mapmatching.pipeline.QueueCapacity") ?
+						prop.getPropertyInteger("algorithm.mapmatching.pipeline.QueueCapacity") : 8,
+				prop.contains("algorithm.mapmatching.pipeline.ReportInterval") ?
+						prop.getPropertyLong("algorithm.mapmatching.pipeline.ReportInterval") : 10);
+	}
+	
+	/**
+	 * @param mapMatching    The matching method, shared by all matcher workers.
+	 * @param readerCount    The number of reader threads.
+	 * @param matcherCount   The number of matcher workers, -1 for one per processor.
+	 * @param batchSize      The number of trajectories in each batch.
+	 * @param queueCapacity  The capacity of each queue, measured in batches.
+	 * @param reportInterval The interval of the progress log, in seconds, 0 to log only the summary.
+	 */
+	public MatchingPipeline(MapMatchingMethod mapMatching, int readerCount, int matcherCount, int batchSize, int queueCapacity,
+							long reportInterval) {
+		if (readerCount <= 0 || batchSize <= 0 || queueCapacity <= 0 || reportInterval < 0)
+			throw new IllegalArgumentException("Invalid pipeline settings, readers: " + readerCount + ", batch size: " + batchSize
+					+ ", queue capacity: " + queueCapacity + ", report interval: " + reportInterval);
+		this.mapMatching = mapMatching;
+		this.readerCount = readerCount;
+		this.matcherCount = matcherCount == -1 ? Runtime.getRuntime().availableProcessors() : matcherCount;
+		if (this.matcherCount <= 0)
+			throw new IllegalArgumentException("The number of matcher workers must be positive: " + matcherCount);
+		this.batchSize = batchSize;
+		this.queueCapacity = queueCapacity;
+		this.reportInterval = reportInterval;
+	}
+	
+	/**
+	 * Match all trajectories in the input folder and write the results to the output folder. The output folder is cleaned first.
+	 *
+	 * @param inputTrajFolder The trajectory folder.
+	 * @param downSampleRate  Down-sample the input trajectory rate by
+	 * @param df              The distance function.
+	 * @param isOnline        If the current map-matching process is online or offline.
+	 * @param outputFolder    The output folder of the match results.
+	 * @return The number of trajectories matched and written.
+	 * @throws ExecutionException   A stage failed, the pipeline is stopped.
+	 * @throws InterruptedException Concurrent error.
+	 */
+	public int run(String inputTrajFolder, int downSampleRate, DistanceFunction df, boolean isOnline, String outputFolder)
+			throws ExecutionException, InterruptedException {
+		if (!new File(inputTrajFolder).isDirectory())
+			throw new IllegalArgumentException("The input trajectory folder doesn't exist: " + inputTrajFolder);
+		List<File> trajectoryFileList = TrajectoryReader.listTrajectoryFiles(inputTrajFolder);
+		IOService.createFolder(outputFolder);
+		IOService.cleanFolder(outputFolder);
+		
+		BlockingQueue<List<Trajectory>> trajectoryQueue = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<List<SimpleTrajectoryMatchResult>> resultQueue = new ArrayBlockingQueue<>(queueCapacity);
+		StageMetrics readMetrics = new StageMetrics("read", readerCount);
+		StageMetrics matchMetrics = new StageMetrics("match", matcherCount);
+		StageMetrics writeMetrics = new StageMetrics("write", 1);
+		AtomicInteger nextFileIndex = new AtomicInteger(0);
+		AtomicInteger activeReaderCount = new AtomicInteger(readerCount);
+		AtomicInteger activeMatcherCount = new AtomicInteger(matcherCount);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(readerCount + matcherCount + 1);
+		CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		long startTime = System.nanoTime();
+		Runnable progressReport = () -> {
+			long elapsedTime = System.nanoTime() - startTime;
+			LOG.info("Pipeline progress: " + readMetrics.toString(elapsedTime) + "; " + matchMetrics.toString(elapsedTime) + "; "
+					+ writeMetrics.toString(elapsedTime) + "; queued batches: " + trajectoryQueue.size() + "/" + queueCapacity
+					+ " trajectories, " + resultQueue.size() + "/" + queueCapacity + " results.");
+		};
+		if (reportInterval > 0)
+			reporter.scheduleAtFixedRate(progressReport, reportInterval, reportInterval, TimeUnit.SECONDS);
+		
+		for (int i = 0; i < readerCount; i++) {
+			completionService.submit(() -> {
+				List<Trajectory> batch = new ArrayList<>(batchSize);
+				int fileIndex;
+				while ((fileIndex = nextFileIndex.getAndIncrement()) < trajectoryFileList.size()) {
+					long readStartTime = System.nanoTime();
+					batch.add(TrajectoryReader.readTrajectory(trajectoryFileList.get(fileIndex), downSampleRate, df));
+					readMetrics.addWork(1, System.nanoTime() - readStartTime);
+					if (batch.size() == batchSize) {
+						readMetrics.put(trajectoryQueue, batch);
+						batch = new ArrayList<>(batchSize);
+					}
+				}
+				if (!batch.isEmpty())
+					readMetrics.put(trajectoryQueue, batch);
+				if (activeReaderCount.decrementAndGet() == 0) {    // the last reader ends the input of every matcher
+					for (int j = 0; j < matcherCount; j++)
+						trajectoryQueue.put(END_OF_TRAJECTORIES);
+				}
+				return null;
+			});
+		}
+		for (int i = 0; i < matcherCount; i++) {
+			completionService.submit(() -> {
+				List<Trajectory> batch;
+				while ((batch = trajectoryQueue.take()) != END_OF_TRAJECTORIES) {
+					long matchStartTime = System.nanoTime();
+					List<SimpleTrajectoryMatchResult> resultBatch = new ArrayList<>(batch.size());
+					for (Trajectory trajectory : batch)
+						resultBatch.add(isOnline ? mapMatching.onlineMatching(trajectory)._2() : mapMatching.offlineMatching(trajectory));
+					matchMetrics.addWork(batch.size(), System.nanoTime() - matchStartTime);
+					matchMetrics.put(resultQueue, resultBatch);
+				}
+				if (activeMatcherCount.decrementAndGet() == 0)
+					resultQueue.put(END_OF_RESULTS);
+				return null;
+			});
+		}
+		completionService.submit(() -> {
+			List<SimpleTrajectoryMatchResult> resultBatch;
+			while ((resultBatch = resultQueue.take()) != END_OF_RESULTS) {
+				long writeStartTime = System.nanoTime();
+				for (SimpleTrajectoryMatchResult result : resultBatch)
+					IOService.writeFile(result.toString(), outputFolder, "matchresult_" + result.getTrajID() + ".txt");
+				writeMetrics.addWork(resultBatch.size(), System.nanoTime() - writeStartTime);
+			}
+			return null;
+		});
+		
+		try {
+			// the first failed stage throws here, the remaining stages are interrupted afterwards
+			for (int i = 0; i < readerCount + matcherCount + 1; i++)
+				completionService.take().get();
+		} finally {
+			executor.shutdownNow();
+			reporter.shutdownNow();
+		}
+		long elapsedTime = System.nanoTime() - startTime;
+		LOG.info("Pipeline complete in " + elapsedTime / 1000000000.0 + "s, " + readMetrics.toString(elapsedTime) + "; "
+				+ matchMetrics.toString(elapsedTime) + "; " + writeMetrics.toString(elapsedTime) + "; max queued batches: "
+				+ readMetrics.getMaxQueueDepth() + "/" + queueCapacity + " trajectories, " + matchMetrics.getMaxQueueDepth() + "/"
+				+ queueCapacity + " results.");
+		return (int) writeMetrics.getItemCount();
+	}
+	
+	/**
+	 * The counters of one stage. The busy time is spent on the work of the stage, the blocked time on waiting for space in the queue of
+	 * the next stage. Both are summed over the threads of the stage.
+	 */
+	private static class StageMetrics {
+		private final String name;
+		private final int threadCount;
+		private final LongAdder itemCount = new LongAdder();
+		private final LongAdder busyTime = new LongAdder();
+		private final LongAdder blockedTime = new LongAdder();
+		private final AtomicInteger maxQueueDepth = new AtomicInteger(0);  // of the output queue of the stage
+		
+		StageMetrics(String name, int threadCount) {
+			this.name = name;
+			this.threadCount = threadCount;
+		}
+		
+		void addWork(int items, long time) {
+			itemCount.add(items);
+			busyTime.add(time);
+		}
+		
+		<T> void put(BlockingQueue<T> queue, T batch) throws InterruptedException {
+			long putStartTime = System.nanoTime();
+			queue.put(batch);
+			blockedTime.add(System.nanoTime() - putStartTime);
+			maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+		}
+		
+		long getItemCount() {
+			return itemCount.sum();
+		}
+		
+		int getMaxQueueDepth() {
+			return maxQueueDepth.get();
+		}
+		
+		/**
+		 * @param elapsedTime The running time of the pipeline, in nanoseconds.
+		 */
+		String toString(long elapsedTime) {
+			double threadTime = (double) elapsedTime * threadCount;
+			return name + " " + getItemCount() + " (" + String.format("%.1f", getItemCount() * 1000000000.0 / elapsedTime) + "/s, busy "
+					+ String.format("%.0f", busyTime.sum() * 100 / threadTime) + "%, blocked " + String.format("%.0f",
+					blockedTime.sum() * 100 / threadTime) + "%)";
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package algorithm.mapmatching;
+
+import org.apache.log4j.Logger;
+import util.object.spatialobject.Trajectory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Work-stealing scheduler for matching a list of trajectories on a fixed set of worker threads. The matching time of a trajectory grows
+ * with its length, which varies by orders of magnitude, so the trajectories are sorted longest-first and dealt round-robin to the
+ * workers. Each worker takes the longest trajectory left in its own deque and, once the deque is empty, steals the shortest trajectory
+ * left in another deque. The long trajectories are therefore started early and the end of the run only has short ones to balance.
+ * <p>
+ * The workers are dedicated threads living for the whole run, so the thread-local search workspaces of the matcher, such as the
+ * candidate buffer of <tt>RTreeIndexing</tt> and the Dijkstra workspace of <tt>RoutingGraph</tt>, are created once per worker and stay
+ * warm across trajectories. The utilisation of every worker is logged at the end of the run.
+ */
+public class MatchingScheduler {
+	
+	private static final Logger LOG = Logger.getLogger(MatchingScheduler.class);
+	
+	/**
+	 * Match the trajectories in parallel.
+	 *
+	 * @param trajectoryList The trajectories.
+	 * @param numOfThreads   The number of worker threads. =-1 if full utilisation is expected.
+	 * @param matchFunction  The matching of one trajectory, called concurrently by all workers.
+	 * @param <R>            The type of the match result.
+	 * @return The match results, in the same order as the trajectories.
+	 * @throws ExecutionException   A matching failed, the remaining trajectories are not matched.
+	 * @throws InterruptedException Concurrent error.
+	 */
+	public static <R> List<R> match(List<Trajectory> trajectoryList, int numOfThreads, Function<Trajectory, R> matchFunction)
+			throws ExecutionException, InterruptedException {
+		if (trajectoryList == null) {
+			throw new IllegalArgumentException("Trajectory list for map-matching must not be null.");
+		}
+		int workerCount = numOfThreads == -1 ? Runtime.getRuntime().availableProcessors() : numOfThreads;
+		if (workerCount <= 0) {
+			throw new IllegalArgumentException("The number of threads must be positive: " + numOfThreads);
+		}
+		workerCount = Math.max(Math.min(workerCount, trajectoryList.size()), 1);
+		
+		// longest-first order, dealt round-robin so every worker starts with a similar share of long trajectories
+		Integer[] order = new Integer[trajectoryList.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Integer.compare(trajectoryList.get(b).size(), trajectoryList.get(a).size()));
+		List<ConcurrentLinkedDeque<Integer>> dequeList = new ArrayList<>(workerCount);
+		for (int i = 0; i < workerCount; i++)
+			dequeList.add(new ConcurrentLinkedDeque<>());
+		for (int i = 0; i < order.length; i++)
+			dequeList.get(i % workerCount).addLast(order[i]);
+		
+		AtomicReferenceArray<R> resultArray = new AtomicReferenceArray<>(trajectoryList.size());
+		AtomicBoolean isFailed = new AtomicBoolean(false);
+		List<Worker<R>> workerList = new ArrayList<>(workerCount);
+		for (int i = 0; i < workerCount; i++)
+			workerList.add(new Worker<>(i, dequeList, trajectoryList, matchFunction, resultArray, isFailed));
+		
+		LOG.info("Current number of threads for map-matching: " + workerCount);
+		ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+		long startTime = System.nanoTime();
+		try {
+			List<Future<Void>> futureList = new ArrayList<>(workerCount);
+			for (Worker<R> worker : workerList)
+				futureList.add(executor.submit(worker));
+			for (Future<Void> future : futureList)
+				future.get();
+		} finally {
+			executor.shutdownNow();
+		}
+		long makespan = System.nanoTime() - startTime;
+		
+		long totalBusyTime = 0;
+		for (Worker<R> worker : workerList) {
+			totalBusyTime += worker.busyTime;
+			LOG.debug("Matching thread " + worker.workerIndex + ": " + worker.taskCount + " trajectories, " + worker.pointCount
+					+ " points, " + worker.stealCount + " stolen, utilisation " + String.format("%.1f", worker.busyTime * 100.0 / makespan)
+					+ "%.");
+		}
+		LOG.info("Parallel matching finished in " + makespan / 1000000000.0 + "s with " + workerCount + " threads, mean utilisation "
+				+ String.format("%.1f", totalBusyTime * 100.0 / makespan / workerCount) + "%.");
+		
+		List<R> resultList = new ArrayList<>(trajectoryList.size());
+		for (int i = 0; i < trajectoryList.size(); i++)
+			resultList.add(resultArray.get(i));
+		return resultList;
+	}
+	
+	private static class Worker<R> implements Callable<Void> {
+		private final int workerIndex;
+		private final List<ConcurrentLinkedDeque<Integer>> dequeList;
+		private final List<Trajectory> trajectoryList;
+		private final Function<Trajectory, R> matchFunction;
+		private final AtomicReferenceArray<R> resultArray;
+		private final AtomicBoolean isFailed;
+		// the statistics are read after the worker is joined
+		private long busyTime = 0;
+		private int taskCount = 0;
+		private long pointCount = 0;
+		private int stealCount = 0;
+		
+		Worker(int workerIndex, List<ConcurrentLinkedDeque<Integer>> dequeList, List<Trajectory> trajectoryList,
+			   Function<Trajectory, R> matchFunction, AtomicReferenceArray<R> resultArray, AtomicBoolean isFailed) {
+			this.workerIndex = workerIndex;
+			this.dequeList = dequeList;
+			this.trajectoryList = trajectoryList;
+			this.matchFunction = matchFunction;
+			this.resultArray = resultArray;
+			this.isFailed = isFailed;
+		}
+		
+		@Override
+		public Void call() {
+			while (!isFailed.get()) {
+				Integer index = dequeList.get(workerIndex).pollFirst();
+				if (index == null) {
+					index = steal();
+					if (index == null)
+						break;      // no trajectory is left, the remaining ones are being matched by other workers
+					stealCount++;
+				}
+				Trajectory trajectory = trajectoryList.get(index);
+				long startTime = System.nanoTime();
+				try {
+					resultArray.set(index, matchFunction.apply(trajectory));
+				} catch (RuntimeException e) {
+					isFailed.set(true);
+					throw new RuntimeException("Map-matching failed on trajectory " + trajectory.getID(), e);
+				}
+				busyTime += System.nanoTime() - startTime;
+				taskCount++;
+				pointCount += trajectory.size();
+			}
+			return null;
+		}
+		
+		/**
+		 * Take the shortest trajectory left in the deques of the other workers.
+		 */
+		private Integer steal() {
+			for (int i = 1; i < dequeList.size(); i++) {
+				Integer index = dequeList.get((workerIndex + i) % dequeList.size()).pollLast();
+				if (index != null)
+					return index;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package algorithm.mapmatching;
+
+import util.object.structure.PointMatch;
+
+import java.util.List;
+
+/**
+ * The final match of one point emitted by an <tt>OnlineMatchingSession</tt>.
+ */
+public class OnlineMatchResult {
+	
+	private final double time;
+	private final PointMatch pointMatch;
+	private final List<String> routeFragment;
+	private final double latency;
+	private final long emissionDelay;
+	
+	/**
+	 * @param time          The time of the matched point.
+	 * @param pointMatch    The match of the point, an empty point match if the point is not matched.
+	 * @param routeFragment The roads travelled from the previous emitted match to this one, not repeating the last emitted road.
+	 * @param latency       The time of the latest pushed point minus the time of this point when the match is emitted.
+	 * @param emissionDelay The wall-clock time between the push of this point and the emission of its match, in nanoseconds.
+	 */
+	public OnlineMatchResult(double time, PointMatch pointMatch, List<String> routeFragment, double latency, long emissionDelay) {
+		this.time = time;
+		this.pointMatch = pointMatch;
+		this.routeFragment = routeFragment;
+		this.latency = latency;
+		this.emissionDelay = emissionDelay;
+	}
+	
+	public double getTime() {
+		return time;
+	}
+	
+	public PointMatch getPointMatch() {
+		return pointMatch;
+	}
+	
+	public List<String> getRouteFragment() {
+		return routeFragment;
+	}
+	
+	public double getLatency() {
+		return latency;
+	}
+	
+	public long getEmissionDelay() {
+		return emissionDelay;
+	}
+}
@@ -0,0 +1,36 @@
+package algorithm.mapmatching;
+
+import util.object.spatialobject.TrajectoryPoint;
+
+import java.util.List;
+
+/**
+ * The incremental map-matching of one vehicle. The points of the vehicle are pushed one at a time as they arrive, each push returns the
+ * points whose match became final since the previous push, in time order. The session keeps only the undecided part of the trajectory,
+ * so the memory of a session is bounded by the matching window rather than the length of the trip.
+ * <p>
+ * A session is fed by one thread at a time. Sessions of different vehicles are independent and can be pushed concurrently.
+ */
+public interface OnlineMatchingSession {
+	
+	/**
+	 * @return The ID of the vehicle matched by the session.
+	 */
+	String getVehicleID();
+	
+	/**
+	 * Match a new point of the vehicle. Points not later than the previous point are not matched, they are emitted as unmatched points
+	 * in their push order, so every pushed point gets exactly one match.
+	 *
+	 * @param point The new point.
+	 * @return The newly finalised matches, in time order, possibly empty.
+	 */
+	List<OnlineMatchResult> push(TrajectoryPoint point);
+	
+	/**
+	 * Finalise all remaining points and release the state of the session. The session can not be pushed afterwards.
+	 *
+	 * @return The matches of all points not returned before, in time order.
+	 */
+	List<OnlineMatchResult> close();
+}
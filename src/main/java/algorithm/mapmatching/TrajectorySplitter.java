@@ -0,0 +1,213 @@
+package algorithm.mapmatching;
+
+import util.function.DistanceFunction;
+import util.object.spatialobject.Trajectory;
+import util.object.structure.PointMatch;
+import util.object.structure.SimpleTrajectoryMatchResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Split a long trajectory into overlapping pieces that are matched independently, and stitch the match results of the pieces back into
+ * the result of the whole trajectory.
+ * <p>
+ * The trajectory is cut into pieces of at most <tt>pieceSize</tt> points. Each cut is placed near an even split, preferably at a time
+ * gap of more than 180s, where <tt>HMMMapMatching</tt> restarts the matching anyway, or otherwise inside a stationary stretch, where the
+ * vehicle is unlikely to change road. Each piece is extended by <tt>overlapSize</tt> points on both sides. Two adjacent pieces are
+ * stitched at the point closest to their cut where both pieces agree on the match of the point and its two neighbours, which is where
+ * their candidate sequences have converged. The route of the first piece up to the road of that point is joined with the route of the
+ * second piece after it. If the overlap is long enough for the pieces to converge, the stitched result is the same as matching the
+ * whole trajectory at once.
+ */
+public class TrajectorySplitter {
+	
+	private static final double TIME_GAP = 180;         // the time gap that breaks the matching, in seconds
+	private static final double STATIONARY_DISTANCE = 2;    // the maximum movement between consecutive stationary points, in meter
+	
+	private final int pieceSize;
+	private final int overlapSize;
+	
+	/**
+	 * @param pieceSize   The maximum number of points in a piece, excluding the overlap. Trajectories not longer than the piece size
+	 *                    plus the overlap are not split.
+	 * @param overlapSize The number of points shared by adjacent pieces on each side of the cut.
+	 */
+	public TrajectorySplitter(int pieceSize, int overlapSize) {
+		if (overlapSize < 2 || pieceSize <= 2 * overlapSize)
+			throw new IllegalArgumentException("The piece size must be larger than twice the overlap, and the overlap at least 2 points: "
+					+ pieceSize + ", " + overlapSize);
+		this.pieceSize = pieceSize;
+		this.overlapSize = overlapSize;
+	}
+	
+	/**
+	 * Choose the cuts of a trajectory.
+	 *
+	 * @param trajectory The trajectory.
+	 * @return The cut indices, starting with 0 and ending with the trajectory size. Piece k owns the points from cut k to cut k+1.
+	 */
+	public int[] split(Trajectory trajectory) {
+		int size = trajectory.size();
+		if (size <= pieceSize + overlapSize)
+			return new int[]{0, size};
+		int pieceCount = (size + pieceSize - 1) / pieceSize;
+		int searchRange = size / pieceCount / 4;
+		DistanceFunction distFunc = trajectory.get(0).getDistanceFunction();
+		int[] cuts = new int[pieceCount + 1];
+		cuts[pieceCount] = size;
+		for (int k = 1; k < pieceCount; k++) {
+			int idealCut = (int) ((long) k * size / pieceCount);
+			int bestCut = idealCut;
+			int bestScore = 0;
+			for (int i = Math.max(cuts[k - 1] + 2 * overlapSize + 1, idealCut - searchRange);
+				 i <= Math.min(size - 2 * overlapSize - 1, idealCut + searchRange); i++) {
+				int score = trajectory.get(i).time() - trajectory.get(i - 1).time() > TIME_GAP ? 2 :
+						isStationary(trajectory, i, distFunc) ? 1 : 0;
+				if (score > bestScore || (score == bestScore && score > 0 && Math.abs(i - idealCut) < Math.abs(bestCut - idealCut))) {
+					bestCut = i;
+					bestScore = score;
+				}
+			}
+			cuts[k] = bestCut;
+		}
+		return cuts;
+	}
+	
+	/**
+	 * @return The <tt>k</tt>-th piece of the trajectory including its overlap, the trajectory itself if it is not split.
+	 */
+	public Trajectory getPiece(Trajectory trajectory, int[] cuts, int k) {
+		if (cuts.length == 2)
+			return trajectory;
+		return trajectory.subTrajectory(getPieceStart(cuts, k), getPieceEnd(cuts, k));
+	}
+	
+	/**
+	 * Stitch the match results of the pieces.
+	 *
+	 * @param trajectory   The whole trajectory.
+	 * @param cuts         The cuts of the trajectory, see {@link #split(Trajectory)}.
+	 * @param pieceResults The match result of each piece, in piece order.
+	 * @return The match result of the whole trajectory, or null if two adjacent pieces do not converge within their overlap or the
+	 * results can not be aligned with the pieces, in which case the trajectory should be matched at once.
+	 */
+	public SimpleTrajectoryMatchResult stitch(Trajectory trajectory, int[] cuts, List<SimpleTrajectoryMatchResult> pieceResults) {
+		int pieceCount = cuts.length - 1;
+		if (pieceResults.size() != pieceCount)
+			throw new IllegalArgumentException("The number of piece results is inconsistent with the cuts: " + pieceResults.size() + ", "
+					+ pieceCount);
+		if (pieceCount == 1)
+			return pieceResults.get(0);
+		boolean hasRoute = pieceResults.get(0).containsRouteMatch();
+		List<int[]> routePositionList = new ArrayList<>(pieceCount);
+		for (int k = 0; k < pieceCount; k++) {
+			SimpleTrajectoryMatchResult result = pieceResults.get(k);
+			// each point match must correspond to a point of the piece, and all pieces either have a route or not
+			if (result.getPointMatchResultList().size() != getPieceEnd(cuts, k) - getPieceStart(cuts, k)
+					|| result.containsRouteMatch() != hasRoute)
+				return null;
+			int[] routePositions = hasRoute ? findRoutePositions(result) : null;
+			if (hasRoute && routePositions == null)
+				return null;
+			routePositionList.add(routePositions);
+		}
+		
+		List<PointMatch> pointMatchList = new ArrayList<>(trajectory.size());
+		List<String> routeMatchList = new ArrayList<>();
+		int pointStart = 0;     // the first point taken from the current piece, in trajectory index
+		int routeStart = 0;     // the first road taken from the current piece, in piece route index
+		for (int k = 0; k < pieceCount; k++) {
+			SimpleTrajectoryMatchResult result = pieceResults.get(k);
+			int pieceStart = getPieceStart(cuts, k);
+			int pointEnd = trajectory.size();
+			int routeEnd = result.getRouteMatchResultList().size();
+			int nextRouteStart = 0;
+			if (k < pieceCount - 1) {
+				int stitchPoint = findStitchPoint(cuts, k, result, pieceResults.get(k + 1), pointStart);
+				if (stitchPoint == -1)
+					return null;
+				pointEnd = stitchPoint + 1;
+				if (hasRoute) {
+					routeEnd = routePositionList.get(k)[stitchPoint - pieceStart] + 1;
+					nextRouteStart = routePositionList.get(k + 1)[stitchPoint - getPieceStart(cuts, k + 1)] + 1;
+				}
+			}
+			for (int i = pointStart; i < pointEnd; i++)
+				pointMatchList.add(result.getPointMatch(i - pieceStart));
+			for (String roadID : result.getRouteMatchResultList().subList(Math.min(routeStart, routeEnd), routeEnd)) {
+				if (routeMatchList.isEmpty() || !routeMatchList.get(routeMatchList.size() - 1).equals(roadID))
+					routeMatchList.add(roadID);
+			}
+			pointStart = pointEnd;
+			routeStart = nextRouteStart;
+		}
+		return new SimpleTrajectoryMatchResult(trajectory.getID(), pointMatchList, routeMatchList);
+	}
+	
+	private int getPieceStart(int[] cuts, int k) {
+		return Math.max(cuts[k] - overlapSize, 0);
+	}
+	
+	private int getPieceEnd(int[] cuts, int k) {
+		return Math.min(cuts[k + 1] + overlapSize, cuts[cuts.length - 1]);
+	}
+	
+	/**
+	 * Find the stitch point of piece k and k+1 closest to their cut, where both pieces have the same match for the point and its two
+	 * neighbours. The stitch point must be after the first point taken from piece k.
+	 *
+	 * @return The trajectory index of the stitch point, -1 if the pieces do not converge in the overlap.
+	 */
+	private int findStitchPoint(int[] cuts, int k, SimpleTrajectoryMatchResult result, SimpleTrajectoryMatchResult nextResult,
+								int pointStart) {
+		int pieceStart = getPieceStart(cuts, k);
+		int nextPieceStart = getPieceStart(cuts, k + 1);
+		int overlapEnd = getPieceEnd(cuts, k);
+		for (int distance = 0; distance < overlapSize; distance++) {
+			for (int stitchPoint : new int[]{cuts[k + 1] + distance, cuts[k + 1] - distance - 1}) {
+				if (stitchPoint - 1 < Math.max(nextPieceStart, pointStart) || stitchPoint + 1 >= overlapEnd)
+					continue;
+				boolean isConverged = true;
+				for (int i = stitchPoint - 1; i <= stitchPoint + 1 && isConverged; i++) {
+					PointMatch pointMatch = result.getPointMatch(i - pieceStart);
+					isConverged = !pointMatch.getRoadID().equals("") && pointMatch.equals(nextResult.getPointMatch(i - nextPieceStart));
+				}
+				if (isConverged)
+					return stitchPoint;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Locate the road of each matched point in the route of the result. The route passes the roads of the matched points in order, so
+	 * each road is searched from the position of the previous point.
+	 *
+	 * @return The route index of each point, -1 for unmatched points, or null if a road is not found on the route.
+	 */
+	private int[] findRoutePositions(SimpleTrajectoryMatchResult result) {
+		List<String> route = result.getRouteMatchResultList();
+		int[] positions = new int[result.getPointMatchResultList().size()];
+		int cursor = 0;
+		for (int i = 0; i < positions.length; i++) {
+			String roadID = result.getPointMatch(i).getRoadID();
+			if (roadID.equals("")) {
+				positions[i] = -1;
+				continue;
+			}
+			while (cursor < route.size() && !route.get(cursor).equals(roadID))
+				cursor++;
+			if (cursor == route.size())
+				return null;
+			positions[i] = cursor;
+		}
+		return positions;
+	}
+	
+	private boolean isStationary(Trajectory trajectory, int index, DistanceFunction distFunc) {
+		return index + 1 < trajectory.size()
+				&& distFunc.distance(trajectory.get(index - 1), trajectory.get(index)) < STATIONARY_DISTANCE
+				&& distFunc.distance(trajectory.get(index), trajectory.get(index + 1)) < STATIONARY_DISTANCE;
+	}
+}
@@ -0,0 +1,75 @@
+package algorithm.mapmatching.hmm;
+
+/**
+ * Forward step of the Viterbi algorithm on a dense lattice of primitive arrays, used by <tt>ViterbiAlgorithm</tt> behind its map-based
+ * interface. The states of a time step are identified by their index within the step, the emission log probabilities of a step are a
+ * <tt>double[state]</tt> vector and the transition log probabilities between two steps a <tt>double[prev][cur]</tt> matrix, where a
+ * missing transition is <tt>Double.NEGATIVE_INFINITY</tt>.
+ * <p>
+ * For each state, the top-k predecessors are selected by a partial insertion into fixed arrays of size k instead of sorting all
+ * predecessors, and stored as <tt>int[state * k + rank]</tt> back pointers together with the log probability of each ranked path. Ties
+ * on the probability are broken by an optional rank of the previous states, otherwise by the state index, so the result is
+ * deterministic.
+ */
+final class DenseViterbi {
+	
+	private DenseViterbi() {
+	}
+	
+	/**
+	 * Computes the new forward message and the top-k back pointers of each current state. The ranked predecessors of a state are
+	 * selected on <tt>message[prev] + transition[prev][cur]</tt>, higher first, then on the tie rank of the previous state.
+	 *
+	 * @param message                    The forward message of the previous step.
+	 * @param emissionLogProbabilities   The emission log probabilities of the current step.
+	 * @param transitionLogProbabilities The <tt>[prev][cur]</tt> transition log probabilities.
+	 * @param tieRank                    The tie-breaking order of the previous states, null to use the state index.
+	 * @param rankLength                 The number of predecessors kept for each state.
+	 * @param newMessage                 Output, the forward message of the current step.
+	 * @param backPointers               Output, the <tt>[cur * rankLength + rank]</tt> predecessor index, -1 if unused.
+	 * @param rankedProbabilities        Output, the log probability of the sequence through each ranked predecessor, including the
+	 *                                   emission of the current state.
+	 * @return False if all current states have zero probability.
+	 */
+	static boolean forwardStep(double[] message, double[] emissionLogProbabilities, double[][] transitionLogProbabilities, int[] tieRank,
+							   int rankLength, double[] newMessage, int[] backPointers, double[] rankedProbabilities) {
+		int[] topStates = new int[rankLength];
+		double[] topProbabilities = new double[rankLength];
+		boolean isReachable = false;
+		for (int cur = 0; cur < emissionLogProbabilities.length; cur++) {
+			int size = 0;
+			for (int prev = 0; prev < message.length; prev++) {
+				double logProbability = message[prev] + transitionLogProbabilities[prev][cur];
+				if (!(logProbability > Double.NEGATIVE_INFINITY))
+					continue;
+				if (size == rankLength && !precedes(logProbability, prev, topProbabilities[size - 1], topStates[size - 1], tieRank))
+					continue;
+				int position = size < rankLength ? size++ : size - 1;
+				while (position > 0 && precedes(logProbability, prev, topProbabilities[position - 1], topStates[position - 1], tieRank)) {
+					topProbabilities[position] = topProbabilities[position - 1];
+					topStates[position] = topStates[position - 1];
+					position--;
+				}
+				topProbabilities[position] = logProbability;
+				topStates[position] = prev;
+			}
+			int offset = cur * rankLength;
+			for (int rank = 0; rank < rankLength; rank++) {
+				backPointers[offset + rank] = rank < size ? topStates[rank] : -1;
+				rankedProbabilities[offset + rank] = rank < size ? topProbabilities[rank] + emissionLogProbabilities[cur] :
+						Double.NEGATIVE_INFINITY;
+			}
+			newMessage[cur] = size == 0 ? Double.NEGATIVE_INFINITY : topProbabilities[0] + emissionLogProbabilities[cur];
+			if (newMessage[cur] != Double.NEGATIVE_INFINITY)
+				isReachable = true;
+		}
+		return isReachable;
+	}
+	
+	private static boolean precedes(double logProbability, int state, double otherLogProbability, int otherState, int[] tieRank) {
+		int result = Double.compare(logProbability, otherLogProbability);
+		if (result != 0)
+			return result > 0;
+		return tieRank == null ? state < otherState : tieRank[state] < tieRank[otherState];
+	}
+}
@@ -1,11 +1,15 @@
 package algorithm.mapmatching.hmm;
 
+import algorithm.mapmatching.MatchingScheduler;
 import org.apache.log4j.Logger;
+import util.dijkstra.RouteMatrix;
 import util.dijkstra.RoutingGraph;
 import util.function.DistanceFunction;
 import util.index.grid.Grid;
 import util.index.grid.GridPartition;
+import util.index.rtree.CandidateBatch;
 import util.index.rtree.RTreeIndexing;
+import util.io.MapIndexBundle;
 import util.object.roadnetwork.RoadNetworkGraph;
 import util.object.roadnetwork.RoadWay;
 import util.object.spatialobject.Point;
@@ -18,8 +22,7 @@ import util.settings.BaseProperty;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -40,6 +43,7 @@ public class HMMMapMatching implements Serializable {
 	private final int candidateRange;    // in meter
 	private final int gapExtensionDist; // in meter
 	private final int rankLength; // in meter
+	private final int maxDecodingLag;   // the maximum lag of incremental decoding, -1 if the decoding is not incremental
 	
 	/**
 	 * The distance method to use between points
@@ -65,6 +69,8 @@ public class HMMMapMatching implements Serializable {
 	 */
 	private double intervalLength;
 	private HashMap<String, List<RoadWay>> id2DDWayMapping = new HashMap<>(); // the mapping between road id and double-directed roads.
+	private HashMap<String, Integer> roadID2FirstEdgeIndex = new HashMap<>();    // the mini edge index of the first segment of each road,
+	// in the same order as the routing graph
 	
 	public HMMMapMatching(RoadNetworkGraph roadNetworkGraph, BaseProperty prop) {
 		this.distFunc = roadNetworkGraph.getDistanceFunction();
@@ -77,6 +83,14 @@ public class HMMMapMatching implements Serializable {
 				".GapExtensionDistance") : 15;
 		this.rankLength = prop.contains("algorithm.mapmatching.hmm.RankLength") ? prop.getPropertyInteger("algorithm.mapmatching.hmm" +
 				".RankLength") : 1;
+		boolean isIncrementalDecoding = prop.contains("algorithm.mapmatching.hmm.IncrementalDecoding") &&
+				prop.getPropertyBoolean("algorithm.mapmatching.hmm.IncrementalDecoding");
+		if (isIncrementalDecoding && rankLength != 1) {
+			LOG.warn("Incremental decoding only supports rank length 1, the whole lattice is kept for rank length " + rankLength);
+			isIncrementalDecoding = false;
+		}
+		this.maxDecodingLag = !isIncrementalDecoding ? -1 : prop.contains("algorithm.mapmatching.hmm.MaxDecodingLag") ?
+				prop.getPropertyInteger("algorithm.mapmatching.hmm.MaxDecodingLag") : 0;
 		double sigma = prop.getPropertyDouble("algorithm.mapmatching.Sigma");
 		double beta = prop.getPropertyDouble("algorithm.mapmatching.hmm.Beta");
 		this.hmmProbabilities = new HMMProbabilities(sigma, beta);
@@ -93,8 +107,10 @@ public class HMMMapMatching implements Serializable {
 			}
 		}
 		buildGridIndex(roadNetworkGraph, isNewRoadIncluded);   // build grid index
-		this.rtree = new RTreeIndexing(roadNetworkGraph);
-		this.routingGraph = new RoutingGraph(roadNetworkGraph, isNewRoadIncluded, prop);
+		MapIndexBundle indexBundle = isNewRoadIncluded ? null : MapIndexBundle.open(roadNetworkGraph, prop);   // new roads are inserted later
+		this.rtree = indexBundle == null ? new RTreeIndexing(roadNetworkGraph, prop) : indexBundle.createRTreeIndexing(prop);
+		this.routingGraph = indexBundle == null ? new RoutingGraph(roadNetworkGraph, isNewRoadIncluded, prop) :
+				indexBundle.createRoutingGraph(prop);
 	}
 	
 	/**
@@ -112,14 +128,16 @@ public class HMMMapMatching implements Serializable {
 		List<XYObject<SegmentWithIndex>> insertedItemList = new ArrayList<>();
 		for (RoadWay w : id2DDWayMapping.get(id)) {
 			if (w.getID().equals(roadID)) {
+				Integer firstEdgeIndex = roadID2FirstEdgeIndex.get(w.getID());
+				if (firstEdgeIndex == null)
+					throw new IllegalArgumentException("The road to be inserted to the HMM model is not in the routing graph: " + w.getID());
+				int edgeIndex = firstEdgeIndex;
 				for (Segment s : w.getEdges()) {
 					// -1: left endpoint of the segment, 0: right endpoint of the segment, >0: intermediate point
-					SegmentWithIndex segmentItemLeft = new SegmentWithIndex(s, -1, w.getID(), intervalLength, distFunc);
+					SegmentWithIndex segmentItemLeft = new SegmentWithIndex(s, -1, w.getID(), edgeIndex, intervalLength, distFunc);
 					XYObject<SegmentWithIndex> segmentIndexLeft = new XYObject<>(segmentItemLeft.x(), segmentItemLeft.y(), segmentItemLeft);
-					SegmentWithIndex segmentItemRight = new SegmentWithIndex(s, 0, w.getID(), intervalLength, distFunc);
+					SegmentWithIndex segmentItemRight = new SegmentWithIndex(s, 0, w.getID(), edgeIndex, intervalLength, distFunc);
 					XYObject<SegmentWithIndex> segmentIndexRight = new XYObject<>(segmentItemRight.x(), segmentItemRight.y(), segmentItemRight);
-					this.grid.insert(segmentIndexLeft);
-					this.grid.insert(segmentIndexRight);
 					insertedItemList.add(segmentIndexLeft);
 					insertedItemList.add(segmentIndexRight);
 					// if the length of the segment is longer than two times of the candidate range, insert the intermediate points of the
@@ -127,17 +145,19 @@ public class HMMMapMatching implements Serializable {
 					double segmentDistance = distFunc.distance(s.p1(), s.p2());
 					int intermediateID = 1;
 					while (segmentDistance > intervalLength) {
-						SegmentWithIndex segmentItemIntermediate = new SegmentWithIndex(s, intermediateID, w.getID(), intervalLength, distFunc);
+						SegmentWithIndex segmentItemIntermediate = new SegmentWithIndex(s, intermediateID, w.getID(), edgeIndex, intervalLength,
+								distFunc);
 						XYObject<SegmentWithIndex> segmentIndexIntermediate = new XYObject<>(segmentItemIntermediate.x(), segmentItemIntermediate.y(),
 								segmentItemIntermediate);
-						this.grid.insert(segmentIndexIntermediate);
 						segmentDistance = segmentDistance - intervalLength;
 						intermediateID++;
 						insertedItemList.add(segmentIndexIntermediate);
 					}
+					edgeIndex++;
 				}
 			}
 		}
+		this.grid.insertAll(insertedItemList);     // one copy of each affected cell, concurrent searches see the cells before or after
 		return insertedItemList;
 	}
 	
@@ -184,12 +204,7 @@ public class HMMMapMatching implements Serializable {
 		}
 		
 		// parallel processing
-		ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
-		ForkJoinTask<Stream<MatchResultWithUnmatchedTraj>> taskResult =
-				forkJoinPool.submit(() -> inputTrajectory.parallel().map(this::doMatching));
-		while (!taskResult.isDone())
-			Thread.sleep(5);
-		return taskResult.get();
+		return MatchingScheduler.match(inputTrajectory.collect(Collectors.toList()), -1, this::doMatching).stream();
 	}
 	
 	/**
@@ -242,36 +257,44 @@ public class HMMMapMatching implements Serializable {
 		
 		int pointCount = 0;
 		int intermediatePointCount = 0;
+		int firstEdgeIndex = 0;     // the mini edges are numbered in the same order as in RoutingGraph
+		List<XYObject<SegmentWithIndex>> indexItemList = new ArrayList<>();
 		
 		for (RoadWay t : inputMap.getWays()) {
+			roadID2FirstEdgeIndex.put(t.getID(), firstEdgeIndex);
 			if (!isNewRoadsIncluded || !t.isNewRoad()) {
+				int edgeIndex = firstEdgeIndex;
 				for (Segment s : t.getEdges()) {
 					// -1: left endpoint of the segment, 0: right endpoint of the segment, >0: intermediate point
-					SegmentWithIndex segmentItemLeft = new SegmentWithIndex(s, -1, t.getID(), intervalLength, distFunc);
+					SegmentWithIndex segmentItemLeft = new SegmentWithIndex(s, -1, t.getID(), edgeIndex, intervalLength, distFunc);
 					XYObject<SegmentWithIndex> segmentIndexLeft = new XYObject<>(segmentItemLeft.x(), segmentItemLeft.y(), segmentItemLeft);
-					SegmentWithIndex segmentItemRight = new SegmentWithIndex(s, 0, t.getID(), intervalLength, distFunc);
+					SegmentWithIndex segmentItemRight = new SegmentWithIndex(s, 0, t.getID(), edgeIndex, intervalLength, distFunc);
 					XYObject<SegmentWithIndex> segmentIndexRight = new XYObject<>(segmentItemRight.x(), segmentItemRight.y(), segmentItemRight);
-					this.grid.insert(segmentIndexLeft);
+					indexItemList.add(segmentIndexLeft);
 					pointCount++;
-					this.grid.insert(segmentIndexRight);
+					indexItemList.add(segmentIndexRight);
 					pointCount++;
 					// if the length of the segment is longer than two times of the candidate range, insert the intermediate points of the
 					// segment
 					double segmentDistance = distFunc.distance(s.p1(), s.p2());
 					int intermediateID = 1;
 					while (segmentDistance > intervalLength) {
-						SegmentWithIndex segmentItemIntermediate = new SegmentWithIndex(s, intermediateID, t.getID(), intervalLength, distFunc);
+						SegmentWithIndex segmentItemIntermediate = new SegmentWithIndex(s, intermediateID, t.getID(), edgeIndex, intervalLength,
+								distFunc);
 						XYObject<SegmentWithIndex> segmentIndexIntermediate = new XYObject<>(segmentItemIntermediate.x(), segmentItemIntermediate.y(),
 								segmentItemIntermediate);
-						this.grid.insert(segmentIndexIntermediate);
+						indexItemList.add(segmentIndexIntermediate);
 						segmentDistance = segmentDistance - intervalLength;
 						intermediateID++;
 						intermediatePointCount++;
 						pointCount++;
 					}
+					edgeIndex++;
 				}
 			}
+			firstEdgeIndex += Math.max(t.getNodes().size() - 1, 0);
 		}
+		this.grid.insertAll(indexItemList);
 		
 		LOG.info("Grid index build successfully, total number of segment items in grid index: " + pointCount + ", number of " +
 				"newly created middle points: " + intermediatePointCount);
@@ -301,12 +324,15 @@ public class HMMMapMatching implements Serializable {
 		
 		List<Triplet<Trajectory, String, String>> unmatchedTrajectoryList = new ArrayList<>();   // unmatched trajectories
 		
-		ViterbiAlgorithm<PointMatch, TrajectoryPoint, RoadPath> viterbi = new ViterbiAlgorithm<>(rankLength);
+		ViterbiAlgorithm<PointMatch, TrajectoryPoint, RoadPath> viterbi = maxDecodingLag == -1 ? new ViterbiAlgorithm<>(rankLength) :
+				new ViterbiAlgorithm<>(rankLength, maxDecodingLag);
 		TimeStep<PointMatch, TrajectoryPoint, RoadPath> prevTimeStep = null;
 		List<Pair<List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>>, Double>> rankedRoadPositionList = new ArrayList<>(rankLength);
 		for (int i = 0; i < rankLength; i++) {       // first fill all top k results with empty array
 			rankedRoadPositionList.add(new Pair<>(new ArrayList<>(), 0d));
 		}
+		int sequenceStartPosition = 0;  // the result size when the current matching sequence starts
+		double emittedUnmatchedProbability = 0; // the break point probability of the states handed over by the incremental decoding
 		
 		// start the process
 		for (int i = 0; i < trajectory.size(); i++) {
@@ -321,6 +347,8 @@ public class HMMMapMatching implements Serializable {
 				timeStep = new TimeStep<>(gpsPoint, candidates);
 				if (prevTimeStep == null) {     // start of the trajectory or the current matching has just been cut off
 					computeEmissionProbabilities(timeStep);
+					sequenceStartPosition = rankedRoadPositionList.get(0)._1().size();
+					emittedUnmatchedProbability = 0;
 					viterbi.startWithInitialObservation(timeStep.observation, timeStep.candidates, timeStep.emissionLogProbabilities);
 					if (breakPoints.containsKey(i))
 						breakPoints.put(i, 3);  // start the new match from the current point, set it as the breakpoint type 3
@@ -335,7 +363,7 @@ public class HMMMapMatching implements Serializable {
 							List<Pair<List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>>, Double>> temporalRoadPositions =
 									viterbi.computeMostLikelySequence();
 							resultMerge(rankedRoadPositionList, temporalRoadPositions, trajectory, breakPoints, indexBeforeCurrBreak + 1,
-									candidatesMap);
+									candidatesMap, sequenceStartPosition, emittedUnmatchedProbability);
 							
 							// restart the matching from the last break point
 							i = indexBeforeCurrBreak;
@@ -345,7 +373,8 @@ public class HMMMapMatching implements Serializable {
 						}
 						List<Pair<List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>>, Double>> temporalRoadPositions =
 								viterbi.computeMostLikelySequence();
-						resultMerge(rankedRoadPositionList, temporalRoadPositions, trajectory, breakPoints, i, candidatesMap);
+						resultMerge(rankedRoadPositionList, temporalRoadPositions, trajectory, breakPoints, i, candidatesMap,
+								sequenceStartPosition, emittedUnmatchedProbability);
 						
 						// set the current point as break point and restart the matching
 						i--;
@@ -358,7 +387,7 @@ public class HMMMapMatching implements Serializable {
 					computeTransitionProbabilitiesWithConnectivity(prevTimeStep, timeStep);
 					viterbi.nextStep(
 							timeStep.observation,
-							timeStep.candidates, prevTimeStep.candidates,
+							timeStep.candidates,
 							timeStep.emissionLogProbabilities,
 							timeStep.transitionLogProbabilities,
 							timeStep.roadPaths);
@@ -371,7 +400,8 @@ public class HMMMapMatching implements Serializable {
 							while (breakPoints.containsKey(indexBeforeCurrBreak) && breakPoints.get(indexBeforeCurrBreak) != 3) {
 								indexBeforeCurrBreak--;
 							}
-							if (indexBeforeCurrBreak < rankedRoadPositionList.get(0)._1().size())
+							// the decided prefix handed over by the incremental decoding may end at the point before the break
+							if (indexBeforeCurrBreak + 1 < rankedRoadPositionList.get(0)._1().size())
 								throw new IndexOutOfBoundsException("ERROR! The current breakpoint index falls into the matched result area");
 						}
 						// mark the broken points and expect a reconnection
@@ -385,6 +415,11 @@ public class HMMMapMatching implements Serializable {
 						}
 						breakPoints.remove(i);
 						prevTimeStep = timeStep;
+						if (maxDecodingLag != -1) {
+							// hand the decided prefix over to the result right away, the decoder only keeps the undecided tail
+							emittedUnmatchedProbability += appendDecidedStates(rankedRoadPositionList.get(0)._1(), viterbi.pollDecided(),
+									trajectory, breakPoints, candidatesMap);
+						}
 					}
 				}
 			}
@@ -396,7 +431,7 @@ public class HMMMapMatching implements Serializable {
 					List<Pair<List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>>, Double>> temporalRoadPositions = viterbi
 							.computeMostLikelySequence();
 					resultMerge(rankedRoadPositionList, temporalRoadPositions, trajectory, breakPoints, indexBeforeCurrBreak + 1,
-							candidatesMap);
+							candidatesMap, sequenceStartPosition, emittedUnmatchedProbability);
 					
 					// restart the matching from the last break point
 					i = indexBeforeCurrBreak;
@@ -405,7 +440,8 @@ public class HMMMapMatching implements Serializable {
 				} else {
 					List<Pair<List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>>, Double>> temporalRoadPositions = viterbi
 							.computeMostLikelySequence();
-					resultMerge(rankedRoadPositionList, temporalRoadPositions, trajectory, breakPoints, trajectory.size(), candidatesMap);
+					resultMerge(rankedRoadPositionList, temporalRoadPositions, trajectory, breakPoints, trajectory.size(), candidatesMap,
+							sequenceStartPosition, emittedUnmatchedProbability);
 				}
 			}
 		}
@@ -414,6 +450,10 @@ public class HMMMapMatching implements Serializable {
 		if (viterbi.isBroken()) {
 			throw new RuntimeException("ERROR! The hmm break still exists after the trajectory is processed.");
 		}
+		if (maxDecodingLag != -1) {
+			LOG.debug("Trajectory " + trajectory.getID() + " decoded incrementally, " + viterbi.getEmittedCount() + " points, mean emission "
+					+ "lag: " + viterbi.getMeanEmissionLag() + " points, max emission lag: " + viterbi.getMaxEmissionLag() + " points.");
+		}
 
 //        for (Pair<List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>>, Double> positionList : rankedRoadPositionList) {   // sort the matching result according to the trajectory point sequence
 //            positionList._1().sort(Comparator.comparingLong(m -> m.observation.time()));
@@ -602,50 +642,49 @@ public class HMMMapMatching implements Serializable {
 	private void computeCandidatesFromGridIndex(Collection<TrajectoryPoint> pointsList, Map<TrajectoryPoint, Collection<PointMatch>> candidatesMap) {
 //        int candidateCount = 0;
 		for (TrajectoryPoint p : pointsList) {
-			Set<String> candidateFilter = new HashSet<>();
+			Set<Integer> candidateFilter = new HashSet<>();  // the mini edges that already generated a candidate
 			// As we set the grid size as the candidateRange, only the partition that contains the query point and its neighbouring
 			// partitions can potentially generate candidates
 			candidatesMap.put(p, new ArrayList<>());
-			List<GridPartition<SegmentWithIndex>> partitionList = new ArrayList<>();
-			partitionList.add(grid.partitionSearch(p.x(), p.y()));
-			partitionList.addAll(grid.adjacentPartitionSearch(p.x(), p.y()));
+			List<GridPartition<SegmentWithIndex>> partitionList = grid.neighbourhoodSearch(p.x(), p.y());
 			for (GridPartition<SegmentWithIndex> partition : partitionList) {
-				if (partition != null)
-					for (XYObject<SegmentWithIndex> item : partition.getObjectsList()) {
-						SegmentWithIndex indexItem = item.getSpatialObject();
-						if (!candidateFilter.contains(indexItem.getSegment().x1() + "," + indexItem.getSegment().y1() + "_" +
-								indexItem.getSegment().x2() + "," + indexItem.getSegment().y2() + "_" + indexItem.getRoadID())) {
-							Point matchingPoint = distFunc.getClosestPoint(p, indexItem.getSegment());
-							if (distFunc.distance(p, matchingPoint) < candidateRange) {
+				for (XYObject<SegmentWithIndex> item : partition.getObjectsList()) {
+					SegmentWithIndex indexItem = item.getSpatialObject();
+					if (!candidateFilter.contains(indexItem.getEdgeIndex())) {
+						Point matchingPoint = distFunc.getClosestPoint(p, indexItem.getSegment());
+						if (distFunc.distance(p, matchingPoint) < candidateRange) {
 //							if (distFunc.distance(p, matchingPoint) < candidateRange && !matchingPoint.equals2D(indexItem.getSegment().p1()) && !matchingPoint.equals2D(indexItem.getSegment().p2())) {
-								PointMatch candidate = new PointMatch(matchingPoint, indexItem.getSegment(), indexItem.getRoadID());
-								candidatesMap.get(p).add(candidate);
+							PointMatch candidate = new PointMatch(matchingPoint, indexItem.getSegment(), indexItem.getRoadID(),
+									indexItem.getEdgeIndex());
+							candidatesMap.get(p).add(candidate);
 //                                candidateCount++;
-								candidateFilter.add(indexItem.getSegment().x1() + "," + indexItem.getSegment().y1() + "_" +
-										indexItem.getSegment().x2() + "," + indexItem.getSegment().y2() + "_" + indexItem.getRoadID());
-							}
+							candidateFilter.add(indexItem.getEdgeIndex());
 						}
 					}
+				}
 			}
 		}
 //        LOG.info("Total candidate count: " + candidateCount + ", trajectory point count: " + pointsList.size());
 	}
 	
 	/**
-	 * Compute the candidates list for every GPS point using a radius query.
+	 * Compute the candidates list for every GPS point using a radius query. All points are searched in one batch.
 	 *
 	 * @param pointsList    List of GPS trajectory points to map.
 	 * @param candidatesMap the candidate list for every trajectory point
 	 */
-	private void computeCandidatesFromRTreeIndex(Collection<TrajectoryPoint> pointsList,
+	private void computeCandidatesFromRTreeIndex(List<TrajectoryPoint> pointsList,
 												 Map<TrajectoryPoint, Collection<PointMatch>> candidatesMap) {
 //        int candidateCount = 0;
-		for (TrajectoryPoint p : pointsList) {
-			List<PointMatch> searchResult = this.rtree.searchNeighbours(p, candidateRange);
-			for (PointMatch pointMatch : searchResult) {
-				pointMatch.setRoadID(pointMatch.getRoadID().split("\\|")[0]);
+		CandidateBatch candidateBatch = this.rtree.searchNeighboursInBuffer(pointsList, candidateRange);
+		for (int i = 0; i < pointsList.size(); i++) {
+			List<PointMatch> searchResult = new ArrayList<>(candidateBatch.getCandidateCount(i));
+			for (int c = candidateBatch.getCandidateStart(i); c < candidateBatch.getCandidateEnd(i); c++) {
+				PointMatch pointMatch = this.rtree.getPointMatch(candidateBatch, c, distFunc);
+				pointMatch.setRoadID(this.rtree.getRoadID(candidateBatch.getLineID(c)));
+				searchResult.add(pointMatch);
 			}
-			candidatesMap.put(p, searchResult);
+			candidatesMap.put(pointsList.get(i), searchResult);
 		}
 	}
 	
@@ -655,10 +694,10 @@ public class HMMMapMatching implements Serializable {
 	 * @param timeStep the observation and its candidate
 	 */
 	private void computeEmissionProbabilities(TimeStep<PointMatch, TrajectoryPoint, RoadPath> timeStep) {
-		for (PointMatch candidate : timeStep.candidates) {
+		for (int i = 0; i < timeStep.candidates.size(); i++) {
+			PointMatch candidate = timeStep.candidates.get(i);
 			double distance = getDistance(timeStep.observation.x(), timeStep.observation.y(), candidate.lon(), candidate.lat());
-			timeStep.addEmissionLogProbability(candidate,
-					hmmProbabilities.emissionLogProbability(distance));
+			timeStep.emissionLogProbabilities[i] = hmmProbabilities.emissionLogProbability(distance);
 		}
 	}
 	
@@ -677,27 +716,29 @@ public class HMMMapMatching implements Serializable {
 //        double maxDistance = 50 * timeDiff;
 		double uTurnPenalty = prop.contains("algorithm.mapmatching.hmm.UTurnPenalty") ? prop.getPropertyDouble("algorithm.mapmatching.hmm" +
 				".UTurnPenalty") : 0;
-		for (PointMatch from : prevTimeStep.candidates) {
-			List<PointMatch> candidates = new ArrayList<>(timeStep.candidates);
-//			List<Pair<Double, List<String>>> shortestPathResultList = routingGraph.calculateOneToNDijkstraSP(from, candidates, maxDistance);
-			List<Pair<Double, List<String>>> shortestPathResultList = routingGraph.calculateOneToNAStarSP(from, candidates,
-					timeStep.observation, maxDistance);
-			for (int i = 0; i < candidates.size(); i++) {
-				if (shortestPathResultList.get(i)._1() != Double.POSITIVE_INFINITY) {
-					if (shortestPathResultList.get(i)._2().contains(reverseID(from.getRoadID())))
-						shortestPathResultList.get(i).set_1(shortestPathResultList.get(i)._1() + uTurnPenalty);
-					timeStep.addRoadPath(from, candidates.get(i), new RoadPath(from, candidates.get(i), shortestPathResultList.get(i)._2()));
-//					timeStep.addTransitionLogProbability(from, candidates.get(i), 1);	// test if transition is useless
-					double transitionLogProbability = hmmProbabilities.transitionLogProbability(shortestPathResultList.get(i)._1(),
-							linearDistance, timeDiff);
-//                    // apply the penalty if the path incurs an u-turn
-//                    if (!from.getRoadID().equals(candidates.get(i).getRoadID()) && Math.abs(Long.parseLong(from.getRoadID())) == Math.abs
-//                            (Long.parseLong(candidates.get(i).getRoadID())))
-//                        transitionLogProbability += U_TURN_PENALTY;
-					timeStep.addTransitionLogProbability(from, candidates.get(i), transitionLogProbability);
+		// all predecessors share one route matrix query, see RoutingGraph.calculateManyToNSP. The probabilities are written into the
+		// dense [prev][cur] arrays indexed by the candidate positions, which are passed to the Viterbi forward step as they are
+		List<PointMatch> sources = prevTimeStep.candidates;
+		List<PointMatch> candidates = timeStep.candidates;
+		RouteMatrix routeMatrix = routingGraph.calculateManyToNSP(sources, candidates, maxDistance);
+		double[][] transitionLogProbabilities = new double[sources.size()][candidates.size()];
+		RoadPath[][] roadPaths = new RoadPath[sources.size()][candidates.size()];
+		for (int i = 0; i < sources.size(); i++) {
+			PointMatch from = sources.get(i);
+			Arrays.fill(transitionLogProbabilities[i], Double.NEGATIVE_INFINITY);
+			for (int j = 0; j < candidates.size(); j++) {
+				if (routeMatrix.isReachable(i, j)) {
+					double pathDistance = routeMatrix.getDistance(i, j);
+					List<String> path = routeMatrix.getPath(i, j);
+					if (path.contains(reverseID(from.getRoadID())))
+						pathDistance += uTurnPenalty;
+					roadPaths[i][j] = new RoadPath(from, candidates.get(j), path);
+//					transitionLogProbabilities[i][j] = 1;	// test if transition is useless
+					transitionLogProbabilities[i][j] = hmmProbabilities.transitionLogProbability(pathDistance, linearDistance, timeDiff);
 				}
 			}
 		}
+		timeStep.setTransitions(transitionLogProbabilities, roadPaths);
 	}
 	
 	private String reverseID(String roadID) {
@@ -811,18 +852,20 @@ public class HMMMapMatching implements Serializable {
 	 * points are matched to its geographically closest point or null if no point is close to it. In addition, the probability is
 	 * accumulated, but it will turn to zero if either the previous or the current probability is zero.
 	 *
-	 * @param rankedRoadPositionList final matching result list
-	 * @param temporalRoadPositions  current temporal matching result list
-	 * @param trajectory             raw trajectory
-	 * @param breakPoints            the break point list
-	 * @param destinationIndex       the size of the matching result after insertion, it should be temporal+breakPoints
-	 * @param candidatesMap          the candidate map of each raw trajectory point
+	 * @param rankedRoadPositionList      final matching result list
+	 * @param temporalRoadPositions       current temporal matching result list
+	 * @param trajectory                  raw trajectory
+	 * @param breakPoints                 the break point list
+	 * @param destinationIndex            the size of the matching result after insertion, it should be temporal+breakPoints
+	 * @param candidatesMap               the candidate map of each raw trajectory point
+	 * @param sequenceStartPosition       the size of the matching result when the current sequence started
+	 * @param emittedUnmatchedProbability the probability of the break points already inserted with the decided states
 	 */
 	private void resultMerge
 	(List<Pair<List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>>, Double>> rankedRoadPositionList,
 	 List<Pair<List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>>, Double>> temporalRoadPositions, Trajectory
 			 trajectory, Map<Integer, Integer> breakPoints, int destinationIndex, Map<TrajectoryPoint,
-			Collection<PointMatch>> candidatesMap) {
+			Collection<PointMatch>> candidatesMap, int sequenceStartPosition, double emittedUnmatchedProbability) {
 		for (int rank = 0; rank < rankLength; rank++) {
 			if (temporalRoadPositions.size() == 0) {
 				LOG.warn("The current trajectory has no matching result.");
@@ -830,45 +873,10 @@ public class HMMMapMatching implements Serializable {
 			}
 			int validRank = rank < temporalRoadPositions.size() ? rank : temporalRoadPositions.size() - 1;  // fill the rest of the rank
 			// list with the last valid sequence
-			int startPosition = rankedRoadPositionList.get(rank)._1().size();
-			int cursor = 0;
-			List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>> roadPositionList = rankedRoadPositionList.get(rank)._1();
-			double unmatchedProbability = 0;  // for each unmatched trajectory point, we add an emission probability and the
-			// transition probabilities
-			for (int k = startPosition; k < destinationIndex; k++) {
-				// if the current point is a breaking point
-				if (breakPoints.containsKey(k) && breakPoints.get(k) != 3) {
-					if (breakPoints.get(k) == 1) { // if the point does not have candidate
-						roadPositionList.add(new SequenceState<>(new PointMatch(distFunc), trajectory.get(k), null));
-						unmatchedProbability += hmmProbabilities.emissionLogProbability(candidateRange);
-						if (k != 0) {
-							unmatchedProbability += hmmProbabilities.maxTransitionLogProbability(distFunc.distance(trajectory.get(k - 1),
-									trajectory.get(k)), trajectory.get(k).time() - trajectory.get(k - 1).time());
-						}
-					} else {
-						List<String> roadIdList = new ArrayList<>();
-						PointMatch closestMatch = findNearestMatch(trajectory.get(k), candidatesMap.get(trajectory.get(k)));
-						roadIdList.add(closestMatch.getRoadID());
-						roadPositionList.add(new SequenceState<>(closestMatch, trajectory.get(k), new RoadPath(null, null,
-								roadIdList)));
-//                            double distance = distFunc.distance(closestMatch.getMatchPoint(), trajectory.get(k));
-						unmatchedProbability += hmmProbabilities.emissionLogProbability(candidateRange);
-						if (k != 0) {
-							unmatchedProbability += hmmProbabilities.maxTransitionLogProbability(distFunc.distance(trajectory.get(k - 1),
-									trajectory.get(k)), trajectory.get(k).time() - trajectory.get(k - 1).time());
-						}
-					}
-				} else {
-					if (breakPoints.containsKey(k) && breakPoints.get(k) == 3 && cursor != 0)
-						LOG.error("The current sequence contains a type 3 break point");
-					if (temporalRoadPositions.get(validRank)._1().get(cursor).observation.equals2D(trajectory.get(k))) {
-						roadPositionList.add(temporalRoadPositions.get(validRank)._1().get(cursor));
-						cursor++;
-					} else
-						LOG.error("The matching result mismatch!"); // the result sequence doesn't match the raw
-					// trajectory sequence
-				}
-			}
+			int startPosition = sequenceStartPosition;
+			// for each unmatched trajectory point, we add an emission probability and the transition probabilities
+			double unmatchedProbability = emittedUnmatchedProbability + appendMatchedStates(rankedRoadPositionList.get(rank)._1(),
+					temporalRoadPositions.get(validRank)._1(), trajectory, breakPoints, destinationIndex, candidatesMap);
 			double prevProbability = rankedRoadPositionList.get(rank)._2();
 			double currProbability = temporalRoadPositions.get(validRank)._2();
 			// add probability, probability = 0 if either of the probability is 0
@@ -890,4 +898,75 @@ public class HMMMapMatching implements Serializable {
 //                rankedRoadPositionList.get(rank).set_2(Double.NEGATIVE_INFINITY);
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Insert the states decided by the incremental decoding into the final result, together with the broken points before them. The
+	 * probability of the sequence is only known once the sequence is finished, so it is left to {@link #resultMerge}.
+	 *
+	 * @param roadPositionList final matching result list of the top rank
+	 * @param decidedStates    the states decided since the last hand-over
+	 * @param trajectory       raw trajectory
+	 * @param breakPoints      the break point list
+	 * @param candidatesMap    the candidate map of each raw trajectory point
+	 * @return The log probability of the inserted break points.
+	 */
+	private double appendDecidedStates(List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>> roadPositionList,
+									   List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>> decidedStates, Trajectory trajectory,
+									   Map<Integer, Integer> breakPoints, Map<TrajectoryPoint, Collection<PointMatch>> candidatesMap) {
+		if (decidedStates.isEmpty())
+			return 0;
+		// the decided states end at the observation of the last one, which is the trajectory point itself
+		TrajectoryPoint lastObservation = decidedStates.get(decidedStates.size() - 1).observation;
+		int destinationIndex = roadPositionList.size();
+		while (trajectory.get(destinationIndex) != lastObservation)
+			destinationIndex++;
+		return appendMatchedStates(roadPositionList, decidedStates, trajectory, breakPoints, destinationIndex + 1, candidatesMap);
+	}
+	
+	/**
+	 * Append the matched states to the result from its current end up to the destination, the break points along the way are matched
+	 * to their closest candidate or an empty match if they have no candidate.
+	 *
+	 * @param roadPositionList final matching result list
+	 * @param matchedStates    the matched states to append, in trajectory order
+	 * @param trajectory       raw trajectory
+	 * @param breakPoints      the break point list
+	 * @param destinationIndex the size of the matching result after insertion
+	 * @param candidatesMap    the candidate map of each raw trajectory point
+	 * @return The log probability of the inserted break points.
+	 */
+	private double appendMatchedStates(List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>> roadPositionList,
+									   List<SequenceState<PointMatch, TrajectoryPoint, RoadPath>> matchedStates, Trajectory trajectory,
+									   Map<Integer, Integer> breakPoints, int destinationIndex,
+									   Map<TrajectoryPoint, Collection<PointMatch>> candidatesMap) {
+		int cursor = 0;
+		double unmatchedProbability = 0;
+		for (int k = roadPositionList.size(); k < destinationIndex; k++) {
+			// if the current point is a breaking point
+			if (breakPoints.containsKey(k) && breakPoints.get(k) != 3) {
+				if (breakPoints.get(k) == 1) { // if the point does not have candidate
+					roadPositionList.add(new SequenceState<>(new PointMatch(distFunc), trajectory.get(k), null));
+				} else {
+					List<String> roadIdList = new ArrayList<>();
+					PointMatch closestMatch = findNearestMatch(trajectory.get(k), candidatesMap.get(trajectory.get(k)));
+					roadIdList.add(closestMatch.getRoadID());
+					roadPositionList.add(new SequenceState<>(closestMatch, trajectory.get(k), new RoadPath(null, null, roadIdList)));
+				}
+				unmatchedProbability += hmmProbabilities.emissionLogProbability(candidateRange);
+				if (k != 0) {
+					unmatchedProbability += hmmProbabilities.maxTransitionLogProbability(distFunc.distance(trajectory.get(k - 1),
+							trajectory.get(k)), trajectory.get(k).time() - trajectory.get(k - 1).time());
+				}
+			} else {
+				if (breakPoints.containsKey(k) && breakPoints.get(k) == 3 && cursor != 0)
+					LOG.error("The current sequence contains a type 3 break point");
+				if (matchedStates.get(cursor).observation.equals2D(trajectory.get(k))) {
+					roadPositionList.add(matchedStates.get(cursor));
+					cursor++;
+				} else
+					LOG.error("The matching result mismatch!"); // the result sequence doesn't match the raw trajectory sequence
+			}
+		}
+		return unmatchedProbability;
+	}
+}
@@ -16,14 +16,9 @@
  */
 package algorithm.mapmatching.hmm;
 
-import algorithm.mapmatching.weightBased.Utilities;
 import org.apache.log4j.Logger;
-import util.object.roadnetwork.RoadNetworkGraph;
-import util.object.roadnetwork.RoadWay;
-import util.object.spatialobject.Segment;
 
 import java.io.Serializable;
-import java.util.List;
 
 /**
  * Based on Newson, Paul, and John Krumm. "Hidden Markov map matching through noise and sparseness."
@@ -91,41 +86,6 @@ public class HMMProbabilities implements Serializable {
 		return Distributions.exponentialDistribution(beta, transitionMetric);
 	}
 	
-	/**
-	 * Transition probability proposed by Takayuki Osogami (2014)
-	 *
-	 * @param routeLength
-	 * @param linearDistance
-	 * @param timeDiff
-	 * @param roadIDs
-	 * @return
-	 */
-	public double transitionProbabilityWithTurn(double routeLength, double linearDistance, double timeDiff,
-												List<String> roadIDs, RoadNetworkGraph roadMap, double turnWeight) {
-		if (roadIDs.size() <= 1) return 0d;
-		int turnCost = 0;
-		RoadWay prevRoadWay = roadMap.getWayByID(roadIDs.get(0));
-		for (int i = 1; i < roadIDs.size() - 1; i++) {
-			Segment prevEdge = prevRoadWay.getEdges().get(prevRoadWay.getEdges().size() - 1);
-			Segment curSegment = roadMap.getWayByID(roadIDs.get(i)).getEdges().get(0);
-			double heading = Math.abs(Utilities.computeHeading(prevEdge.x1(), prevEdge.y1(), prevEdge.x2(),
-					prevEdge.y2()));
-			double heading1 = Math.abs(Utilities.computeHeading(curSegment.x1(), curSegment.y1(), curSegment.x2(),
-					curSegment.y2()));
-			double headingDiff = Math.abs(heading - heading1);
-			if (headingDiff >= 45 && headingDiff <= 135) {
-				turnCost += 1;
-			} else if (headingDiff > 135 && headingDiff < 180) {
-				turnCost += 2;
-			} else if (headingDiff == 180) {
-				turnCost += 10;
-			}
-		}
-		double transitionMetric = normalizedTransitionMetric(routeLength + turnWeight * turnCost,
-				linearDistance, timeDiff);
-		return Distributions.exponentialDistribution(beta, transitionMetric);
-	}
-	
 	/**
 	 * Returns the maximum transition probability so as to fill the breaking gap.
 	 *
@@ -0,0 +1,196 @@
+package algorithm.mapmatching.hmm;
+
+import algorithm.mapmatching.hmm.ViterbiAlgorithm.ExtendedState;
+import util.object.structure.Pair;
+
+import java.util.*;
+
+/**
+ * Lazy enumeration of the k most likely state sequences in the back pointer lattice of <tt>ViterbiAlgorithm</tt>, using the Recursive
+ * Enumeration Algorithm of Jiménez and Marzal (Computing the K shortest paths: a new algorithm and an experimental comparison, WAE 1999).
+ * <p>
+ * The i-th best sequence ending in a state is stored as the pair (index of the back pointer, rank of the sequence ending in that
+ * predecessor), so a sequence is never copied during the enumeration. Each state reached by the enumeration keeps its sequences found so
+ * far and a small heap of candidates for its next sequence. The next sequence of a state is derived from the next sequence of the
+ * predecessor on its last sequence only, so the i-th overall sequence is produced on demand and the memory is proportional to the
+ * lattice size plus k instead of k times the sequence length. Since every state keeps its top k predecessors, the first k sequences are
+ * exact within the lattice.
+ *
+ * @param <S> the state type
+ * @param <O> the observation type
+ * @param <D> the transition descriptor type
+ */
+class KBestSequenceEnumerator<S, O, D> {
+	
+	private final Map<ExtendedState<S, O, D>, PathNode> nodeMap = new IdentityHashMap<>();
+	private final PathNode endNode;     // virtual successor of all final states
+	private int rankCount = 0;
+	
+	/**
+	 * @param finalStates           The final states to end a sequence with.
+	 * @param finalLogProbabilities The log probability of the most likely sequence ending in each final state.
+	 */
+	KBestSequenceEnumerator(List<ExtendedState<S, O, D>> finalStates, List<Double> finalLogProbabilities) {
+		if (finalStates.size() != finalLogProbabilities.size())
+			throw new IllegalArgumentException("The number of final states and final probabilities are inconsistent.");
+		this.endNode = new PathNode(finalStates, finalLogProbabilities);
+	}
+	
+	/**
+	 * Retrieve the next most likely sequence, starting from the most likely one.
+	 *
+	 * @return The sequence in time order and its log probability, or null if all sequences have been enumerated.
+	 */
+	Pair<List<SequenceState<S, O, D>>, Double> next() {
+		if (endNode.predecessors.isEmpty())
+			return null;
+		if (rankCount > 0)
+			advance(endNode);
+		if (endNode.pathCount <= rankCount)
+			return null;
+		Pair<List<SequenceState<S, O, D>>, Double> result = new Pair<>(buildSequence(rankCount), endNode.logProbabilities[rankCount]);
+		rankCount++;
+		return result;
+	}
+	
+	/**
+	 * Compute the next sequence of the given node. The recursion of REA goes down the predecessors along the last sequence of each node
+	 * until a predecessor already holds the required sequence. It is unfolded into a loop as the lattice can be as deep as the trajectory
+	 * is long.
+	 */
+	private void advance(PathNode node) {
+		List<PathNode> chain = new ArrayList<>();
+		PathNode current = node;
+		while (current != null && !current.isExhausted) {
+			chain.add(current);
+			int last = current.pathCount - 1;
+			int predIndex = current.predIndices[last];
+			if (predIndex == -1)
+				break;
+			PathNode predecessor = getNode(current.predecessors.get(predIndex));
+			current = predecessor.pathCount > current.predRanks[last] + 1 ? null : predecessor;
+		}
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			chain.get(i).extend();
+		}
+	}
+	
+	private PathNode getNode(ExtendedState<S, O, D> state) {
+		PathNode node = nodeMap.get(state);
+		if (node == null) {
+			node = new PathNode(state.backPointer, state.probabilities);
+			nodeMap.put(state, node);
+		}
+		return node;
+	}
+	
+	private List<SequenceState<S, O, D>> buildSequence(int rank) {
+		List<SequenceState<S, O, D>> sequence = new ArrayList<>();
+		int predIndex = endNode.predIndices[rank];
+		int predRank = endNode.predRanks[rank];
+		ExtendedState<S, O, D> state = endNode.predecessors.get(predIndex);
+		while (state != null) {
+			PathNode node = getNode(state);
+			predIndex = node.predIndices[predRank];
+			predRank = node.predRanks[predRank];
+			sequence.add(new SequenceState<>(state.state, state.observation, predIndex == -1 ? null :
+					state.transitionDescriptor.get(predIndex)));
+			state = predIndex == -1 ? null : state.backPointer.get(predIndex);
+		}
+		Collections.reverse(sequence);
+		return sequence;
+	}
+	
+	/**
+	 * The sequences found so far for one state and the candidates for its next sequence.
+	 */
+	private class PathNode {
+		private final List<ExtendedState<S, O, D>> predecessors;
+		private final List<Double> predLogProbabilities;    // the log probability of the best sequence through each predecessor
+		private final PriorityQueue<Candidate> candidates;
+		private int[] predIndices;
+		private int[] predRanks;
+		private double[] logProbabilities;
+		private int pathCount = 0;
+		private boolean isExhausted = false;
+		
+		PathNode(List<ExtendedState<S, O, D>> predecessors, List<Double> predLogProbabilities) {
+			this.predecessors = predecessors;
+			this.predLogProbabilities = predLogProbabilities;
+			this.candidates = new PriorityQueue<>(Math.max(predecessors.size(), 1));
+			this.predIndices = new int[2];
+			this.predRanks = new int[2];
+			this.logProbabilities = new double[2];
+			if (predecessors.isEmpty()) {
+				// initial state, its only sequence contains itself, the log probability is relative to the sequences through it
+				add(-1, 0, 0);
+				isExhausted = true;
+			} else {
+				for (int i = 0; i < predecessors.size(); i++) {
+					candidates.add(new Candidate(i, 0, predLogProbabilities.get(i)));
+				}
+				extend();
+			}
+		}
+		
+		/**
+		 * Add the successor of the last sequence to the candidates, then take the best candidate as the next sequence. The predecessor of
+		 * the last sequence must already hold its successor sequence, if it exists.
+		 */
+		void extend() {
+			if (isExhausted)
+				return;
+			if (pathCount > 0) {
+				int predIndex = predIndices[pathCount - 1];
+				int predRank = predRanks[pathCount - 1] + 1;
+				PathNode predecessor = getNode(predecessors.get(predIndex));
+				if (predecessor.pathCount > predRank)
+					candidates.add(new Candidate(predIndex, predRank, predLogProbabilities.get(predIndex)
+							- predecessor.logProbabilities[0] + predecessor.logProbabilities[predRank]));
+			}
+			Candidate best = candidates.poll();
+			if (best == null) {
+				isExhausted = true;
+				return;
+			}
+			add(best.predIndex, best.predRank, best.logProbability);
+		}
+		
+		private void add(int predIndex, int predRank, double logProbability) {
+			if (pathCount == predIndices.length) {
+				predIndices = Arrays.copyOf(predIndices, pathCount * 2);
+				predRanks = Arrays.copyOf(predRanks, pathCount * 2);
+				logProbabilities = Arrays.copyOf(logProbabilities, pathCount * 2);
+			}
+			predIndices[pathCount] = predIndex;
+			predRanks[pathCount] = predRank;
+			logProbabilities[pathCount] = logProbability;
+			pathCount++;
+		}
+	}
+	
+	/**
+	 * A candidate for the next sequence of a state: the <tt>predRank</tt>-th sequence of its <tt>predIndex</tt>-th predecessor. Higher
+	 * probability first, then the lower predecessor index and rank.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		private final int predIndex;
+		private final int predRank;
+		private final double logProbability;
+		
+		Candidate(int predIndex, int predRank, double logProbability) {
+			this.predIndex = predIndex;
+			this.predRank = predRank;
+			this.logProbability = logProbability;
+		}
+		
+		@Override
+		public int compareTo(Candidate o) {
+			int result = Double.compare(o.logProbability, this.logProbability);
+			if (result != 0)
+				return result;
+			result = Integer.compare(this.predIndex, o.predIndex);
+			return result != 0 ? result : Integer.compare(this.predRank, o.predRank);
+		}
+	}
+}
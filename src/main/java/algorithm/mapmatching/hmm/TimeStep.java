@@ -18,9 +18,9 @@
 package algorithm.mapmatching.hmm;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 /**
  * Contains everything the hmm-oldversion needs to process a new time step including emisson and
@@ -39,55 +39,36 @@ class TimeStep<S, O, D> implements Serializable {
     public final O observation;
 
     /**
-     * State candidates at this time step.
+     * State candidates at this time step, their order is the order of the dense arrays.
      */
-    public final Collection<S> candidates;
-
-    public final Map<S, Double> emissionLogProbabilities = new HashMap<>();
-    public final Map<Transition<S>, Double> transitionLogProbabilities = new HashMap<>();
+    public final List<S> candidates;
 
     /**
-     * Road paths between all candidates pairs of the previous and the current time step.
+     * The emission log probability of each candidate.
      */
-    public final Map<Transition<S>, D> roadPaths = new HashMap<>();
+    public final double[] emissionLogProbabilities;
 
+    /**
+     * The <tt>[prev][cur]</tt> transition log probabilities and road paths from the candidates of the previous time step,
+     * Double.NEGATIVE_INFINITY and null for missing transitions. Set once the transitions are computed.
+     */
+    public double[][] transitionLogProbabilities;
+    public D[][] roadPaths;
 
     public TimeStep(O observation, Collection<S> candidates) {
         if (observation == null || candidates == null) {
             throw new NullPointerException("observation and candidates must not be null.");
         }
         this.observation = observation;
-        this.candidates = candidates;
-    }
-
-    public void addEmissionLogProbability(S candidate, double emissionLogProbability) {
-        if (emissionLogProbabilities.containsKey(candidate)) {
-            throw new IllegalArgumentException("Candidate has already been added.");
-        }
-        emissionLogProbabilities.put(candidate, emissionLogProbability);
-    }
-
-    /**
-     * Does not need to be called for non-existent transitions.
-     */
-    public void addTransitionLogProbability(S fromPosition, S toPosition,
-                                            double transitionLogProbability) {
-        final Transition<S> transition = new Transition<>(fromPosition, toPosition);
-        if (transitionLogProbabilities.containsKey(transition)) {
-            throw new IllegalArgumentException("Transition has already been added.");
-        }
-        transitionLogProbabilities.put(transition, transitionLogProbability);
+        this.candidates = new ArrayList<>(candidates);
+        this.emissionLogProbabilities = new double[candidates.size()];
     }
 
-    /**
-     * Does not need to be called for non-existent transitions.
-     */
-    public void addRoadPath(S fromPosition, S toPosition, D roadPath) {
-        final Transition<S> transition = new Transition<>(fromPosition, toPosition);
-        if (roadPaths.containsKey(transition)) {
-            throw new IllegalArgumentException("Transition has already been added.");
+    public void setTransitions(double[][] transitionLogProbabilities, D[][] roadPaths) {
+        if (transitionLogProbabilities.length != roadPaths.length) {
+            throw new IllegalArgumentException("The transition probabilities and road paths must have the same size.");
         }
-        roadPaths.put(transition, roadPath);
+        this.transitionLogProbabilities = transitionLogProbabilities;
+        this.roadPaths = roadPaths;
     }
-
-}
\ No newline at end of file
+}
@@ -22,7 +22,6 @@ import org.apache.log4j.Logger;
 import util.object.structure.InverselyComparableObject;
 import util.object.structure.LengthObject;
 import util.object.structure.Pair;
-import util.object.structure.Triplet;
 
 import java.io.Serializable;
 import java.util.*;
@@ -78,11 +77,33 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 	 * instead of computing the conditional probability of states given the observations.
 	 */
 	private Map<S, Double> message;
+	// the states of the last time step in the order of the dense arrays, and their tie-breaking order, computed once for each state
+	private List<S> lastStates;
+	private int[] lastTieRank;
 	
 	//    private Collection<S> prevCandidates;
 	private boolean isBroken = false;
 	private List<Map<S, Double>> messageHistory; // For debugging only.
 	
+	/**
+	 * Incremental decoding, see {@link #decideConvergedPrefix()}. The decided prefix of the current sequence is moved out of the back
+	 * pointer lattice into decidedSequence until it is handed over by {@link #pollDecided()}, the root of the lattice is then the last
+	 * decided state.
+	 */
+	private boolean isIncremental = false;
+	private int maxLag = 0;     // the maximum lag in steps before a decision is forced, 0 if the decision waits for convergence
+	private List<SequenceState<S, O, D>> decidedSequence = new ArrayList<>();
+	private boolean isRootDecided = false;
+	private int stepCount = 0;  // the number of steps in the current sequence
+	private int rootStep = 0;   // the step of the root of the lattice
+	// the surviving states of each step from the root to the current step, and the number of surviving successors of each of them
+	private final Deque<Set<ExtendedState<S, O, D>>> tailLayers = new ArrayDeque<>();
+	private final Map<ExtendedState<S, O, D>, Integer> successorCount = new IdentityHashMap<>();
+	// emission lag statistics, measured in steps
+	private long emittedCount = 0;
+	private long emissionLagSum = 0;
+	private int maxEmissionLag = 0;
+	
 	/**
 	 * Need to construct a new instance for each sequence of observations.
 	 * Does not keep the message history.
@@ -92,6 +113,26 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 		this.rankLength = rankLength;
 	}
 	
+	/**
+	 * Create an instance with incremental decoding. After each step, the prefix of the current sequence shared by all surviving back
+	 * pointers is decided and released from the lattice, so the lattice only spans the ambiguous tail of the sequence. The decided states
+	 * are handed over by {@link #pollDecided()}, followed by the result of {@link #computeMostLikelySequence()}, they form the same
+	 * sequence as without incremental decoding unless <tt>maxLag</tt> forces a decision.
+	 *
+	 * @param rankLength The rank length, must be 1 as the k-best sequences do not share a decided prefix.
+	 * @param maxLag     The maximum number of steps a state stays undecided. Once exceeded, the state on the most likely sequence is
+	 *                   decided and the states not descending from it are dropped. 0 to wait for the convergence of all back pointers.
+	 */
+	ViterbiAlgorithm(int rankLength, int maxLag) {
+		this(rankLength);
+		if (rankLength != 1)
+			throw new IllegalArgumentException("Incremental decoding only supports rank length 1: " + rankLength);
+		if (maxLag < 0)
+			throw new IllegalArgumentException("The maximum decoding lag must not be negative: " + maxLag);
+		this.isIncremental = true;
+		this.maxLag = maxLag;
+	}
+	
 	/**
 	 * Need to construct a new instance for each sequence of observations.
 	 *
@@ -133,7 +174,8 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 	 */
 	private void startWithInitialStateProbabilities(Collection<S> initialStates,
 													Map<S, Double> initialLogProbabilities) {
-		initializeStateProbabilities(null, initialStates, initialLogProbabilities);
+		final List<S> states = new ArrayList<>(initialStates);
+		initializeStateProbabilities(null, states, toDenseVector(states, initialLogProbabilities, "No initial probability for "));
 	}
 
 //    /**
@@ -163,6 +205,18 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 	 */
 	void startWithInitialObservation(O observation, Collection<S> candidates,
 									 Map<S, Double> emissionLogProbabilities) {
+		final List<S> states = new ArrayList<>(candidates);
+		initializeStateProbabilities(observation, states, toDenseVector(states, emissionLogProbabilities, "No initial probability for "));
+	}
+	
+	/**
+	 * Dense version of {@link #startWithInitialObservation(Object, Collection, Map)}. The order of the candidates is the order of the rows
+	 * of the transition matrix in the next step.
+	 *
+	 * @param candidates               The candidates of the first observation.
+	 * @param emissionLogProbabilities The emission log probability of each candidate, in the order of the candidates.
+	 */
+	void startWithInitialObservation(O observation, List<S> candidates, double[] emissionLogProbabilities) {
 		initializeStateProbabilities(observation, candidates, emissionLogProbabilities);
 	}
 	
@@ -185,6 +239,60 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 				  Map<S, Double> emissionLogProbabilities,
 				  Map<Transition<S>, Double> transitionLogProbabilities,
 				  Map<Transition<S>, D> transitionDescriptors) {
+		final List<S> prevStates = new ArrayList<>(prevCandidates);
+		final List<S> curStates = new ArrayList<>(candidates);
+		final Map<S, Integer> prevIndex = new HashMap<>(HMMUtils.initialHashMapCapacity(prevStates.size()));
+		final Map<S, Integer> curIndex = new HashMap<>(HMMUtils.initialHashMapCapacity(curStates.size()));
+		for (int i = 0; i < prevStates.size(); i++) {
+			prevIndex.put(prevStates.get(i), i);
+		}
+		for (int i = 0; i < curStates.size(); i++) {
+			curIndex.put(curStates.get(i), i);
+		}
+		final double[] emission = toDenseVector(curStates, emissionLogProbabilities, "No emission probability for ");
+		// one pass over the transitions, a missing transition has zero probability
+		final double[][] transition = new double[prevStates.size()][curStates.size()];
+		for (double[] row : transition) {
+			Arrays.fill(row, Double.NEGATIVE_INFINITY);
+		}
+		for (Map.Entry<Transition<S>, Double> entry : transitionLogProbabilities.entrySet()) {
+			final Integer from = prevIndex.get(entry.getKey().fromCandidate);
+			final Integer to = curIndex.get(entry.getKey().toCandidate);
+			if (from != null && to != null) {
+				transition[from][to] = entry.getValue();
+			}
+		}
+		@SuppressWarnings("unchecked") final D[][] descriptors = (D[][]) new Object[prevStates.size()][curStates.size()];
+		for (Map.Entry<Transition<S>, D> entry : transitionDescriptors.entrySet()) {
+			final Integer from = prevIndex.get(entry.getKey().fromCandidate);
+			final Integer to = curIndex.get(entry.getKey().toCandidate);
+			if (from != null && to != null) {
+				descriptors[from][to] = entry.getValue();
+			}
+		}
+		processStep(observation, prevStates, prevStates.equals(lastStates) ? lastTieRank : tieRank(prevStates), curStates, emission,
+				transition, descriptors);
+	}
+	
+	/**
+	 * Dense version of {@link #nextStep(Object, Collection, Collection, Map, Map, Map)}, the arrays are passed to the forward step
+	 * without any lookup. The rows of the transition arrays refer to the candidates of the last successful step in the order they were
+	 * passed, the columns refer to the current candidates.
+	 *
+	 * @param candidates                 The candidates of the current observation.
+	 * @param emissionLogProbabilities   The emission log probability of each candidate.
+	 * @param transitionLogProbabilities The <tt>[prev][cur]</tt> transition log probabilities, Double.NEGATIVE_INFINITY if missing.
+	 * @param transitionDescriptors      The <tt>[prev][cur]</tt> transition descriptors, null if missing.
+	 * @throws IllegalStateException if the HMM has not been started or if this method is called after an HMM break has occurred
+	 */
+	void nextStep(O observation, List<S> candidates, double[] emissionLogProbabilities, double[][] transitionLogProbabilities,
+				  D[][] transitionDescriptors) {
+		processStep(observation, lastStates, lastTieRank, candidates, emissionLogProbabilities, transitionLogProbabilities,
+				transitionDescriptors);
+	}
+	
+	private void processStep(O observation, List<S> prevStates, int[] prevTieRank, List<S> curStates, double[] emissionLogProbabilities,
+							 double[][] transitionLogProbabilities, D[][] transitionDescriptors) {
 		if (message == null) {
 			throw new IllegalStateException("startWithInitialStateProbabilities() or startWithInitialObservation() must be called first.");
 		}
@@ -193,7 +301,7 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 		}
 		
 		// Forward step
-		ForwardStepResult<S, O, D> forwardStepResult = forwardStep(observation, prevCandidates, candidates, message,
+		ForwardStepResult<S, O, D> forwardStepResult = forwardStep(observation, prevStates, prevTieRank, curStates,
 				emissionLogProbabilities, transitionLogProbabilities, transitionDescriptors);
 		isBroken = hmmBreak(forwardStepResult.newMessage);
 		if (isBroken) return;
@@ -203,7 +311,12 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 		}
 		message = forwardStepResult.newMessage;
 		lastExtendedStates = forwardStepResult.newExtendedStates;
-		
+		lastStates = curStates;
+		lastTieRank = tieRank(curStates);
+		stepCount++;
+		if (isIncremental) {
+			decideConvergedPrefix();
+		}
 	}
 	
 	void setToUnbroken() {
@@ -218,17 +331,210 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 	 * <p>Formally, the most likely sequence is argmax p([s_0,] s_1, ..., s_T | o_1, ..., o_T)
 	 * with respect to s_1, ..., s_T, where s_t is a state candidate at time step t,
 	 * o_t is the observation at time step t and T is the number of time steps.
+	 * <p>
+	 * With incremental decoding, the states already handed over by {@link #pollDecided()} are not included, while the probability is
+	 * still the one of the whole sequence.
 	 */
 	List<Pair<List<SequenceState<S, O, D>>, Double>> computeMostLikelySequence() {
 		if (message == null) {
 			// Return empty sequence if there is no time steps, it only happens at the last trajectory point when it is the only trajectory
 			// point in the sequence but it doesn't have candidate.
 			return new ArrayList<>();
+		} else if (isIncremental) {
+			final int firstStep = isRootDecided ? rootStep + 1 : rootStep;
+			final boolean isRootIncluded = isRootDecided;
+			final List<Pair<List<SequenceState<S, O, D>>, Double>> result = retrieveRankedSequences();
+			if (!result.isEmpty()) {
+				// the tail starts with the root of the lattice, which has been decided with its transition descriptor already
+				final List<SequenceState<S, O, D>> tail = result.get(0)._1();
+				decidedSequence.addAll(isRootIncluded ? tail.subList(1, tail.size()) : tail);
+				result.get(0).set_1(decidedSequence);
+				recordEmission(firstStep, stepCount - 1, stepCount - 1);
+			}
+			decidedSequence = new ArrayList<>();
+			isRootDecided = false;
+			tailLayers.clear();
+			successorCount.clear();
+			return result;
 		} else {
 			return retrieveRankedSequences();
 		}
 	}
 	
+	/**
+	 * Hand over the states decided by incremental decoding since the last call, in sequence order. The decoder no longer keeps them, so
+	 * the caller should take them over right after each step.
+	 *
+	 * @return The newly decided states, empty if nothing is decided or the decoding is not incremental.
+	 */
+	List<SequenceState<S, O, D>> pollDecided() {
+		if (decidedSequence.isEmpty()) {
+			return Collections.emptyList();
+		}
+		final List<SequenceState<S, O, D>> result = decidedSequence;
+		decidedSequence = new ArrayList<>();
+		return result;
+	}
+	
+	/**
+	 * @return The number of states decided by incremental decoding, including the states decided at the end of a sequence.
+	 */
+	long getEmittedCount() {
+		return emittedCount;
+	}
+	
+	/**
+	 * @return The mean number of steps between the step of a state and the step at which it is decided by incremental decoding.
+	 */
+	double getMeanEmissionLag() {
+		return emittedCount == 0 ? 0 : (double) emissionLagSum / emittedCount;
+	}
+	
+	/**
+	 * @return The maximum number of steps between the step of a state and the step at which it is decided by incremental decoding.
+	 */
+	int getMaxEmissionLag() {
+		return maxEmissionLag;
+	}
+	
+	/**
+	 * Decide the prefix of the current sequence that is shared by the back pointers of all states with non-zero probability. The lattice
+	 * tail keeps the surviving states of each step, i.e. the states with a surviving successor. Each step adds the new states as a layer
+	 * and removes the states of the previous layer that have no successor, which cascades back to their ancestors. A state is removed at
+	 * most once, so the amortised cost per step is linear in the number of candidates, whatever the length of the undecided tail.
+	 * <p>
+	 * The surviving ancestors converge at a step when its layer has a single state, which is then on the most likely sequence whatever
+	 * the following observations are. The leading layers with a single state are decided, the states from the root of the lattice to
+	 * the last of them, the convergence state, are appended to the decided sequence and the back pointers of the convergence state are
+	 * cut, so the prefix can be collected. If <tt>maxLag</tt> is set and the layer <tt>maxLag</tt> steps back still has more than one
+	 * state, the ancestor of the most likely state is decided and the states descending from other ancestors are given zero probability.
+	 */
+	private void decideConvergedPrefix() {
+		final Set<ExtendedState<S, O, D>> layer = Collections.newSetFromMap(new IdentityHashMap<>());
+		S bestState = null;
+		for (Map.Entry<S, Double> entry : message.entrySet()) {
+			if (entry.getValue() > Double.NEGATIVE_INFINITY) {
+				final ExtendedState<S, O, D> extendedState = lastExtendedStates.get(entry.getKey());
+				layer.add(extendedState);
+				successorCount.merge(extendedState.backPointer.get(0), 1, Integer::sum);
+				if (bestState == null || entry.getValue() > message.get(bestState)) {
+					bestState = entry.getKey();
+				}
+			}
+		}
+		final List<ExtendedState<S, O, D>> deadStates = new ArrayList<>();
+		for (ExtendedState<S, O, D> state : tailLayers.getLast()) {
+			if (!successorCount.containsKey(state)) {
+				deadStates.add(state);
+			}
+		}
+		tailLayers.addLast(layer);
+		final Iterator<Set<ExtendedState<S, O, D>>> layerIterator = tailLayers.descendingIterator();
+		layerIterator.next();
+		removeStates(deadStates, layerIterator);
+		
+		if (maxLag > 0 && tailLayers.size() > maxLag) {
+			final Iterator<Set<ExtendedState<S, O, D>>> lagIterator = tailLayers.descendingIterator();
+			for (int depth = 0; depth < maxLag; depth++) {
+				lagIterator.next();
+			}
+			if (lagIterator.next().size() > 1) {
+				// forced decision, the states not descending from the ancestor of the most likely state are dropped
+				final ExtendedState<S, O, D> decidedState = getAncestor(lastExtendedStates.get(bestState), maxLag);
+				final List<ExtendedState<S, O, D>> droppedStates = new ArrayList<>();
+				for (ExtendedState<S, O, D> state : layer) {
+					if (getAncestor(state, maxLag) != decidedState) {
+						message.put(state.state, Double.NEGATIVE_INFINITY);
+						droppedStates.add(state);
+					}
+				}
+				removeStates(droppedStates, tailLayers.descendingIterator());
+			}
+		}
+		
+		// the leading layers with a single state, a layer has a single state if and only if all its previous layers have one
+		int depth = -1;
+		ExtendedState<S, O, D> convergenceState = null;
+		for (Set<ExtendedState<S, O, D>> tailLayer : tailLayers) {
+			if (tailLayer.size() != 1) {
+				break;
+			}
+			convergenceState = tailLayer.iterator().next();
+			depth++;
+		}
+		if (convergenceState == null || (depth == 0 && isRootDecided)) {
+			return;     // nothing new is decided
+		}
+		
+		// collect the states from the convergence state back to the root, the root is skipped if it has been decided before
+		final List<SequenceState<S, O, D>> decidedStates = new ArrayList<>();
+		ExtendedState<S, O, D> current = convergenceState;
+		while (!current.backPointer.isEmpty()) {
+			decidedStates.add(new SequenceState<>(current.state, current.observation, current.transitionDescriptor.get(0)));
+			current = current.backPointer.get(0);
+		}
+		if (!isRootDecided) {
+			decidedStates.add(new SequenceState<>(current.state, current.observation, null));
+		}
+		Collections.reverse(decidedStates);
+		decidedSequence.addAll(decidedStates);
+		for (int i = 0; i < depth; i++) {
+			successorCount.remove(tailLayers.removeFirst().iterator().next());
+		}
+		
+		final int convergenceStep = rootStep + depth;
+		recordEmission(isRootDecided ? rootStep + 1 : rootStep, convergenceStep, stepCount - 1);
+		convergenceState.backPointer = new ArrayList<>();
+		convergenceState.transitionDescriptor = new ArrayList<>();
+		convergenceState.probabilities = new ArrayList<>();
+		rootStep = convergenceStep;
+		isRootDecided = true;
+	}
+	
+	/**
+	 * Remove the given states from the lattice tail, together with their ancestors that are left without a surviving successor.
+	 *
+	 * @param states        The states to be removed, all in the same layer.
+	 * @param layerIterator The layers in reverse order, the next one is the layer of the states.
+	 */
+	private void removeStates(List<ExtendedState<S, O, D>> states, Iterator<Set<ExtendedState<S, O, D>>> layerIterator) {
+		while (!states.isEmpty() && layerIterator.hasNext()) {
+			final Set<ExtendedState<S, O, D>> layer = layerIterator.next();
+			final List<ExtendedState<S, O, D>> parents = new ArrayList<>();
+			for (ExtendedState<S, O, D> state : states) {
+				layer.remove(state);
+				successorCount.remove(state);
+				if (!state.backPointer.isEmpty()) {
+					final ExtendedState<S, O, D> parent = state.backPointer.get(0);
+					if (successorCount.merge(parent, -1, Integer::sum) == 0) {
+						parents.add(parent);
+					}
+				}
+			}
+			states = parents;
+		}
+	}
+	
+	private ExtendedState<S, O, D> getAncestor(ExtendedState<S, O, D> state, int depth) {
+		for (int i = 0; i < depth; i++) {
+			state = state.backPointer.get(0);
+		}
+		return state;
+	}
+	
+	/**
+	 * Record the emission lag of the states from <tt>firstStep</tt> to <tt>lastStep</tt> decided at <tt>currentStep</tt>.
+	 */
+	private void recordEmission(int firstStep, int lastStep, int currentStep) {
+		if (firstStep > lastStep) {
+			return;
+		}
+		final long count = lastStep - firstStep + 1;
+		emittedCount += count;
+		emissionLagSum += count * (currentStep - lastStep) + count * (count - 1) / 2;
+		maxEmissionLag = Math.max(maxEmissionLag, currentStep - firstStep);
+	}
+	
 	/**
 	 * Returns whether an HMM occurred in the last time step.
 	 * <p>
@@ -281,23 +587,26 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 	/**
 	 * @param observation Use only when HMM starts with first observation.
 	 */
-	private void initializeStateProbabilities(O observation, Collection<S> candidates,
-											  Map<S, Double> initialLogProbabilities) {
+	private void initializeStateProbabilities(O observation, List<S> candidates, double[] initialLogProbabilities) {
 		if (message != null) {
 			LOG.error("ERROR! The message should be empty");
 			message = null;
 		}
 		isBroken = false;
+		if (!decidedSequence.isEmpty()) {
+			LOG.error("ERROR! The decided sequence should be empty");
+			decidedSequence = new ArrayList<>();
+		}
+		isRootDecided = false;
+		stepCount = 1;
+		rootStep = 0;
+		tailLayers.clear();
+		successorCount.clear();
 		
-		// Set initial log probability for each start state candidate based on first observation. Do not assign initialLogProbabilities
-		// directly to message which do not rely on its iteration order.
-		final Map<S, Double> initialMessage = new LinkedHashMap<>();
-		for (S candidate : candidates) {
-			final Double logProbability = initialLogProbabilities.get(candidate);
-			if (logProbability == null) {
-				throw new NullPointerException("No initial probability for " + candidate);
-			}
-			initialMessage.put(candidate, logProbability);
+		// Set initial log probability for each start state candidate based on first observation, in the order of the candidates.
+		final Map<S, Double> initialMessage = new LinkedHashMap<>(HMMUtils.initialHashMapCapacity(candidates.size()));
+		for (int i = 0; i < candidates.size(); i++) {
+			initialMessage.put(candidates.get(i), initialLogProbabilities[i]);
 		}
 		
 		isBroken = hmmBreak(initialMessage);
@@ -310,89 +619,118 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 		if (messageHistory != null) {
 			messageHistory.add(message);
 		}
+		lastStates = candidates;
+		lastTieRank = tieRank(candidates);
 		
 		lastExtendedStates = new LinkedHashMap<>();
 		for (S candidate : candidates) {
 			lastExtendedStates.put(candidate,
 					new ExtendedState<>(candidate, new ArrayList<>(), observation, new ArrayList<>(), new ArrayList<>()));
 		}
+		if (isIncremental) {
+			final Set<ExtendedState<S, O, D>> layer = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (Map.Entry<S, Double> entry : message.entrySet()) {
+				if (entry.getValue() > Double.NEGATIVE_INFINITY) {
+					layer.add(lastExtendedStates.get(entry.getKey()));
+				}
+			}
+			tailLayers.addLast(layer);
+		}
 	}
 	
 	/**
-	 * Computes the new forward message and the back pointers to the previous states.
+	 * Convert the log probabilities of the states into a vector in the order of the states.
 	 *
-	 * @throws NullPointerException if any emission probability is missing
+	 * @throws NullPointerException if any log probability is missing
 	 */
-	private ForwardStepResult<S, O, D> forwardStep(O observation, Collection<S> prevCandidates,
-												   Collection<S> curCandidates, Map<S, Double> message,
-												   Map<S, Double> emissionLogProbabilities,
-												   Map<Transition<S>, Double> transitionLogProbabilities,
-												   Map<Transition<S>, D> transitionDescriptors) {
-		final ForwardStepResult<S, O, D> result = new ForwardStepResult<>(curCandidates.size());
-		assert !prevCandidates.isEmpty();
-		
-		for (S curState : curCandidates) {
-			
-			// use priority queue to sort and pick up the top k probable predecessor
-			Queue<InverselyComparableObject<S, String>> topRankedCandidates = new PriorityQueue<>();
-			for (S prevState : prevCandidates) {
-				final double logProbability = message.get(prevState) + getTransitionLogProbability(
-						prevState, curState, transitionLogProbabilities);
-				if (logProbability > Double.NEGATIVE_INFINITY) {
-					topRankedCandidates.add(new InverselyComparableObject<>(prevState, logProbability, prevState.getLength(), prevState.toString()));
-				}
+	private double[] toDenseVector(List<S> states, Map<S, Double> logProbabilities, String errorMessage) {
+		final double[] vector = new double[states.size()];
+		for (int i = 0; i < states.size(); i++) {
+			final Double logProbability = logProbabilities.get(states.get(i));
+			if (logProbability == null) {
+				throw new NullPointerException(errorMessage + states.get(i));
 			}
-			InverselyComparableObject<S, String> optimalState = topRankedCandidates.poll();
-			// Throws NullPointerException if curState is not stored in the map.
-			result.newMessage.put(curState, optimalState == null ? Double.NEGATIVE_INFINITY : optimalState.getFirstProbability() + emissionLogProbabilities.get(curState));
+			vector[i] = logProbability;
+		}
+		return vector;
+	}
+	
+	/**
+	 * Computes the new forward message and the back pointers to the previous states by {@link DenseViterbi#forwardStep}, which selects
+	 * the top k predecessors of each state in the same order as the ranking by {@link InverselyComparableObject}.
+	 */
+	private ForwardStepResult<S, O, D> forwardStep(O observation, List<S> prevStates, int[] prevTieRank, List<S> curStates,
+												   double[] emission, double[][] transition, D[][] transitionDescriptors) {
+		final ForwardStepResult<S, O, D> result = new ForwardStepResult<>(curStates.size());
+		assert !prevStates.isEmpty();
+		
+		final double[] prevMessage = new double[prevStates.size()];
+		for (int i = 0; i < prevStates.size(); i++) {
+			prevMessage[i] = message.get(prevStates.get(i));
+		}
+		final double[] newMessage = new double[curStates.size()];
+		final int[] backPointers = new int[curStates.size() * rankLength];
+		final double[] rankedProbabilities = new double[curStates.size() * rankLength];
+		DenseViterbi.forwardStep(prevMessage, emission, transition, prevTieRank, rankLength, newMessage, backPointers,
+				rankedProbabilities);
+		
+		for (int cur = 0; cur < curStates.size(); cur++) {
+			final S curState = curStates.get(cur);
+			result.newMessage.put(curState, newMessage[cur]);
 			
-			// Note that optimalState == null if there is no transition with non-zero probability. In this case curState has zero
+			// Note that there is no back pointer if there is no transition with non-zero probability. In this case curState has zero
 			// probability and will not be part of the most likely sequence, so we don't need an ExtendedState.
-			if (optimalState != null) {
-				final List<D> transitionDescriptionList = new ArrayList<>();
-				final List<ExtendedState<S, O, D>> lastRankedExtendedStateList = new ArrayList<>();
-				final List<Double> probabilities = new ArrayList<>();
-				// add the optimal state into the list
-				Transition<S> transition = new Transition<>(optimalState.getObject(), curState);
-				transitionDescriptionList.add(transitionDescriptors.get(transition));
-				ExtendedState<S, O, D> rankedExtendedState = lastExtendedStates.get(optimalState.getObject());
-				lastRankedExtendedStateList.add(rankedExtendedState);
-				probabilities.add(optimalState.getFirstProbability() + emissionLogProbabilities.get(curState));
-				int rankListSize = 1;
-				InverselyComparableObject<S, String> currItem = topRankedCandidates.poll();
-				HashSet<Double> probabilitySet = new HashSet<>(rankLength);
-				probabilitySet.add(optimalState.getFirstProbability() + emissionLogProbabilities.get(curState));
-				while (currItem != null && rankListSize < rankLength) {
-					double currProb = currItem.getFirstProbability() + emissionLogProbabilities.get(curState);
-					if (!probabilitySet.contains(currProb)) {
-						transition = new Transition<>(currItem.getObject(), curState);
-						transitionDescriptionList.add(transitionDescriptors.get(transition));
-						rankedExtendedState = lastExtendedStates.get(currItem.getObject());
-						lastRankedExtendedStateList.add(rankedExtendedState);
-						probabilities.add(currProb);
-					}
-					currItem = topRankedCandidates.poll();
-					rankListSize++;
+			final int offset = cur * rankLength;
+			if (backPointers[offset] == -1) {
+				continue;
+			}
+			final List<D> transitionDescriptionList = new ArrayList<>();
+			final List<ExtendedState<S, O, D>> lastRankedExtendedStateList = new ArrayList<>();
+			final List<Double> probabilities = new ArrayList<>();
+			for (int rank = 0; rank < rankLength && backPointers[offset + rank] != -1; rank++) {
+				// a predecessor giving the same probability as the optimal one is skipped but still takes its rank
+				if (rank > 0 && Double.compare(rankedProbabilities[offset + rank], rankedProbabilities[offset]) == 0) {
+					continue;
 				}
-				
-				final ExtendedState<S, O, D> extendedState = new ExtendedState<>(curState,
-						lastRankedExtendedStateList, observation, transitionDescriptionList, probabilities);
-				
-				result.newExtendedStates.put(curState, extendedState);
+				final int prev = backPointers[offset + rank];
+				final S prevState = prevStates.get(prev);
+				transitionDescriptionList.add(transitionDescriptors[prev][cur]);
+				lastRankedExtendedStateList.add(lastExtendedStates.get(prevState));
+				probabilities.add(rankedProbabilities[offset + rank]);
 			}
+			
+			final ExtendedState<S, O, D> extendedState = new ExtendedState<>(curState,
+					lastRankedExtendedStateList, observation, transitionDescriptionList, probabilities);
+			
+			result.newExtendedStates.put(curState, extendedState);
 		}
 		return result;
 	}
 	
-	private double getTransitionLogProbability(S prevState, S curState, Map<Transition<S>,
-			Double> transitionLogProbabilities) {
-		final Double transitionLogProbability =
-				transitionLogProbabilities.get(new Transition<>(prevState, curState));
-		if (transitionLogProbability == null) {
-			return Double.NEGATIVE_INFINITY; // Transition has zero probability.
-		} else {
-			return transitionLogProbability;
+	/**
+	 * The order of equally probable predecessors, as in {@link InverselyComparableObject}: shorter state first, then the hash code of its
+	 * string, then the hash code of the state. It is computed once when the states enter the lattice, so the string of each state is
+	 * built and hashed once.
+	 */
+	private int[] tieRank(List<S> states) {
+		final Integer[] order = new Integer[states.size()];
+		final double[] lengths = new double[states.size()];
+		final int[] stringHashes = new int[states.size()];
+		final int[] hashes = new int[states.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+			lengths[i] = states.get(i).getLength();
+			stringHashes[i] = states.get(i).toString().hashCode();
+			hashes[i] = states.get(i).hashCode();
+		}
+		Arrays.sort(order, Comparator.<Integer>comparingDouble(i -> lengths[i])
+				.thenComparingInt(i -> stringHashes[i])
+				.thenComparingInt(i -> hashes[i]));
+		final int[] tieRank = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			tieRank[order[i]] = i;
 		}
+		return tieRank;
 	}
 	
 	/**
@@ -428,144 +766,34 @@ public class ViterbiAlgorithm<S extends LengthObject, O, D> implements Serializa
 	}
 	
 	/**
-	 * Retrieves top k most likely sequence from the internal back pointer sequence. The return item can be less than k.
+	 * Retrieves top k most likely sequence from the internal back pointer sequence. The sequences are enumerated lazily in descending
+	 * probability by {@link KBestSequenceEnumerator}, starting from the top ranked final states. The return item can be less than k.
 	 */
-	// TODO check and improve the correctness when k>1
 	private List<Pair<List<SequenceState<S, O, D>>, Double>> retrieveRankedSequences() {
 		// Otherwise an HMM break would have occurred and message would be null.
 		assert !message.isEmpty();
 		
-		final List<S> lastState = topRankedFinalStates(rankLength);     // top ranked final states, no more than rankLength
-		double[] probabilityResult = new double[rankLength];
-		
-		Map<Pair<ExtendedState<S, O, D>, List<SequenceState<S, O, D>>>, Double> probabilityToDest = new HashMap<>();  // for each
-		// extended state, the probability till its destination is store, it is used to retrieve the actual probability of a specific
-		// path passing this extended state
-		
-		// retrieve top k most likely state sequence in reverse order
-		final List<List<SequenceState<S, O, D>>> pathResult = new ArrayList<>(rankLength);
-		Queue<InverselyComparableObject<Pair<ExtendedState<S, O, D>, Integer>, String>> topRankedItems = new PriorityQueue<>();   // Pair<current
-		// state and the i-th back pointer>
-		List<Pair<ExtendedState<S, O, D>, List<SequenceState<S, O, D>>>> intermediateState = new ArrayList<>(); // each pair contains the
-		// ES of one of the top k candidates and its path to the end state
-		for (S state : lastState) {
-			ExtendedState<S, O, D> es = lastExtendedStates.get(state);
-			for (int i = 0; i < es.backPointer.size(); i++) {
-				topRankedItems.add(new InverselyComparableObject<>(new Pair<>(es, i), es.probabilities.get(i),
-						es.backPointer.get(i).state.getLength(), es.backPointer.get(i).state.toString() + "," + es.state.toString()));
-			}
+		final List<ExtendedState<S, O, D>> finalStates = new ArrayList<>(rankLength);
+		final List<Double> finalLogProbabilities = new ArrayList<>(rankLength);
+		for (S state : topRankedFinalStates(rankLength)) {     // top ranked final states, no more than rankLength
+			finalStates.add(lastExtendedStates.get(state));
+			finalLogProbabilities.add(message.get(state));
 		}
-		if (topRankedItems.isEmpty()) {
-			// the matching sequence only contains one point, which is the end point
-			for (S state : lastState) {
-				ExtendedState<S, O, D> es = lastExtendedStates.get(state);
-				SequenceState<S, O, D> currState = new SequenceState<>(es.state, es.observation, null);
-				List<SequenceState<S, O, D>> currStateList = new ArrayList<>();
-				currStateList.add(currState);
-				pathResult.add(currStateList);
-				probabilityResult[pathResult.size() - 1] = message.get(state); // the probability of the break piece is simply added into the total
-				// probability
-			}
-			message = null;
-			lastExtendedStates = null;
-			return combineResult(pathResult, probabilityResult);
-		}
-		int candidateCount = 0;
-		InverselyComparableObject<Pair<ExtendedState<S, O, D>, Integer>, String> currItem;
-		// extract the top k previous state among all current candidate, stored in intermediateState
-		currItem = topRankedItems.poll();
-		while (currItem != null && candidateCount < rankLength) {
-			ExtendedState<S, O, D> currES = currItem.getObject()._1();
-			List<SequenceState<S, O, D>> currRouteSequence = new ArrayList<>();
-			SequenceState<S, O, D> currRouteState = new SequenceState<>(currES.state, currES.observation, currES.transitionDescriptor.get
-					(currItem.getObject()._2()));
-			currRouteSequence.add(currRouteState);
-			Pair<ExtendedState<S, O, D>, List<SequenceState<S, O, D>>> currIntermediateState = new Pair<>(currES.backPointer.get(currItem
-					.getObject()._2()), currRouteSequence);
-			intermediateState.add(currIntermediateState);
-			probabilityToDest.put(currIntermediateState, currItem.getFirstProbability());
-			currItem = topRankedItems.poll();
-			candidateCount++;
-		}
-		while (!intermediateState.isEmpty()) {
-			Queue<InverselyComparableObject<Triplet<ExtendedState<S, O, D>, List<SequenceState<S, O, D>>, Integer>, String>> topRankedIntermediateResult =
-					new PriorityQueue<>();
-			for (Pair<ExtendedState<S, O, D>, List<SequenceState<S, O, D>>> item : intermediateState) {
-				double remainingProbability = probabilityToDest.get(item) - findMaxProbability(item._1());   // the probability of
-				// the combined transition and emission probability until the end of the match sequence
-				List<ExtendedState<S, O, D>> backPointer = item._1().backPointer;
-				for (int i = 0; i < backPointer.size(); i++) {
-					SequenceState<S, O, D> currRouteState = new SequenceState<>(item._1().state, item._1().observation, item._1()
-							.transitionDescriptor.get(i));
-					List<SequenceState<S, O, D>> currRouteSequence = new ArrayList<>(item._2());
-					currRouteSequence.add(currRouteState);
-					Pair<ExtendedState<S, O, D>, List<SequenceState<S, O, D>>> currIntermediateState = new Pair<>(item._1().backPointer
-							.get(i), currRouteSequence);
-					probabilityToDest.put(currIntermediateState, item._1().probabilities.get(i) + remainingProbability);
-					
-					// create a unique code for each road sequence for comparison
-					StringBuilder checksumCode = new StringBuilder(item._1().backPointer.get(i).state.toString());
-					for (SequenceState<S, O, D> ss : currRouteSequence) {
-						checksumCode.append(",").append(ss.state.toString());
-					}
-					topRankedIntermediateResult.add(new InverselyComparableObject<>(new Triplet<>(item._1(), currRouteSequence, i), item._1()
-							.probabilities.get(i) + remainingProbability, item._1().backPointer.get(i).state.getLength(), checksumCode.toString()));
-				}
-			}
-			if (topRankedIntermediateResult.isEmpty()) {
-				// the full path has been retrieved, stop the loop and recover the top k paths
-				for (Pair<ExtendedState<S, O, D>, List<SequenceState<S, O, D>>> r : intermediateState) {
-					List<SequenceState<S, O, D>> rankedResult = r._2();
-					double probability = probabilityToDest.get(r);
-					rankedResult.add(new SequenceState<>(r._1().state, r._1().observation, null));
-					Collections.reverse(rankedResult);
-					pathResult.add(rankedResult);
-					probabilityResult[pathResult.size() - 1] = probability;
-				}
-				message = null;
-				lastExtendedStates = null;
-				return combineResult(pathResult, probabilityResult);
-			}
-			int currCandidateCount = 0;
-			InverselyComparableObject<Triplet<ExtendedState<S, O, D>, List<SequenceState<S, O, D>>, Integer>, String> currNewItem =
-					topRankedIntermediateResult.poll();
-			intermediateState.clear();
-			while (currNewItem != null && currCandidateCount < rankLength) {
-				ExtendedState<S, O, D> currES = currNewItem.getObject()._1();
-				intermediateState.add(new Pair<>(currES.backPointer.get(currNewItem.getObject()._3()), currNewItem.getObject()._2()));
-				currNewItem = topRankedIntermediateResult.poll();
-				currCandidateCount++;
-			}
+		final KBestSequenceEnumerator<S, O, D> enumerator = new KBestSequenceEnumerator<>(finalStates, finalLogProbabilities);
+		final List<Pair<List<SequenceState<S, O, D>>, Double>> result = new ArrayList<>(rankLength);
+		Pair<List<SequenceState<S, O, D>>, Double> rankedSequence;
+		while (result.size() < rankLength && (rankedSequence = enumerator.next()) != null) {
+			if (rankedSequence._2() == 0)
+				LOG.error("ERROR! Zero probability for a valid match sequence: " + rankedSequence._1().toString());
+			result.add(rankedSequence);
 		}
-		LOG.error("ERROR! No match result can be extracted.");
+		if (result.isEmpty())
+			LOG.error("ERROR! No match result can be extracted.");
 		message = null;
 		lastExtendedStates = null;
-		return new ArrayList<>();
-	}
-	
-	private List<Pair<List<SequenceState<S, O, D>>, Double>> combineResult(List<List<SequenceState<S, O, D>>> pathResult, double[] probabilityResult) {
-		List<Pair<List<SequenceState<S, O, D>>, Double>> result = new ArrayList<>();
-		for (int i = 0; i < rankLength; i++) {
-			if (i < pathResult.size()) {
-				if (probabilityResult[i] == 0)
-					LOG.error("ERROR! Zero probability for a valid match sequence: " + pathResult.get(i).toString());
-				result.add(new Pair<>(pathResult.get(i), probabilityResult[i]));
-			} else if (probabilityResult[i] != 0) {
-				LOG.error("ERROR! Positive probability for a null match sequence:" + probabilityResult[i]);
-				probabilityResult[i] = 0;
-			}
-		}
 		return result;
 	}
 	
-	private double findMaxProbability(ExtendedState<S, O, D> extendedState) {
-		double maxProbability = Double.NEGATIVE_INFINITY;
-		for (double prob : extendedState.probabilities)
-			if (prob > maxProbability)
-				maxProbability = prob;
-		return maxProbability;
-	}
-	
 	private static class ForwardStepResult<S, O, D> {
 		final Map<S, Double> newMessage;
 		
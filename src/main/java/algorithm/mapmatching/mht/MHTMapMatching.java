@@ -5,7 +5,10 @@ import org.apache.log4j.Logger;
 import util.dijkstra.RoutingGraph;
 import util.function.DistanceFunction;
 import util.index.rtree.RTreeIndexing;
+import util.io.MapIndexBundle;
 import util.object.roadnetwork.RoadNetworkGraph;
+import util.object.spatialobject.Point;
+import util.object.spatialobject.Segment;
 import util.object.spatialobject.Trajectory;
 import util.object.spatialobject.TrajectoryPoint;
 import util.object.structure.Pair;
@@ -14,8 +17,7 @@ import util.object.structure.SimpleTrajectoryMatchResult;
 import util.settings.BaseProperty;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
  * Online map-matching algorithm based on Multiple Hypothesis Theory and route prediction. Implemented according to the paper:
@@ -23,7 +25,16 @@ import java.util.List;
  * Taguchi, S., Koide, S., & Yoshimura, T. (2018). Online map matching with route prediction. IEEE Transactions on Intelligent
  * Transportation Systems, 20(1), 338-347.
  * <p>
- * The speed of trajectory sample is needed.
+ * Each hypothesis is a position on a road and the route that leads to it, together with a Kalman-filtered speed estimate. When a new
+ * point arrives, every hypothesis predicts its travel distance from its speed and is expanded along the road network to all positions
+ * within the distance uncertainty. The predictions whose probability is below the prediction threshold are discarded, the remaining ones
+ * are weighted by their distance to the point, update their speed with the observed speed and are merged per road. The hypotheses whose
+ * posterior probability is below the update threshold are pruned and at most <tt>MaxHypotheses</tt> of them are kept, so the work for
+ * each point is bounded regardless of the trajectory length. The route of a hypothesis is shared with its parent, a hypothesis only
+ * adds the roads it enters. The best hypothesis is output immediately, so the latency is always zero. If no hypothesis survives, the
+ * matching restarts from the candidates of the current point.
+ * <p>
+ * The speed of the trajectory sample is used if available, otherwise it is estimated from the previous sample.
  *
  * @author uqpchao
  * Created 18/08/2019
@@ -31,6 +42,7 @@ import java.util.List;
 public class MHTMapMatching implements MapMatchingMethod, Serializable {
 	
 	private static final Logger LOG = Logger.getLogger(MHTMapMatching.class);
+	private static final double PREDICTION_RANGE = 3;    // the predicted positions are searched within this many standard deviations
 	
 	/**
 	 * parameters for the algorithm.
@@ -41,6 +53,8 @@ public class MHTMapMatching implements MapMatchingMethod, Serializable {
 	private final double sigmaV;    // velocity observation error used in Kalman Filter (km/h)
 	private final double thresholdPrediction;    // prediction threshold
 	private final double thresholdUpdate;        // update threshold
+	private final int maxHypotheses;    // the maximum number of hypotheses kept after each update
+	private final int maxExpansion;     // the maximum number of roads visited by the prediction of one hypothesis
 	private final DistanceFunction distFunc;
 	private final BaseProperty prop;
 	private final RoadNetworkGraph roadMap;
@@ -59,8 +73,26 @@ public class MHTMapMatching implements MapMatchingMethod, Serializable {
 		this.sigmaV = property.getPropertyDouble("algorithm.mapmatching.mht.SigmaV");
 		this.thresholdPrediction = property.getPropertyDouble("algorithm.mapmatching.mht.PredictionThreshold");
 		this.thresholdUpdate = property.getPropertyDouble("algorithm.mapmatching.mht.UpdateThreshold");
-		this.rtree = new RTreeIndexing(this.roadMap);
-		this.routingGraph = new RoutingGraph(this.roadMap, false, property);
+		this.maxHypotheses = property.contains("algorithm.mapmatching.mht.MaxHypotheses") ?
+				property.getPropertyInteger("algorithm.mapmatching.mht.MaxHypotheses") : 30;
+		if (maxHypotheses <= 0)
+			throw new IllegalArgumentException("The maximum number of hypotheses must be positive: " + maxHypotheses);
+		this.maxExpansion = property.contains("algorithm.mapmatching.mht.MaxExpansion") ?
+				property.getPropertyInteger("algorithm.mapmatching.mht.MaxExpansion") : 64;
+		if (maxExpansion <= 0)
+			throw new IllegalArgumentException("The maximum number of expanded roads must be positive: " + maxExpansion);
+		MapIndexBundle indexBundle = MapIndexBundle.open(this.roadMap, property);
+		this.rtree = indexBundle == null ? new RTreeIndexing(this.roadMap, property) : indexBundle.createRTreeIndexing(property);
+		this.routingGraph = indexBundle == null ? new RoutingGraph(this.roadMap, false, property) :
+				indexBundle.createRoutingGraph(property);
+	}
+	
+	/**
+	 * The algorithm is online by nature, the offline matching returns the online result.
+	 */
+	@Override
+	public SimpleTrajectoryMatchResult offlineMatching(Trajectory traj) {
+		return onlineMatching(traj)._2();
 	}
 	
 	@Override
@@ -70,32 +102,280 @@ public class MHTMapMatching implements MapMatchingMethod, Serializable {
 		for (int i = 0; i < traj.size(); i++) {
 			latencyList.add(0d);
 		}
-		// check if the trajectory contains speed information
-		if (traj.get(0).speed() == Double.NEGATIVE_INFINITY) {
-			LOG.debug("The current trajectory does not contains speed info, generate it automatically.");
-			for (int i = 0; i < traj.size() - 1; i++) {
-				TrajectoryPoint currPoint = traj.get(i);
-				TrajectoryPoint nextPoint = traj.get(i + 1);
-				currPoint.setSpeed(distFunc.distance(nextPoint, currPoint) / (nextPoint.time() - currPoint.time()));
+		if (traj.size() == 0)
+			return new Pair<>(latencyList, new SimpleTrajectoryMatchResult(traj.getID(), new ArrayList<>(), new ArrayList<>()));
+		double observationVariance = sigmaV / 3.6 * sigmaV / 3.6;    // the observed speed is in m/s
+		List<Hypothesis> hypothesisList = new ArrayList<>();
+		List<PointMatch> pointMatchList = new ArrayList<>(traj.size());
+		long lastTime = 0;    // the time of the last point that updated the hypotheses
+		int restartCount = 0;
+		long hypothesisCount = 0;
+		for (int i = 0; i < traj.size(); i++) {
+			TrajectoryPoint currTrajPoint = traj.get(i);
+			double observedSpeed = getObservedSpeed(currTrajPoint, i == 0 ? null : traj.get(i - 1));
+			List<Hypothesis> updatedList = Collections.emptyList();
+			if (!hypothesisList.isEmpty())
+				updatedList = update(predict(hypothesisList, currTrajPoint, currTrajPoint.time() - lastTime, observedSpeed,
+						observationVariance));
+			if (updatedList.isEmpty()) {
+				// the first point or the hypotheses all break, restart from the candidates while keeping the best route so far
+				updatedList = update(initialise(currTrajPoint, hypothesisList.isEmpty() ? null : hypothesisList.get(0).route,
+						observedSpeed, observationVariance));
+				if (!hypothesisList.isEmpty() && !updatedList.isEmpty())
+					restartCount++;
+			}
+			if (updatedList.isEmpty()) {    // no candidate around the point, skip it
+				pointMatchList.add(new PointMatch(distFunc));
+				continue;
 			}
-			traj.get(traj.size() - 1).setSpeed(traj.get(traj.size() - 2).speed());
+			hypothesisList = updatedList;
+			lastTime = currTrajPoint.time();
+			hypothesisCount += hypothesisList.size();
+			Hypothesis bestHypothesis = hypothesisList.get(0);
+			pointMatchList.add(new PointMatch(new Point(bestHypothesis.x, bestHypothesis.y, distFunc),
+					rtree.getSegment(bestHypothesis.edgeIndex, distFunc), getOriginalRoadID(rtree.getRoadID(bestHypothesis.edgeIndex))));
 		}
 		
-		TrajectoryPoint startTrajPoint = traj.get(0);
-		List<PointMatch> initialPointMatch = rtree.searchNeighbours(startTrajPoint, candidateRange);
-		double observationErrorDist = sigmaV;
-		double avgSpd = startTrajPoint.speed();
-		
-		for (int i = 0; i < traj.size(); i++) {
-			TrajectoryPoint currTrajPoint = traj.get(i);
-			if (i > 0) {
+		List<String> routeMatchList = new ArrayList<>();
+		for (RouteNode node = hypothesisList.isEmpty() ? null : hypothesisList.get(0).route; node != null; node = node.parent) {
+			String roadID = getOriginalRoadID(node.roadID);
+			if (routeMatchList.isEmpty() || !routeMatchList.get(routeMatchList.size() - 1).equals(roadID))
+				routeMatchList.add(roadID);
+		}
+		Collections.reverse(routeMatchList);
+		LOG.debug("MHT matching of trajectory " + traj.getID() + " finished, mean live hypotheses: "
+				+ String.format("%.1f", hypothesisCount * 1.0 / traj.size()) + ", restarts: " + restartCount + ".");
+		return new Pair<>(latencyList, new SimpleTrajectoryMatchResult(traj.getID(), pointMatchList, routeMatchList));
+	}
+	
+	/**
+	 * The speed observed at a point. If the trajectory has no speed, it is estimated from the previous point only, so the matching does
+	 * not look ahead. The trajectory points are not modified.
+	 *
+	 * @param point         The current trajectory point.
+	 * @param previousPoint The previous trajectory point, null if the point is the first one.
+	 * @return The observed speed in m/s, NaN if unknown, in which case the speed is only predicted by the Kalman filter.
+	 */
+	private double getObservedSpeed(TrajectoryPoint point, TrajectoryPoint previousPoint) {
+		if (Double.isFinite(point.speed()))
+			return point.speed();
+		if (previousPoint == null || point.time() <= previousPoint.time())
+			return Double.NaN;
+		return distFunc.distance(point, previousPoint) / (point.time() - previousPoint.time());
+	}
+	
+	/**
+	 * Create the hypotheses of the candidate roads around a point.
+	 *
+	 * @param point               The trajectory point.
+	 * @param previousRoute       The route matched before the point, null if the matching starts at the point.
+	 * @param observedSpeed       The observed speed at the point, NaN if unknown.
+	 * @param observationVariance The variance of the speed observation.
+	 * @return The hypotheses, not yet normalised.
+	 */
+	private List<Hypothesis> initialise(TrajectoryPoint point, RouteNode previousRoute, double observedSpeed, double observationVariance) {
+		List<Hypothesis> hypothesisList = new ArrayList<>();
+		double speed = Double.isFinite(observedSpeed) ? Math.max(observedSpeed, 0) : 0;
+		for (PointMatch candidate : rtree.searchNeighbours(point, candidateRange)) {
+			int edgeIndex = candidate.getEdgeIndex();
+			Point matchPoint = candidate.getMatchPoint();
+			double distance = distFunc.distance(point, matchPoint);
+			hypothesisList.add(new Hypothesis(edgeIndex, distFunc.distance(candidate.getMatchedSegment().p1(), matchPoint), matchPoint.x(),
+					matchPoint.y(), speed, observationVariance, -distance * distance / (2 * sigma * sigma),
+					new RouteNode(rtree.getRoadID(edgeIndex), previousRoute)));
+		}
+		return hypothesisList;
+	}
+	
+	/**
+	 * Predict the positions of each hypothesis at the current point and weight them by the point. The predicted positions on the same
+	 * road are merged into the most likely one.
+	 *
+	 * @param hypothesisList      The hypotheses of the last point.
+	 * @param point               The current trajectory point.
+	 * @param timeDiff            The time since the last point, in seconds.
+	 * @param observedSpeed       The observed speed at the current point, NaN if unknown.
+	 * @param observationVariance The variance of the speed observation.
+	 * @return The hypotheses of the current point, not yet normalised.
+	 */
+	private List<Hypothesis> predict(List<Hypothesis> hypothesisList, TrajectoryPoint point, long timeDiff, double observedSpeed,
+									 double observationVariance) {
+		double dt = Math.max(timeDiff, 0);
+		Map<Integer, Hypothesis> edge2Hypothesis = new LinkedHashMap<>();
+		Queue<RouteStep> stepQueue = new PriorityQueue<>(Comparator.comparingDouble((RouteStep step) -> step.startDistance));
+		Map<Integer, Double> edge2StartDistance = new HashMap<>();    // the smallest travel distance at the start of each queued road
+		for (Hypothesis hypothesis : hypothesisList) {
+			// Kalman prediction of the speed, the travel distance is uncertain in both the speed and the GPS error
+			double predictedVariance = hypothesis.speedVariance + sigmaA * dt * sigmaA * dt;
+			double predictedDistance = hypothesis.speed * dt;
+			double distanceDeviation = Math.sqrt(predictedVariance * dt * dt + sigma * sigma);
+			double minDistance = Math.max(predictedDistance - PREDICTION_RANGE * distanceDeviation, 0);
+			double maxDistance = predictedDistance + PREDICTION_RANGE * distanceDeviation;
+			// Kalman update of the speed with the observed speed, shared by all predictions of the hypothesis
+			double speed = hypothesis.speed;
+			double speedVariance = predictedVariance;
+			if (Double.isFinite(observedSpeed)) {
+				double gain = predictedVariance / (predictedVariance + observationVariance);
+				speed = Math.max(speed + gain * (observedSpeed - speed), 0);
+				speedVariance = (1 - gain) * predictedVariance;
+			}
 			
+			// expand the route along the road network in the order of travel distance until the maximum travel distance is reached. A
+			// road is only expanded from its shortest route, so a U-turn does not cycle. The road of the hypothesis itself starts at a
+			// negative distance and is not recorded, it can be entered again to reach the part behind the hypothesis.
+			stepQueue.add(new RouteStep(hypothesis.edgeIndex, -hypothesis.offset, hypothesis.route));
+			int expansionCount = 0;
+			while (!stepQueue.isEmpty() && expansionCount < maxExpansion) {
+				RouteStep step = stepQueue.poll();
+				Double shortestDistance = edge2StartDistance.get(step.edgeIndex);
+				if (shortestDistance != null && shortestDistance < step.startDistance)
+					continue;    // superseded by a shorter route queued later
+				expansionCount++;
+				Segment segment = rtree.getSegment(step.edgeIndex, distFunc);
+				double length = segment.length();
+				double startOffset = Math.max(minDistance - step.startDistance, step.edgeIndex == hypothesis.edgeIndex
+						&& step.startDistance < 0 ? hypothesis.offset : 0);
+				double endOffset = Math.min(maxDistance - step.startDistance, length);
+				if (startOffset <= endOffset) {
+					Hypothesis prediction = createPrediction(hypothesis, step, segment, length, startOffset, endOffset, point,
+							predictedDistance, distanceDeviation, speed, speedVariance);
+					if (prediction != null) {
+						Hypothesis current = edge2Hypothesis.get(step.edgeIndex);
+						if (current == null || prediction.logProbability > current.logProbability)
+							edge2Hypothesis.put(step.edgeIndex, prediction);
+					}
+				}
+				if (step.startDistance + length < maxDistance) {
+					double nextDistance = step.startDistance + length;
+					for (int nextEdge : routingGraph.getNextEdges(step.edgeIndex)) {
+						Double queuedDistance = edge2StartDistance.get(nextEdge);
+						if (queuedDistance != null && queuedDistance <= nextDistance)
+							continue;
+						edge2StartDistance.put(nextEdge, nextDistance);
+						stepQueue.add(new RouteStep(nextEdge, nextDistance, new RouteNode(rtree.getRoadID(nextEdge), step.route)));
+					}
+				}
 			}
+			stepQueue.clear();
+			edge2StartDistance.clear();
+		}
+		return new ArrayList<>(edge2Hypothesis.values());
+	}
+	
+	/**
+	 * Create the prediction of a hypothesis on a road. The predicted position is the closest point to the trajectory point within the
+	 * reachable part of the road.
+	 *
+	 * @return The prediction, or null if its prediction probability is below the prediction threshold.
+	 */
+	private Hypothesis createPrediction(Hypothesis hypothesis, RouteStep step, Segment segment, double length, double startOffset,
+										double endOffset, TrajectoryPoint point, double predictedDistance, double distanceDeviation,
+										double speed, double speedVariance) {
+		Point closestPoint = distFunc.getClosestPoint(point, segment);
+		double offset = distFunc.distance(segment.p1(), closestPoint);
+		double x = closestPoint.x();
+		double y = closestPoint.y();
+		if (offset < startOffset || offset > endOffset) {
+			offset = offset < startOffset ? startOffset : endOffset;
+			double ratio = length == 0 ? 0 : offset / length;
+			x = segment.x1() + ratio * (segment.x2() - segment.x1());
+			y = segment.y1() + ratio * (segment.y2() - segment.y1());
+		}
+		double distanceError = step.startDistance + offset - predictedDistance;
+		double predictionLogProbability = -distanceError * distanceError / (2 * distanceDeviation * distanceDeviation);
+		if (Math.exp(predictionLogProbability) < thresholdPrediction)
+			return null;
+		double distance = distFunc.distance(point, new Point(x, y, distFunc));
+		return new Hypothesis(step.edgeIndex, offset, x, y, speed, speedVariance, hypothesis.logProbability + predictionLogProbability
+				- distance * distance / (2 * sigma * sigma), step.route);
+	}
+	
+	/**
+	 * Normalise the hypotheses, prune the ones below the update threshold and keep the most likely <tt>maxHypotheses</tt> ones.
+	 *
+	 * @param hypothesisList The hypotheses of the current point.
+	 * @return The surviving hypotheses, most likely first, with their log probability normalised.
+	 */
+	private List<Hypothesis> update(List<Hypothesis> hypothesisList) {
+		if (hypothesisList.isEmpty())
+			return hypothesisList;
+		hypothesisList.sort(Comparator.comparingDouble((Hypothesis h) -> h.logProbability).reversed());
+		double maxLogProbability = hypothesisList.get(0).logProbability;
+		double probabilitySum = 0;
+		for (Hypothesis hypothesis : hypothesisList)
+			probabilitySum += Math.exp(hypothesis.logProbability - maxLogProbability);
+		double logNormaliser = maxLogProbability + Math.log(probabilitySum);
+		List<Hypothesis> resultList = new ArrayList<>(Math.min(hypothesisList.size(), maxHypotheses));
+		for (Hypothesis hypothesis : hypothesisList) {
+			if (resultList.size() == maxHypotheses)
+				break;
+			hypothesis.logProbability -= logNormaliser;
+			if (!resultList.isEmpty() && Math.exp(hypothesis.logProbability) < thresholdUpdate)
+				break;    // sorted, the remaining ones are below the threshold too
+			resultList.add(hypothesis);
 		}
+		return resultList;
+	}
+	
+	/**
+	 * @return The id of the road in the original map, the loose map splits a polyline road into roads with suffix "_S" + serial number.
+	 */
+	private static String getOriginalRoadID(String roadID) {
+		int suffixIndex = roadID.indexOf("_S");
+		return suffixIndex == -1 ? roadID : roadID.substring(0, suffixIndex);
+	}
+	
+	/**
+	 * A matched position and the route leading to it.
+	 */
+	private static class Hypothesis {
+		private final int edgeIndex;    // the line of the position, which is also the mini edge index in the routing graph
+		private final double offset;    // the distance from the start of the line to the position
+		private final double x;
+		private final double y;
+		private final double speed;     // the Kalman-filtered speed, in m/s
+		private final double speedVariance;
+		private double logProbability;
+		private final RouteNode route;
 		
+		Hypothesis(int edgeIndex, double offset, double x, double y, double speed, double speedVariance, double logProbability,
+				   RouteNode route) {
+			this.edgeIndex = edgeIndex;
+			this.offset = offset;
+			this.x = x;
+			this.y = y;
+			this.speed = speed;
+			this.speedVariance = speedVariance;
+			this.logProbability = logProbability;
+			this.route = route;
+		}
+	}
+	
+	/**
+	 * The last road of a route, linked to the route before it. Routes are shared among the hypotheses expanded from the same parent.
+	 */
+	private static class RouteNode {
+		private final String roadID;
+		private final RouteNode parent;
 		
-		SimpleTrajectoryMatchResult matchResult = null;
+		RouteNode(String roadID, RouteNode parent) {
+			this.roadID = roadID;
+			this.parent = parent;
+		}
+	}
+	
+	/**
+	 * A road visited by the route expansion and the travel distance at its start, negative for the road of the hypothesis itself.
+	 */
+	private static class RouteStep {
+		private final int edgeIndex;
+		private final double startDistance;
+		private final RouteNode route;
 		
-		return new Pair<>(latencyList, matchResult);
+		RouteStep(int edgeIndex, double startDistance, RouteNode route) {
+			this.edgeIndex = edgeIndex;
+			this.startDistance = startDistance;
+			this.route = route;
+		}
 	}
-}
\ No newline at end of file
+}
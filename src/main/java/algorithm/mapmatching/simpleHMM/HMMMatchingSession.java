@@ -0,0 +1,139 @@
+package algorithm.mapmatching.simpleHMM;
+
+import algorithm.mapmatching.OnlineMatchResult;
+import algorithm.mapmatching.OnlineMatchingSession;
+import org.apache.log4j.Logger;
+import util.object.spatialobject.TrajectoryPoint;
+import util.object.structure.PointMatch;
+
+import java.util.*;
+
+/**
+ * Incremental HMM matching of one vehicle on a <tt>SimpleHMMMatching</tt>. Each pushed point runs one filter step and one window update
+ * of the sequence, then the samples at the head of the pending queue are emitted as soon as their states are final. The samples without
+ * any candidate are final immediately but wait in the queue until all earlier samples are emitted, so the output is in time order. A
+ * point not later than the previous one is not matched, it is emitted unmatched in its push order, so every pushed point has one match.
+ * <p>
+ * The session keeps the window of the sequence, the pending samples and the final states not emitted yet, all of them are bounded by the
+ * window size of the matching.
+ */
+class HMMMatchingSession implements OnlineMatchingSession {
+
+    private static final Logger LOG = Logger.getLogger(HMMMatchingSession.class);
+
+    private final SimpleHMMMatching matching;
+    private final String vehicleID;
+    private SequenceMemory sequence;
+    private Map<String, StateCandidate> optimalCandidateSeq = new HashMap<>();  // final states not emitted yet, key is state id
+    private final ArrayDeque<PendingSample> pendingSamples = new ArrayDeque<>();
+    private double lastSampleTime = Double.NEGATIVE_INFINITY;
+    private double lastEmittedTime = Double.NEGATIVE_INFINITY;
+    private String lastRoadID = null;   // the last road of the emitted route fragments
+    private boolean isClosed = false;
+
+    HMMMatchingSession(SimpleHMMMatching matching, String vehicleID, SequenceMemory sequence) {
+        this.matching = matching;
+        this.vehicleID = vehicleID;
+        this.sequence = sequence;
+    }
+
+    @Override
+    public String getVehicleID() {
+        return vehicleID;
+    }
+
+    @Override
+    public List<OnlineMatchResult> push(TrajectoryPoint point) {
+        if (isClosed) {
+            throw new IllegalArgumentException("The matching session of vehicle " + vehicleID + " is closed.");
+        }
+        long pushTime = System.nanoTime();
+        if (point.time() <= lastSampleTime) {
+            // not matched, but still emitted in order so the output has one match per pushed point
+            LOG.warn("Point at " + point.time() + " of vehicle " + vehicleID + " is not later than the previous point, not matched.");
+            pendingSamples.add(new PendingSample(null, point.time(), pushTime));
+            return emit();
+        }
+        lastSampleTime = point.time();
+        StateSample sample = new StateSample(point, point.heading(), point.time());
+        StateMemory vector = matching.execute(sequence.lastStateMemory(), sample);
+        // a gps point which doesn't have candidate point is final immediately
+        if (!vector.getStateCandidates().isEmpty()) {
+            matching.update(sequence, vector, sample, optimalCandidateSeq);
+        } else {
+            optimalCandidateSeq.put(Double.toString(sample.getTime()), new StateCandidate());
+        }
+        pendingSamples.add(new PendingSample(sample, sample.getTime(), pushTime));
+        return emit();
+    }
+
+    @Override
+    public List<OnlineMatchResult> close() {
+        if (isClosed) {
+            return new ArrayList<>();
+        }
+        if (!sequence.getStateMemoryVector().isEmpty()) {
+            matching.finish(sequence, optimalCandidateSeq);
+        }
+        List<OnlineMatchResult> result = emit();
+        if (!pendingSamples.isEmpty()) {
+            throw new RuntimeException("Inconsistent matching session, " + pendingSamples.size() + " samples are not finalised.");
+        }
+        isClosed = true;
+        sequence = null;
+        optimalCandidateSeq = null;
+        return result;
+    }
+
+    /**
+     * Emit the pending samples in order until the first sample whose state is not final.
+     */
+    private List<OnlineMatchResult> emit() {
+        List<OnlineMatchResult> result = new ArrayList<>();
+        long emissionTime = System.nanoTime();
+        while (!pendingSamples.isEmpty()) {
+            PendingSample pending = pendingSamples.peekFirst();
+            StateCandidate candidate = null;
+            if (pending.sample != null) {
+                candidate = optimalCandidateSeq.remove(Double.toString(pending.time));
+                if (candidate == null) {
+                    break;
+                }
+            }
+            pendingSamples.removeFirst();
+            PointMatch pointMatch;
+            List<String> routeFragment = new ArrayList<>();
+            if (candidate != null && candidate.isMatched() && candidate.getId().charAt(0) != '_') {
+                pointMatch = matching.getPointMatch(candidate);
+                for (String roadID : candidate.getTransition().getRoute()) {
+                    if (!roadID.equals(lastRoadID)) {
+                        routeFragment.add(roadID);
+                        lastRoadID = roadID;
+                    }
+                }
+            } else {
+                pointMatch = new PointMatch(matching.getDistanceFunction());
+            }
+            lastEmittedTime = Math.max(lastEmittedTime, pending.time);
+            result.add(new OnlineMatchResult(pending.time, pointMatch, routeFragment, lastSampleTime - pending.time,
+                    emissionTime - pending.pushTime));
+        }
+        // the convergence state of Goh stays in the window after its output and may be output again by a later backtracking
+        if (!optimalCandidateSeq.isEmpty()) {
+            optimalCandidateSeq.keySet().removeIf(id -> Double.parseDouble(id) <= lastEmittedTime);
+        }
+        return result;
+    }
+
+    private static class PendingSample {
+        private final StateSample sample;   // null if the point is not matched as it is out of order
+        private final double time;
+        private final long pushTime;
+
+        PendingSample(StateSample sample, double time, long pushTime) {
+            this.sample = sample;
+            this.time = time;
+            this.pushTime = pushTime;
+        }
+    }
+}
@@ -253,6 +253,19 @@ public class SequenceMemory {
                            StateSample lastSample, Map<String, StateCandidate> optimalCandiSeq, double gamma) {
         expand(latestStateMemory, lastSample);
         shrinkEddy(optimalCandiSeq, checkUncertainty(gamma));
+        if (maxStateNum > 0 && stateMemoryVector.size() > maxStateNum) {
+            // the uncertainty is still too high, force to output the most likely candidate of the first state to bound the window
+            StateMemory firstState = stateMemoryVector.removeFirst();
+            if (!optimalCandiSeq.containsKey(firstState.getId())) {
+                optimalCandiSeq.put(firstState.getId(), firstState.getFiltProbCandidate());
+            }
+            for (StateCandidate stateCandidate : firstState.getStateCandidates().values()) {
+                sequenceCandidateVotes.remove(stateCandidate.getId());
+            }
+            for (StateCandidate stateCandidate : stateMemoryVector.peekFirst().getStateCandidates().values()) {
+                stateCandidate.setPredecessor(null);
+            }
+        }
     }
 
     public StateMemory lastStateMemory() {
@@ -2,19 +2,22 @@ package algorithm.mapmatching.simpleHMM;
 
 
 import algorithm.mapmatching.MapMatchingMethod;
+import algorithm.mapmatching.OnlineMatchingSession;
 import algorithm.mapmatching.hmm.HMMProbabilities;
-import algorithm.mapmatching.weightBased.Utilities;
+import util.dijkstra.RouteMatrix;
 import util.dijkstra.RoutingGraph;
 import util.function.DistanceFunction;
+import util.index.rtree.CandidateBatch;
 import util.index.rtree.RTreeIndexing;
+import util.io.MapIndexBundle;
 import util.object.roadnetwork.RoadNetworkGraph;
 import util.object.spatialobject.Point;
+import util.object.spatialobject.Segment;
 import util.object.spatialobject.Trajectory;
 import util.object.spatialobject.TrajectoryPoint;
 import util.object.structure.Pair;
 import util.object.structure.PointMatch;
 import util.object.structure.SimpleTrajectoryMatchResult;
-import util.object.structure.Triplet;
 import util.settings.BaseProperty;
 
 import java.io.Serializable;
@@ -38,14 +41,17 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
 
     public SimpleHMMMatching(RoadNetworkGraph roadMap, BaseProperty property) {
         this.roadMap = roadMap;
-        this.routingGraph = new RoutingGraph(roadMap, false, property);
+        MapIndexBundle indexBundle = MapIndexBundle.open(roadMap, property);
+        this.routingGraph = indexBundle == null ? new RoutingGraph(roadMap, false, property) : indexBundle.createRoutingGraph(property);
         this.distFunc = roadMap.getDistanceFunction();
-        this.rtree = new RTreeIndexing(roadMap);
+        this.rtree = indexBundle == null ? new RTreeIndexing(roadMap, property) : indexBundle.createRTreeIndexing(property);
         double sigma = property.getPropertyDouble("algorithm.mapmatching.Sigma");
         double beta = property.getPropertyDouble("algorithm.mapmatching.hmm.Beta");
         gamma = property.getPropertyDouble("algorithm.mapmatching.hmm.Eddy.Gamma");
         hmmMethod = property.getPropertyString("algorithm.mapmatching.MatchingMethod");
         turnWeight = property.getPropertyDouble("algorithm.mapmatching.hmm.turnWeight");
+        if (turnWeight > 0)
+            routingGraph.enableTurnCosts();
         this.hmmProbabilities = new HMMProbabilities(sigma, beta);
         this.candidateRange = property.getPropertyDouble("algorithm.mapmatching.CandidateRange");
 //        this.dijkstraDist = property.getPropertyDouble("algorithm.mapmatching.sco.DijkstraThreshold");
@@ -67,46 +73,53 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
         StateSample previous = prevMemory.getSample();
         double linearDist = distFunc.pointToPointDistance(sample.x(), sample.y(), previous.x(), previous.y());
 
-        final List<PointMatch> targets = new LinkedList<>();
-        for (StateCandidate candidate : candidates._2()) {
-            targets.add(candidate.getPointMatch());
+        final List<StateCandidate> targetCandidates = new ArrayList<>(candidates._2());
+        int[] targetEdges = new int[targetCandidates.size()];
+        double[] targetX = new double[targetCandidates.size()];
+        double[] targetY = new double[targetCandidates.size()];
+        for (int j = 0; j < targetCandidates.size(); j++) {
+            StateCandidate candidate = targetCandidates.get(j);
+            targetEdges[j] = candidate.getEdgeIndex();
+            targetX[j] = candidate.lon();
+            targetY[j] = candidate.lat();
+        }
+        final List<StateCandidate> predecessors = new ArrayList<>(prevMemory.getStateCandidates().values());
+        int[] sourceEdges = new int[predecessors.size()];
+        double[] sourceX = new double[predecessors.size()];
+        double[] sourceY = new double[predecessors.size()];
+        for (int i = 0; i < predecessors.size(); i++) {
+            StateCandidate predecessor = predecessors.get(i);
+            sourceEdges[i] = predecessor.getEdgeIndex();
+            sourceX[i] = predecessor.lon();
+            sourceY[i] = predecessor.lat();
         }
 
         /* predecessor candidate id --> <candidate id, transition> */
         final Map<String, Map<String, Pair<StateTransition, Double>>> transitions = new ConcurrentHashMap<>();
 
-        for (StateCandidate predecessor : prevMemory.getStateCandidates().values()) {
+        double timeDiff = sample.getTime() - previous.getTime();
+        double maxDistance = Math.min((50 * timeDiff), linearDist * 8);
+        // all predecessors share one route matrix query, one Dijkstra search per distinct start vertex unless contraction hierarchy is
+        // enabled. The turn-weighted route length comes from the search if turns are penalised, a transition that stays on one road has
+        // no turn and is weighted by its plain length
+        RouteMatrix routeMatrix = turnWeight <= 0 ?
+                routingGraph.calculateManyToNSP(sourceEdges, sourceX, sourceY, targetEdges, targetX, targetY, maxDistance) :
+                routingGraph.calculateManyToNTurnSP(sourceEdges, sourceX, sourceY, targetEdges, targetX, targetY, maxDistance,
+                        turnWeight);
+        for (int i = 0; i < predecessors.size(); i++) {
             Map<String, Pair<StateTransition, Double>> result = new HashMap<>();
-            double timeDiff = sample.getTime() - previous.getTime();
-            double maxDistance = Math.min((50 * timeDiff), linearDist * 8);
-            List<Triplet<PointMatch, Double, List<String>>> shortestPath = Utilities.getShortestPaths(
-                    routingGraph, targets, predecessor.getPointMatch(), new Point(sample.x(), sample.y(), distFunc), maxDistance);
-            //List<Triplet<PointMatch, Double, List<String>>> shortestPath = Utilities.getShortestPaths(
-            //                    routingGraph, targets, predecessor.getPointMatch(), dijkstraDist);
-
-            Map<PointMatch, Pair<Double, List<String>>> map = new HashMap<>();
-            for (Triplet<PointMatch, Double, List<String>> triplet : shortestPath) {
-                map.put(triplet._1(), new Pair<>(triplet._2(), triplet._3()));
-            }
-
-
-            for (StateCandidate candidate : candidates._2()) {
-                if (map.containsKey(candidate.getPointMatch())) {
+            for (int j = 0; j < targetCandidates.size(); j++) {
+                if (routeMatrix.isReachable(i, j)) {
                     // the predecessor is able to reach the candidate
-                    double distance = map.get(candidate.getPointMatch())._1();
-//                    double timeDiff = sample.getTime() - previous.getTime();
-                    List<String> path = map.get(candidate.getPointMatch())._2();
+                    double distance = routeMatrix.getDistance(i, j);
+                    List<String> path = routeMatrix.getPath(i, j);
                     if (hmmMethod.toLowerCase().contains("frechet") && path.size() > 0) linearDist = 0;
-                    double transition = turnWeight <= 0 ?
-                            hmmProbabilities.transitionProbability(distance, linearDist, timeDiff) :
-                            hmmProbabilities.transitionProbabilityWithTurn(distance, linearDist, timeDiff, path, roadMap,
-                                    turnWeight);
+                    double transition = hmmProbabilities.transitionProbability(distance, linearDist, timeDiff);
 
-                    result.put(candidate.getId(),
-                            new Pair<>(new StateTransition(map.get(candidate.getPointMatch())._2()), transition));
+                    result.put(targetCandidates.get(j).getId(), new Pair<>(new StateTransition(path), transition));
                 }
             }
-            transitions.put(predecessor.getId(), result);
+            transitions.put(predecessors.get(i).getId(), result);
         }
         return transitions;
     }
@@ -120,15 +133,37 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
      * @return Set of tuples consisting of a {@link StateCandidate} and its emission probability.
      */
     private Set<StateCandidate> getNeighbourPoints(StateSample sample) {
-        List<PointMatch> neighbourPms = this.rtree.searchNeighbours(sample.getSampleMeasurement(), candidateRange);
-        Set<StateCandidate> candidates = new LinkedHashSet<>();
-        for (PointMatch neighbourPm : neighbourPms) {
-            StateCandidate candidate = new StateCandidate(neighbourPm, sample);
-            double dz = distFunc.pointToPointDistance(neighbourPm.lon(), neighbourPm.lat(), sample.x(), sample.y());
-            candidate.setEmiProb(hmmProbabilities.emissionProbability(dz));
-            candidates.add(candidate);
+        return getNeighbourPoints(Collections.singletonList(sample)).get(0);
+    }
+
+    /**
+     * Gets the state vectors of all samples with one batch search on the index. The candidates are read from the candidate buffer of
+     * the current thread, so no intermediate match point is created.
+     *
+     * @param samples the samples in time order
+     * @return the state candidates of each sample, in the same order
+     */
+    private List<Set<StateCandidate>> getNeighbourPoints(List<StateSample> samples) {
+        List<Point> measurements = new ArrayList<>(samples.size());
+        for (StateSample sample : samples) {
+            measurements.add(sample.getSampleMeasurement());
         }
-        return candidates;
+        CandidateBatch candidateBatch = this.rtree.searchNeighboursInBuffer(measurements, candidateRange);
+        List<Set<StateCandidate>> candidateList = new ArrayList<>(samples.size());
+        int sampleIndex = 0;
+        for (StateSample sample : samples) {
+            Set<StateCandidate> candidates = new LinkedHashSet<>();
+            for (int c = candidateBatch.getCandidateStart(sampleIndex); c < candidateBatch.getCandidateEnd(sampleIndex); c++) {
+                int lineID = candidateBatch.getLineID(c);
+                StateCandidate candidate = new StateCandidate(lineID, candidateBatch.getMatchX(c), candidateBatch.getMatchY(c),
+                        this.rtree.getLineName(lineID), sample);
+                candidate.setEmiProb(hmmProbabilities.emissionProbability(candidateBatch.getDistance(c)));
+                candidates.add(candidate);
+            }
+            candidateList.add(candidates);
+            sampleIndex++;
+        }
+        return candidateList;
     }
 
 
@@ -146,6 +181,10 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
      * @return StateMemory    which may be empty if an HMM break occurred.
      */
     public StateMemory execute(StateMemory prevStateMemory, StateSample sample) {
+        return execute(prevStateMemory, sample, getNeighbourPoints(sample));
+    }
+
+    private StateMemory execute(StateMemory prevStateMemory, StateSample sample, Set<StateCandidate> neighbourPoints) {
         Set<StateCandidate> predecessors = new HashSet<>();
         /* prevStateMemory is null if initial MM */
         if (prevStateMemory != null) {
@@ -154,8 +193,7 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
 
         Set<StateCandidate> stateCandidates = new HashSet<>();
 
-        /* Get neighbouring points to this sample. If none, return empty an empty StateMemory object */
-        Set<StateCandidate> neighbourPoints = getNeighbourPoints(sample);
+        /* If there is no neighbouring point to this sample, return empty an empty StateMemory object */
         if (neighbourPoints.isEmpty()) {
             return new StateMemory(stateCandidates, sample);
         }
@@ -217,6 +255,45 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
         return new StateMemory(stateCandidates, sample);
     }
 
+    /**
+     * Add the state of a new sample to the sequence with the window strategy of the matching method. The states that become final are
+     * put into the optimal candidate sequence.
+     */
+    void update(SequenceMemory sequence, StateMemory vector, StateSample sample, Map<String, StateCandidate> optimalCandidateSeq) {
+        if (hmmMethod.toLowerCase().contains("eddy")) {
+            sequence.updateEddy(vector, sample, optimalCandidateSeq, gamma);
+        } else if (hmmMethod.toLowerCase().contains("goh")) {
+            sequence.updateGoh(vector, sample, optimalCandidateSeq);
+        } else if (hmmMethod.toLowerCase().contains("fix")) {
+            sequence.updateFixed(vector, sample, optimalCandidateSeq);
+        } else sequence.updateFixed(vector, sample, optimalCandidateSeq); // offline mode
+    }
+
+    /**
+     * Output the remaining states of a non-empty sequence at the end of the trajectory.
+     */
+    void finish(SequenceMemory sequence, Map<String, StateCandidate> optimalCandidateSeq) {
+        if (hmmMethod.toLowerCase().contains("eddy")) {
+            sequence.forceFinalOutput(optimalCandidateSeq, gamma);
+        } else {
+            // both goh and fixed-window use this method to get last states
+            sequence.reverse(optimalCandidateSeq, sequence.getStateMemoryVector().size() - 1);
+        }
+    }
+
+    /**
+     * Create the point match of a matched candidate for the output.
+     */
+    PointMatch getPointMatch(StateCandidate candidate) {
+        Segment matchedSegment = rtree.getSegment(candidate.getEdgeIndex(), distFunc);
+        Point point = distFunc.getClosestPoint(candidate.getStateSample().getSampleMeasurement(), matchedSegment);
+        return new PointMatch(point, matchedSegment, candidate.getId());
+    }
+
+    DistanceFunction getDistanceFunction() {
+        return distFunc;
+    }
+
     private Pair<List<Double>, Pair<List<PointMatch>, List<String>>> pullMatchResult(SequenceMemory sequence,
                                                                                      Trajectory trajectory) {
         if (trajectory.size() == 0) {
@@ -234,17 +311,12 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
         List<Double> latency = new ArrayList<>();
         // Record states have been matched
         Set<String> preStatesRecord = new HashSet<>();
+        Iterator<Set<StateCandidate>> neighbourPointsIterator = getNeighbourPoints(samples).iterator();
         for (StateSample sample : samples) {
-            StateMemory vector = execute(sequence.lastStateMemory(), sample);
+            StateMemory vector = execute(sequence.lastStateMemory(), sample, neighbourPointsIterator.next());
             // ignore a gps point which doesn't have candidate point
             if (!vector.getStateCandidates().isEmpty()) {
-                if (hmmMethod.toLowerCase().contains("eddy")) {
-                    sequence.updateEddy(vector, sample, optimalCandidateSeq, gamma);
-                } else if (hmmMethod.toLowerCase().contains("goh")) {
-                    sequence.updateGoh(vector, sample, optimalCandidateSeq);
-                } else if (hmmMethod.toLowerCase().contains("fix")) {
-                    sequence.updateFixed(vector, sample, optimalCandidateSeq);
-                } else sequence.updateFixed(vector, sample, optimalCandidateSeq); // offline mode
+                update(sequence, vector, sample, optimalCandidateSeq);
             } else {
                 // the sample got no neighbouring point on road network
                 optimalCandidateSeq.put(Double.toString(sample.getTime()), new StateCandidate());
@@ -274,12 +346,7 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
                 }
             }
 
-            if (hmmMethod.toLowerCase().contains("eddy")) {
-                sequence.forceFinalOutput(optimalCandidateSeq, gamma);
-            } else {
-                // both goh and fixed-window use this method to get last states
-                sequence.reverse(optimalCandidateSeq, sequence.getStateMemoryVector().size() - 1);
-            }
+            finish(sequence, optimalCandidateSeq);
         }
 
         List<String> routeMatchResult = new LinkedList<>();
@@ -287,14 +354,10 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
 
         for (TrajectoryPoint trajectoryPoint : trajectory) {
             String id = Double.toString(trajectoryPoint.time());
-            if (optimalCandidateSeq.get(id).getPointMatch() != null) {
+            if (optimalCandidateSeq.get(id).isMatched()) {
                 StateCandidate candidate = optimalCandidateSeq.get(id);
-                StateSample sample = candidate.getStateSample();
                 if (candidate.getId().charAt(0) == '_') continue;
-                Point point = distFunc.getClosestPoint(
-                        sample.getSampleMeasurement(), candidate.getPointMatch().getMatchedSegment());
-                PointMatch pm = new PointMatch(point, candidate.getPointMatch().getMatchedSegment(), candidate.getId());
-                pointMatchResult.add(pm);
+                pointMatchResult.add(getPointMatch(candidate));
                 routeMatchResult.addAll(candidate.getTransition().getRoute());
             } else {
                 pointMatchResult.add(new PointMatch(distFunc));
@@ -350,4 +413,21 @@ public class SimpleHMMMatching implements MapMatchingMethod, Serializable {
         return new Pair<>(latency,
                 new SimpleTrajectoryMatchResult(trajectory.getID(), pointMatchResult, routeMatchResult));
     }
+
+    /**
+     * Start the incremental matching of a vehicle. The window of the session is bounded by the window size for all online methods,
+     * including Eddy, which forces the output of the first state when the window is full.
+     *
+     * @param vehicleID The ID of the vehicle.
+     * @return The matching session of the vehicle.
+     */
+    @Override
+    public OnlineMatchingSession openSession(String vehicleID) {
+        return new HMMMatchingSession(this, vehicleID, new SequenceMemory(maxStateNum));
+    }
+
+    @Override
+    public boolean isStreamingSupported() {
+        return true;
+    }
 }
@@ -1,14 +1,18 @@
 package algorithm.mapmatching.simpleHMM;
 
-import util.object.structure.PointMatch;
-
+/**
+ * A state of the HMM. The match point is kept as the mini edge index and the coordinates of the candidate search, the
+ * <tt>PointMatch</tt> is only created for the final output.
+ */
 public class StateCandidate {
 
     private StateSample stateSample;
     private StateCandidate predecessor = null;
     private double filtProb = 0d;
     //    private double seqProb = 0d;
-    private PointMatch pointMatch;
+    private int edgeIndex = -1;     // the line ID of the candidate search, which is also the mini edge index of the routing graph
+    private double matchX;
+    private double matchY;
     private StateTransition transition = new StateTransition();
     private double emiProb = 0d;
     private String id;
@@ -17,10 +21,19 @@ public class StateCandidate {
         super();
     }
 
-    public StateCandidate(PointMatch self, StateSample stateSample) {
-        this.pointMatch = self;
+    /**
+     * @param edgeIndex   The line ID of the candidate.
+     * @param matchX      The x coordinate of the match point.
+     * @param matchY      The y coordinate of the match point.
+     * @param lineName    The road ID of the match point, see <tt>RTreeIndexing.getLineName()</tt>.
+     * @param stateSample The sample the candidate belongs to.
+     */
+    public StateCandidate(int edgeIndex, double matchX, double matchY, String lineName, StateSample stateSample) {
+        this.edgeIndex = edgeIndex;
+        this.matchX = matchX;
+        this.matchY = matchY;
         this.stateSample = stateSample;
-        this.id = self.getRoadID() + "_" + stateSample.getTime();
+        this.id = lineName + "_" + stateSample.getTime();
     }
 
     public StateCandidate getPredecessor() {
@@ -43,8 +56,15 @@ public class StateCandidate {
         return stateSample;
     }
 
-    public PointMatch getPointMatch() {
-        return pointMatch;
+    public int getEdgeIndex() {
+        return edgeIndex;
+    }
+
+    /**
+     * @return False if the candidate is the placeholder of a sample without any candidate.
+     */
+    public boolean isMatched() {
+        return edgeIndex != -1;
     }
 
     public StateTransition getTransition() {
@@ -64,11 +84,11 @@ public class StateCandidate {
     }
 
     public double lon() {
-        return pointMatch.lon();
+        return matchX;
     }
 
     public double lat() {
-        return pointMatch.lat();
+        return matchY;
     }
 
     public String getId() {
@@ -7,6 +7,7 @@ import org.apache.log4j.Logger;
 import util.dijkstra.RoutingGraph;
 import util.function.DistanceFunction;
 import util.index.rtree.RTreeIndexing;
+import util.io.MapIndexBundle;
 import util.object.roadnetwork.RoadNetworkGraph;
 import util.object.spatialobject.Segment;
 import util.object.spatialobject.Trajectory;
@@ -60,8 +61,9 @@ public class FeatureSTMapMatching implements MapMatchingMethod, Serializable {
 		this.candidateSize = property.getPropertyInteger("algorithm.mapmatching.wgt.CandidateSize");
 		this.maxCTraj = property.getPropertyInteger("algorithm.mapmatching.wgt.MaxCTraj");
 		this.omega = property.getPropertyDouble("algorithm.mapmatching.wgt.Omega");
-		this.rtree = new RTreeIndexing(this.roadMap);
-		this.routingGraph = new RoutingGraph(this.roadMap, false, property);
+		MapIndexBundle indexBundle = MapIndexBundle.open(this.roadMap, property);
+		this.rtree = indexBundle == null ? new RTreeIndexing(this.roadMap) : indexBundle.createRTreeIndexing();
+		this.routingGraph = indexBundle == null ? new RoutingGraph(this.roadMap, false, property) : indexBundle.createRoutingGraph(property);
 	}
 	
 	@Override
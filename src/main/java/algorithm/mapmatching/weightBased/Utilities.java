@@ -1,6 +1,7 @@
 package algorithm.mapmatching.weightBased;
 
 import util.dijkstra.RoutingGraph;
+import util.function.SpatialUtils;
 import util.object.spatialobject.Point;
 import util.object.spatialobject.Segment;
 import util.object.structure.Pair;
@@ -14,7 +15,6 @@ import java.util.*;
 
 public class Utilities {
 	
-	
 	/**
 	 * Find the shortest path from a source node to each destination node
 	 *
@@ -84,8 +84,8 @@ public class Utilities {
 	 * @return weighting score of heading difference
 	 */
 	public static double headingDiffWeight(Point prePoint, Point curPoint, Point preCandi, Point curCandi) {
-		double vehicleHeading = computeHeading(prePoint.x(), prePoint.y(), curPoint.x(), curPoint.y());
-		double candiPathHeading = computeHeading(preCandi.x(), preCandi.y(), curCandi.x(), curCandi.y());
+		double vehicleHeading = SpatialUtils.computeHeading(prePoint.x(), prePoint.y(), curPoint.x(), curPoint.y());
+		double candiPathHeading = SpatialUtils.computeHeading(preCandi.x(), preCandi.y(), curCandi.x(), curCandi.y());
 		double headingDiff = Math.abs(vehicleHeading - candiPathHeading);
 		return Math.abs(Math.cos(Math.toRadians(headingDiff)));
 	}
@@ -98,7 +98,7 @@ public class Utilities {
 	 * @return weighting score of bearing difference
 	 */
 	public static double bearingDiffWeight(double curPointDir, Segment candiSegment) {
-		double candiSegDir = computeHeading(candiSegment.x1(), candiSegment.y1(), candiSegment.x2(), candiSegment.y2());
+		double candiSegDir = SpatialUtils.computeHeading(candiSegment.x1(), candiSegment.y1(), candiSegment.x2(), candiSegment.y2());
 		double bearingDiff = Math.abs(candiSegDir - curPointDir);
 		return Math.abs(Math.cos(Math.toRadians(bearingDiff)));
 	}
@@ -123,33 +123,6 @@ public class Utilities {
 		}
 	}
 	
-	/**
-	 * Returns the heading from one lonlat to another lonlat. Headings are
-	 * expressed in degrees clockwise from North within the range [0,360].
-	 *
-	 * @return The heading in degrees clockwise from north.
-	 */
-	public static double computeHeading(double fromLon, double fromLati, double toLon, double toLati) {
-		double fromLng = Math.toRadians(fromLon);
-		double fromLat = Math.toRadians(fromLati);
-		double toLng = Math.toRadians(toLon);
-		double toLat = Math.toRadians(toLati);
-		double dLng = toLng - fromLng;
-		double heading = Math.atan2(
-				Math.sin(dLng) * Math.cos(toLat),
-				Math.cos(fromLat) * Math.sin(toLat) - Math.sin(fromLat) * Math.cos(toLat) * Math.cos(dLng));
-		return wrap(Math.toDegrees(heading), -180, 180);
-	}
-	
-	private static double wrap(double n, double min, double max) {
-		return (n >= min && n < max) ? n : (mod(n - min, max - min) + min);
-	}
-	
-	private static double mod(double x, double m) {
-		return ((x % m) + m) % m;
-		
-	}
-	
 	/**
 	 * Get a TWS for each candidate match
 	 *
@@ -2,14 +2,15 @@ package algorithm.mapmatching.weightBased;
 
 
 import algorithm.mapmatching.MapMatchingMethod;
+import util.dijkstra.RouteMatrix;
 import util.dijkstra.RoutingGraph;
 import util.function.DistanceFunction;
 import util.index.rtree.RTreeIndexing;
+import util.io.MapIndexBundle;
 import util.object.roadnetwork.RoadNetworkGraph;
 import util.object.spatialobject.Point;
 import util.object.spatialobject.Segment;
 import util.object.spatialobject.Trajectory;
-import util.object.spatialobject.TrajectoryPoint;
 import util.object.structure.Pair;
 import util.object.structure.PointMatch;
 import util.object.structure.SimpleTrajectoryMatchResult;
@@ -42,8 +43,9 @@ public class WeightBasedMapMatching implements MapMatchingMethod, Serializable {
     public WeightBasedMapMatching(RoadNetworkGraph roadMap, BaseProperty property) {
         this.distFunc = roadMap.getDistanceFunction();
         this.candidateRange = property.getPropertyInteger("algorithm.mapmatching.CandidateRange");
-        this.rtree = new RTreeIndexing(roadMap);
-        this.routingGraph = new RoutingGraph(roadMap, false, property);
+        MapIndexBundle indexBundle = MapIndexBundle.open(roadMap, property);
+        this.rtree = indexBundle == null ? new RTreeIndexing(roadMap) : indexBundle.createRTreeIndexing();
+        this.routingGraph = indexBundle == null ? new RoutingGraph(roadMap, false, property) : indexBundle.createRoutingGraph(property);
 
 //		this.dijkstraThreshold = property.getPropertyDouble("algorithm.mapmatching.sco.DijkstraThreshold");
 		this.headingWC = property.getPropertyDouble("algorithm.mapmatching.sco.HeadingWC");
@@ -53,26 +55,25 @@ public class WeightBasedMapMatching implements MapMatchingMethod, Serializable {
     }
 
     /**
-     * Find all shortest paths between each candidate pair
+     * Find all shortest paths between each candidate pair. All pairs are resolved in one route matrix query, which runs one Dijkstra
+     * search per distinct start vertex, or one bucket-based many-to-many query if contraction hierarchy is enabled.
      *
-     * @param destinations   Candidate set of second point.
-     * @param sources        Candidate set of initial point.
-     * @param referencePoint The reference point used in A* algorithm.
-     * @param maxDistance    Searching threshold.
+     * @param destinations Candidate set of second point.
+     * @param sources      Candidate set of initial point.
+     * @param maxDistance  Searching threshold.
      * @return Map<Pair < sourcePM, destinationPM>, Pair<shortestPathLength, PathSequence>>
      */
     private Map<Pair<PointMatch, PointMatch>, Pair<Double, List<String>>> getAllShortestPaths(
-            List<PointMatch> destinations, List<PointMatch> sources, TrajectoryPoint referencePoint, double maxDistance) {
+            List<PointMatch> destinations, List<PointMatch> sources, double maxDistance) {
 
         Map<Pair<PointMatch, PointMatch>, Pair<Double, List<String>>> shortestPaths = new HashMap<>();
-        for (PointMatch source : sources) {
-
-            // List<DestinationPM, shortestPathLength, Path>
-            List<Triplet<PointMatch, Double, List<String>>> shortestPathToDestPm
-                    = Utilities.getShortestPaths(routingGraph, destinations, source, referencePoint, maxDistance);
-
-            for (Triplet<PointMatch, Double, List<String>> triplet : shortestPathToDestPm) {
-                shortestPaths.put(new Pair<>(source, triplet._1()), new Pair<>(triplet._2(), triplet._3()));
+        RouteMatrix routeMatrix = routingGraph.calculateManyToNSP(sources, destinations, maxDistance);
+        for (int i = 0; i < sources.size(); i++) {
+            for (int j = 0; j < destinations.size(); j++) {
+                if (routeMatrix.isReachable(i, j)) {
+                    shortestPaths.put(new Pair<>(sources.get(i), destinations.get(j)),
+                            new Pair<>(routeMatrix.getDistance(i, j), routeMatrix.getPath(i, j)));
+                }
             }
         }
         return shortestPaths;
@@ -95,7 +96,7 @@ public class WeightBasedMapMatching implements MapMatchingMethod, Serializable {
             // double is shortest path length
 
             double dijkstraThreshold = getDijkstraDistance(sampleIndex, sampleIndex + 1, trajectory);
-            candiPaths = getAllShortestPaths(secCandiPMs, firstCandiPMs, trajectory.get(sampleIndex + 1), dijkstraThreshold);
+            candiPaths = getAllShortestPaths(secCandiPMs, firstCandiPMs, dijkstraThreshold);
 
             sampleIndex += 1;
             iterations += 1;
@@ -596,17 +596,12 @@ public class MapMerge {
 	
 	private HashMap<String, Pair<Point, Double>> findPointMatchCandidate(double lon, double lat, int thresholdDist) {
 		HashMap<String, Pair<Point, Double>> result = new HashMap<>();
-		List<GridPartition<Point>> partitionList = new ArrayList<>();
-		partitionList.add(this.grid.partitionSearch(lon, lat));
-		partitionList.addAll(this.grid.adjacentPartitionSearch(lon, lat));
-		for (GridPartition<Point> partition : partitionList) {
-			if (partition != null) {
-				for (XYObject<Point> item : partition.getObjectsList()) {
-					double distance = distFunc.pointToPointDistance(lon, lat, item.x(), item.y());
-					if (distance < thresholdDist) {
-						String loc = item.getSpatialObject().x() + "_" + item.getSpatialObject().y();
-						result.put(loc, new Pair<>(item.getSpatialObject(), distance));
-					}
+		for (GridPartition<Point> partition : this.grid.neighbourhoodSearch(lon, lat)) {
+			for (XYObject<Point> item : partition.getObjectsList()) {
+				double distance = distFunc.pointToPointDistance(lon, lat, item.x(), item.y());
+				if (distance < thresholdDist) {
+					String loc = item.getSpatialObject().x() + "_" + item.getSpatialObject().y();
+					result.put(loc, new Pair<>(item.getSpatialObject(), distance));
 				}
 			}
 		}
@@ -796,11 +791,12 @@ public class MapMerge {
 		this.grid = new Grid<>(columnNum + 2, rowNum + 2, rawMap.getMinLon() - lonPerCell, rawMap.getMinLat() - latPerCell, rawMap
 				.getMaxLon() + lonPerCell, rawMap.getMaxLat() + latPerCell, distFunc);
 		
+		List<XYObject<Point>> nodeIndexList = new ArrayList<>(rawMap.getNodes().size());
 		for (RoadNode n : rawMap.getNodes()) {
 			Point nodeIndex = new Point(n.lon(), n.lat(), distFunc);
 			nodeIndex.setID(n.getID());
 			XYObject<Point> nodeIndexObject = new XYObject<>(nodeIndex.x(), nodeIndex.y(), nodeIndex);
-			this.grid.insert(nodeIndexObject);
+			nodeIndexList.add(nodeIndexObject);
 			String locIndex = nodeIndex.x() + "_" + nodeIndex.y();
 			if (!loc2RoadNodeListMapping.containsKey(locIndex)) {
 				List<RoadNode> nodeList = new ArrayList<>();
@@ -810,6 +806,7 @@ public class MapMerge {
 				this.loc2RoadNodeListMapping.get(locIndex).add(n);
 			}
 		}
+		this.grid.insertAll(nodeIndexList);     // one copy of each cell instead of one per node
 	}
 
 //        LOG.info("Total number of nodes in grid index:" + rawMap.getNodes().size());
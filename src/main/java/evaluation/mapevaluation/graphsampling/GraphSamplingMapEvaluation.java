@@ -2,7 +2,7 @@ package evaluation.mapevaluation.graphsampling;
 
 import evaluation.mapevaluation.graphmatching.GraphMatchingMapEvaluation;
 import org.apache.log4j.Logger;
-import util.dijkstra.MinPriorityQueue;
+import util.dijkstra.IndexedMinHeap;
 import util.function.DistanceFunction;
 import util.index.grid.Grid;
 import util.index.grid.GridPartition;
@@ -247,7 +247,7 @@ public class GraphSamplingMapEvaluation {
 		Set<String> traversedWaySet = new HashSet<>();    // road way ids that has been inserted to queues. All ways should be traversed
 		// by at most once.
 		Set<String> traversedForwardNodeIDSet = new HashSet<>();    // road way index (in forwardQueueNodeList) that has been inserted to queues
-		MinPriorityQueue forwardTraversalQueue = new MinPriorityQueue();
+		IndexedMinHeap forwardTraversalQueue = new IndexedMinHeap();
 		Map<Integer, Double> forwardIndex2DistanceMap = new HashMap<>();    // for each node visited, its forward index and its distance to
 		// root
 		List<RoadNode> forwardQueueNodeList = new ArrayList<>();    // node list that has been visited at least once.
@@ -256,7 +256,7 @@ public class GraphSamplingMapEvaluation {
 		Map<Integer, Double> backwardIndex2DistanceMap = new HashMap<>();    // for each node visited, its forward index and its distance
 		// to root
 		List<RoadNode> backwardQueueNodeList = new ArrayList<>();    // node list that has been visited at least once.
-		MinPriorityQueue backwardTraversalQueue = new MinPriorityQueue();
+		IndexedMinHeap backwardTraversalQueue = new IndexedMinHeap();
 		List<Point> resultPointList = new ArrayList<>();
 		RoadNode currIntersection;
 		double remainingLength = 0;    // the remaining length after last point is extracted
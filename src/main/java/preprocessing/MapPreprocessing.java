@@ -210,18 +210,20 @@ public class MapPreprocessing {
 		
 		int pointCount = 0;
 		
+		List<XYObject<Point>> centerIndexList = new ArrayList<>();
 		for (RoadWay t : roadGraph.getWays()) {
 			for (Segment s : t.getEdges()) {
 				Point centerPoint = new Point((s.x1() + s.x2()) / 2, (s.y1() + s.y2()) / 2, distFunc);
 				centerPoint.setID(t.getID().replaceAll("-", ""));
 				if (!locSet.contains(centerPoint.x() + "_" + centerPoint.y())) {
 					XYObject<Point> centerIndex = new XYObject<>(centerPoint.x(), centerPoint.y(), centerPoint);
-					grid.insert(centerIndex);
+					centerIndexList.add(centerIndex);
 					locSet.add(centerPoint.x() + "_" + centerPoint.y());
 					pointCount++;
 				}
 			}
 		}
+		grid.insertAll(centerIndexList);     // one copy of each cell instead of one per point
 
 //        LOG.info("Grid index build successfully, total number of segment center points in grid index: " + pointCount + ", ");
 		return grid;
@@ -0,0 +1,536 @@
+package test;
+
+import org.apache.log4j.Logger;
+import util.dijkstra.IndexedMinHeap;
+import util.dijkstra.MinPriorityQueue;
+import util.dijkstra.RoutingGraph;
+import util.function.DistanceFunction;
+import util.function.GreatCircleDistanceFunction;
+import util.index.rtree.CandidateBatch;
+import util.index.rtree.RTreeIndexing;
+import util.index.rtree.SegmentRTree;
+import util.io.MapIndexBundle;
+import util.io.MapReader;
+import util.io.TrajectoryReader;
+import util.object.roadnetwork.RoadNetworkGraph;
+import util.object.roadnetwork.RoadNode;
+import util.object.roadnetwork.RoadWay;
+import util.object.spatialobject.Segment;
+import util.object.spatialobject.Trajectory;
+import util.object.spatialobject.TrajectoryPoint;
+import util.object.structure.PointMatch;
+import util.settings.MapServiceLogger;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Micro benchmarks of the performance critical components, run on the real map and trajectories.
+ */
+public class BenchmarkMain {
+	
+	private static final Logger LOG = Logger.getLogger(BenchmarkMain.class);
+	private static final String MAP_FOLDER = "/media/TraminerData/MapMatchingInput/";
+	private static final String LOG_FOLDER = "/media/TraminerData/log/";
+	private static final String TRAJECTORY_FOLDER = "/media/TraminerData/MapMatchingInput/trajectory/";
+	
+	public static void main(String[] args) {
+		MapServiceLogger.logInit(LOG_FOLDER, "Benchmark_" + System.currentTimeMillis());
+		DistanceFunction distFunc = new GreatCircleDistanceFunction();
+		RoadNetworkGraph roadMap = MapReader.readMap(MAP_FOLDER + "0.txt", false, distFunc);
+		heapBenchmark(roadMap, 2000, 3000, 10);
+		List<Trajectory> trajectoryList = TrajectoryReader.readTrajectoriesToList(TRAJECTORY_FOLDER, 1, distFunc);
+		candidateBenchmark(roadMap, trajectoryList, 50, 10);
+		projectionBenchmark(roadMap, trajectoryList, 50, 10);
+		candidateCacheBenchmark(roadMap, trajectoryList, 50, 10, 1000000, 10);
+		knnBenchmark(roadMap, trajectoryList, 10, 100, 10);
+		candidateBufferBenchmark(roadMap, trajectoryList, 50, 10);
+		indexBundleBenchmark(roadMap, LOG_FOLDER + "index_benchmark.bin", 5);
+	}
+	
+	/**
+	 * Compare <tt>IndexedMinHeap</tt> with <tt>MinPriorityQueue</tt>. The queue operations of bounded Dijkstra searches from random
+	 * vertices on the given map are recorded first, then replayed on both heaps. The extracted sequences must be identical.
+	 *
+	 * @param roadMap     The map to search on.
+	 * @param searchCount Number of recorded searches.
+	 * @param radius      The search radius of each search, in metres.
+	 * @param rounds      Number of replay rounds, the first round is used as warm-up.
+	 */
+	private static void heapBenchmark(RoadNetworkGraph roadMap, int searchCount, double radius, int rounds) {
+		// build the mini edge adjacency list from the map
+		Map<String, Integer> nodeID2Index = new HashMap<>();
+		List<List<double[]>> adjacency = new ArrayList<>();  // for each vertex, the list of (to vertex index, length)
+		for (RoadWay way : roadMap.getWays()) {
+			for (int i = 0; i < way.getNodes().size() - 1; i++) {
+				int from = getVertexIndex(way.getNode(i), nodeID2Index, adjacency);
+				int to = getVertexIndex(way.getNode(i + 1), nodeID2Index, adjacency);
+				adjacency.get(from).add(new double[]{to, roadMap.getDistanceFunction().distance(way.getNode(i).toPoint(),
+						way.getNode(i + 1).toPoint())});
+			}
+		}
+		
+		// record the queue operations, index >= 0 for decreaseKey and -1 for extractMin
+		List<int[]> traceIndexList = new ArrayList<>();
+		List<double[]> traceDistanceList = new ArrayList<>();
+		Random random = new Random(0);
+		int vertexCount = adjacency.size();
+		long totalOperations = 0;
+		for (int s = 0; s < searchCount; s++) {
+			List<Integer> indexTrace = new ArrayList<>();
+			List<Double> distanceTrace = new ArrayList<>();
+			double[] dist = new double[vertexCount];
+			boolean[] visited = new boolean[vertexCount];
+			Arrays.fill(dist, Double.POSITIVE_INFINITY);
+			IndexedMinHeap heap = new IndexedMinHeap(vertexCount);
+			int currIndex = random.nextInt(vertexCount);
+			dist[currIndex] = 0;
+			while (currIndex != -1 && dist[currIndex] < radius) {
+				visited[currIndex] = true;
+				for (double[] edge : adjacency.get(currIndex)) {
+					int next = (int) edge[0];
+					double tentative = dist[currIndex] + edge[1];
+					if (!visited[next]) {
+						indexTrace.add(next);
+						distanceTrace.add(tentative);
+						if (heap.decreaseKey(next, tentative))
+							dist[next] = tentative;
+					}
+				}
+				indexTrace.add(-1);
+				distanceTrace.add(0d);
+				currIndex = heap.extractMin();
+			}
+			int[] indices = new int[indexTrace.size()];
+			double[] distances = new double[distanceTrace.size()];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = indexTrace.get(i);
+				distances[i] = distanceTrace.get(i);
+			}
+			traceIndexList.add(indices);
+			traceDistanceList.add(distances);
+			totalOperations += indices.length;
+		}
+		LOG.info("Heap benchmark: " + searchCount + " searches recorded with radius " + radius + "m, total queue operations: " + totalOperations);
+		
+		long pointerHeapTime = 0;
+		long arrayHeapTime = 0;
+		IndexedMinHeap reusedHeap = new IndexedMinHeap(vertexCount);
+		for (int r = 0; r < rounds; r++) {
+			long checksum1 = 0;
+			long checksum2 = 0;
+			long startTime = System.nanoTime();
+			for (int s = 0; s < searchCount; s++) {
+				int[] indices = traceIndexList.get(s);
+				double[] distances = traceDistanceList.get(s);
+				MinPriorityQueue queue = new MinPriorityQueue();
+				for (int i = 0; i < indices.length; i++) {
+					if (indices[i] == -1)
+						checksum1 = checksum1 * 31 + queue.extractMin();
+					else
+						queue.decreaseKey(indices[i], distances[i]);
+				}
+			}
+			long midTime = System.nanoTime();
+			for (int s = 0; s < searchCount; s++) {
+				int[] indices = traceIndexList.get(s);
+				double[] distances = traceDistanceList.get(s);
+				reusedHeap.clear();
+				for (int i = 0; i < indices.length; i++) {
+					if (indices[i] == -1)
+						checksum2 = checksum2 * 31 + reusedHeap.extractMin();
+					else
+						reusedHeap.decreaseKey(indices[i], distances[i]);
+				}
+			}
+			long endTime = System.nanoTime();
+			if (checksum1 != checksum2)
+				throw new IllegalStateException("The heaps extract different sequences in round " + r + ".");
+			if (r != 0) {   // the first round is warm-up
+				pointerHeapTime += midTime - startTime;
+				arrayHeapTime += endTime - midTime;
+			}
+		}
+		int measuredRounds = Math.max(rounds - 1, 1);
+		LOG.info("MinPriorityQueue: " + pointerHeapTime / measuredRounds / 1000000.0 + "ms per round, IndexedMinHeap: "
+				+ arrayHeapTime / measuredRounds / 1000000.0 + "ms per round, speedup: " + (double) pointerHeapTime / arrayHeapTime);
+	}
+	
+	/**
+	 * Compare the per-point candidate search of <tt>RTreeIndexing</tt> with the batch search over whole trajectories. Both must return the
+	 * same candidate lines for every point.
+	 *
+	 * @param roadMap        The map to index.
+	 * @param trajectoryList The trajectories whose points are queried.
+	 * @param radius         The candidate range, in metres.
+	 * @param rounds         Number of rounds, the first round is used as warm-up.
+	 */
+	private static void candidateBenchmark(RoadNetworkGraph roadMap, List<Trajectory> trajectoryList, double radius, int rounds) {
+		RTreeIndexing rtree = new RTreeIndexing(roadMap);
+		long pointCount = 0;
+		for (Trajectory trajectory : trajectoryList)
+			pointCount += trajectory.size();
+		long perPointTime = 0;
+		long batchTime = 0;
+		long candidateCount = 0;
+		for (int r = 0; r < rounds; r++) {
+			long checksum1 = 0;
+			long checksum2 = 0;
+			long startTime = System.nanoTime();
+			for (Trajectory trajectory : trajectoryList) {
+				for (TrajectoryPoint point : trajectory) {
+					for (int lineID : rtree.search(point.x(), point.y(), radius))
+						checksum1 += lineID * 31L + 7;
+				}
+			}
+			long midTime = System.nanoTime();
+			for (Trajectory trajectory : trajectoryList) {
+				CandidateBatch candidateBatch = rtree.searchNeighbours(trajectory, radius);
+				for (int c = 0; c < candidateBatch.size(); c++)
+					checksum2 += candidateBatch.getLineID(c) * 31L + 7;
+				if (r == 0)
+					candidateCount += candidateBatch.size();
+			}
+			long endTime = System.nanoTime();
+			if (checksum1 != checksum2)
+				throw new IllegalStateException("The batch search returns different candidates in round " + r + ".");
+			if (r != 0) {   // the first round is warm-up
+				perPointTime += midTime - startTime;
+				batchTime += endTime - midTime;
+			}
+		}
+		long measuredPoints = pointCount * Math.max(rounds - 1, 1);
+		LOG.info("Candidate benchmark: " + pointCount + " points, " + candidateCount + " candidates within " + radius + "m");
+		LOG.info("Per-point search: " + perPointTime / 1000.0 / measuredPoints + "us per point, batch search: " + batchTime / 1000.0
+				/ measuredPoints + "us per point, saving: " + (perPointTime - batchTime) / 1000.0 / measuredPoints + "us per point");
+	}
+	
+	/**
+	 * Compare the batch candidate search on local metric planes with the batch search using the great-circle distance function. Reports
+	 * the time per point, the candidates found by only one of the searches, which lie on the radius boundary, and the error of the
+	 * candidate distances and match points against the great-circle results.
+	 *
+	 * @param roadMap        The map to index, in longitude/latitude.
+	 * @param trajectoryList The trajectories whose points are queried.
+	 * @param radius         The candidate range, in metres.
+	 * @param rounds         Number of rounds, the first round is used as warm-up.
+	 */
+	private static void projectionBenchmark(RoadNetworkGraph roadMap, List<Trajectory> trajectoryList, double radius, int rounds) {
+		DistanceFunction distFunc = roadMap.getDistanceFunction();
+		RTreeIndexing rtree = new RTreeIndexing(roadMap);
+		RTreeIndexing projectedRTree = new RTreeIndexing(roadMap, true);
+		if (projectedRTree.getProjection() == null)
+			throw new IllegalArgumentException("The projection benchmark requires a longitude/latitude map.");
+		long pointCount = 0;
+		for (Trajectory trajectory : trajectoryList)
+			pointCount += trajectory.size();
+		long distanceTime = 0;
+		long projectedTime = 0;
+		for (int r = 0; r < rounds; r++) {
+			long checksum = 0;
+			long startTime = System.nanoTime();
+			for (Trajectory trajectory : trajectoryList)
+				checksum += rtree.searchNeighbours(trajectory, radius).size();
+			long midTime = System.nanoTime();
+			for (Trajectory trajectory : trajectoryList)
+				checksum += projectedRTree.searchNeighbours(trajectory, radius).size();
+			long endTime = System.nanoTime();
+			if (r != 0) {   // the first round is warm-up
+				distanceTime += midTime - startTime;
+				projectedTime += endTime - midTime;
+			}
+			if (checksum == 0)
+				LOG.warn("No candidate found in round " + r + ".");
+		}
+		
+		// accuracy, the great-circle distance of the projected match point and the distance of the great-circle match point
+		long candidateCount = 0;
+		long boundaryCount = 0;
+		double maxDistanceError = 0;
+		double totalDistanceError = 0;
+		double maxPointOffset = 0;
+		for (Trajectory trajectory : trajectoryList) {
+			CandidateBatch batch = rtree.searchNeighbours(trajectory, radius);
+			CandidateBatch projectedBatch = projectedRTree.searchNeighbours(trajectory, radius);
+			for (int i = 0; i < trajectory.size(); i++) {
+				TrajectoryPoint point = trajectory.get(i);
+				Map<Integer, Integer> lineID2Candidate = new HashMap<>();
+				for (int c = batch.getCandidateStart(i); c < batch.getCandidateEnd(i); c++)
+					lineID2Candidate.put(batch.getLineID(c), c);
+				for (int c = projectedBatch.getCandidateStart(i); c < projectedBatch.getCandidateEnd(i); c++) {
+					Integer candidate = lineID2Candidate.remove(projectedBatch.getLineID(c));
+					if (candidate == null) {
+						boundaryCount++;
+						continue;
+					}
+					candidateCount++;
+					double projectedDistance = projectedBatch.getDistance(c);
+					double distanceError = Math.abs(projectedDistance - distFunc.pointToPointDistance(point.x(), point.y(),
+							projectedBatch.getMatchX(c), projectedBatch.getMatchY(c)));
+					maxDistanceError = Math.max(maxDistanceError, distanceError);
+					totalDistanceError += distanceError;
+					maxPointOffset = Math.max(maxPointOffset, distFunc.pointToPointDistance(batch.getMatchX(candidate),
+							batch.getMatchY(candidate), projectedBatch.getMatchX(c), projectedBatch.getMatchY(c)));
+				}
+				boundaryCount += lineID2Candidate.size();
+			}
+		}
+		long measuredPoints = pointCount * Math.max(rounds - 1, 1);
+		LOG.info("Projection benchmark: " + pointCount + " points, " + candidateCount + " common candidates, " + boundaryCount
+				+ " candidates found by only one search");
+		LOG.info("Distance function search: " + distanceTime / 1000.0 / measuredPoints + "us per point, projected search: "
+				+ projectedTime / 1000.0 / measuredPoints + "us per point");
+		LOG.info("Projected distance error, max: " + maxDistanceError + "m, mean: " + (candidateCount == 0 ? 0 : totalDistanceError
+				/ candidateCount) + "m, relative bound: " + projectedRTree.getProjection().getMaxScaleError(radius)
+				+ ", max offset from the great-circle match point: " + maxPointOffset + "m");
+	}
+	
+	/**
+	 * Compare the batch candidate search with the search through the candidate cache. The cache is warmed up with the trajectories
+	 * before the measurement, both searches must return the same candidate lines.
+	 *
+	 * @param roadMap        The map to index.
+	 * @param trajectoryList The trajectories whose points are queried, also used to warm up the cache.
+	 * @param radius         The candidate range, in metres.
+	 * @param cellSize       The size of the cache cells, in metres.
+	 * @param capacity       The capacity of the cache, in line IDs.
+	 * @param rounds         Number of rounds, the first round is used as warm-up.
+	 */
+	private static void candidateCacheBenchmark(RoadNetworkGraph roadMap, List<Trajectory> trajectoryList, double radius, double cellSize,
+												long capacity, int rounds) {
+		RTreeIndexing rtree = new RTreeIndexing(roadMap);
+		RTreeIndexing cachedRTree = new RTreeIndexing(roadMap);
+		cachedRTree.enableCandidateCache(radius, cellSize, capacity);
+		cachedRTree.warmUpCandidateCache(trajectoryList, Integer.MAX_VALUE);
+		long pointCount = 0;
+		for (Trajectory trajectory : trajectoryList)
+			pointCount += trajectory.size();
+		long batchTime = 0;
+		long cachedTime = 0;
+		for (int r = 0; r < rounds; r++) {
+			long checksum1 = 0;
+			long checksum2 = 0;
+			long startTime = System.nanoTime();
+			for (Trajectory trajectory : trajectoryList) {
+				CandidateBatch candidateBatch = rtree.searchNeighbours(trajectory, radius);
+				for (int c = 0; c < candidateBatch.size(); c++)
+					checksum1 += candidateBatch.getLineID(c) * 31L + 7;
+			}
+			long midTime = System.nanoTime();
+			for (Trajectory trajectory : trajectoryList) {
+				CandidateBatch candidateBatch = cachedRTree.searchNeighbours(trajectory, radius);
+				for (int c = 0; c < candidateBatch.size(); c++)
+					checksum2 += candidateBatch.getLineID(c) * 31L + 7;
+			}
+			long endTime = System.nanoTime();
+			if (checksum1 != checksum2)
+				throw new IllegalStateException("The cached search returns different candidates in round " + r + ".");
+			if (r != 0) {   // the first round is warm-up
+				batchTime += midTime - startTime;
+				cachedTime += endTime - midTime;
+			}
+		}
+		long measuredPoints = pointCount * Math.max(rounds - 1, 1);
+		LOG.info("Candidate cache benchmark: " + pointCount + " points, cell size: " + cellSize + "m, capacity: " + capacity);
+		LOG.info("Batch search: " + batchTime / 1000.0 / measuredPoints + "us per point, cached search: " + cachedTime / 1000.0
+				/ measuredPoints + "us per point");
+		LOG.info(cachedRTree.getCandidateCache().toString());
+	}
+	
+	/**
+	 * Compare the exact metric KNN search of <tt>RTreeIndexing.searchKNeighbours()</tt> with the previous over-fetch approach, which
+	 * takes candidateCount * 1.5 Euclidean nearest lines in degrees and filters them by the metre distance. Reports the time per point
+	 * and the number of points whose over-fetch result differs from the exact K nearest lines.
+	 *
+	 * @param roadMap        The map to index, in longitude/latitude.
+	 * @param trajectoryList The trajectories whose points are queried.
+	 * @param candidateCount The number of nearest lines K.
+	 * @param radius         The maximum candidate distance, in metres.
+	 * @param rounds         Number of rounds, the first round is used as warm-up.
+	 */
+	private static void knnBenchmark(RoadNetworkGraph roadMap, List<Trajectory> trajectoryList, int candidateCount, double radius,
+									 int rounds) {
+		DistanceFunction distFunc = roadMap.getDistanceFunction();
+		RTreeIndexing rtree = new RTreeIndexing(roadMap);
+		long pointCount = 0;
+		for (Trajectory trajectory : trajectoryList)
+			pointCount += trajectory.size();
+		long exactTime = 0;
+		long overFetchTime = 0;
+		long wrongCount = 0;
+		for (int r = 0; r < rounds; r++) {
+			long startTime = System.nanoTime();
+			List<List<Integer>> exactResultList = new ArrayList<>();
+			for (Trajectory trajectory : trajectoryList) {
+				for (TrajectoryPoint point : trajectory) {
+					List<Integer> lineIDList = new ArrayList<>();
+					for (PointMatch pointMatch : rtree.searchKNeighbours(point, candidateCount, radius))
+						lineIDList.add(pointMatch.getEdgeIndex());
+					exactResultList.add(lineIDList);
+				}
+			}
+			long midTime = System.nanoTime();
+			List<List<Integer>> overFetchResultList = new ArrayList<>();
+			for (Trajectory trajectory : trajectoryList) {
+				for (TrajectoryPoint point : trajectory) {
+					List<Integer> lineIDList = new ArrayList<>();
+					for (int lineID : overFetchKnn(rtree.getTree(), point, candidateCount, radius, distFunc))
+						lineIDList.add(lineID);
+					overFetchResultList.add(lineIDList);
+				}
+			}
+			long endTime = System.nanoTime();
+			if (r == 0) {   // the first round is warm-up and accuracy check
+				for (int i = 0; i < exactResultList.size(); i++) {
+					if (!new HashSet<>(exactResultList.get(i)).equals(new HashSet<>(overFetchResultList.get(i))))
+						wrongCount++;
+				}
+			} else {
+				exactTime += midTime - startTime;
+				overFetchTime += endTime - midTime;
+			}
+		}
+		long measuredPoints = pointCount * Math.max(rounds - 1, 1);
+		LOG.info("KNN benchmark: " + pointCount + " points, K = " + candidateCount + ", radius: " + radius + "m");
+		LOG.info("Exact metric KNN: " + exactTime / 1000.0 / measuredPoints + "us per point, over-fetch KNN: " + overFetchTime / 1000.0
+				/ measuredPoints + "us per point, points with a different over-fetch result: " + wrongCount);
+	}
+	
+	/**
+	 * The previous KNN search on a longitude/latitude map, kept for comparison.
+	 */
+	private static List<Integer> overFetchKnn(SegmentRTree tree, TrajectoryPoint point, int candidateCount, double radius,
+											  DistanceFunction distFunc) {
+		List<Integer> candidateList = new ArrayList<>();
+		List<Double> distanceList = new ArrayList<>();
+		for (int lineID : tree.nearest(point.x(), point.y(), radius * 4, (int) (candidateCount * 1.5))) {
+			double distance = distFunc.distance(point, new Segment(tree.x1(lineID), tree.y1(lineID), tree.x2(lineID), tree.y2(lineID),
+					distFunc));
+			if (distance < radius) {
+				candidateList.add(lineID);
+				distanceList.add(distance);
+			}
+		}
+		if (candidateList.size() <= candidateCount)
+			return candidateList;
+		Integer[] order = new Integer[candidateList.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, Comparator.comparingDouble(distanceList::get));
+		List<Integer> result = new ArrayList<>();
+		for (int i = 0; i < candidateCount; i++)
+			result.add(candidateList.get(order[i]));
+		return result;
+	}
+	
+	/**
+	 * Compare the candidate consumption of the matchers before and after the per-thread candidate buffer: a new batch per trajectory
+	 * with a <tt>PointMatch</tt> per candidate, against the buffer of the thread read in primitive form. The local projection is used
+	 * so the search itself does not allocate.
+	 *
+	 * @param roadMap        The map to index, in longitude/latitude.
+	 * @param trajectoryList The trajectories whose points are queried.
+	 * @param radius         The candidate range, in metres.
+	 * @param rounds         Number of rounds, the first round is used as warm-up.
+	 */
+	private static void candidateBufferBenchmark(RoadNetworkGraph roadMap, List<Trajectory> trajectoryList, double radius, int rounds) {
+		RTreeIndexing rtree = new RTreeIndexing(roadMap, true);
+		DistanceFunction distFunc = roadMap.getDistanceFunction();
+		long pointCount = 0;
+		for (Trajectory trajectory : trajectoryList)
+			pointCount += trajectory.size();
+		long pointMatchTime = 0;
+		long bufferTime = 0;
+		for (int r = 0; r < rounds; r++) {
+			double checksum1 = 0;
+			double checksum2 = 0;
+			long startTime = System.nanoTime();
+			for (Trajectory trajectory : trajectoryList) {
+				CandidateBatch candidateBatch = rtree.searchNeighbours(trajectory, radius);
+				for (int c = 0; c < candidateBatch.size(); c++) {
+					PointMatch pointMatch = rtree.getPointMatch(candidateBatch, c, distFunc);
+					checksum1 += pointMatch.getEdgeIndex() + pointMatch.lon() + pointMatch.lat();
+				}
+			}
+			long midTime = System.nanoTime();
+			for (Trajectory trajectory : trajectoryList) {
+				CandidateBatch candidateBatch = rtree.searchNeighboursInBuffer(trajectory, radius);
+				for (int c = 0; c < candidateBatch.size(); c++)
+					checksum2 += candidateBatch.getLineID(c) + candidateBatch.getMatchX(c) + candidateBatch.getMatchY(c);
+			}
+			long endTime = System.nanoTime();
+			if (checksum1 != checksum2)
+				throw new IllegalStateException("The candidate buffer returns different candidates in round " + r + ".");
+			if (r != 0) {   // the first round is warm-up
+				pointMatchTime += midTime - startTime;
+				bufferTime += endTime - midTime;
+			}
+		}
+		long measuredPoints = pointCount * Math.max(rounds - 1, 1);
+		LOG.info("Candidate buffer benchmark: " + pointCount + " points within " + radius + "m, match points: " + pointMatchTime / 1000.0
+				/ measuredPoints + "us per point, candidate buffer: " + bufferTime / 1000.0 / measuredPoints + "us per point");
+	}
+	
+	/**
+	 * Compare the startup of the matchers with and without the map index bundle. The routing graph and the tree are built from the map,
+	 * then the bundle is written once and loaded in every round. Both versions must find the same candidates.
+	 *
+	 * @param roadMap    The map.
+	 * @param bundlePath The temporary bundle file.
+	 * @param rounds     Number of rounds, the first round is used as warm-up.
+	 */
+	private static void indexBundleBenchmark(RoadNetworkGraph roadMap, String bundlePath, int rounds) {
+		try {
+			MapIndexBundle.build(roadMap, bundlePath);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Failed to write the map index bundle: " + bundlePath, e);
+		}
+		List<TrajectoryPoint> queryList = new ArrayList<>();
+		for (RoadNode node : roadMap.getNodes())
+			queryList.add(new TrajectoryPoint(node.lon(), node.lat(), 0, roadMap.getDistanceFunction()));
+		long buildTime = 0;
+		long loadTime = 0;
+		for (int r = 0; r < rounds; r++) {
+			long startTime = System.nanoTime();
+			RoutingGraph builtGraph = new RoutingGraph(roadMap, false);
+			RTreeIndexing builtTree = new RTreeIndexing(roadMap);
+			long midTime = System.nanoTime();
+			MapIndexBundle bundle;
+			try {
+				bundle = MapIndexBundle.load(bundlePath, roadMap);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Failed to read the map index bundle: " + bundlePath, e);
+			}
+			if (bundle == null)
+				throw new IllegalStateException("The map index bundle does not match the map.");
+			RoutingGraph loadedGraph = bundle.createRoutingGraph();
+			RTreeIndexing loadedTree = bundle.createRTreeIndexing();
+			long endTime = System.nanoTime();
+			CandidateBatch builtBatch = builtTree.searchNeighbours(queryList, 50);
+			CandidateBatch loadedBatch = loadedTree.searchNeighbours(queryList, 50);
+			if (builtBatch.size() != loadedBatch.size() || builtGraph.getEdgeCount() != loadedGraph.getEdgeCount())
+				throw new IllegalStateException("The map index bundle differs from the built indices in round " + r + ".");
+			for (int c = 0; c < builtBatch.size(); c++) {
+				if (builtBatch.getLineID(c) != loadedBatch.getLineID(c) || builtBatch.getDistance(c) != loadedBatch.getDistance(c))
+					throw new IllegalStateException("The map index bundle returns different candidates in round " + r + ".");
+			}
+			if (r != 0) {   // the first round is warm-up
+				buildTime += midTime - startTime;
+				loadTime += endTime - midTime;
+			}
+		}
+		int measuredRounds = Math.max(rounds - 1, 1);
+		LOG.info("Index bundle benchmark: " + roadMap.getWays().size() + " roads, build: " + buildTime / 1000000.0 / measuredRounds
+				+ "ms, bundle load: " + loadTime / 1000000.0 / measuredRounds + "ms");
+	}
+	
+	private static int getVertexIndex(RoadNode node, Map<String, Integer> nodeID2Index, List<List<double[]>> adjacency) {
+		Integer index = nodeID2Index.get(node.getID());
+		if (index == null) {
+			index = adjacency.size();
+			nodeID2Index.put(node.getID(), index);
+			adjacency.add(new ArrayList<>());
+		}
+		return index;
+	}
+}
@@ -0,0 +1,625 @@
+package util.dijkstra;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Contraction Hierarchies (Geisberger et al. 2008) built on the mini edges of a <tt>RoutingGraph</tt>. The vertices are contracted one by
+ * one in the order of their edge difference, a shortcut is inserted whenever the contracted vertex lies on the only shortest path between
+ * two of its neighbours. A one-to-many query runs one upward search from the source and one upward search on the reversed graph from each
+ * target, then unpacks the shortcuts on the best meeting vertex back to mini edges.
+ * <p>
+ * The hierarchy is static. It is built once per map and can be saved to and loaded from a binary file.
+ */
+public class ContractionHierarchy {
+	
+	private static final Logger LOG = Logger.getLogger(ContractionHierarchy.class);
+	private static final int FILE_MAGIC = 0x43484958;   // "CHIX"
+	private static final int FILE_VERSION = 1;
+	private static final int WITNESS_SETTLE_LIMIT = 200;    // maximum number of vertices settled in each witness search
+	
+	private final int vertexCount;
+	private final long graphFingerprint;    // the fingerprint of the routing graph the hierarchy is built from
+	private final int[] rank;       // the contraction order of each vertex
+	// every hierarchy edge is either an original mini edge (edgeChild1 = -1, edgeChild2 = mini edge index) or a shortcut of two edges
+	private final int[] edgeFrom;
+	private final int[] edgeTo;
+	private final double[] edgeLength;
+	private final int[] edgeChild1;
+	private final int[] edgeChild2;
+	// the upward edges in CSR layout. The forward graph holds edges from lower to higher rank, stored at their from vertex. The backward
+	// graph holds edges from higher to lower rank, stored at their to vertex.
+	private final int[] forwardOffsets;
+	private final int[] forwardEdges;
+	private final int[] backwardOffsets;
+	private final int[] backwardEdges;
+	private final ThreadLocal<QueryWorkspace> workspace = ThreadLocal.withInitial(this::createWorkspace);
+	
+	private ContractionHierarchy(int vertexCount, long graphFingerprint, int[] rank, int[] edgeFrom, int[] edgeTo, double[] edgeLength,
+								 int[] edgeChild1, int[] edgeChild2) {
+		this.vertexCount = vertexCount;
+		this.graphFingerprint = graphFingerprint;
+		this.rank = rank;
+		this.edgeFrom = edgeFrom;
+		this.edgeTo = edgeTo;
+		this.edgeLength = edgeLength;
+		this.edgeChild1 = edgeChild1;
+		this.edgeChild2 = edgeChild2;
+		this.forwardOffsets = new int[vertexCount + 1];
+		this.backwardOffsets = new int[vertexCount + 1];
+		for (int e = 0; e < edgeFrom.length; e++) {
+			if (rank[edgeFrom[e]] < rank[edgeTo[e]])
+				forwardOffsets[edgeFrom[e] + 1]++;
+			else
+				backwardOffsets[edgeTo[e] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			forwardOffsets[v + 1] += forwardOffsets[v];
+			backwardOffsets[v + 1] += backwardOffsets[v];
+		}
+		this.forwardEdges = new int[forwardOffsets[vertexCount]];
+		this.backwardEdges = new int[backwardOffsets[vertexCount]];
+		int[] forwardSlot = Arrays.copyOf(forwardOffsets, vertexCount);
+		int[] backwardSlot = Arrays.copyOf(backwardOffsets, vertexCount);
+		for (int e = 0; e < edgeFrom.length; e++) {
+			if (rank[edgeFrom[e]] < rank[edgeTo[e]])
+				forwardEdges[forwardSlot[edgeFrom[e]]++] = e;
+			else
+				backwardEdges[backwardSlot[edgeTo[e]]++] = e;
+		}
+	}
+	
+	/**
+	 * Contract the given graph.
+	 *
+	 * @param vertexCount      Number of vertices.
+	 * @param miniEdgeFrom     The from vertex of each mini edge.
+	 * @param miniEdgeTo       The to vertex of each mini edge.
+	 * @param miniEdgeLength   The length of each mini edge.
+	 * @param isEdgeEnabled    Whether the mini edge is part of the graph.
+	 * @param graphFingerprint The fingerprint of the graph, checked when the hierarchy is loaded.
+	 * @return The contraction hierarchy.
+	 */
+	static ContractionHierarchy build(int vertexCount, int[] miniEdgeFrom, int[] miniEdgeTo, double[] miniEdgeLength, boolean[] isEdgeEnabled,
+									  long graphFingerprint) {
+		long startTime = System.currentTimeMillis();
+		Contractor contractor = new Contractor(vertexCount, miniEdgeFrom.length);
+		for (int i = 0; i < miniEdgeFrom.length; i++) {
+			if (isEdgeEnabled[i])
+				contractor.addEdge(miniEdgeFrom[i], miniEdgeTo[i], miniEdgeLength[i], -1, i);
+		}
+		int[] rank = contractor.contract();
+		ContractionHierarchy hierarchy = new ContractionHierarchy(vertexCount, graphFingerprint, rank,
+				Arrays.copyOf(contractor.edgeFrom, contractor.edgeCount), Arrays.copyOf(contractor.edgeTo, contractor.edgeCount),
+				Arrays.copyOf(contractor.edgeLength, contractor.edgeCount), Arrays.copyOf(contractor.edgeChild1, contractor.edgeCount),
+				Arrays.copyOf(contractor.edgeChild2, contractor.edgeCount));
+		LOG.info("Contraction hierarchy built in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s. Total vertices: " + vertexCount
+				+ ", original edges: " + contractor.originalEdgeCount + ", shortcuts: " + (contractor.edgeCount - contractor.originalEdgeCount));
+		return hierarchy;
+	}
+	
+	long getGraphFingerprint() {
+		return graphFingerprint;
+	}
+	
+	/**
+	 * Find the shortest path from the source vertex to each target vertex.
+	 *
+	 * @param source        The source vertex index.
+	 * @param targets       The target vertex indices.
+	 * @param maxSearchDist Only paths shorter than maxSearchDist are returned.
+	 * @param miniEdgePaths Output, the mini edge sequence of the shortest path to each target, null if not reachable.
+	 * @return The shortest distance to each target, Double.POSITIVE_INFINITY if not reachable within maxSearchDist.
+	 */
+	double[] calculateOneToN(int source, int[] targets, double maxSearchDist, int[][] miniEdgePaths) {
+		QueryWorkspace ws = workspace.get();
+		double[] distance = new double[targets.length];
+		Arrays.fill(distance, Double.POSITIVE_INFINITY);
+		if (targets.length == 0 || !(maxSearchDist > 0))
+			return distance;
+		forwardSearch(source, maxSearchDist, ws, null, 0, null);
+		
+		// upward search on the reversed graph from each target, stop once the search radius exceeds the best meeting distance
+		IndexedMinHeap heap = ws.heap;
+		for (int i = 0; i < targets.length; i++) {
+			int target = targets[i];
+			ws.backwardGeneration++;
+			heap.clear();
+			ws.setBackward(target, 0, -1);
+			heap.decreaseKey(target, 0);
+			double bestDistance = maxSearchDist;
+			int meetVertex = -1;
+			while (!heap.isEmpty() && heap.minDistance() < bestDistance) {
+				int v = heap.extractMin();
+				if (ws.forwardStamp[v] == ws.forwardGeneration && ws.forwardDist[v] + ws.backwardDist[v] < bestDistance) {
+					bestDistance = ws.forwardDist[v] + ws.backwardDist[v];
+					meetVertex = v;
+				}
+				relaxBackward(v, bestDistance, ws);
+			}
+			if (meetVertex != -1) {
+				distance[i] = bestDistance;
+				miniEdgePaths[i] = unpackPath(meetVertex, ws, -1);
+			}
+		}
+		return distance;
+	}
+	
+	/**
+	 * Bucket-based many-to-many query (Knopp et al. 2007). Each target runs one upward search on the reversed graph and leaves its
+	 * distance in a bucket at every settled vertex, then each source runs one upward search and scans the buckets of the vertices it
+	 * settles.
+	 *
+	 * @param sources       The source vertex indices.
+	 * @param targets       The target vertex indices.
+	 * @param maxSearchDist Only paths shorter than maxSearchDist are returned.
+	 * @param miniEdgePaths Output, row-major, the mini edge sequence from each source to each target, null if not reachable.
+	 * @return The row-major shortest distance matrix, Double.POSITIVE_INFINITY if not reachable within maxSearchDist.
+	 */
+	double[] calculateManyToN(int[] sources, int[] targets, double maxSearchDist, int[][] miniEdgePaths) {
+		QueryWorkspace ws = workspace.get();
+		double[] distance = new double[sources.length * targets.length];
+		Arrays.fill(distance, Double.POSITIVE_INFINITY);
+		if (sources.length == 0 || targets.length == 0 || !(maxSearchDist > 0))
+			return distance;
+		
+		// backward searches fill the buckets
+		ws.clearBuckets();
+		IndexedMinHeap heap = ws.heap;
+		for (int j = 0; j < targets.length; j++) {
+			ws.backwardGeneration++;
+			heap.clear();
+			ws.setBackward(targets[j], 0, -1);
+			heap.decreaseKey(targets[j], 0);
+			while (!heap.isEmpty() && heap.minDistance() < maxSearchDist) {
+				int v = heap.extractMin();
+				ws.addBucketEntry(v, j, ws.backwardDist[v], ws.backwardParent[v]);
+				relaxBackward(v, maxSearchDist, ws);
+			}
+		}
+		
+		// forward searches scan the buckets, the paths are unpacked before the next forward search overwrites the parents
+		int[] meetVertex = new int[targets.length];
+		for (int i = 0; i < sources.length; i++) {
+			Arrays.fill(meetVertex, -1);
+			forwardSearch(sources[i], maxSearchDist, ws, distance, i * targets.length, meetVertex);
+			for (int j = 0; j < targets.length; j++) {
+				if (meetVertex[j] != -1)
+					miniEdgePaths[i * targets.length + j] = unpackPath(meetVertex[j], ws, j);
+			}
+		}
+		return distance;
+	}
+	
+	/**
+	 * Upward search from the source, all vertices closer than maxSearchDist are settled. If the distance row is given, the buckets of
+	 * each settled vertex are scanned to update the distances to the targets.
+	 */
+	private void forwardSearch(int source, double maxSearchDist, QueryWorkspace ws, double[] distanceRow, int rowOffset, int[] meetVertex) {
+		ws.forwardGeneration++;
+		IndexedMinHeap heap = ws.heap;
+		heap.clear();
+		ws.setForward(source, 0, -1);
+		heap.decreaseKey(source, 0);
+		while (!heap.isEmpty() && heap.minDistance() < maxSearchDist) {
+			int v = heap.extractMin();
+			if (distanceRow != null) {
+				for (int k = ws.firstBucketEntry(v); k != -1; k = ws.entryNext[k]) {
+					int j = ws.entryTarget[k];
+					double d = ws.forwardDist[v] + ws.entryDist[k];
+					if (d < maxSearchDist && d < distanceRow[rowOffset + j]) {
+						distanceRow[rowOffset + j] = d;
+						meetVertex[j] = v;
+					}
+				}
+			}
+			for (int slot = forwardOffsets[v]; slot < forwardOffsets[v + 1]; slot++) {
+				int e = forwardEdges[slot];
+				int w = edgeTo[e];
+				double d = ws.forwardDist[v] + edgeLength[e];
+				if (d < maxSearchDist && (ws.forwardStamp[w] != ws.forwardGeneration || d < ws.forwardDist[w])) {
+					ws.setForward(w, d, e);
+					heap.decreaseKey(w, d);
+				}
+			}
+		}
+	}
+	
+	private void relaxBackward(int v, double maxSearchDist, QueryWorkspace ws) {
+		for (int slot = backwardOffsets[v]; slot < backwardOffsets[v + 1]; slot++) {
+			int e = backwardEdges[slot];
+			int u = edgeFrom[e];
+			double d = ws.backwardDist[v] + edgeLength[e];
+			if (d < maxSearchDist && (ws.backwardStamp[u] != ws.backwardGeneration || d < ws.backwardDist[u])) {
+				ws.setBackward(u, d, e);
+				ws.heap.decreaseKey(u, d);
+			}
+		}
+	}
+	
+	/**
+	 * Unpack the hierarchy edges from the source through the meeting vertex to the target into mini edges. The backward part follows the
+	 * bucket entries of the given target if bucketTarget != -1, otherwise the parents of the last backward search.
+	 */
+	private int[] unpackPath(int meetVertex, QueryWorkspace ws, int bucketTarget) {
+		int pathLength = 0;
+		for (int v = meetVertex; ws.forwardParent[v] != -1; v = edgeFrom[ws.forwardParent[v]])
+			pathLength = unpackEdge(ws.forwardParent[v], ws, pathLength);
+		// the forward part is unpacked from the meeting vertex backwards, so its mini edges are in reverse order
+		reverse(ws.pathBuffer, 0, pathLength);
+		int v = meetVertex;
+		while (true) {
+			int parentEdge = bucketTarget == -1 ? ws.backwardParent[v] : ws.entryParent[ws.findBucketEntry(v, bucketTarget)];
+			if (parentEdge == -1)
+				break;
+			int start = pathLength;
+			pathLength = unpackEdge(parentEdge, ws, pathLength);
+			reverse(ws.pathBuffer, start, pathLength);   // restore the order of the current edge
+			v = edgeTo[parentEdge];
+		}
+		return Arrays.copyOf(ws.pathBuffer, pathLength);
+	}
+	
+	private void reverse(int[] array, int from, int to) {
+		for (int i = from, j = to - 1; i < j; i++, j--) {
+			int temp = array[i];
+			array[i] = array[j];
+			array[j] = temp;
+		}
+	}
+	
+	/**
+	 * Append the mini edges of the given hierarchy edge to the path buffer in reverse order.
+	 *
+	 * @return The new path length.
+	 */
+	private int unpackEdge(int edge, QueryWorkspace ws, int pathLength) {
+		int stackSize = 0;
+		ws.stack[stackSize++] = edge;
+		while (stackSize > 0) {
+			int e = ws.stack[--stackSize];
+			if (edgeChild1[e] == -1) {
+				if (pathLength == ws.pathBuffer.length)
+					ws.pathBuffer = Arrays.copyOf(ws.pathBuffer, pathLength * 2);
+				ws.pathBuffer[pathLength++] = edgeChild2[e];
+			} else {
+				if (stackSize + 2 > ws.stack.length)
+					ws.stack = Arrays.copyOf(ws.stack, ws.stack.length * 2);
+				ws.stack[stackSize++] = edgeChild1[e];  // popped last so that the mini edges come out in reverse order
+				ws.stack[stackSize++] = edgeChild2[e];
+			}
+		}
+		return pathLength;
+	}
+	
+	/**
+	 * Write the hierarchy to a binary file.
+	 *
+	 * @param filePath The output file path.
+	 * @throws IOException File write failure.
+	 */
+	public void save(String filePath) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), 1 << 16))) {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeLong(graphFingerprint);
+			out.writeInt(vertexCount);
+			out.writeInt(edgeFrom.length);
+			for (int v = 0; v < vertexCount; v++)
+				out.writeInt(rank[v]);
+			for (int e = 0; e < edgeFrom.length; e++) {
+				out.writeInt(edgeFrom[e]);
+				out.writeInt(edgeTo[e]);
+				out.writeDouble(edgeLength[e]);
+				out.writeInt(edgeChild1[e]);
+				out.writeInt(edgeChild2[e]);
+			}
+		}
+		LOG.info("Contraction hierarchy saved to " + filePath);
+	}
+	
+	/**
+	 * Read a hierarchy from a binary file.
+	 *
+	 * @param filePath         The input file path.
+	 * @param graphFingerprint The fingerprint of the current routing graph.
+	 * @return The hierarchy, or null if the file does not exist or is built from a different graph.
+	 * @throws IOException File read failure.
+	 */
+	public static ContractionHierarchy load(String filePath, long graphFingerprint) throws IOException {
+		if (!new File(filePath).exists())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath), 1 << 16))) {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				LOG.warn("The contraction hierarchy file has unknown format: " + filePath);
+				return null;
+			}
+			if (in.readLong() != graphFingerprint) {
+				LOG.warn("The contraction hierarchy file is built from a different graph: " + filePath);
+				return null;
+			}
+			int vertexCount = in.readInt();
+			int edgeCount = in.readInt();
+			int[] rank = new int[vertexCount];
+			for (int v = 0; v < vertexCount; v++)
+				rank[v] = in.readInt();
+			int[] edgeFrom = new int[edgeCount];
+			int[] edgeTo = new int[edgeCount];
+			double[] edgeLength = new double[edgeCount];
+			int[] edgeChild1 = new int[edgeCount];
+			int[] edgeChild2 = new int[edgeCount];
+			for (int e = 0; e < edgeCount; e++) {
+				edgeFrom[e] = in.readInt();
+				edgeTo[e] = in.readInt();
+				edgeLength[e] = in.readDouble();
+				edgeChild1[e] = in.readInt();
+				edgeChild2[e] = in.readInt();
+			}
+			LOG.info("Contraction hierarchy loaded from " + filePath + ", total edges: " + edgeCount);
+			return new ContractionHierarchy(vertexCount, graphFingerprint, rank, edgeFrom, edgeTo, edgeLength, edgeChild1, edgeChild2);
+		}
+	}
+	
+	private QueryWorkspace createWorkspace() {
+		return new QueryWorkspace(vertexCount);
+	}
+	
+	/**
+	 * Per-thread query state, stamped in the same way as <tt>SearchWorkspace</tt>.
+	 */
+	private static class QueryWorkspace {
+		private final double[] forwardDist;
+		private final int[] forwardParent;
+		private final int[] forwardStamp;
+		private final double[] backwardDist;
+		private final int[] backwardParent;
+		private final int[] backwardStamp;
+		private final IndexedMinHeap heap;
+		private int forwardGeneration = 0;
+		private int backwardGeneration = 0;
+		private int[] pathBuffer = new int[64];
+		private int[] stack = new int[64];
+		// buckets of the many-to-many query, each vertex keeps a linked list of (target, distance, parent edge) entries
+		private int[] bucketHead;
+		private int[] bucketStamp;
+		private int bucketGeneration = 0;
+		private int[] entryTarget = new int[256];
+		private double[] entryDist = new double[256];
+		private int[] entryParent = new int[256];
+		private int[] entryNext = new int[256];
+		private int entryCount = 0;
+		
+		QueryWorkspace(int vertexCount) {
+			this.forwardDist = new double[vertexCount];
+			this.forwardParent = new int[vertexCount];
+			this.forwardStamp = new int[vertexCount];
+			this.backwardDist = new double[vertexCount];
+			this.backwardParent = new int[vertexCount];
+			this.backwardStamp = new int[vertexCount];
+			this.heap = new IndexedMinHeap(vertexCount);
+		}
+		
+		void setForward(int vertex, double distance, int edge) {
+			forwardDist[vertex] = distance;
+			forwardParent[vertex] = edge;
+			forwardStamp[vertex] = forwardGeneration;
+		}
+		
+		void setBackward(int vertex, double distance, int edge) {
+			backwardDist[vertex] = distance;
+			backwardParent[vertex] = edge;
+			backwardStamp[vertex] = backwardGeneration;
+		}
+		
+		void clearBuckets() {
+			if (bucketHead == null) {
+				bucketHead = new int[forwardDist.length];
+				bucketStamp = new int[forwardDist.length];
+			}
+			bucketGeneration++;
+			entryCount = 0;
+		}
+		
+		void addBucketEntry(int vertex, int target, double distance, int parentEdge) {
+			if (entryCount == entryTarget.length) {
+				entryTarget = Arrays.copyOf(entryTarget, entryCount * 2);
+				entryDist = Arrays.copyOf(entryDist, entryCount * 2);
+				entryParent = Arrays.copyOf(entryParent, entryCount * 2);
+				entryNext = Arrays.copyOf(entryNext, entryCount * 2);
+			}
+			entryTarget[entryCount] = target;
+			entryDist[entryCount] = distance;
+			entryParent[entryCount] = parentEdge;
+			entryNext[entryCount] = firstBucketEntry(vertex);
+			bucketHead[vertex] = entryCount;
+			bucketStamp[vertex] = bucketGeneration;
+			entryCount++;
+		}
+		
+		int firstBucketEntry(int vertex) {
+			return bucketHead != null && bucketStamp[vertex] == bucketGeneration ? bucketHead[vertex] : -1;
+		}
+		
+		int findBucketEntry(int vertex, int target) {
+			for (int k = firstBucketEntry(vertex); k != -1; k = entryNext[k]) {
+				if (entryTarget[k] == target)
+					return k;
+			}
+			throw new IllegalStateException("The bucket entry of target " + target + " is missing at vertex " + vertex + ".");
+		}
+	}
+	
+	/**
+	 * The contraction process. Edges are kept in growable primitive arrays and every vertex keeps the lists of its incoming and outgoing
+	 * edges, including the ones towards contracted vertices which are skipped afterwards.
+	 */
+	private static class Contractor {
+		private final int vertexCount;
+		private int[] edgeFrom;
+		private int[] edgeTo;
+		private double[] edgeLength;
+		private int[] edgeChild1;
+		private int[] edgeChild2;
+		private int edgeCount = 0;
+		private int originalEdgeCount = 0;
+		private final int[][] outEdges;
+		private final int[] outCount;
+		private final int[][] inEdges;
+		private final int[] inCount;
+		private final boolean[] isContracted;
+		private final int[] contractedNeighbourCount;
+		// witness search state
+		private final double[] witnessDist;
+		private final int[] witnessStamp;
+		private final IndexedMinHeap witnessHeap;
+		private int witnessGeneration = 0;
+		
+		Contractor(int vertexCount, int expectedEdgeCount) {
+			this.vertexCount = vertexCount;
+			int capacity = Math.max(expectedEdgeCount * 2, 16);
+			this.edgeFrom = new int[capacity];
+			this.edgeTo = new int[capacity];
+			this.edgeLength = new double[capacity];
+			this.edgeChild1 = new int[capacity];
+			this.edgeChild2 = new int[capacity];
+			this.outEdges = new int[vertexCount][];
+			this.outCount = new int[vertexCount];
+			this.inEdges = new int[vertexCount][];
+			this.inCount = new int[vertexCount];
+			this.isContracted = new boolean[vertexCount];
+			this.contractedNeighbourCount = new int[vertexCount];
+			this.witnessDist = new double[vertexCount];
+			this.witnessStamp = new int[vertexCount];
+			this.witnessHeap = new IndexedMinHeap(vertexCount);
+		}
+		
+		void addEdge(int from, int to, double length, int child1, int child2) {
+			if (edgeCount == edgeFrom.length) {
+				int capacity = edgeCount * 2;
+				edgeFrom = Arrays.copyOf(edgeFrom, capacity);
+				edgeTo = Arrays.copyOf(edgeTo, capacity);
+				edgeLength = Arrays.copyOf(edgeLength, capacity);
+				edgeChild1 = Arrays.copyOf(edgeChild1, capacity);
+				edgeChild2 = Arrays.copyOf(edgeChild2, capacity);
+			}
+			edgeFrom[edgeCount] = from;
+			edgeTo[edgeCount] = to;
+			edgeLength[edgeCount] = length;
+			edgeChild1[edgeCount] = child1;
+			edgeChild2[edgeCount] = child2;
+			appendEdge(outEdges, outCount, from, edgeCount);
+			appendEdge(inEdges, inCount, to, edgeCount);
+			if (child1 == -1)
+				originalEdgeCount++;
+			edgeCount++;
+		}
+		
+		private void appendEdge(int[][] edgeLists, int[] counts, int vertex, int edge) {
+			if (edgeLists[vertex] == null)
+				edgeLists[vertex] = new int[4];
+			else if (counts[vertex] == edgeLists[vertex].length)
+				edgeLists[vertex] = Arrays.copyOf(edgeLists[vertex], counts[vertex] * 2);
+			edgeLists[vertex][counts[vertex]++] = edge;
+		}
+		
+		/**
+		 * Contract all vertices in the order of their priority, which is updated lazily when a vertex is extracted.
+		 *
+		 * @return The contraction rank of each vertex.
+		 */
+		int[] contract() {
+			int[] rank = new int[vertexCount];
+			IndexedMinHeap queue = new IndexedMinHeap(vertexCount);
+			for (int v = 0; v < vertexCount; v++)
+				queue.decreaseKey(v, processVertex(v, false));
+			int currRank = 0;
+			while (!queue.isEmpty()) {
+				int v = queue.extractMin();
+				double priority = processVertex(v, false);
+				if (priority > queue.minDistance()) {   // the priority is outdated, put it back
+					queue.decreaseKey(v, priority);
+					continue;
+				}
+				processVertex(v, true);
+				isContracted[v] = true;
+				rank[v] = currRank++;
+				for (int i = 0; i < outCount[v]; i++)
+					contractedNeighbourCount[edgeTo[outEdges[v][i]]]++;
+				for (int i = 0; i < inCount[v]; i++)
+					contractedNeighbourCount[edgeFrom[inEdges[v][i]]]++;
+			}
+			return rank;
+		}
+		
+		/**
+		 * Find the shortcuts needed when contracting the vertex.
+		 *
+		 * @param v        The vertex to be contracted.
+		 * @param isInsert True if the shortcuts are inserted, otherwise they are only counted.
+		 * @return The priority of the vertex, which is the edge difference plus the number of contracted neighbours.
+		 */
+		private double processVertex(int v, boolean isInsert) {
+			int shortcutCount = 0;
+			int degree = 0;
+			double maxOutLength = 0;
+			for (int j = 0; j < outCount[v]; j++) {
+				int out = outEdges[v][j];
+				if (!isContracted[edgeTo[out]]) {
+					degree++;
+					maxOutLength = Math.max(maxOutLength, edgeLength[out]);
+				}
+			}
+			for (int i = 0; i < inCount[v]; i++) {
+				int in = inEdges[v][i];
+				int u = edgeFrom[in];
+				if (isContracted[u])
+					continue;
+				degree++;
+				witnessSearch(u, v, edgeLength[in] + maxOutLength);
+				for (int j = 0; j < outCount[v]; j++) {
+					int out = outEdges[v][j];
+					int w = edgeTo[out];
+					if (isContracted[w] || w == u)
+						continue;
+					double viaLength = edgeLength[in] + edgeLength[out];
+					if (witnessStamp[w] == witnessGeneration && witnessDist[w] <= viaLength)
+						continue;   // a witness path exists
+					shortcutCount++;
+					if (isInsert)
+						addEdge(u, w, viaLength, in, out);
+				}
+			}
+			return shortcutCount - degree + contractedNeighbourCount[v];
+		}
+		
+		/**
+		 * Bounded Dijkstra search from the source among the uncontracted vertices, skipping the vertex being contracted.
+		 */
+		private void witnessSearch(int source, int excludedVertex, double maxDist) {
+			witnessGeneration++;
+			witnessHeap.clear();
+			witnessDist[source] = 0;
+			witnessStamp[source] = witnessGeneration;
+			witnessHeap.decreaseKey(source, 0);
+			int settledCount = 0;
+			while (!witnessHeap.isEmpty() && settledCount < WITNESS_SETTLE_LIMIT && witnessHeap.minDistance() <= maxDist) {
+				int x = witnessHeap.extractMin();
+				settledCount++;
+				for (int j = 0; j < outCount[x]; j++) {
+					int e = outEdges[x][j];
+					int y = edgeTo[e];
+					if (y == excludedVertex || isContracted[y])
+						continue;
+					double d = witnessDist[x] + edgeLength[e];
+					if (witnessStamp[y] != witnessGeneration || d < witnessDist[y]) {
+						witnessDist[y] = d;
+						witnessStamp[y] = witnessGeneration;
+						witnessHeap.decreaseKey(y, d);
+					}
+				}
+			}
+		}
+	}
+}
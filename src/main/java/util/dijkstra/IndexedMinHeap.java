@@ -0,0 +1,159 @@
+package util.dijkstra;
+
+import java.util.Arrays;
+
+/**
+ * Indexed 4-ary minimal heap used in Dijkstra and A* search. The heap stores the item indices and their distances in parallel arrays
+ * and keeps a position map from item index to heap slot, so that no object is created for insertion or key update. It follows the same
+ * contract as <tt>MinPriorityQueue</tt>: items with equal distance are extracted in ascending index order.
+ * <p>
+ * The heap can be reused across searches by calling <tt>clear()</tt>, which only resets the position of the items still in the heap.
+ */
+public class IndexedMinHeap {
+	
+	private static final int ARITY = 4;
+	
+	private int[] heapItems;        // the item index stored in each heap slot
+	private double[] heapDistances; // the distance of the item in each heap slot
+	private int[] position;     // the heap slot of each item index, -1 if the item is not in the heap
+	private int heapSize;
+	
+	public IndexedMinHeap() {
+		this(16);
+	}
+	
+	/**
+	 * Create a heap for item indices in [0, capacity). The heap grows automatically if larger indices are inserted.
+	 *
+	 * @param capacity The expected number of items.
+	 */
+	public IndexedMinHeap(int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.heapItems = new int[capacity];
+		this.heapDistances = new double[capacity];
+		this.position = new int[capacity];
+		Arrays.fill(position, -1);
+		this.heapSize = 0;
+	}
+	
+	/**
+	 * extract the index of the unvisited node with the closest distance to source
+	 *
+	 * @return the index of the next node, returns -1 if all points are visited
+	 */
+	public int extractMin() {
+		if (heapSize == 0)
+			return -1;
+		int index = heapItems[0];
+		position[index] = -1;
+		heapSize--;
+		if (heapSize > 0) {
+			int lastItem = heapItems[heapSize];
+			double lastDistance = heapDistances[heapSize];
+			sink(0, lastItem, lastDistance);
+		}
+		return index;
+	}
+	
+	public boolean isEmpty() {
+		return heapSize == 0;
+	}
+	
+	public int size() {
+		return heapSize;
+	}
+	
+	/**
+	 * @return The smallest distance in the heap, Double.POSITIVE_INFINITY if the heap is empty.
+	 */
+	public double minDistance() {
+		return heapSize == 0 ? Double.POSITIVE_INFINITY : heapDistances[0];
+	}
+	
+	/**
+	 * Update existing min heap item or insert a new one.
+	 *
+	 * @param index    the index of the currently updating node
+	 * @param distance the current calculated distance
+	 * @return false if the distance is not smaller than the previous one, otherwise true
+	 */
+	public boolean decreaseKey(int index, double distance) {
+		if (index >= position.length)
+			growPosition(index + 1);
+		int slot = position[index];
+		if (slot != -1) {   // the coming key already exists
+			if (distance < heapDistances[slot]) {
+				swim(slot, index, distance);
+				return true;
+			} else return false;
+		} else {    // insert new node to the end of the heap
+			if (heapSize == heapItems.length) {
+				heapItems = Arrays.copyOf(heapItems, heapSize * 2);
+				heapDistances = Arrays.copyOf(heapDistances, heapSize * 2);
+			}
+			swim(heapSize++, index, distance);
+			return true;
+		}
+	}
+	
+	/**
+	 * Remove all items from the heap. Only the items remaining in the heap are touched, so the cost is independent of the capacity.
+	 */
+	public void clear() {
+		for (int i = 0; i < heapSize; i++)
+			position[heapItems[i]] = -1;
+		heapSize = 0;
+	}
+	
+	/**
+	 * Move the item up from the given slot until its parent is smaller.
+	 */
+	private void swim(int slot, int index, double distance) {
+		while (slot > 0) {
+			int parent = (slot - 1) / ARITY;
+			if (!isSmaller(distance, index, heapDistances[parent], heapItems[parent]))
+				break;
+			place(slot, heapItems[parent], heapDistances[parent]);
+			slot = parent;
+		}
+		place(slot, index, distance);
+	}
+	
+	/**
+	 * Move the item down from the given slot until all its children are larger.
+	 */
+	private void sink(int slot, int index, double distance) {
+		while (true) {
+			int firstChild = slot * ARITY + 1;
+			if (firstChild >= heapSize)
+				break;
+			int lastChild = Math.min(firstChild + ARITY, heapSize);
+			int minChild = firstChild;
+			for (int c = firstChild + 1; c < lastChild; c++) {
+				if (isSmaller(heapDistances[c], heapItems[c], heapDistances[minChild], heapItems[minChild]))
+					minChild = c;
+			}
+			if (!isSmaller(heapDistances[minChild], heapItems[minChild], distance, index))
+				break;
+			place(slot, heapItems[minChild], heapDistances[minChild]);
+			slot = minChild;
+		}
+		place(slot, index, distance);
+	}
+	
+	private void place(int slot, int index, double distance) {
+		heapItems[slot] = index;
+		heapDistances[slot] = distance;
+		position[index] = slot;
+	}
+	
+	private boolean isSmaller(double distance1, int index1, double distance2, int index2) {
+		return distance1 < distance2 || (distance1 == distance2 && index1 < index2);
+	}
+	
+	private void growPosition(int minCapacity) {
+		int oldLength = position.length;
+		position = Arrays.copyOf(position, Math.max(minCapacity, oldLength * 2));
+		Arrays.fill(position, oldLength, position.length, -1);
+	}
+}
@@ -0,0 +1,343 @@
+package util.dijkstra;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Landmark distance table for the ALT (A*, landmarks and triangle inequality) search of Goldberg and Harrelson (2005). For a small set of
+ * landmarks L, the table stores d(L, v) and d(v, L) of every vertex v, so that max(d(L, t) - d(L, v), d(v, L) - d(t, L)) over all
+ * landmarks is a lower bound of d(v, t) for any target t. The bound is consistent, which keeps the A* search exact.
+ * <p>
+ * Landmarks are selected either by farthest selection, where each new landmark is the vertex farthest from all selected ones, or by avoid
+ * selection (Goldberg and Werneck 2005), which picks the leaf of the shortest path tree whose subtree is worst covered by the current
+ * landmarks. The table is built once per map and can be saved to and loaded from a binary file.
+ */
+public class LandmarkTable {
+	
+	private static final Logger LOG = Logger.getLogger(LandmarkTable.class);
+	private static final int FILE_MAGIC = 0x4C4D524B;   // "LMRK"
+	private static final int FILE_VERSION = 1;
+	
+	private final int vertexCount;
+	private final long graphFingerprint;    // the fingerprint of the routing graph the table is built from
+	private final int[] landmarks;
+	// vertex-major distance arrays, the distance between vertex v and landmark k is stored at v * landmarkCount + k. The distance is
+	// Double.POSITIVE_INFINITY if not reachable.
+	private final double[] fromLandmark;    // d(landmark, v)
+	private final double[] toLandmark;      // d(v, landmark)
+	
+	private LandmarkTable(int vertexCount, long graphFingerprint, int[] landmarks, double[] fromLandmark, double[] toLandmark) {
+		this.vertexCount = vertexCount;
+		this.graphFingerprint = graphFingerprint;
+		this.landmarks = landmarks;
+		this.fromLandmark = fromLandmark;
+		this.toLandmark = toLandmark;
+	}
+	
+	/**
+	 * Select the landmarks and compute their distance to and from every vertex.
+	 *
+	 * @param vertexCount      Number of vertices.
+	 * @param miniEdgeFrom     The from vertex of each mini edge.
+	 * @param miniEdgeTo       The to vertex of each mini edge.
+	 * @param miniEdgeLength   The length of each mini edge.
+	 * @param isEdgeEnabled    Whether the mini edge is part of the graph.
+	 * @param landmarkCount    Number of landmarks.
+	 * @param selectionMethod  The landmark selection method, "farthest" or "avoid".
+	 * @param graphFingerprint The fingerprint of the graph, checked when the table is loaded.
+	 * @return The landmark table.
+	 */
+	static LandmarkTable build(int vertexCount, int[] miniEdgeFrom, int[] miniEdgeTo, double[] miniEdgeLength, boolean[] isEdgeEnabled,
+							   int landmarkCount, String selectionMethod, long graphFingerprint) {
+		if (landmarkCount <= 0 || landmarkCount > vertexCount)
+			throw new IllegalArgumentException("The number of landmarks is invalid: " + landmarkCount);
+		if (!selectionMethod.equals("farthest") && !selectionMethod.equals("avoid"))
+			throw new IllegalArgumentException("Unknown landmark selection method: " + selectionMethod);
+		long startTime = System.currentTimeMillis();
+		Adjacency forwardGraph = new Adjacency(vertexCount, miniEdgeFrom, miniEdgeTo, miniEdgeLength, isEdgeEnabled);
+		Adjacency backwardGraph = new Adjacency(vertexCount, miniEdgeTo, miniEdgeFrom, miniEdgeLength, isEdgeEnabled);
+		int[] landmarks = new int[landmarkCount];
+		double[] fromLandmark = new double[vertexCount * landmarkCount];
+		double[] toLandmark = new double[vertexCount * landmarkCount];
+		LandmarkTable table = new LandmarkTable(vertexCount, graphFingerprint, landmarks, fromLandmark, toLandmark);
+		Random random = new Random(0);
+		ShortestPathTree tree = new ShortestPathTree(vertexCount);
+		double[] minLandmarkDistance = new double[vertexCount];     // used by farthest selection
+		Arrays.fill(minLandmarkDistance, Double.POSITIVE_INFINITY);
+		for (int k = 0; k < landmarkCount; k++) {
+			int landmark;
+			if (selectionMethod.equals("avoid"))
+				landmark = table.selectAvoid(k, forwardGraph, tree, random);
+			else if (k == 0) {
+				tree.search(forwardGraph, random.nextInt(vertexCount));
+				landmark = tree.getFarthestVertex();
+			} else
+				landmark = getFarthestVertex(minLandmarkDistance);
+			landmarks[k] = landmark;
+			tree.search(forwardGraph, landmark);
+			for (int v = 0; v < vertexCount; v++)
+				fromLandmark[v * landmarkCount + k] = tree.distance[v];
+			tree.search(backwardGraph, landmark);
+			for (int v = 0; v < vertexCount; v++) {
+				toLandmark[v * landmarkCount + k] = tree.distance[v];
+				minLandmarkDistance[v] = Math.min(minLandmarkDistance[v], Math.min(fromLandmark[v * landmarkCount + k], tree.distance[v]));
+			}
+		}
+		LOG.info("Landmark table built in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s. Selection method: " + selectionMethod
+				+ ", total landmarks: " + landmarkCount);
+		return table;
+	}
+	
+	/**
+	 * Avoid selection of the k-th landmark. A shortest path tree is grown from a random root, each vertex is weighted by the gap between
+	 * its distance to the root and the lower bound given by the first k landmarks. Starting at the root, the walk follows the child with
+	 * the heaviest subtree that contains no landmark and returns the leaf it ends at.
+	 */
+	private int selectAvoid(int k, Adjacency forwardGraph, ShortestPathTree tree, Random random) {
+		int root = random.nextInt(vertexCount);
+		tree.search(forwardGraph, root);
+		double[] size = new double[vertexCount];
+		boolean[] hasLandmark = new boolean[vertexCount];
+		for (int i = 0; i < k; i++)
+			hasLandmark[landmarks[i]] = true;
+		// accumulate the subtree weights from the leaves, in reverse settle order
+		for (int i = tree.settledCount - 1; i >= 0; i--) {
+			int v = tree.settled[i];
+			size[v] += tree.distance[v] - getLowerBound(root, v, k);
+			int parent = tree.parent[v];
+			if (parent != -1) {
+				size[parent] += size[v];
+				hasLandmark[parent] |= hasLandmark[v];
+			}
+		}
+		// children of each vertex in CSR layout
+		int[] childOffsets = new int[vertexCount + 1];
+		for (int i = 0; i < tree.settledCount; i++) {
+			if (tree.parent[tree.settled[i]] != -1)
+				childOffsets[tree.parent[tree.settled[i]] + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++)
+			childOffsets[v + 1] += childOffsets[v];
+		int[] children = new int[childOffsets[vertexCount]];
+		int[] nextSlot = Arrays.copyOf(childOffsets, vertexCount);
+		for (int i = 0; i < tree.settledCount; i++) {
+			if (tree.parent[tree.settled[i]] != -1)
+				children[nextSlot[tree.parent[tree.settled[i]]]++] = tree.settled[i];
+		}
+		int currVertex = root;
+		while (true) {
+			int nextVertex = -1;
+			for (int slot = childOffsets[currVertex]; slot < childOffsets[currVertex + 1]; slot++) {
+				int child = children[slot];
+				if (!hasLandmark[child] && (nextVertex == -1 || size[child] > size[nextVertex]))
+					nextVertex = child;
+			}
+			if (nextVertex == -1)
+				break;
+			currVertex = nextVertex;
+		}
+		if (hasLandmark[currVertex])     // the root is a landmark and has no free subtree, fall back to the farthest vertex of the tree
+			currVertex = tree.getFarthestVertex();
+		return currVertex;
+	}
+	
+	private static int getFarthestVertex(double[] minLandmarkDistance) {
+		int farthestVertex = 0;
+		for (int v = 0; v < minLandmarkDistance.length; v++) {
+			if (minLandmarkDistance[v] != Double.POSITIVE_INFINITY && (minLandmarkDistance[farthestVertex] == Double.POSITIVE_INFINITY
+					|| minLandmarkDistance[v] > minLandmarkDistance[farthestVertex]))
+				farthestVertex = v;
+		}
+		return farthestVertex;
+	}
+	
+	long getGraphFingerprint() {
+		return graphFingerprint;
+	}
+	
+	public int getLandmarkCount() {
+		return landmarks.length;
+	}
+	
+	/**
+	 * @param vertex The vertex index.
+	 * @param target The target vertex index.
+	 * @return The lower bound of the distance from vertex to target, Double.POSITIVE_INFINITY if the target is not reachable.
+	 */
+	public double getLowerBound(int vertex, int target) {
+		return getLowerBound(vertex, target, landmarks.length);
+	}
+	
+	/**
+	 * @param vertex      The vertex index.
+	 * @param targets     The target vertex indices.
+	 * @param targetCount Only the first targetCount targets are considered.
+	 * @return The lower bound of the distance from vertex to its nearest target.
+	 */
+	double getLowerBound(int vertex, int[] targets, int targetCount) {
+		double bound = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < targetCount && bound > 0; i++)
+			bound = Math.min(bound, getLowerBound(vertex, targets[i], landmarks.length));
+		return bound;
+	}
+	
+	/**
+	 * The lower bound given by the first k landmarks. An unreachable landmark contributes no bound, unless it proves that the target is
+	 * not reachable.
+	 */
+	private double getLowerBound(int vertex, int target, int k) {
+		double bound = 0;
+		int vertexBase = vertex * landmarks.length;
+		int targetBase = target * landmarks.length;
+		for (int i = 0; i < k; i++) {
+			double forwardBound = fromLandmark[targetBase + i] - fromLandmark[vertexBase + i];    // NaN if both are infinite
+			double backwardBound = toLandmark[vertexBase + i] - toLandmark[targetBase + i];
+			if (forwardBound > bound)
+				bound = forwardBound;
+			if (backwardBound > bound)
+				bound = backwardBound;
+		}
+		return bound;
+	}
+	
+	/**
+	 * Write the table to a binary file.
+	 *
+	 * @param filePath The output file path.
+	 * @throws IOException File write failure.
+	 */
+	public void save(String filePath) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), 1 << 16))) {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeLong(graphFingerprint);
+			out.writeInt(vertexCount);
+			out.writeInt(landmarks.length);
+			for (int landmark : landmarks)
+				out.writeInt(landmark);
+			for (double distance : fromLandmark)
+				out.writeDouble(distance);
+			for (double distance : toLandmark)
+				out.writeDouble(distance);
+		}
+		LOG.info("Landmark table saved to " + filePath);
+	}
+	
+	/**
+	 * Read a table from a binary file.
+	 *
+	 * @param filePath         The input file path.
+	 * @param graphFingerprint The fingerprint of the current routing graph.
+	 * @param landmarkCount    The expected number of landmarks.
+	 * @return The table, or null if the file does not exist or is built from a different graph or landmark count.
+	 * @throws IOException File read failure.
+	 */
+	public static LandmarkTable load(String filePath, long graphFingerprint, int landmarkCount) throws IOException {
+		if (!new File(filePath).exists())
+			return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath), 1 << 16))) {
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+				LOG.warn("The landmark file has unknown format: " + filePath);
+				return null;
+			}
+			if (in.readLong() != graphFingerprint) {
+				LOG.warn("The landmark file is built from a different graph: " + filePath);
+				return null;
+			}
+			int vertexCount = in.readInt();
+			if (in.readInt() != landmarkCount) {
+				LOG.warn("The landmark file has a different number of landmarks: " + filePath);
+				return null;
+			}
+			int[] landmarks = new int[landmarkCount];
+			for (int k = 0; k < landmarkCount; k++)
+				landmarks[k] = in.readInt();
+			double[] fromLandmark = new double[vertexCount * landmarkCount];
+			double[] toLandmark = new double[vertexCount * landmarkCount];
+			for (int i = 0; i < fromLandmark.length; i++)
+				fromLandmark[i] = in.readDouble();
+			for (int i = 0; i < toLandmark.length; i++)
+				toLandmark[i] = in.readDouble();
+			LOG.info("Landmark table loaded from " + filePath + ", total landmarks: " + landmarkCount);
+			return new LandmarkTable(vertexCount, graphFingerprint, landmarks, fromLandmark, toLandmark);
+		}
+	}
+	
+	/**
+	 * The enabled mini edges in CSR layout, either forward or reversed.
+	 */
+	private static class Adjacency {
+		
+		private final int[] offsets;
+		private final int[] targets;
+		private final double[] lengths;
+		
+		Adjacency(int vertexCount, int[] edgeFrom, int[] edgeTo, double[] edgeLength, boolean[] isEdgeEnabled) {
+			this.offsets = new int[vertexCount + 1];
+			for (int e = 0; e < edgeFrom.length; e++) {
+				if (isEdgeEnabled[e])
+					offsets[edgeFrom[e] + 1]++;
+			}
+			for (int v = 0; v < vertexCount; v++)
+				offsets[v + 1] += offsets[v];
+			this.targets = new int[offsets[vertexCount]];
+			this.lengths = new double[offsets[vertexCount]];
+			int[] nextSlot = Arrays.copyOf(offsets, vertexCount);
+			for (int e = 0; e < edgeFrom.length; e++) {
+				if (isEdgeEnabled[e]) {
+					int slot = nextSlot[edgeFrom[e]]++;
+					targets[slot] = edgeTo[e];
+					lengths[slot] = edgeLength[e];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Full Dijkstra search that records the distance, the parent and the settle order of every reachable vertex.
+	 */
+	private static class ShortestPathTree {
+		
+		private final double[] distance;
+		private final int[] parent;
+		private final int[] settled;
+		private final IndexedMinHeap minHeap;
+		private int settledCount;
+		
+		ShortestPathTree(int vertexCount) {
+			this.distance = new double[vertexCount];
+			this.parent = new int[vertexCount];
+			this.settled = new int[vertexCount];
+			this.minHeap = new IndexedMinHeap(vertexCount);
+		}
+		
+		void search(Adjacency graph, int source) {
+			Arrays.fill(distance, Double.POSITIVE_INFINITY);
+			minHeap.clear();
+			settledCount = 0;
+			distance[source] = 0;
+			parent[source] = -1;
+			int currIndex = source;
+			while (currIndex != -1) {
+				settled[settledCount++] = currIndex;
+				for (int slot = graph.offsets[currIndex]; slot < graph.offsets[currIndex + 1]; slot++) {
+					int nextVertexIndex = graph.targets[slot];
+					double distFromSource = distance[currIndex] + graph.lengths[slot];
+					if (distFromSource < distance[nextVertexIndex] && nextVertexIndex != source) {
+						distance[nextVertexIndex] = distFromSource;
+						parent[nextVertexIndex] = currIndex;
+						minHeap.decreaseKey(nextVertexIndex, distFromSource);
+					}
+				}
+				currIndex = minHeap.extractMin();
+			}
+		}
+		
+		int getFarthestVertex() {
+			return settled[settledCount - 1];
+		}
+	}
+}
@@ -3,7 +3,8 @@ package util.dijkstra;
 import java.util.HashMap;
 
 /**
- * Minimal heap used in Dijkstra algorithm.
+ * Minimal heap used in Dijkstra algorithm. Superseded by the array-based <tt>IndexedMinHeap</tt>, kept as the reference implementation
+ * in heap benchmarks.
  */
 public class MinPriorityQueue {
 	
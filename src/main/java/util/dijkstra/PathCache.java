@@ -0,0 +1,134 @@
+package util.dijkstra;
+
+import util.object.structure.Pair;
+import util.object.structure.StripedLRUCache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of the shortest paths between mini edges, shared by all threads and all trajectories matched on the same
+ * <tt>RoutingGraph</tt>. An entry is keyed by the source and destination mini edge index and records the vertex to vertex distance and
+ * road path found by an exact search, or that the destination is not reachable within the bound of that search.
+ * <p>
+ * The entries are kept in a <tt>StripedLRUCache</tt> whose capacity is measured in weight, an entry weighs one plus the number of roads
+ * on its path.
+ */
+public class PathCache {
+	
+	private final StripedLRUCache<CacheEntry> entries;
+	private final AtomicLong generation = new AtomicLong();     // increased on every invalidation, drops the results of earlier searches
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	
+	/**
+	 * @param maxWeight The maximum total weight of the cache.
+	 */
+	public PathCache(long maxWeight) {
+		if (maxWeight <= 0)
+			throw new IllegalArgumentException("The path cache capacity must be positive: " + maxWeight);
+		this.entries = new StripedLRUCache<>(maxWeight, CacheEntry::getWeight);
+	}
+	
+	/**
+	 * Find the shortest path between two mini edges.
+	 *
+	 * @param sourceEdge    The source mini edge index.
+	 * @param destEdge      The destination mini edge index.
+	 * @param maxSearchDist The bound of the current query.
+	 * @return The distance and road path, the distance is Double.POSITIVE_INFINITY and the path is empty if not reachable within
+	 * maxSearchDist. Null if the cache cannot answer the query.
+	 */
+	Pair<Double, List<String>> get(int sourceEdge, int destEdge, double maxSearchDist) {
+		CacheEntry entry = entries.get(getKey(sourceEdge, destEdge));
+		if (entry == null || (entry.distance == Double.POSITIVE_INFINITY && maxSearchDist > entry.searchBound)) {
+			missCount.increment();
+			return null;
+		}
+		hitCount.increment();
+		if (entry.distance >= maxSearchDist)
+			return new Pair<>(Double.POSITIVE_INFINITY, Collections.emptyList());
+		return new Pair<>(entry.distance, entry.graphPath);
+	}
+	
+	/**
+	 * Store the result of a search.
+	 *
+	 * @param sourceEdge  The source mini edge index.
+	 * @param destEdge    The destination mini edge index.
+	 * @param searchBound The bound of the search.
+	 * @param distance    The vertex to vertex distance, Double.POSITIVE_INFINITY if not reachable within searchBound.
+	 * @param graphPath   The road path between the two vertices, not modified afterwards.
+	 * @param generation  The generation read by <tt>getGeneration()</tt> before the search started.
+	 */
+	void put(int sourceEdge, int destEdge, double searchBound, double distance, List<String> graphPath, long generation) {
+		CacheEntry entry = new CacheEntry(distance, distance == Double.POSITIVE_INFINITY ? Collections.emptyList() : graphPath,
+				searchBound);
+		// checked under the lock of the cache segment, so an invalidation either drops the entry or happens after it is stored
+		entries.put(getKey(sourceEdge, destEdge), entry, (previous, current) -> {
+			if (generation != this.generation.get())
+				return false;   // the graph has changed since the search started
+			// an unreachable result does not replace an entry that answers more queries
+			return previous == null || current.distance != Double.POSITIVE_INFINITY || (previous.distance == Double.POSITIVE_INFINITY
+					&& previous.searchBound < current.searchBound);
+		});
+	}
+	
+	long getGeneration() {
+		return generation.get();
+	}
+	
+	/**
+	 * Remove all entries. The searches that started before the call do not insert their results afterwards.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+	
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+	
+	public long getMissCount() {
+		return missCount.sum();
+	}
+	
+	public long getEvictionCount() {
+		return entries.getEvictionCount();
+	}
+	
+	public long getWeight() {
+		return entries.getWeight();
+	}
+	
+	@Override
+	public String toString() {
+		long hit = getHitCount();
+		long miss = getMissCount();
+		return "Path cache hits: " + hit + ", misses: " + miss + ", hit rate: " + (hit + miss == 0 ? 0 : (double) hit / (hit + miss))
+				+ ", evictions: " + getEvictionCount() + ", weight: " + getWeight();
+	}
+	
+	private static long getKey(int sourceEdge, int destEdge) {
+		return ((long) sourceEdge << 32) | (destEdge & 0xFFFFFFFFL);
+	}
+	
+	private static class CacheEntry {
+		private final double distance;
+		private final List<String> graphPath;
+		private final double searchBound;
+		
+		CacheEntry(double distance, List<String> graphPath, double searchBound) {
+			this.distance = distance;
+			this.graphPath = graphPath;
+			this.searchBound = searchBound;
+		}
+		
+		long getWeight() {
+			return 1 + graphPath.size();
+		}
+	}
+}
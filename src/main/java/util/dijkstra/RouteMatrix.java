@@ -0,0 +1,61 @@
+package util.dijkstra;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The result of a many-to-many shortest path query. Distances are stored in a dense row-major array where each row refers to a source and
+ * each column refers to a destination.
+ */
+public class RouteMatrix {
+
+	private final int sourceCount;
+	private final int destinationCount;
+	private final double[] distances;   // Double.POSITIVE_INFINITY if the destination is not reachable
+	private final List<List<String>> paths;     // the road ID path of each source-destination pair, empty if not reachable
+
+	RouteMatrix(int sourceCount, int destinationCount) {
+		this.sourceCount = sourceCount;
+		this.destinationCount = destinationCount;
+		this.distances = new double[sourceCount * destinationCount];
+		Arrays.fill(distances, Double.POSITIVE_INFINITY);
+		this.paths = new ArrayList<>(sourceCount * destinationCount);
+		for (int i = 0; i < sourceCount * destinationCount; i++)
+			paths.add(new ArrayList<>());
+	}
+
+	public int getSourceCount() {
+		return sourceCount;
+	}
+
+	public int getDestinationCount() {
+		return destinationCount;
+	}
+
+	public double getDistance(int sourceIndex, int destIndex) {
+		return distances[sourceIndex * destinationCount + destIndex];
+	}
+
+	public boolean isReachable(int sourceIndex, int destIndex) {
+		return distances[sourceIndex * destinationCount + destIndex] != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return The road ID sequence from the source to the destination, empty if not reachable.
+	 */
+	public List<String> getPath(int sourceIndex, int destIndex) {
+		return paths.get(sourceIndex * destinationCount + destIndex);
+	}
+
+	/**
+	 * @return The row-major distance array, the distance of source i to destination j is at index i * destinationCount + j.
+	 */
+	public double[] getDistances() {
+		return distances;
+	}
+
+	void setDistance(int sourceIndex, int destIndex, double distance) {
+		distances[sourceIndex * destinationCount + destIndex] = distance;
+	}
+}
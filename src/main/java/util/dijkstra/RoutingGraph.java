@@ -2,15 +2,21 @@ package util.dijkstra;
 
 import org.apache.log4j.Logger;
 import util.function.DistanceFunction;
+import util.io.IOService;
+import util.io.MapIndexBundle;
 import util.object.roadnetwork.RoadNetworkGraph;
 import util.object.roadnetwork.RoadNode;
 import util.object.roadnetwork.RoadWay;
 import util.object.spatialobject.Point;
+import util.object.spatialobject.Segment;
 import util.object.structure.Pair;
 import util.object.structure.PointMatch;
 import util.settings.BaseProperty;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -19,43 +25,76 @@ import java.util.*;
 public class RoutingGraph implements Serializable {
 	
 	private static final Logger LOG = Logger.getLogger(RoutingGraph.class);
-	private HashMap<Integer, String> edgeIndex2RoadID = new HashMap<>();    // the mapping between the mini edge index and its corresponding
-	// roadway id and serial number, format: (index,roadID,serialNum), serialNum starts from 0
-	private HashMap<String, Integer> endPointLoc2EdgeIndex = new LinkedHashMap<>();  // find the mini edge index using the coordinates and
-	// road way id, format: (x1_x2,y1_y2,id)
-	private HashMap<Pair<Integer, Integer>, Integer> endPointsIndex2EdgeIndex = new HashMap<>();  // find the mini edge index given the end point indices
-	// and its distance to the current edge
-	private RoutingVertex[] vertices;
-	private RoutingEdge[] routingEdges;
+	private String[] edgeRoadIDs;    // the road way id of each mini edge
+	private volatile HashMap<String, Integer> endPointLoc2EdgeIndex;  // find the mini edge index using the coordinates and road way id,
+	// format: (x1_x2,y1_y2,id), only used for the match points that do not carry their mini edge index. Built on first use if the graph
+	// is read from a map index bundle
 	private DistanceFunction distFunc;
+	// the graph is stored in compressed sparse row (CSR) layout, the outgoing edges of vertex v are stored in slots [offsets[v],
+	// offsets[v+1]) of targets, lengths and edgeIDs.
+	private int[] offsets;
+	private int[] targets;      // the to vertex index of each CSR slot
+	private double[] lengths;   // the edge length of each CSR slot
+	private int[] edgeIDs;      // the mini edge index of each CSR slot
+	private int[] edgeFromIndex;    // the from vertex index of each mini edge
+	private int[] edgeToIndex;      // the to vertex index of each mini edge
+	private boolean[] isEdgeEnabled;    // false if the mini edge belongs to a new road which is not yet inserted
+	private double[] vertexX;
+	private double[] vertexY;
+	private transient volatile ThreadLocal<SearchWorkspace> workspace;     // the search workspace of each thread
+	private transient ContractionHierarchy contractionHierarchy;    // optional, replaces the Dijkstra/A* search if exists
+	private transient UBODT ubodt;  // optional, answers the queries within its bound by table lookup before any search
+	private transient PathCache pathCache;  // optional, shared by all threads, invalidated when the graph changes
+	private transient LandmarkTable landmarkTable;  // optional, turns the Dijkstra/A* search into ALT search
+	private transient TurnCostTable turnCostTable;  // optional, enables the turn-aware search on the edge-expanded graph
+	private transient volatile ThreadLocal<SearchWorkspace> turnWorkspace;     // the edge-expanded search workspace of each thread
 	private HashSet<Integer> newNodeSet = new HashSet<>();  // useful only when isPartial = true;
 	private HashSet<Integer> newEdgeSet = new HashSet<>();  // useful only when isPartial = true;
 	private HashMap<String, List<Integer>> roadID2NewNodeList = new HashMap<>();  // for each new road, the generated node ID list.
 	private HashMap<String, List<Integer>> roadID2NewEdgeList = new HashMap<>();  // for each new road, the generated edge ID list.
 	
 	/**
-	 * Create routing graph for map-matching.
+	 * Create routing graph for map-matching, with the search options of the map-matching properties.
 	 *
 	 * @param roadNetwork       The map used to build routing graph.
 	 * @param isNewRoadIncluded Is new roads to be added together into the shortest path, only = true when in map updateGoh process.
 	 */
 	public RoutingGraph(RoadNetworkGraph roadNetwork, boolean isNewRoadIncluded, BaseProperty prop) {
+		this(roadNetwork, isNewRoadIncluded);
+		enableOptions(prop, isNewRoadIncluded);
+	}
+	
+	/**
+	 * Create routing graph for map-matching without any search option.
+	 *
+	 * @param roadNetwork       The map used to build routing graph.
+	 * @param isNewRoadIncluded Is new roads to be added together into the shortest path, only = true when in map updateGoh process.
+	 */
+	public RoutingGraph(RoadNetworkGraph roadNetwork, boolean isNewRoadIncluded) {
 		this.distFunc = roadNetwork.getDistanceFunction();
+		this.endPointLoc2EdgeIndex = new LinkedHashMap<>();
 		// insert the road node into node list
 		HashMap<String, Integer> nodeID2Index = new HashMap<>();
-		HashMap<Integer, Point> vertexID2Loc = new LinkedHashMap<>();
-		HashSet<Integer> outGoingNodeSet = new HashSet<>();
+		List<Point> vertexLocList = new ArrayList<>();
+		int edgeCount = 0;
+		for (RoadWay way : roadNetwork.getWays())
+			edgeCount += Math.max(way.getNodes().size() - 1, 0);
+		this.edgeFromIndex = new int[edgeCount];
+		this.edgeToIndex = new int[edgeCount];
+		this.isEdgeEnabled = new boolean[edgeCount];
+		this.edgeRoadIDs = new String[edgeCount];
+		double[] edgeLength = new double[edgeCount];
+		HashSet<Pair<Integer, Integer>> endPointIndicesSet = new HashSet<>();   // the end point indices of all mini edges
 		// the size of the vertex list and the current index of the new vertex
 		int vertexIndex = 0;
 		for (RoadNode node : roadNetwork.getNodes()) {
 			if (nodeID2Index.containsKey(node.getID()))
 				throw new IllegalArgumentException("Road node ID already exists: " + node.getID());
 			nodeID2Index.put(node.getID(), vertexIndex);
-			vertexID2Loc.put(vertexIndex, node.toPoint());
+			vertexLocList.add(node.toPoint());
 			vertexIndex++;
 		}
 		
-		List<RoutingEdge> routingEdgeList = new ArrayList<>();
 		int edgeIndex = 0;
 		for (RoadWay way : roadNetwork.getWays()) {
 			// insert all the mini vertices to the node list
@@ -69,7 +108,7 @@ public class RoutingGraph implements Serializable {
 				if (nodeID2Index.containsKey(startNode.getID()))
 					throw new IllegalArgumentException("Road node ID for mini node already exists: " + startNode.getID());
 				nodeID2Index.put(startNode.getID(), vertexIndex);
-				vertexID2Loc.put(vertexIndex, startNode.toPoint());
+				vertexLocList.add(startNode.toPoint());
 				if (isNewRoadIncluded && way.isNewRoad()) {
 					newNodeSet.add(vertexIndex);
 					roadID2NewNodeList.get(way.getID()).add(vertexIndex);
@@ -81,64 +120,304 @@ public class RoutingGraph implements Serializable {
 			for (int i = 0; i < way.getNodes().size() - 1; i++) {
 				RoadNode startNode = way.getNode(i);
 				RoadNode endNode = way.getNode(i + 1);
-				edgeIndex2RoadID.put(edgeIndex, way.getID());    // sn from 0 to way.getNodes.size()-2
+				edgeRoadIDs[edgeIndex] = way.getID();
 				if (endPointLoc2EdgeIndex.containsKey(startNode.lon() + "_" + startNode.lat() + "," + endNode.lon() + "_" + endNode.lat() + "," + way.getID())) {
 					throw new IllegalArgumentException("The same start and end nodes generate multiple roads: " + edgeIndex);
 				}
 				endPointLoc2EdgeIndex.put(startNode.lon() + "_" + startNode.lat() + "," + endNode.lon() + "_" + endNode.lat() + "," + way.getID(), edgeIndex);
 				int startIndex = nodeID2Index.get(startNode.getID());
 				int endIndex = nodeID2Index.get(endNode.getID());
-				Pair<Integer, Integer> endPointIndices = new Pair<>(startIndex, endIndex);
-				if (endPointsIndex2EdgeIndex.containsKey(endPointIndices))
+				if (!endPointIndicesSet.add(new Pair<>(startIndex, endIndex)))
 					throw new IllegalArgumentException("The same start and end node id refer to multiple roads: " + edgeIndex);
-				endPointsIndex2EdgeIndex.put(endPointIndices, edgeIndex);
-				RoutingEdge currRoutingEdge = new RoutingEdge(edgeIndex, startIndex, endIndex, distFunc.distance(startNode.toPoint(),
-						endNode.toPoint()));
-				routingEdgeList.add(currRoutingEdge);
+				edgeFromIndex[edgeIndex] = startIndex;
+				edgeToIndex[edgeIndex] = endIndex;
+				edgeLength[edgeIndex] = distFunc.distance(startNode.toPoint(), endNode.toPoint());
 				if (isNewRoadIncluded && way.isNewRoad()) {
 					newEdgeSet.add(edgeIndex);
 					roadID2NewEdgeList.get(way.getID()).add(edgeIndex);
-				}
+				} else
+					isEdgeEnabled[edgeIndex] = true;
 				edgeIndex++;
 			}
 		}
-		this.routingEdges = new RoutingEdge[routingEdgeList.size()];
-		for (int i = 0; i < routingEdgeList.size(); i++) {
-			RoutingEdge currRoutingEdge = routingEdgeList.get(i);
-			if (currRoutingEdge.getIndex() != i)
-				throw new IllegalArgumentException("The current routing edge id is inconsistent: " + currRoutingEdge.getIndex() + "," + i + ".");
-			this.routingEdges[i] = currRoutingEdge;
-		}
 		
-		// create all vertices ready to be updated with the routingEdges
-		this.vertices = new RoutingVertex[vertexIndex];
+		this.vertexX = new double[vertexIndex];
+		this.vertexY = new double[vertexIndex];
 		for (int n = 0; n < vertexIndex; n++) {
-			this.vertices[n] = new RoutingVertex();
-			this.vertices[n].setIndex(n);
-			this.vertices[n].setVertexPoint(vertexID2Loc.get(n));
+			vertexX[n] = vertexLocList.get(n).x();
+			vertexY[n] = vertexLocList.get(n).y();
 		}
 		
-		// add all the routingEdges to the vertices, each edge added to only from vertices
-		for (int i = 0; i < this.routingEdges.length; i++) {
-			if (!isNewRoadIncluded || !newEdgeSet.contains(i))
-				this.vertices[routingEdges[i].getFromNodeIndex()].getOutGoingRoutingEdges().add(routingEdges[i]);
+		// build the CSR arrays, the edges of the new roads are included but disabled until they are inserted
+		this.offsets = new int[vertexIndex + 1];
+		for (int i = 0; i < edgeCount; i++)
+			offsets[edgeFromIndex[i] + 1]++;
+		for (int n = 0; n < vertexIndex; n++)
+			offsets[n + 1] += offsets[n];
+		this.targets = new int[edgeCount];
+		this.lengths = new double[edgeCount];
+		this.edgeIDs = new int[edgeCount];
+		int[] nextSlot = Arrays.copyOf(offsets, vertexIndex);
+		for (int i = 0; i < edgeCount; i++) {     // edges of the same vertex are kept in edge index order
+			int slot = nextSlot[edgeFromIndex[i]]++;
+			targets[slot] = edgeToIndex[i];
+			lengths[slot] = edgeLength[i];
+			edgeIDs[slot] = i;
 		}
 		
 		// check the completeness of the graph
-		for (RoutingVertex currVertex : this.vertices) {
-			if (currVertex.getOutGoingRoutingEdges().size() != 0) {
-				for (RoutingEdge e : currVertex.getOutGoingRoutingEdges()) {
-					outGoingNodeSet.add(e.getToNodeIndex());
-				}
+		boolean[] hasIncomingEdge = new boolean[vertexIndex];
+		boolean[] hasOutgoingEdge = new boolean[vertexIndex];
+		for (int i = 0; i < edgeCount; i++) {
+			if (isEdgeEnabled[i]) {
+				hasOutgoingEdge[edgeFromIndex[i]] = true;
+				hasIncomingEdge[edgeToIndex[i]] = true;
 			}
 		}
-		for (int i = 0; i < vertices.length; i++) {
-			if (this.vertices[i].getOutGoingRoutingEdges().size() == 0 && !outGoingNodeSet.contains(i) && !newNodeSet.contains(i))
+		for (int i = 0; i < vertexIndex; i++) {
+			if (!hasOutgoingEdge[i] && !hasIncomingEdge[i] && !newNodeSet.contains(i))
 				LOG.error("Isolated node detected: No. " + i);
 		}
 		LOG.info("Shortest path graph generated. Total vertices:" + vertexIndex + ", total edges:" + edgeIndex);
 	}
 	
+	/**
+	 * Create the graph from the CSR arrays of a map index bundle, all edges are enabled.
+	 */
+	private RoutingGraph(String[] edgeRoadIDs, DistanceFunction distFunc, int[] offsets, int[] targets, double[] lengths, int[] edgeIDs,
+						 int[] edgeFromIndex, int[] edgeToIndex, double[] vertexX, double[] vertexY) {
+		this.edgeRoadIDs = edgeRoadIDs;
+		this.distFunc = distFunc;
+		this.offsets = offsets;
+		this.targets = targets;
+		this.lengths = lengths;
+		this.edgeIDs = edgeIDs;
+		this.edgeFromIndex = edgeFromIndex;
+		this.edgeToIndex = edgeToIndex;
+		this.vertexX = vertexX;
+		this.vertexY = vertexY;
+		this.isEdgeEnabled = new boolean[edgeFromIndex.length];
+		Arrays.fill(isEdgeEnabled, true);
+	}
+	
+	/**
+	 * Read a graph written by <tt>write()</tt>, the search options of the map-matching properties are enabled afterwards.
+	 *
+	 * @param buffer      The buffer positioned at the graph, usually a mapped bundle file. The position is moved to the end of the graph.
+	 * @param edgeRoadIDs The road ID of each mini edge.
+	 * @param distFunc    The distance function of the map.
+	 * @param prop        The map-matching properties.
+	 * @return The graph.
+	 */
+	public static RoutingGraph read(ByteBuffer buffer, String[] edgeRoadIDs, DistanceFunction distFunc, BaseProperty prop) {
+		RoutingGraph graph = read(buffer, edgeRoadIDs, distFunc);
+		graph.enableOptions(prop, false);
+		return graph;
+	}
+	
+	/**
+	 * Read a graph written by <tt>write()</tt> without any search option.
+	 *
+	 * @param buffer      The buffer positioned at the graph, usually a mapped bundle file. The position is moved to the end of the graph.
+	 * @param edgeRoadIDs The road ID of each mini edge.
+	 * @param distFunc    The distance function of the map.
+	 * @return The graph.
+	 */
+	public static RoutingGraph read(ByteBuffer buffer, String[] edgeRoadIDs, DistanceFunction distFunc) {
+		int vertexCount = buffer.getInt();
+		int edgeCount = buffer.getInt();
+		if (edgeCount != edgeRoadIDs.length)
+			throw new IllegalArgumentException("The graph has " + edgeCount + " edges but " + edgeRoadIDs.length + " road IDs are given.");
+		double[] vertexX = MapIndexBundle.readDoubleArray(buffer, vertexCount);
+		double[] vertexY = MapIndexBundle.readDoubleArray(buffer, vertexCount);
+		int[] edgeFromIndex = MapIndexBundle.readIntArray(buffer, edgeCount);
+		int[] edgeToIndex = MapIndexBundle.readIntArray(buffer, edgeCount);
+		int[] offsets = MapIndexBundle.readIntArray(buffer, vertexCount + 1);
+		int[] targets = MapIndexBundle.readIntArray(buffer, edgeCount);
+		double[] lengths = MapIndexBundle.readDoubleArray(buffer, edgeCount);
+		int[] edgeIDs = MapIndexBundle.readIntArray(buffer, edgeCount);
+		RoutingGraph graph = new RoutingGraph(edgeRoadIDs, distFunc, offsets, targets, lengths, edgeIDs, edgeFromIndex, edgeToIndex,
+				vertexX, vertexY);
+		LOG.info("Shortest path graph read. Total vertices:" + vertexCount + ", total edges:" + edgeCount);
+		return graph;
+	}
+	
+	/**
+	 * Write the CSR arrays of the graph, in the layout read by <tt>read()</tt>. The road IDs are not written, they are kept by the map
+	 * index bundle. Only the static graph can be written.
+	 *
+	 * @param out The output stream.
+	 * @throws IOException File write failure.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		if (!newEdgeSet.isEmpty())
+			throw new IllegalArgumentException("The graph with new roads cannot be written.");
+		out.writeInt(vertexX.length);
+		out.writeInt(edgeFromIndex.length);
+		MapIndexBundle.writeDoubleArray(out, vertexX);
+		MapIndexBundle.writeDoubleArray(out, vertexY);
+		MapIndexBundle.writeIntArray(out, edgeFromIndex);
+		MapIndexBundle.writeIntArray(out, edgeToIndex);
+		MapIndexBundle.writeIntArray(out, offsets);
+		MapIndexBundle.writeIntArray(out, targets);
+		MapIndexBundle.writeDoubleArray(out, lengths);
+		MapIndexBundle.writeIntArray(out, edgeIDs);
+	}
+	
+	/**
+	 * Enable the path cache, the contraction hierarchy, the UBODT and the landmarks according to the map-matching properties.
+	 */
+	private void enableOptions(BaseProperty prop, boolean isNewRoadIncluded) {
+		if (prop.contains("algorithm.mapmatching.PathCacheCapacity") && prop.getPropertyLong("algorithm.mapmatching.PathCacheCapacity") > 0)
+			this.pathCache = new PathCache(prop.getPropertyLong("algorithm.mapmatching.PathCacheCapacity"));
+		
+		// the contraction hierarchy and the UBODT only apply to the static graph
+		String cacheFolder = prop.contains("algorithm.mapmatching.path.CacheFolder") ?
+				prop.getPropertyString("algorithm.mapmatching.path.CacheFolder") : "";
+		if (!isNewRoadIncluded && prop.contains("algorithm.mapmatching.UseContractionHierarchy")
+				&& prop.getPropertyBoolean("algorithm.mapmatching.UseContractionHierarchy"))
+			enableContractionHierarchy(cacheFolder);
+		if (!isNewRoadIncluded && prop.contains("algorithm.mapmatching.UseUBODT") && prop.getPropertyBoolean("algorithm.mapmatching.UseUBODT"))
+			enableUBODT(prop.contains("algorithm.mapmatching.UBODTDelta") ? prop.getPropertyDouble("algorithm.mapmatching.UBODTDelta") :
+					3000, cacheFolder);
+		if (!isNewRoadIncluded && prop.contains("algorithm.mapmatching.UseLandmarks") && prop.getPropertyBoolean("algorithm.mapmatching.UseLandmarks"))
+			enableLandmarks(prop.contains("algorithm.mapmatching.LandmarkCount") ? prop.getPropertyInteger("algorithm.mapmatching.LandmarkCount") : 16,
+					prop.contains("algorithm.mapmatching.LandmarkSelection") ? prop.getPropertyString("algorithm.mapmatching.LandmarkSelection") :
+							"avoid", prop.contains("path.InputMapFolder") ? prop.getPropertyString("path.InputMapFolder") : cacheFolder);
+	}
+	
+	/**
+	 * Use the contraction hierarchy for all subsequent shortest path queries. The hierarchy is loaded from the cache folder if it was
+	 * built from the same graph before, otherwise it is built and saved to the cache folder.
+	 *
+	 * @param cacheFolder The folder of the hierarchy file, the hierarchy is not persisted if empty.
+	 */
+	public void enableContractionHierarchy(String cacheFolder) {
+		long fingerprint = getGraphFingerprint();
+		String filePath = cacheFolder.isEmpty() ? "" : cacheFolder + "ch_" + Long.toHexString(fingerprint) + ".bin";
+		try {
+			if (!filePath.isEmpty())
+				this.contractionHierarchy = ContractionHierarchy.load(filePath, fingerprint);
+			if (this.contractionHierarchy == null) {
+				this.contractionHierarchy = ContractionHierarchy.build(vertexX.length, edgeFromIndex, edgeToIndex, getEdgeLengths(),
+						isEdgeEnabled, fingerprint);
+				if (!filePath.isEmpty()) {
+					IOService.createFolder(cacheFolder);
+					this.contractionHierarchy.save(filePath);
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("Failed to read or write the contraction hierarchy file: " + filePath, e);
+			if (this.contractionHierarchy == null)
+				this.contractionHierarchy = ContractionHierarchy.build(vertexX.length, edgeFromIndex, edgeToIndex, getEdgeLengths(),
+						isEdgeEnabled, fingerprint);
+		}
+	}
+	
+	/**
+	 * Answer all subsequent vertex to vertex queries shorter than delta by UBODT lookup. Longer queries still run the graph search, or
+	 * the contraction hierarchy if it is enabled. The table is mapped from the cache folder if it was built from the same graph and bound
+	 * before, otherwise it is built and saved to the cache folder.
+	 *
+	 * @param delta       The upper bound of the precomputed shortest distances, in metres.
+	 * @param cacheFolder The folder of the table file, the table is not persisted if empty.
+	 */
+	public void enableUBODT(double delta, String cacheFolder) {
+		long fingerprint = getGraphFingerprint();
+		String filePath = cacheFolder.isEmpty() ? "" : cacheFolder + "ubodt_" + Long.toHexString(fingerprint) + "_" + (long) delta + ".bin";
+		try {
+			if (!filePath.isEmpty())
+				this.ubodt = UBODT.load(filePath, fingerprint, delta);
+			if (this.ubodt == null) {
+				this.ubodt = UBODT.build(vertexX.length, offsets, targets, lengths, edgeIDs, isEdgeEnabled, delta, fingerprint);
+				if (!filePath.isEmpty()) {
+					IOService.createFolder(cacheFolder);
+					this.ubodt.save(filePath);
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("Failed to read or write the UBODT file: " + filePath, e);
+			if (this.ubodt == null)
+				this.ubodt = UBODT.build(vertexX.length, offsets, targets, lengths, edgeIDs, isEdgeEnabled, delta, fingerprint);
+		}
+	}
+	
+	/**
+	 * Use ALT search with the given landmarks for all subsequent searches. The landmark table is stored next to the map file and loaded
+	 * from there if it was built from the same graph before, otherwise it is built and saved.
+	 *
+	 * @param landmarkCount   Number of landmarks.
+	 * @param selectionMethod The landmark selection method, "farthest" or "avoid".
+	 * @param mapFolder       The folder of the table file, the table is not persisted if empty.
+	 */
+	public void enableLandmarks(int landmarkCount, String selectionMethod, String mapFolder) {
+		long fingerprint = getGraphFingerprint();
+		String filePath = mapFolder.isEmpty() ? "" : mapFolder + "landmark_" + Long.toHexString(fingerprint) + "_" + landmarkCount
+				+ selectionMethod + ".bin";
+		try {
+			if (!filePath.isEmpty())
+				this.landmarkTable = LandmarkTable.load(filePath, fingerprint, landmarkCount);
+			if (this.landmarkTable == null) {
+				this.landmarkTable = LandmarkTable.build(vertexX.length, edgeFromIndex, edgeToIndex, getEdgeLengths(), isEdgeEnabled,
+						landmarkCount, selectionMethod, fingerprint);
+				if (!filePath.isEmpty()) {
+					IOService.createFolder(mapFolder);
+					this.landmarkTable.save(filePath);
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("Failed to read or write the landmark file: " + filePath, e);
+			if (this.landmarkTable == null)
+				this.landmarkTable = LandmarkTable.build(vertexX.length, edgeFromIndex, edgeToIndex, getEdgeLengths(), isEdgeEnabled,
+						landmarkCount, selectionMethod, fingerprint);
+		}
+	}
+	
+	/**
+	 * Compute the turn costs between consecutive mini edges from the road geometry, which enables <tt>calculateManyToNTurnSP</tt>. The
+	 * costs stay valid when roads are inserted or removed.
+	 */
+	public void enableTurnCosts() {
+		if (this.turnCostTable == null)
+			this.turnCostTable = TurnCostTable.build(offsets, edgeIDs, edgeFromIndex, edgeToIndex, getEdgeLengths(), edgeRoadIDs, vertexX,
+					vertexY);
+	}
+	
+	/**
+	 * @return The shortest path cache, or null if the cache is disabled.
+	 */
+	public PathCache getPathCache() {
+		return pathCache;
+	}
+	
+	/**
+	 * @return The length of each mini edge, indexed by mini edge index.
+	 */
+	private double[] getEdgeLengths() {
+		double[] edgeLength = new double[edgeIDs.length];
+		for (int slot = 0; slot < edgeIDs.length; slot++)
+			edgeLength[edgeIDs[slot]] = lengths[slot];
+		return edgeLength;
+	}
+	
+	/**
+	 * The fingerprint identifies the graph structure that derived indices are built from, it changes whenever a vertex, an edge or an
+	 * edge length changes.
+	 *
+	 * @return The fingerprint of the current graph.
+	 */
+	long getGraphFingerprint() {
+		long fingerprint = 1125899906842597L;
+		fingerprint = 31 * fingerprint + vertexX.length;
+		for (int slot = 0; slot < targets.length; slot++) {
+			fingerprint = 31 * fingerprint + edgeIDs[slot];
+			fingerprint = 31 * fingerprint + targets[slot];
+			fingerprint = 31 * fingerprint + Double.doubleToLongBits(lengths[slot]);
+			fingerprint = 31 * fingerprint + (isEdgeEnabled[edgeIDs[slot]] ? 1 : 0);
+		}
+		return fingerprint;
+	}
+	
 	/**
 	 * Given a source match point and a set of destination points, the function calculate the shortest path to each destination and their
 	 * distance using Dijkstra algorithm.
@@ -150,333 +429,902 @@ public class RoutingGraph implements Serializable {
 	 * reachable within maxSearchDist.
 	 */
 	public List<Pair<Double, List<String>>> calculateOneToNDijkstraSP(PointMatch source, List<PointMatch> pointList, double maxSearchDist) {
+		return calculateOneToNSP(source, pointList, null, maxSearchDist);
+	}
+	
+	/**
+	 * Given a source match point and a set of destination points, the function calculate the shortest path to each destination and their
+	 * distance using A* algorithm. If the landmarks are enabled, ALT search replaces the reference point heuristic and the result is the
+	 * exact shortest path.
+	 *
+	 * @param source         The source match point and its segment.
+	 * @param pointList      The destination match point list.
+	 * @param referencePoint The point used to calculate heuristic reference distance.
+	 * @param maxSearchDist  The maximum search range where shortest path search terminates.
+	 * @return List of results which contain distance and shortest path. distance = Double.POSITIVE_INFINITY and path is empty if not
+	 * reachable within maxSearchDist.
+	 */
+	public List<Pair<Double, List<String>>> calculateOneToNAStarSP(PointMatch source, List<PointMatch> pointList,
+																   Point referencePoint, double maxSearchDist) {
+		return calculateOneToNSP(source, pointList, referencePoint, maxSearchDist);
+	}
+	
+	/**
+	 * The shortest path search shared by Dijkstra and A*. The search runs on the CSR arrays and the workspace of the current thread, no
+	 * object is created per visited vertex or per queue operation.
+	 *
+	 * @param source         The source match point and its segment.
+	 * @param pointList      The destination match point list.
+	 * @param referencePoint The point used to calculate heuristic reference distance, Dijkstra search if null.
+	 * @param maxSearchDist  The maximum search range where shortest path search terminates.
+	 * @return List of results which contain distance and shortest path.
+	 */
+	private List<Pair<Double, List<String>>> calculateOneToNSP(PointMatch source, List<PointMatch> pointList, Point referencePoint,
+															   double maxSearchDist) {
 		double[] distance = new double[pointList.size()];   // the distance to every destination
 		List<List<String>> path = new ArrayList<>(pointList.size());     // the path to every destination
-		HashMap<Integer, Integer> parent = new HashMap<>();        // the parent of each vertex, used during Dijkstra traversal
-		HashMap<Integer, Double> vertexDistFromSource = new HashMap<>();    // the distance from the vertex to the source node
-		HashSet<Integer> vertexVisited = new HashSet<>();        // set of vertices visited
-		List<Pair<Double, List<String>>> result;
-		
 		Arrays.fill(distance, Double.POSITIVE_INFINITY);
 		for (int i = 0; i < pointList.size(); i++) {
 			path.add(new ArrayList<>());
 		}
-		// the variables have been initialized during the last calculation. Start the process right away
-		HashMap<Integer, Set<Integer>> vertexID2DestIndexSet = new HashMap<>();        // all destinations that requires Dijkstra search,
-		// (destination vertex ID and destination index in pointList)
-		
 		
 		// if source point doesn't exist, return infinity to all distances
-//		String sourceLocID = source.getMatchedSegment().x1() + "_" + source.getMatchedSegment().y1() + "," + source.getMatchedSegment()
-//				.x2() + "_" + source.getMatchedSegment().y2() + "," + source.getRoadID();
-		
-		String sourceLocID = source.getMatchedSegment().x1() + "_" + source.getMatchedSegment().y1() +
-				"," + source.getMatchedSegment().x2() + "_" +
-				source.getMatchedSegment().y2() + "," + source.getRoadID().strip().split("\\|")[0];
-		
-		if (!this.endPointLoc2EdgeIndex.containsKey(sourceLocID)) {
-			LOG.error("Shortest distance calculation failed: Source node is not found: " + sourceLocID);
-			result = new ArrayList<>(resultOutput(distance, path));
-			return result;
+		int startEdgeIndex = getEdgeIndex(source);
+		if (startEdgeIndex == -1) {
+			LOG.error("Shortest distance calculation failed: Source node is not found: " + getEdgeLocID(source));
+			return resultOutput(distance, path);
 		}
 		
-		// the start node of the current Dijkstra rotation
-		int startEdgeIndex = endPointLoc2EdgeIndex.get(sourceLocID);
-		String startRoadID = edgeIndex2RoadID.get(startEdgeIndex);
-		int startNodeIndex = this.routingEdges[startEdgeIndex].getToNodeIndex();
+		// the start node of the current search rotation
+		SearchWorkspace ws = getWorkspace();
+		ws.reset(pointList.size());
+		String startRoadID = edgeRoadIDs[startEdgeIndex];
+		int startNodeIndex = edgeToIndex[startEdgeIndex];
 		double sourceDistance = this.distFunc.distance(source.getMatchPoint(), source.getMatchedSegment().p2());
+		// the A* result with a reference point is not necessarily the shortest, so it is neither served from nor stored to the cache
+		boolean isCacheUsed = pathCache != null && (referencePoint == null || contractionHierarchy != null || landmarkTable != null);
+		long cacheGeneration = isCacheUsed ? pathCache.getGeneration() : 0;
 		
 		// attach all destination points to the graph
 		int destPointCount = pointList.size();
+		int[] destEdgeIndices = new int[pointList.size()];
+		boolean[] isSearched = new boolean[pointList.size()];
 		for (int i = 0; i < pointList.size(); i++) {
-
-//			String destLocID = pointList.get(i).getMatchedSegment().x1() + "_" + pointList.get(i).getMatchedSegment().y1() + "," +
-//					pointList.get(i).getMatchedSegment().x2() + "_" + pointList.get(i).getMatchedSegment().y2() + "," + pointList.get(i)
-//					.getRoadID();
-			String destLocID = pointList.get(i).getMatchedSegment().x1() + "_" + pointList.get(i).getMatchedSegment().y1()
-					+ "," + pointList.get(i).getMatchedSegment().x2() + "_" + pointList.get(i).getMatchedSegment().y2()
-					+ "," + pointList.get(i).getRoadID().strip().split("\\|")[0];
-			
-			if (!endPointLoc2EdgeIndex.containsKey(destLocID)) {
-				LOG.error("Destination node is not found: " + destLocID);
+			PointMatch dest = pointList.get(i);
+			int destEdgeIndex = getEdgeIndex(dest);
+			destEdgeIndices[i] = destEdgeIndex;
+			if (destEdgeIndex == -1) {
+				LOG.error("Destination node is not found: " + getEdgeLocID(dest));
+				destPointCount--;
+			} else if (destEdgeIndex == startEdgeIndex && sourceDistance >= distFunc.distance(dest.getMatchPoint(),
+					dest.getMatchedSegment().p2())) {    // two segments refer to the same mini edge and they are in the right order
+				String destRoadID = edgeRoadIDs[destEdgeIndex];
+				if (!startRoadID.equals(destRoadID))
+					throw new IllegalArgumentException("Same mini edge occurred in different roads: " + destEdgeIndex + ".");
+				distance[i] = distFunc.distance(source.getMatchPoint(), dest.getMatchPoint());
+				path.get(i).add(destRoadID);
 				destPointCount--;
-//            } else if (pointList.get(i).getMatchPoint().equals2D(pointList.get(i).getMatchedSegment().p1())) {
-//                destPointCount--;
 			} else {
-				int destEdgeIndex = endPointLoc2EdgeIndex.get(destLocID);
-				String destRoadID = edgeIndex2RoadID.get(destEdgeIndex);
-//				double candidateRange = prop.getPropertyDouble("algorithm.mapmatching.CandidateRange");
-//				double backwardsFactor = prop.getPropertyDouble("algorithm.mapmatching.hmm.BackwardsFactor");
-				if (destEdgeIndex == startEdgeIndex && distFunc.distance(source.getMatchPoint(), source.getMatchedSegment().p2()) >=
-						distFunc.distance(pointList.get(i).getMatchPoint(), pointList.get(i).getMatchedSegment().p2())) {    // two segments
-					// refer to the same mini edge and they are in the right order
-					if (!startRoadID.equals(destRoadID))
-						throw new IllegalArgumentException("Same mini edge occurred in different roads: " + destEdgeIndex + " .");
-					distance[i] = distFunc.distance(source.getMatchPoint(), pointList.get(i).getMatchPoint());
-//						path.get(i).add(pointList.get(i).getRoadID());
-					path.get(i).add(destRoadID);
-					destPointCount--;
-//					} else if (destEdgeIndex == startEdgeIndex && distFunc.distance(source.getMatchPoint(),
-//							pointList.get(i).getMatchPoint()) < candidateRange * backwardsFactor) {  // vehicle may stop on the road
-//						// and the sampling point may be located backward, it is not initially inside the algorithm
-//						distance[i] = 1.1 * distFunc.distance(source.getMatchPoint(), pointList.get(i).getMatchPoint());
-//						path.get(i).add(pointList.get(i).getRoadID());
-//						destPointCount--;
-				} else if (vertexID2DestIndexSet.containsKey(this.routingEdges[destEdgeIndex].getFromNodeIndex())) {
-					vertexID2DestIndexSet.get(this.routingEdges[destEdgeIndex].getFromNodeIndex()).add(i);
+				Pair<Double, List<String>> knownPath = findPathWithoutSearch(startEdgeIndex, destEdgeIndex, maxSearchDist - sourceDistance,
+						isCacheUsed);
+				if (knownPath == null) {
+					ws.attachDestination(edgeFromIndex[destEdgeIndex], i);
+					isSearched[i] = true;
 				} else {
-					Set<Integer> indexSet = new HashSet<>();
-					indexSet.add(i);
-					vertexID2DestIndexSet.put(this.routingEdges[destEdgeIndex].getFromNodeIndex(), indexSet);
+					if (knownPath._1() != Double.POSITIVE_INFINITY) {
+						distance[i] = knownPath._1() + sourceDistance + distFunc.distance(dest.getMatchedSegment().p1(), dest.getMatchPoint());
+						completePath(path.get(i), knownPath._2(), startRoadID, sourceDistance, dest.lon(), dest.lat(),
+								destEdgeIndex);
+					}
+					destPointCount--;
 				}
 			}
 		}
 		
 		// the rest of the destinations are on different mini edges, now set the end of the current mini edge as start vertex
-		if (destPointCount > 0) {
-			// Dijkstra start node
-			vertexDistFromSource.put(startNodeIndex, 0d);
-			parent.put(startNodeIndex, startNodeIndex);
-			MinPriorityQueue minHeap = new MinPriorityQueue();
+		if (destPointCount > 0 && (contractionHierarchy != null || landmarkTable != null)) {
+			// collect the vertices that have destinations attached, each vertex appears once as the head of its destination list
+			int[] targetVertices = new int[destPointCount];
+			int targetCount = 0;
+			for (int i = 0; i < pointList.size(); i++) {
+				if (isSearched[i] && ws.firstDestination(edgeFromIndex[destEdgeIndices[i]]) == i)
+					targetVertices[targetCount++] = edgeFromIndex[destEdgeIndices[i]];
+			}
+			targetVertices = Arrays.copyOf(targetVertices, targetCount);
+			// the destination lists are read before the search as the ALT search reuses the workspace
+			int[] destNext = Arrays.copyOf(ws.destNext, pointList.size());
+			int[] firstDest = new int[targetCount];
+			for (int t = 0; t < targetCount; t++)
+				firstDest[t] = ws.firstDestination(targetVertices[t]);
+			int[][] miniEdgePaths = new int[targetCount][];
+			double[] targetDistance = new double[targetCount];
+			searchFromVertex(startNodeIndex, targetVertices, maxSearchDist - sourceDistance, targetDistance, 0, miniEdgePaths);
+			for (int t = 0; t < targetCount; t++) {
+				if (targetDistance[t] == Double.POSITIVE_INFINITY)
+					continue;
+				List<String> graphPath = findPath(miniEdgePaths[t]);
+				for (int i = firstDest[t]; i != -1; i = destNext[i]) {
+					PointMatch dest = pointList.get(i);
+					distance[i] = targetDistance[t] + sourceDistance + distFunc.distance(dest.getMatchedSegment().p1(), dest.getMatchPoint());
+					completePath(path.get(i), graphPath, startRoadID, sourceDistance, dest.lon(), dest.lat(),
+							destEdgeIndices[i]);
+					if (isCacheUsed)
+						pathCache.put(startEdgeIndex, destEdgeIndices[i], maxSearchDist - sourceDistance, targetDistance[t], graphPath,
+								cacheGeneration);
+				}
+			}
+		} else if (destPointCount > 0) {
+			double refX = referencePoint == null ? 0 : referencePoint.x();
+			double refY = referencePoint == null ? 0 : referencePoint.y();
+			ws.reach(startNodeIndex, 0, -1);
+			IndexedMinHeap minHeap = ws.minHeap;
 			int currIndex = startNodeIndex;
-
-//			LOG.info("start new shortest distance");
 			// visit every node
-			while (currIndex != -1 && vertexDistFromSource.get(currIndex) < (maxSearchDist - sourceDistance)) {
+			while (currIndex != -1 && ws.distFromSource[currIndex] < (maxSearchDist - sourceDistance)) {
 				// loop around the edges of current node
-//				LOG.info(vertexDistFromSource.get(currIndex));
-				List<RoutingEdge> currentOutgoingRoutingEdges = vertices[currIndex].getOutGoingRoutingEdges();
-				for (RoutingEdge currEdge : currentOutgoingRoutingEdges) {
-					int nextVertexIndex = currEdge.getToNodeIndex();
-					double tentative = vertexDistFromSource.get(currIndex) + currEdge.getLength();
-					if (!vertexVisited.contains(nextVertexIndex) && minHeap.decreaseKey(nextVertexIndex, tentative)) {
-						vertexDistFromSource.put(nextVertexIndex, tentative);
-						parent.put(nextVertexIndex, currIndex);
-					}
+				double currDist = ws.distFromSource[currIndex];
+				for (int slot = offsets[currIndex]; slot < offsets[currIndex + 1]; slot++) {
+					if (!isEdgeEnabled[edgeIDs[slot]])
+						continue;
+					int nextVertexIndex = targets[slot];
+					if (ws.isVisited(nextVertexIndex))
+						continue;
+					double distFromSource = currDist + lengths[slot];
+					double searchDist = referencePoint == null ? distFromSource : distFromSource
+							+ distFunc.pointToPointDistance(vertexX[nextVertexIndex], vertexY[nextVertexIndex], refX, refY);
+					if (minHeap.decreaseKey(nextVertexIndex, searchDist)
+							&& (!ws.isReached(nextVertexIndex) || ws.distFromSource[nextVertexIndex] > distFromSource))
+						ws.reach(nextVertexIndex, distFromSource, edgeIDs[slot]);
 				}
 				// all neighbours checked so node visited
-				vertexVisited.add(currIndex);
-				if (vertexID2DestIndexSet.containsKey(currIndex)) {
-					for (Integer i : vertexID2DestIndexSet.get(currIndex)) {
-						destPointCount--;
-						distance[i] = vertexDistFromSource.get(currIndex);
-						distance[i] += sourceDistance;
-						distance[i] += distFunc.distance(pointList.get(i).getMatchedSegment().p1(), pointList.get(i).getMatchPoint());
-						if (sourceDistance != 0)
-							path.get(i).add(startRoadID);
-						path.get(i).addAll(findPath(currIndex, parent));
-						if (path.get(i).size() > 1 && path.get(i).get(0).equals(path.get(i).get(1)))
-							path.get(i).remove(1);    // remove the duplicated start road ID
-						String lastRoadID = pointList.get(i).getRoadID().strip().split("\\|")[0];
-						if (!pointList.get(i).getMatchedSegment().p1().equals2D(pointList.get(i).getMatchPoint())) {
-							if (path.get(i).isEmpty() || !lastRoadID.equals(path.get(i).get(path.get(i).size() - 1)))
-								path.get(i).add(lastRoadID);
-						}
-					}
-				}
-				if (destPointCount == 0) {
-					result = new ArrayList<>(resultOutput(distance, path));
-					return result;
+				ws.visit(currIndex);
+				for (int i = ws.firstDestination(currIndex); i != -1; i = ws.destNext[i]) {
+					destPointCount--;
+					PointMatch dest = pointList.get(i);
+					List<String> graphPath = findPath(currIndex, ws);
+					distance[i] = currDist + sourceDistance + distFunc.distance(dest.getMatchedSegment().p1(), dest.getMatchPoint());
+					completePath(path.get(i), graphPath, startRoadID, sourceDistance, dest.lon(), dest.lat(),
+							destEdgeIndices[i]);
+					if (isCacheUsed)
+						pathCache.put(startEdgeIndex, destEdgeIndices[i], maxSearchDist - sourceDistance, currDist, graphPath, cacheGeneration);
 				}
+				if (destPointCount == 0)
+					break;
 				// next node must be with shortest distance
-//                minHeap.buildMinHeap();
-//                currNode = minHeap.extractMin().getIndex();
 				currIndex = minHeap.extractMin();
-//            if(index!=currNode){
-//                double value1 = vertices[index].getDistanceFromSource();
-//                double value2 = vertices[currNode].getDistanceFromSource();
-//                LOG.info("Inconsistent index");
-//            }
-			}
-//            LOG.info((pointList.size() - destPointCount) + "/" + pointList.size() + "distances are found.");
-			result = new ArrayList<>(resultOutput(distance, path));
-			return result;
+			}
 		}
-		result = new ArrayList<>(resultOutput(distance, path));
-		return result;
+		if (isCacheUsed) {   // the searched destinations that are not reached
+			for (int i = 0; i < pointList.size(); i++) {
+				if (isSearched[i] && distance[i] == Double.POSITIVE_INFINITY)
+					pathCache.put(startEdgeIndex, destEdgeIndices[i], maxSearchDist - sourceDistance, Double.POSITIVE_INFINITY,
+							Collections.emptyList(), cacheGeneration);
+			}
+		}
+		return resultOutput(distance, path);
 	}
 	
 	/**
-	 * Given a source match point and a set of destination points, the function calculate the shortest path to each destination and their
-	 * distance using A* algorithm.
+	 * Given a set of source match points and a set of destination points, the function calculate the shortest path from every source to
+	 * every destination in one query. All edge lookups are done once and the sources and destinations on the same vertex share their
+	 * search. The vertex pairs answered by the path cache or the UBODT are taken first, the remaining pairs are searched as the sub-matrix
+	 * of their start and target vertices, in one bucket-based many-to-many query if the contraction hierarchy is enabled. Otherwise each
+	 * start vertex runs one bounded search with all its targets attached, bounded by the farthest source on it, so the searches of
+	 * different start vertices share no work and the speedup over one search per source relies on the contraction hierarchy.
 	 *
-	 * @param source         The source match point and its segment.
-	 * @param pointList      The destination match point list.
-	 * @param referencePoint The point used to calculate heuristic reference distance.
-	 * @param maxSearchDist  The maximum search range where shortest path search terminates.
-	 * @return List of results which contain distance and shortest path. distance = Double.POSITIVE_INFINITY and path is empty if not
-	 * reachable within maxSearchDist.
+	 * @param sourceList    The source match point list.
+	 * @param pointList     The destination match point list.
+	 * @param maxSearchDist The maximum search range where shortest path search terminates.
+	 * @return The distance and road path matrix. The distance is Double.POSITIVE_INFINITY and path is empty if not reachable within
+	 * maxSearchDist, same as <tt>calculateOneToNDijkstraSP</tt>.
 	 */
-	public List<Pair<Double, List<String>>> calculateOneToNAStarSP(PointMatch source, List<PointMatch> pointList,
-																   Point referencePoint, double maxSearchDist) {
-		double[] distance = new double[pointList.size()];   // the distance to every destination
-		List<List<String>> path = new ArrayList<>(pointList.size());     // the path to every destination
-		HashMap<Integer, Integer> parent = new HashMap<>();        // the parent of each vertex, used during A* traversal
-		HashMap<Integer, Double> vertexDistFromSource = new HashMap<>();    // the distance from the vertex to the source node
-		HashSet<Integer> vertexVisited = new HashSet<>();        // set of vertices visited
-		List<Pair<Double, List<String>>> result;
+	public RouteMatrix calculateManyToNSP(List<PointMatch> sourceList, List<PointMatch> pointList, double maxSearchDist) {
+		return calculateManyToNSP(getEdgeIndices(sourceList, "Shortest distance calculation failed: Source node is not found: "),
+				getMatchX(sourceList), getMatchY(sourceList), getEdgeIndices(pointList, "Destination node is not found: "),
+				getMatchX(pointList), getMatchY(pointList), maxSearchDist);
+	}
+	
+	/**
+	 * <tt>calculateManyToNSP</tt> on match points given as mini edge indices and match point coordinates, so the candidates of a batch
+	 * search can be routed without creating <tt>PointMatch</tt> objects. The match point of each entry must lie on its mini edge.
+	 *
+	 * @param sourceEdges   The mini edge index of each source, -1 entries are not reachable.
+	 * @param sourceX       The x coordinate of each source match point.
+	 * @param sourceY       The y coordinate of each source match point.
+	 * @param destEdges     The mini edge index of each destination, -1 entries are not reachable.
+	 * @param destX         The x coordinate of each destination match point.
+	 * @param destY         The y coordinate of each destination match point.
+	 * @param maxSearchDist The maximum search range where shortest path search terminates.
+	 * @return The distance and road path matrix, same as <tt>calculateManyToNSP</tt>.
+	 */
+	public RouteMatrix calculateManyToNSP(int[] sourceEdges, double[] sourceX, double[] sourceY, int[] destEdges, double[] destX,
+										  double[] destY, double maxSearchDist) {
+		int sourceCount = sourceEdges.length;
+		int destCount = destEdges.length;
+		RouteMatrix result = new RouteMatrix(sourceCount, destCount);
+		if (sourceCount == 0 || destCount == 0)
+			return result;
 		
-		Arrays.fill(distance, Double.POSITIVE_INFINITY);
-		for (int i = 0; i < pointList.size(); i++) {
-			path.add(new ArrayList<>());
+		// collect the distinct destination vertices
+		int[] destTargetIndex = new int[destCount];    // the index of the destination vertex in targetVertices
+		int[] targetVertices = new int[destCount];
+		int[] targetEdges = new int[destCount];     // the first destination edge of each destination vertex, used as cache key
+		int targetCount = 0;
+		HashMap<Integer, Integer> vertex2TargetIndex = new HashMap<>();
+		for (int j = 0; j < destCount; j++) {
+			if (destEdges[j] == -1) {
+				destTargetIndex[j] = -1;
+				continue;
+			}
+			int vertex = edgeFromIndex[destEdges[j]];
+			Integer targetIndex = vertex2TargetIndex.get(vertex);
+			if (targetIndex == null) {
+				targetIndex = targetCount;
+				vertex2TargetIndex.put(vertex, targetIndex);
+				targetEdges[targetCount] = destEdges[j];
+				targetVertices[targetCount++] = vertex;
+			}
+			destTargetIndex[j] = targetIndex;
 		}
-		// the variables have been initialized during the last calculation. Start the process right away
-		HashMap<Integer, Set<Integer>> vertexID2DestIndexSet = new HashMap<>();        // all destinations that requires A* search,
-		// (destination vertex ID and destination index in pointList)
+		targetVertices = Arrays.copyOf(targetVertices, targetCount);
 		
+		// collect the distinct start vertices
+		int[] sourceStartIndex = new int[sourceCount];   // the index of the start vertex in startVertices
+		double[] sourceDistance = new double[sourceCount];
+		int[] startVertices = new int[sourceCount];
+		int[] startEdges = new int[sourceCount];     // the first source edge of each start vertex, used as cache key
+		int startCount = 0;
+		double[] startSearchDist = new double[sourceCount];  // the largest search range needed by the sources of each start vertex
+		double maxVertexSearchDist = 0;    // the largest search range needed by any source
+		HashMap<Integer, Integer> vertex2StartIndex = new HashMap<>();
+		for (int i = 0; i < sourceCount; i++) {
+			if (sourceEdges[i] == -1) {
+				sourceStartIndex[i] = -1;
+				continue;
+			}
+			sourceDistance[i] = getDistanceToEnd(sourceEdges[i], sourceX[i], sourceY[i]);
+			maxVertexSearchDist = Math.max(maxVertexSearchDist, maxSearchDist - sourceDistance[i]);
+			int vertex = edgeToIndex[sourceEdges[i]];
+			Integer startIndex = vertex2StartIndex.get(vertex);
+			if (startIndex == null) {
+				startIndex = startCount;
+				vertex2StartIndex.put(vertex, startIndex);
+				startEdges[startCount] = sourceEdges[i];
+				startVertices[startCount++] = vertex;
+			}
+			sourceStartIndex[i] = startIndex;
+			startSearchDist[startIndex] = Math.max(startSearchDist[startIndex], maxSearchDist - sourceDistance[i]);
+		}
+		startVertices = Arrays.copyOf(startVertices, startCount);
 		
-		// if source point doesn't exist, return infinity to all distances
-//		String sourceLocID = source.getMatchedSegment().x1() + "_" + source.getMatchedSegment().y1() + "," + source.getMatchedSegment()
-//				.x2() + "_" + source.getMatchedSegment().y2() + "," + source.getRoadID();
-		
-		String sourceLocID = source.getMatchedSegment().x1() + "_" + source.getMatchedSegment().y1() +
-				"," + source.getMatchedSegment().x2() + "_" +
-				source.getMatchedSegment().y2() + "," + source.getRoadID().strip().split("\\|")[0];
+		// vertex to vertex distances and road paths, the pairs answered by the path cache or the UBODT are not searched
+		double[] vertexDistance = new double[startCount * targetCount];
+		List<List<String>> graphPaths = new ArrayList<>(Collections.nCopies(startCount * targetCount, null));
+		boolean[] isStartMissed = new boolean[startCount];
+		boolean[] isTargetMissed = new boolean[targetCount];
+		int missedStartCount = 0;
+		int missedTargetCount = 0;
+		for (int s = 0; s < startCount; s++) {
+			for (int t = 0; t < targetCount; t++) {
+				Pair<Double, List<String>> knownPath = findPathWithoutSearch(startEdges[s], targetEdges[t], startSearchDist[s], true);
+				if (knownPath != null) {
+					vertexDistance[s * targetCount + t] = knownPath._1();
+					graphPaths.set(s * targetCount + t, knownPath._2());
+					continue;
+				}
+				if (!isStartMissed[s]) {
+					isStartMissed[s] = true;
+					missedStartCount++;
+				}
+				if (!isTargetMissed[t]) {
+					isTargetMissed[t] = true;
+					missedTargetCount++;
+				}
+			}
+		}
+		if (missedStartCount > 0) {
+			// the missed pairs are searched as the sub-matrix of the start vertices and the target vertices with any missed pair
+			int[] missedStarts = new int[missedStartCount];
+			int[] missedTargets = new int[missedTargetCount];
+			for (int s = 0, k = 0; s < startCount; s++) {
+				if (isStartMissed[s])
+					missedStarts[k++] = s;
+			}
+			for (int t = 0, k = 0; t < targetCount; t++) {
+				if (isTargetMissed[t])
+					missedTargets[k++] = t;
+			}
+			int[] missedTargetVertices = new int[missedTargetCount];
+			for (int k = 0; k < missedTargetCount; k++)
+				missedTargetVertices[k] = targetVertices[missedTargets[k]];
+			int[][] miniEdgePaths = new int[missedStartCount * missedTargetCount][];
+			double[] missedDistance;
+			if (contractionHierarchy != null) {
+				int[] missedStartVertices = new int[missedStartCount];
+				for (int k = 0; k < missedStartCount; k++)
+					missedStartVertices[k] = startVertices[missedStarts[k]];
+				missedDistance = contractionHierarchy.calculateManyToN(missedStartVertices, missedTargetVertices, maxVertexSearchDist,
+						miniEdgePaths);
+			} else {
+				missedDistance = new double[missedStartCount * missedTargetCount];
+				for (int k = 0; k < missedStartCount; k++)
+					searchFromVertex(startVertices[missedStarts[k]], missedTargetVertices, startSearchDist[missedStarts[k]],
+							missedDistance, k * missedTargetCount, miniEdgePaths);
+			}
+			long cacheGeneration = pathCache == null ? 0 : pathCache.getGeneration();
+			for (int k = 0; k < missedStartCount; k++) {
+				int s = missedStarts[k];
+				double searchDist = contractionHierarchy != null ? maxVertexSearchDist : startSearchDist[s];
+				for (int l = 0; l < missedTargetCount; l++) {
+					int t = missedTargets[l];
+					int cell = s * targetCount + t;
+					if (graphPaths.get(cell) != null)    // answered without search
+						continue;
+					int missedCell = k * missedTargetCount + l;
+					vertexDistance[cell] = missedDistance[missedCell];
+					graphPaths.set(cell, missedDistance[missedCell] == Double.POSITIVE_INFINITY ? Collections.emptyList() :
+							findPath(miniEdgePaths[missedCell]));
+					if (pathCache != null)
+						pathCache.put(startEdges[s], targetEdges[t], searchDist, vertexDistance[cell], graphPaths.get(cell),
+								cacheGeneration);
+				}
+			}
+		}
 		
-		if (!this.endPointLoc2EdgeIndex.containsKey(sourceLocID)) {
-			LOG.error("Shortest distance calculation failed: Source node is not found: " + sourceLocID);
-			result = new ArrayList<>(resultOutput(distance, path));
+		// assemble the result of each source-destination pair
+		for (int i = 0; i < sourceCount; i++) {
+			if (sourceStartIndex[i] == -1)
+				continue;
+			String startRoadID = edgeRoadIDs[sourceEdges[i]];
+			for (int j = 0; j < destCount; j++) {
+				if (destTargetIndex[j] == -1)
+					continue;
+				if (destEdges[j] == sourceEdges[i] && sourceDistance[i] >= getDistanceToEnd(destEdges[j], destX[j], destY[j])) {
+					// two segments refer to the same mini edge and they are in the right order
+					result.setDistance(i, j, distFunc.pointToPointDistance(sourceX[i], sourceY[i], destX[j], destY[j]));
+					result.getPath(i, j).add(startRoadID);
+					continue;
+				}
+				int cell = sourceStartIndex[i] * targetCount + destTargetIndex[j];
+				if (vertexDistance[cell] < maxSearchDist - sourceDistance[i]) {
+					result.setDistance(i, j, vertexDistance[cell] + sourceDistance[i] + getDistanceFromStart(destEdges[j], destX[j],
+							destY[j]));
+					completePath(result.getPath(i, j), graphPaths.get(cell), startRoadID, sourceDistance[i], destX[j], destY[j],
+							destEdges[j]);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Turn-aware version of <tt>calculateManyToNSP</tt>. The search runs on the edge-expanded graph, where moving from one road to another
+	 * costs <tt>turnWeight</tt> times the number of turns in addition to the road length, so the returned distance is the turn-weighted
+	 * route length of the cheapest route, including the turns onto the destination road. A route that stays on the road of the source has
+	 * no turn, its cost is its plain length. Both the search bound and the result refer to the turn-weighted length. The contraction
+	 * hierarchy, the UBODT, the landmarks and the path cache only hold plain lengths and are not used. <tt>enableTurnCosts</tt> must be
+	 * called first.
+	 *
+	 * @param sourceList    The source match point list.
+	 * @param pointList     The destination match point list.
+	 * @param maxSearchDist The maximum turn-weighted search range where shortest path search terminates.
+	 * @param turnWeight    The cost of each turn, in metres.
+	 * @return The turn-weighted distance and road path matrix, the distance is Double.POSITIVE_INFINITY and path is empty if not
+	 * reachable within maxSearchDist.
+	 */
+	public RouteMatrix calculateManyToNTurnSP(List<PointMatch> sourceList, List<PointMatch> pointList, double maxSearchDist,
+											  double turnWeight) {
+		return calculateManyToNTurnSP(getEdgeIndices(sourceList, "Shortest distance calculation failed: Source node is not found: "),
+				getMatchX(sourceList), getMatchY(sourceList), getEdgeIndices(pointList, "Destination node is not found: "),
+				getMatchX(pointList), getMatchY(pointList), maxSearchDist, turnWeight);
+	}
+	
+	/**
+	 * <tt>calculateManyToNTurnSP</tt> on match points given as mini edge indices and match point coordinates, see the array version of
+	 * <tt>calculateManyToNSP</tt>.
+	 *
+	 * @param sourceEdges   The mini edge index of each source, -1 entries are not reachable.
+	 * @param sourceX       The x coordinate of each source match point.
+	 * @param sourceY       The y coordinate of each source match point.
+	 * @param destEdges     The mini edge index of each destination, -1 entries are not reachable.
+	 * @param destX         The x coordinate of each destination match point.
+	 * @param destY         The y coordinate of each destination match point.
+	 * @param maxSearchDist The maximum turn-weighted search range where shortest path search terminates.
+	 * @param turnWeight    The cost of each turn, in metres.
+	 * @return The turn-weighted distance and road path matrix, same as <tt>calculateManyToNTurnSP</tt>.
+	 */
+	public RouteMatrix calculateManyToNTurnSP(int[] sourceEdges, double[] sourceX, double[] sourceY, int[] destEdges, double[] destX,
+											  double[] destY, double maxSearchDist, double turnWeight) {
+		if (turnCostTable == null)
+			throw new IllegalArgumentException("The turn costs are not enabled in the routing graph.");
+		int sourceCount = sourceEdges.length;
+		int destCount = destEdges.length;
+		RouteMatrix result = new RouteMatrix(sourceCount, destCount);
+		if (sourceCount == 0 || destCount == 0)
 			return result;
+		
+		// the sources on the same mini edge share one search
+		int[] sourceStartIndex = new int[sourceCount];
+		double[] sourceDistance = new double[sourceCount];
+		int[] startEdges = new int[sourceCount];
+		int startCount = 0;
+		double maxEdgeSearchDist = 0;
+		HashMap<Integer, Integer> edge2StartIndex = new HashMap<>();
+		for (int i = 0; i < sourceCount; i++) {
+			if (sourceEdges[i] == -1) {
+				sourceStartIndex[i] = -1;
+				continue;
+			}
+			sourceDistance[i] = getDistanceToEnd(sourceEdges[i], sourceX[i], sourceY[i]);
+			maxEdgeSearchDist = Math.max(maxEdgeSearchDist, maxSearchDist - sourceDistance[i]);
+			Integer startIndex = edge2StartIndex.get(sourceEdges[i]);
+			if (startIndex == null) {
+				startIndex = startCount;
+				edge2StartIndex.put(sourceEdges[i], startIndex);
+				startEdges[startCount++] = sourceEdges[i];
+			}
+			sourceStartIndex[i] = startIndex;
 		}
 		
-		// the start node of the current A* rotation
-		int startEdgeIndex = endPointLoc2EdgeIndex.get(sourceLocID);
-		String startRoadID = edgeIndex2RoadID.get(startEdgeIndex);
-		int startNodeIndex = this.routingEdges[startEdgeIndex].getToNodeIndex();
-		double sourceDistance = this.distFunc.distance(source.getMatchPoint(), source.getMatchedSegment().p2());
+		double[] edgeDistance = new double[startCount * destCount];
+		int[][] miniEdgePaths = new int[startCount * destCount][];
+		for (int s = 0; s < startCount; s++)
+			searchWithTurnCosts(startEdges[s], destEdges, maxEdgeSearchDist, turnWeight, edgeDistance, s * destCount, miniEdgePaths);
 		
-		// attach all destination points to the graph
-		int destPointCount = pointList.size();
-		for (int i = 0; i < pointList.size(); i++) {
-
-//			String destLocID = pointList.get(i).getMatchedSegment().x1() + "_" + pointList.get(i).getMatchedSegment().y1() + "," +
-//					pointList.get(i).getMatchedSegment().x2() + "_" + pointList.get(i).getMatchedSegment().y2() + "," + pointList.get(i)
-//					.getRoadID();
-			String destLocID = pointList.get(i).getMatchedSegment().x1() + "_" + pointList.get(i).getMatchedSegment().y1()
-					+ "," + pointList.get(i).getMatchedSegment().x2() + "_" + pointList.get(i).getMatchedSegment().y2()
-					+ "," + pointList.get(i).getRoadID().strip().split("\\|")[0];
-			
-			if (!endPointLoc2EdgeIndex.containsKey(destLocID)) {
-				LOG.error("Destination node is not found: " + destLocID);
-				destPointCount--;
-//            } else if (pointList.get(i).getMatchPoint().equals2D(pointList.get(i).getMatchedSegment().p1())) {
-//                destPointCount--;
-			} else {
-				int destEdgeIndex = endPointLoc2EdgeIndex.get(destLocID);
-				String destRoadID = edgeIndex2RoadID.get(destEdgeIndex);
-//				double candidateRange = prop.getPropertyDouble("algorithm.mapmatching.CandidateRange");
-//				double backwardsFactor = prop.getPropertyDouble("algorithm.mapmatching.hmm.BackwardsFactor");
-				if (destEdgeIndex == startEdgeIndex && distFunc.distance(source.getMatchPoint(), source.getMatchedSegment().p2()) >=
-						distFunc.distance(pointList.get(i).getMatchPoint(), pointList.get(i).getMatchedSegment().p2())) {    // two segments
-					// refer to the same mini edge and they are in the right order
-					if (!startRoadID.equals(destRoadID))
-						throw new IllegalArgumentException("Same mini edge occurred in different roads: " + destEdgeIndex + ".");
-					distance[i] = distFunc.distance(source.getMatchPoint(), pointList.get(i).getMatchPoint());
-//						path.get(i).add(pointList.get(i).getRoadID());
-					path.get(i).add(destRoadID);
-					destPointCount--;
-//					} else if (destEdgeIndex == startEdgeIndex && distFunc.distance(source.getMatchPoint(),
-//							pointList.get(i).getMatchPoint()) < candidateRange * backwardsFactor) {  // vehicle may stop on the road
-//						// and the sampling point may be located backward, it is not initially inside the algorithm
-//						distance[i] = 1.1 * distFunc.distance(source.getMatchPoint(), pointList.get(i).getMatchPoint());
-//						path.get(i).add(pointList.get(i).getRoadID());
-//						destPointCount--;
-				} else if (vertexID2DestIndexSet.containsKey(this.routingEdges[destEdgeIndex].getFromNodeIndex())) {
-					vertexID2DestIndexSet.get(this.routingEdges[destEdgeIndex].getFromNodeIndex()).add(i);
-				} else {
-					Set<Integer> indexSet = new HashSet<>();
-					indexSet.add(i);
-					vertexID2DestIndexSet.put(this.routingEdges[destEdgeIndex].getFromNodeIndex(), indexSet);
+		for (int i = 0; i < sourceCount; i++) {
+			if (sourceStartIndex[i] == -1)
+				continue;
+			String startRoadID = edgeRoadIDs[sourceEdges[i]];
+			for (int j = 0; j < destCount; j++) {
+				if (destEdges[j] == -1)
+					continue;
+				if (destEdges[j] == sourceEdges[i] && sourceDistance[i] >= getDistanceToEnd(destEdges[j], destX[j], destY[j])) {
+					// two segments refer to the same mini edge and they are in the right order
+					result.setDistance(i, j, distFunc.pointToPointDistance(sourceX[i], sourceY[i], destX[j], destY[j]));
+					result.getPath(i, j).add(startRoadID);
+					continue;
+				}
+				int cell = sourceStartIndex[i] * destCount + j;
+				if (edgeDistance[cell] < maxSearchDist - sourceDistance[i]) {
+					result.setDistance(i, j, edgeDistance[cell] + sourceDistance[i] + getDistanceFromStart(destEdges[j], destX[j],
+							destY[j]));
+					completePath(result.getPath(i, j), findPath(miniEdgePaths[cell]), startRoadID, sourceDistance[i], destX[j], destY[j],
+							destEdges[j]);
 				}
 			}
 		}
-		
-		// the rest of the destinations are on different mini edges, now set the end of the current mini edge as start vertex
-		if (destPointCount > 0) {
-			// A* start node
-			double hDist;
-			double distFromSource;
-			double searchDist;
-			int nextVertexIndex;
-			vertexDistFromSource.put(startNodeIndex, 0d);
-			parent.put(startNodeIndex, startNodeIndex);
-			MinPriorityQueue minHeap = new MinPriorityQueue();
-			int currIndex = startNodeIndex;
-
-//			LOG.info("start new shortest distance");
-			// visit every node
-			while (currIndex != -1 && vertexDistFromSource.get(currIndex) < (maxSearchDist - sourceDistance)) {
-				// loop around the edges of current node
-//				LOG.info(vertexDistFromSource.get(currIndex));
-				List<RoutingEdge> currentOutgoingRoutingEdges = vertices[currIndex].getOutGoingRoutingEdges();
-				for (RoutingEdge currEdge : currentOutgoingRoutingEdges) {
-					nextVertexIndex = currEdge.getToNodeIndex();
-					distFromSource = vertexDistFromSource.get(currIndex) + currEdge.getLength();
-					hDist = distFunc.distance(this.vertices[nextVertexIndex].getVertexPoint(), referencePoint);
-					searchDist = distFromSource + hDist;
-					if (!vertexVisited.contains(nextVertexIndex) && minHeap.decreaseKey(nextVertexIndex, searchDist)
-							&& (!vertexDistFromSource.containsKey(nextVertexIndex) || vertexDistFromSource.get(nextVertexIndex) > distFromSource)) {
-						vertexDistFromSource.put(nextVertexIndex, distFromSource);
-						parent.put(nextVertexIndex, currIndex);
+		return result;
+	}
+	
+	/**
+	 * Answer a query from the path cache or the UBODT without searching the graph.
+	 *
+	 * @param sourceEdge     The source mini edge index, the query starts from its end vertex.
+	 * @param destEdge       The destination mini edge index, the query ends at its start vertex.
+	 * @param maxSearchDist  Only the destination closer than maxSearchDist is reached.
+	 * @param isCacheEnabled Whether the path cache can be used.
+	 * @return The vertex to vertex distance and road path, the distance is Double.POSITIVE_INFINITY and path is empty if not reachable
+	 * within maxSearchDist. Null if the graph has to be searched.
+	 */
+	private Pair<Double, List<String>> findPathWithoutSearch(int sourceEdge, int destEdge, double maxSearchDist, boolean isCacheEnabled) {
+		if (pathCache != null && isCacheEnabled) {
+			Pair<Double, List<String>> cachedPath = pathCache.get(sourceEdge, destEdge, maxSearchDist);
+			if (cachedPath != null)
+				return cachedPath;
+		}
+		if (ubodt == null)
+			return null;
+		int startVertex = edgeToIndex[sourceEdge];
+		int targetVertex = edgeFromIndex[destEdge];
+		double vertexDistance = ubodt.getDistance(startVertex, targetVertex);
+		if (vertexDistance == Double.POSITIVE_INFINITY)     // the distance is at least delta
+			return maxSearchDist <= ubodt.getDelta() ? new Pair<>(Double.POSITIVE_INFINITY, Collections.emptyList()) : null;
+		if (vertexDistance >= maxSearchDist)
+			return new Pair<>(Double.POSITIVE_INFINITY, Collections.emptyList());
+		int[] miniEdgePath = ubodt.getMiniEdgePath(startVertex, targetVertex, edgeToIndex);
+		return miniEdgePath == null ? null : new Pair<>(vertexDistance, findPath(miniEdgePath));
+	}
+	
+	/**
+	 * Bounded search from a vertex to a set of target vertices, using the contraction hierarchy if it is enabled, otherwise ALT if the
+	 * landmarks are enabled, otherwise Dijkstra.
+	 *
+	 * @param startVertex    The start vertex index.
+	 * @param targetVertices The distinct target vertex indices.
+	 * @param maxSearchDist  Only the targets closer than maxSearchDist are reached.
+	 * @param distance       Output, the distance to each target is written from distanceOffset, Double.POSITIVE_INFINITY if unreachable.
+	 * @param distanceOffset The start index of the output in distance and miniEdgePaths.
+	 * @param miniEdgePaths  Output, the mini edge path to each reached target.
+	 */
+	private void searchFromVertex(int startVertex, int[] targetVertices, double maxSearchDist, double[] distance, int distanceOffset,
+								  int[][] miniEdgePaths) {
+		if (contractionHierarchy != null) {
+			int[][] rowPaths = new int[targetVertices.length][];
+			double[] rowDistance = contractionHierarchy.calculateOneToN(startVertex, targetVertices, maxSearchDist, rowPaths);
+			System.arraycopy(rowDistance, 0, distance, distanceOffset, targetVertices.length);
+			System.arraycopy(rowPaths, 0, miniEdgePaths, distanceOffset, targetVertices.length);
+			return;
+		}
+		if (landmarkTable != null) {
+			searchWithLandmarks(startVertex, targetVertices, maxSearchDist, distance, distanceOffset, miniEdgePaths);
+			return;
+		}
+		Arrays.fill(distance, distanceOffset, distanceOffset + targetVertices.length, Double.POSITIVE_INFINITY);
+		SearchWorkspace ws = getWorkspace();
+		ws.reset(targetVertices.length);
+		for (int t = 0; t < targetVertices.length; t++)
+			ws.attachDestination(targetVertices[t], t);
+		int remainingCount = targetVertices.length;
+		ws.reach(startVertex, 0, -1);
+		int currIndex = startVertex;
+		while (currIndex != -1 && ws.distFromSource[currIndex] < maxSearchDist) {
+			double currDist = ws.distFromSource[currIndex];
+			for (int slot = offsets[currIndex]; slot < offsets[currIndex + 1]; slot++) {
+				int nextVertexIndex = targets[slot];
+				if (!isEdgeEnabled[edgeIDs[slot]] || ws.isVisited(nextVertexIndex))
+					continue;
+				double distFromSource = currDist + lengths[slot];
+				if (ws.minHeap.decreaseKey(nextVertexIndex, distFromSource))
+					ws.reach(nextVertexIndex, distFromSource, edgeIDs[slot]);
+			}
+			ws.visit(currIndex);
+			for (int t = ws.firstDestination(currIndex); t != -1; t = ws.destNext[t]) {
+				remainingCount--;
+				distance[distanceOffset + t] = currDist;
+				miniEdgePaths[distanceOffset + t] = findMiniEdgePath(currIndex, ws);
+			}
+			if (remainingCount == 0)
+				break;
+			currIndex = ws.minHeap.extractMin();
+		}
+	}
+	
+	/**
+	 * ALT search from a vertex to a set of target vertices, same contract as <tt>searchFromVertex</tt>. The heuristic of a vertex is the
+	 * landmark lower bound to the nearest target that is not yet reached. The heuristic only grows as targets are reached, so a vertex
+	 * whose key is outdated when it is extracted is pushed back with its current key instead of being visited.
+	 */
+	private void searchWithLandmarks(int startVertex, int[] targetVertices, double maxSearchDist, double[] distance, int distanceOffset,
+									 int[][] miniEdgePaths) {
+		Arrays.fill(distance, distanceOffset, distanceOffset + targetVertices.length, Double.POSITIVE_INFINITY);
+		SearchWorkspace ws = getWorkspace();
+		ws.reset(targetVertices.length);
+		for (int t = 0; t < targetVertices.length; t++)
+			ws.attachDestination(targetVertices[t], t);
+		int[] remainingTargets = Arrays.copyOf(targetVertices, targetVertices.length);
+		int remainingCount = targetVertices.length;
+		IndexedMinHeap minHeap = ws.minHeap;
+		ws.reach(startVertex, 0, -1);
+		minHeap.decreaseKey(startVertex, landmarkTable.getLowerBound(startVertex, remainingTargets, remainingCount));
+		while (!minHeap.isEmpty() && minHeap.minDistance() < maxSearchDist) {
+			double key = minHeap.minDistance();
+			int currIndex = minHeap.extractMin();
+			double currDist = ws.distFromSource[currIndex];
+			double currKey = currDist + landmarkTable.getLowerBound(currIndex, remainingTargets, remainingCount);
+			if (currKey > key) {    // the nearest target has been reached since the vertex was queued
+				if (currKey != Double.POSITIVE_INFINITY)
+					minHeap.decreaseKey(currIndex, currKey);
+				continue;
+			}
+			ws.visit(currIndex);
+			for (int t = ws.firstDestination(currIndex); t != -1; t = ws.destNext[t]) {
+				distance[distanceOffset + t] = currDist;
+				miniEdgePaths[distanceOffset + t] = findMiniEdgePath(currIndex, ws);
+				for (int r = 0; r < remainingCount; r++) {
+					if (remainingTargets[r] == currIndex) {
+						remainingTargets[r] = remainingTargets[--remainingCount];
+						break;
 					}
 				}
-				// all neighbours checked so node visited
-				vertexVisited.add(currIndex);
-				if (vertexID2DestIndexSet.containsKey(currIndex)) {
-					for (Integer i : vertexID2DestIndexSet.get(currIndex)) {
-						destPointCount--;
-						distance[i] = vertexDistFromSource.get(currIndex);
-						distance[i] += sourceDistance;
-						distance[i] += distFunc.distance(pointList.get(i).getMatchedSegment().p1(), pointList.get(i).getMatchPoint());
-						if (sourceDistance != 0)
-							path.get(i).add(startRoadID);
-						path.get(i).addAll(findPath(currIndex, parent));
-						if (path.get(i).size() > 1 && path.get(i).get(0).equals(path.get(i).get(1)))
-							path.get(i).remove(1);    // remove the duplicated start road ID
-						String lastRoadID = pointList.get(i).getRoadID().strip().split("\\|")[0];
-						if (!pointList.get(i).getMatchedSegment().p1().equals2D(pointList.get(i).getMatchPoint())) {
-							if (path.get(i).isEmpty() || !lastRoadID.equals(path.get(i).get(path.get(i).size() - 1)))
-								path.get(i).add(lastRoadID);
-						}
+			}
+			if (remainingCount == 0)
+				break;
+			for (int slot = offsets[currIndex]; slot < offsets[currIndex + 1]; slot++) {
+				int nextVertexIndex = targets[slot];
+				if (!isEdgeEnabled[edgeIDs[slot]] || ws.isVisited(nextVertexIndex))
+					continue;
+				double distFromSource = currDist + lengths[slot];
+				if (ws.isReached(nextVertexIndex) && ws.distFromSource[nextVertexIndex] <= distFromSource)
+					continue;
+				ws.reach(nextVertexIndex, distFromSource, edgeIDs[slot]);
+				double lowerBound = landmarkTable.getLowerBound(nextVertexIndex, remainingTargets, remainingCount);
+				if (lowerBound != Double.POSITIVE_INFINITY)     // otherwise no remaining target is reachable from the vertex
+					minHeap.decreaseKey(nextVertexIndex, distFromSource + lowerBound);
+			}
+		}
+	}
+	
+	private int[] findMiniEdgePath(int index, SearchWorkspace ws) {
+		int pathLength = 0;
+		for (int v = index; ws.parentEdge[v] != -1; v = edgeFromIndex[ws.parentEdge[v]])
+			pathLength++;
+		int[] path = new int[pathLength];
+		for (int v = index; ws.parentEdge[v] != -1; v = edgeFromIndex[ws.parentEdge[v]])
+			path[--pathLength] = ws.parentEdge[v];
+		return path;
+	}
+	
+	/**
+	 * @param edgeIndex The mini edge index.
+	 * @param x         The x coordinate of a point on the mini edge.
+	 * @param y         The y coordinate of a point on the mini edge.
+	 * @return The distance from the point to the end vertex of the mini edge.
+	 */
+	private double getDistanceToEnd(int edgeIndex, double x, double y) {
+		int to = edgeToIndex[edgeIndex];
+		return distFunc.pointToPointDistance(x, y, vertexX[to], vertexY[to]);
+	}
+	
+	/**
+	 * @param edgeIndex The mini edge index.
+	 * @param x         The x coordinate of a point on the mini edge.
+	 * @param y         The y coordinate of a point on the mini edge.
+	 * @return The distance from the start vertex of the mini edge to the point.
+	 */
+	private double getDistanceFromStart(int edgeIndex, double x, double y) {
+		int from = edgeFromIndex[edgeIndex];
+		return distFunc.pointToPointDistance(vertexX[from], vertexY[from], x, y);
+	}
+	
+	/**
+	 * Resolve the mini edge index of every match point, the points not found in the graph are logged and get -1.
+	 */
+	private int[] getEdgeIndices(List<PointMatch> pointList, String errorMessage) {
+		int[] edgeIndices = new int[pointList.size()];
+		for (int i = 0; i < pointList.size(); i++) {
+			edgeIndices[i] = getEdgeIndex(pointList.get(i));
+			if (edgeIndices[i] == -1)
+				LOG.error(errorMessage + getEdgeLocID(pointList.get(i)));
+		}
+		return edgeIndices;
+	}
+	
+	private static double[] getMatchX(List<PointMatch> pointList) {
+		double[] matchX = new double[pointList.size()];
+		for (int i = 0; i < pointList.size(); i++)
+			matchX[i] = pointList.get(i).lon();
+		return matchX;
+	}
+	
+	private static double[] getMatchY(List<PointMatch> pointList) {
+		double[] matchY = new double[pointList.size()];
+		for (int i = 0; i < pointList.size(); i++)
+			matchY[i] = pointList.get(i).lat();
+		return matchY;
+	}
+	
+	/**
+	 * Find the mini edge index of the segment the point is matched to. The index carried by the point is used if it refers to the same
+	 * segment in this graph, otherwise the index is looked up by the segment coordinates and the road ID and then stored in the point,
+	 * so the lookup happens at most once for each point.
+	 *
+	 * @param point The match point.
+	 * @return The mini edge index, -1 if the matched segment is not in the graph.
+	 */
+	public int getEdgeIndex(PointMatch point) {
+		int edgeIndex = point.getEdgeIndex();
+		if (edgeIndex >= 0 && edgeIndex < edgeRoadIDs.length && isSameSegment(edgeIndex, point.getMatchedSegment())
+				&& isSameRoad(edgeIndex, point.getRoadID()))
+			return edgeIndex;
+		Integer locEdgeIndex = getEndPointLoc2EdgeIndex().get(getEdgeLocID(point));
+		if (locEdgeIndex == null)
+			return -1;
+		point.setEdgeIndex(locEdgeIndex);
+		return locEdgeIndex;
+	}
+	
+	private HashMap<String, Integer> getEndPointLoc2EdgeIndex() {
+		HashMap<String, Integer> locIndex = endPointLoc2EdgeIndex;
+		if (locIndex == null) {
+			synchronized (this) {
+				if (endPointLoc2EdgeIndex == null) {
+					HashMap<String, Integer> newLocIndex = new LinkedHashMap<>();
+					for (int i = 0; i < edgeRoadIDs.length; i++) {
+						int from = edgeFromIndex[i];
+						int to = edgeToIndex[i];
+						newLocIndex.put(vertexX[from] + "_" + vertexY[from] + "," + vertexX[to] + "_" + vertexY[to] + "," + edgeRoadIDs[i], i);
 					}
+					endPointLoc2EdgeIndex = newLocIndex;
 				}
-				if (destPointCount == 0) {
-					result = new ArrayList<>(resultOutput(distance, path));
-					return result;
-				}
-				// next node must be with shortest distance
-//                minHeap.buildMinHeap();
-//                currNode = minHeap.extractMin().getIndex();
-				currIndex = minHeap.extractMin();
-//            if(index!=currNode){
-//                double value1 = vertices[index].getDistanceFromSource();
-//                double value2 = vertices[currNode].getDistanceFromSource();
-//                LOG.info("Inconsistent index");
-//            }
-			}
-//            LOG.info((pointList.size() - destPointCount) + "/" + pointList.size() + "distances are found.");
-			result = new ArrayList<>(resultOutput(distance, path));
-			return result;
+				locIndex = endPointLoc2EdgeIndex;
+			}
 		}
-		result = new ArrayList<>(resultOutput(distance, path));
-		return result;
+		return locIndex;
+	}
+	
+	/**
+	 * @param edgeIndex The mini edge index.
+	 * @return The road way id of the mini edge.
+	 */
+	public String getRoadID(int edgeIndex) {
+		return edgeRoadIDs[edgeIndex];
 	}
 	
-	private List<String> findPath(int index, HashMap<Integer, Integer> parent) {
+	public int getEdgeCount() {
+		return edgeRoadIDs.length;
+	}
+	
+	/**
+	 * @param edgeIndex The mini edge index.
+	 * @return The enabled mini edges leaving the end vertex of the mini edge in their forward direction, used by the matchers that
+	 * expand the route edge by edge instead of searching shortest paths.
+	 */
+	public int[] getNextEdges(int edgeIndex) {
+		int vertex = edgeToIndex[edgeIndex];
+		int[] nextEdges = new int[offsets[vertex + 1] - offsets[vertex]];
+		int count = 0;
+		for (int slot = offsets[vertex]; slot < offsets[vertex + 1]; slot++) {
+			int nextEdge = edgeIDs[slot];
+			if (isEdgeEnabled[nextEdge] && edgeFromIndex[nextEdge] == vertex)
+				nextEdges[count++] = nextEdge;
+		}
+		return count == nextEdges.length ? nextEdges : Arrays.copyOf(nextEdges, count);
+	}
+	
+	/**
+	 * Check whether the mini edge has the same end points as the segment, which guards against an index assigned by another graph. The
+	 * road ID must be checked as well, as the roads of both directions or overlapping roads have mini edges with the same end points.
+	 */
+	private boolean isSameSegment(int edgeIndex, Segment segment) {
+		int from = edgeFromIndex[edgeIndex];
+		int to = edgeToIndex[edgeIndex];
+		return vertexX[from] == segment.x1() && vertexY[from] == segment.y1() && vertexX[to] == segment.x2() && vertexY[to] == segment.y2();
+	}
+	
+	/**
+	 * Check whether the road ID of a match point, which may be a line ID of the form <tt>roadID|serial</tt>, refers to the road of the
+	 * mini edge. Compared in place, as it runs for every candidate.
+	 */
+	private boolean isSameRoad(int edgeIndex, String pointRoadID) {
+		String roadID = edgeRoadIDs[edgeIndex];
+		int start = 0;
+		while (start < pointRoadID.length() && Character.isWhitespace(pointRoadID.charAt(start)))
+			start++;
+		if (!pointRoadID.startsWith(roadID, start))
+			return false;
+		int end = start + roadID.length();
+		if (end < pointRoadID.length() && pointRoadID.charAt(end) == '|')
+			return true;
+		for (int i = end; i < pointRoadID.length(); i++) {
+			if (!Character.isWhitespace(pointRoadID.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+	
+	private String getEdgeLocID(PointMatch point) {
+		return point.getMatchedSegment().x1() + "_" + point.getMatchedSegment().y1() + "," + point.getMatchedSegment().x2() + "_"
+				+ point.getMatchedSegment().y2() + "," + getPolylineID(point);
+	}
+	
+	/**
+	 * @return The road way id of the match point, without the serial number of the line if the road ID is a line ID.
+	 */
+	private static String getPolylineID(PointMatch point) {
+		return point.getRoadID().strip().split("\\|")[0];
+	}
+	
+	/**
+	 * Dijkstra search on the edge-expanded graph. A node of the search is a mini edge and its distance is the turn-weighted length from
+	 * the end of the source edge to the start of that edge. The source edge is represented by an extra node, so that a route which
+	 * leaves the source edge and comes back to it can still reach a destination behind the source point.
+	 *
+	 * @param sourceEdge     The source mini edge index, the search starts from its end vertex.
+	 * @param destEdges      The destination mini edge indices, -1 entries are skipped.
+	 * @param maxSearchDist  Only the destinations closer than maxSearchDist are reached.
+	 * @param turnWeight     The cost of each turn.
+	 * @param distance       Output, the distance to the start of each destination edge is written from distanceOffset,
+	 *                       Double.POSITIVE_INFINITY if unreachable.
+	 * @param distanceOffset The start index of the output in distance and miniEdgePaths.
+	 * @param miniEdgePaths  Output, the mini edges passed between the source edge and each reached destination edge.
+	 */
+	private void searchWithTurnCosts(int sourceEdge, int[] destEdges, double maxSearchDist, double turnWeight, double[] distance,
+									 int distanceOffset, int[][] miniEdgePaths) {
+		Arrays.fill(distance, distanceOffset, distanceOffset + destEdges.length, Double.POSITIVE_INFINITY);
+		int sourceNode = edgeRoadIDs.length;
+		SearchWorkspace ws = getTurnWorkspace();
+		ws.reset(destEdges.length);
+		int remainingCount = 0;
+		for (int t = 0; t < destEdges.length; t++) {
+			if (destEdges[t] != -1) {
+				ws.attachDestination(destEdges[t], t);
+				remainingCount++;
+			}
+		}
+		ws.reach(sourceNode, 0, -1);
+		int currNode = sourceNode;
+		while (remainingCount > 0 && currNode != -1 && ws.distFromSource[currNode] < maxSearchDist) {
+			double currDist = ws.distFromSource[currNode];
+			int currEdge = currNode == sourceNode ? sourceEdge : currNode;
+			double exitDist = currNode == sourceNode ? 0 : currDist + turnCostTable.getEdgeLength(currEdge);
+			int vertex = edgeToIndex[currEdge];
+			int arcOffset = turnCostTable.getArcStart(currEdge) - offsets[vertex];
+			for (int slot = offsets[vertex]; slot < offsets[vertex + 1]; slot++) {
+				int nextEdge = edgeIDs[slot];
+				if (!isEdgeEnabled[nextEdge] || ws.isVisited(nextEdge))
+					continue;
+				double distFromSource = exitDist + turnWeight * turnCostTable.getTurnCost(arcOffset + slot);
+				if (ws.minHeap.decreaseKey(nextEdge, distFromSource))
+					ws.reach(nextEdge, distFromSource, currNode);
+			}
+			ws.visit(currNode);
+			for (int t = ws.firstDestination(currNode); t != -1; t = ws.destNext[t]) {
+				remainingCount--;
+				distance[distanceOffset + t] = currDist;
+				int pathLength = 0;
+				for (int node = ws.parentEdge[currNode]; node != sourceNode; node = ws.parentEdge[node])
+					pathLength++;
+				int[] path = new int[pathLength];
+				for (int node = ws.parentEdge[currNode]; node != sourceNode; node = ws.parentEdge[node])
+					path[--pathLength] = node;
+				miniEdgePaths[distanceOffset + t] = path;
+			}
+			currNode = ws.minHeap.extractMin();
+		}
+	}
+	
+	private SearchWorkspace getTurnWorkspace() {
+		if (turnWorkspace == null) {
+			synchronized (this) {
+				if (turnWorkspace == null)
+					turnWorkspace = ThreadLocal.withInitial(() -> new SearchWorkspace(edgeRoadIDs.length + 1));
+			}
+		}
+		return turnWorkspace.get();
+	}
+	
+	private SearchWorkspace getWorkspace() {
+		if (workspace == null) {
+			synchronized (this) {
+				if (workspace == null)
+					workspace = ThreadLocal.withInitial(() -> new SearchWorkspace(vertexX.length));
+			}
+		}
+		return workspace.get();
+	}
+	
+	/**
+	 * Assemble the road path of a destination from the start road, the roads passed in the graph and the destination road.
+	 */
+	private void completePath(List<String> currPath, List<String> graphPath, String startRoadID, double sourceDistance, double destX,
+							  double destY, int destEdgeIndex) {
+		if (sourceDistance != 0)
+			currPath.add(startRoadID);
+		currPath.addAll(graphPath);
+		if (currPath.size() > 1 && currPath.get(0).equals(currPath.get(1)))
+			currPath.remove(1);    // remove the duplicated start road ID
+		String lastRoadID = edgeRoadIDs[destEdgeIndex];
+		int destStart = edgeFromIndex[destEdgeIndex];
+		if (vertexX[destStart] != destX || vertexY[destStart] != destY) {
+			if (currPath.isEmpty() || !lastRoadID.equals(currPath.get(currPath.size() - 1)))
+				currPath.add(lastRoadID);
+		}
+	}
+	
+	private List<String> findPath(int index, SearchWorkspace ws) {
 		Set<String> roadIDSet = new LinkedHashSet<>();
-		while (parent.get(index) != index) {
-			if (parent.get(index) == -1)
-				LOG.error("Road path is broken!");
-			Pair<Integer, Integer> currentSegment = new Pair<>(parent.get(index), index);
-			int edgeID = endPointsIndex2EdgeIndex.get(currentSegment);
-			roadIDSet.add(edgeIndex2RoadID.get(edgeID));
-			index = parent.get(index);
+		while (ws.parentEdge[index] != -1) {
+			int edgeID = ws.parentEdge[index];
+			roadIDSet.add(edgeRoadIDs[edgeID]);
+			index = edgeFromIndex[edgeID];
 		}
 		List<String> roadIDList = new ArrayList<>(roadIDSet);
 		Collections.reverse(roadIDList);
 		return roadIDList;
 	}
 	
+	/**
+	 * Convert a mini edge sequence to its road ID list, in the same way as the path found by Dijkstra.
+	 */
+	private List<String> findPath(int[] miniEdgePath) {
+		Set<String> roadIDSet = new LinkedHashSet<>();
+		for (int i = miniEdgePath.length - 1; i >= 0; i--)
+			roadIDSet.add(edgeRoadIDs[miniEdgePath[i]]);
+		List<String> roadIDList = new ArrayList<>(roadIDSet);
+		Collections.reverse(roadIDList);
+		return roadIDList;
+	}
+	
 	private List<Pair<Double, List<String>>> resultOutput(double[] distance, List<List<String>> path) {
 		List<Pair<Double, List<String>>> result = new ArrayList<>();
 		for (int i = 0; i < distance.length; i++) {
@@ -485,28 +1333,52 @@ public class RoutingGraph implements Serializable {
 		return result;
 	}
 	
+	/**
+	 * The contraction hierarchy, the UBODT and the landmark table are built on the static graph, they are dropped once a road is inserted or removed.
+	 */
+	private void disableStaticIndices() {
+		if (contractionHierarchy != null) {
+			LOG.warn("The road network is changed, contraction hierarchy is disabled.");
+			contractionHierarchy = null;
+		}
+		if (ubodt != null) {
+			LOG.warn("The road network is changed, UBODT is disabled.");
+			ubodt = null;
+		}
+		if (landmarkTable != null) {
+			LOG.warn("The road network is changed, landmark search is disabled.");
+			landmarkTable = null;
+		}
+	}
+	
 	public void addRoadByID(String roadID) {
 		if (!roadID2NewEdgeList.containsKey(roadID) || !roadID2NewNodeList.containsKey(roadID))
 			throw new IllegalArgumentException("ERROR! The road to be inserted has wrong ID: " + roadID);
+		disableStaticIndices();
 		
 		for (int i : roadID2NewNodeList.get(roadID))
 			newNodeSet.remove(i);
-		// add all the routingEdges to the vertices, each edge added to only from vertices
+		// enable all the routingEdges of the road
 		for (int i : roadID2NewEdgeList.get(roadID)) {
-			this.vertices[routingEdges[i].getFromNodeIndex()].getOutGoingRoutingEdges().add(routingEdges[i]);
+			isEdgeEnabled[i] = true;
 			newEdgeSet.remove(i);
 		}
+		if (pathCache != null)
+			pathCache.invalidate();
 	}
 	
 	public void removeRoadByID(String roadID) {
 		if (!roadID2NewEdgeList.containsKey(roadID) || !roadID2NewNodeList.containsKey(roadID))
 			throw new IllegalArgumentException("ERROR! The road to be removed has wrong ID.");
+		disableStaticIndices();
 		
 		newNodeSet.addAll(roadID2NewNodeList.get(roadID));
-		// add all the routingEdges to the vertices, each edge added to only from vertices
+		// disable all the routingEdges of the road
 		for (int i : roadID2NewEdgeList.get(roadID)) {
-			this.vertices[routingEdges[i].getFromNodeIndex()].getOutGoingRoutingEdges().remove(routingEdges[i]);
+			isEdgeEnabled[i] = false;
 		}
 		newEdgeSet.addAll(roadID2NewEdgeList.get(roadID));
+		if (pathCache != null)
+			pathCache.invalidate();
 	}
-}
\ No newline at end of file
+}
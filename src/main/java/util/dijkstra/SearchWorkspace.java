@@ -0,0 +1,91 @@
+package util.dijkstra;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread scratch space of the shortest path search. All arrays are indexed by vertex index and reused across queries. Instead of
+ * clearing the arrays before each query, every entry carries the generation in which it was written, entries from older generations are
+ * treated as unset.
+ */
+class SearchWorkspace {
+	
+	final double[] distFromSource;  // the distance from the vertex to the source node, valid if reachStamp == generation
+	final int[] parentEdge;     // the mini edge through which the vertex is reached, -1 for the start vertex
+	final int[] reachStamp;     // the generation in which the vertex distance is set
+	final int[] visitStamp;     // the generation in which the vertex is visited
+	final int[] destHead;       // the first destination attached to the vertex, valid if destStamp == generation
+	final int[] destStamp;      // the generation in which the destination list of the vertex is set
+	int[] destNext = new int[16];   // the next destination attached to the same vertex, indexed by destination index, -1 if none
+	final IndexedMinHeap minHeap;   // the priority queue of the search, cleared at every reset
+	private int generation = 0;
+	
+	SearchWorkspace(int vertexCount) {
+		this.distFromSource = new double[vertexCount];
+		this.parentEdge = new int[vertexCount];
+		this.reachStamp = new int[vertexCount];
+		this.visitStamp = new int[vertexCount];
+		this.destHead = new int[vertexCount];
+		this.destStamp = new int[vertexCount];
+		this.minHeap = new IndexedMinHeap(vertexCount);
+	}
+	
+	/**
+	 * Start a new query. The previous query results become invalid immediately.
+	 *
+	 * @param destCount The number of destinations in the new query.
+	 */
+	void reset(int destCount) {
+		minHeap.clear();
+		generation++;
+		if (generation == Integer.MAX_VALUE) {  // stamps are about to wrap around, clear them once
+			Arrays.fill(reachStamp, 0);
+			Arrays.fill(visitStamp, 0);
+			Arrays.fill(destStamp, 0);
+			generation = 1;
+		}
+		if (destNext.length < destCount)
+			destNext = new int[Math.max(destCount, destNext.length * 2)];
+	}
+	
+	boolean isReached(int vertex) {
+		return reachStamp[vertex] == generation;
+	}
+	
+	boolean isVisited(int vertex) {
+		return visitStamp[vertex] == generation;
+	}
+	
+	void reach(int vertex, double distance, int edge) {
+		distFromSource[vertex] = distance;
+		parentEdge[vertex] = edge;
+		reachStamp[vertex] = generation;
+	}
+	
+	void visit(int vertex) {
+		visitStamp[vertex] = generation;
+	}
+	
+	/**
+	 * Attach a destination to the given vertex.
+	 *
+	 * @param vertex    The vertex index.
+	 * @param destIndex The destination index in the query destination list.
+	 */
+	void attachDestination(int vertex, int destIndex) {
+		if (destStamp[vertex] == generation)
+			destNext[destIndex] = destHead[vertex];
+		else {
+			destNext[destIndex] = -1;
+			destStamp[vertex] = generation;
+		}
+		destHead[vertex] = destIndex;
+	}
+	
+	/**
+	 * @param vertex The vertex index.
+	 * @return The first destination index attached to the vertex, -1 if there is none. Use <tt>destNext</tt> to iterate the rest.
+	 */
+	int firstDestination(int vertex) {
+		return destStamp[vertex] == generation ? destHead[vertex] : -1;
+	}
+}
@@ -0,0 +1,97 @@
+package util.dijkstra;
+
+import org.apache.log4j.Logger;
+import util.function.SpatialUtils;
+
+/**
+ * The turn costs of the edge-expanded routing graph. Each mini edge is a node of the expanded graph and each pair of consecutive mini
+ * edges, one entering a vertex and one leaving it, is an arc whose cost is the turn made between them. The arcs of a mini edge are the
+ * CSR slots of its end vertex in the routing graph, so only the turn cost of each arc is stored, in the order of the slots.
+ * <p>
+ * A turn is counted only when the road changes, the mini edges within a road are connected without cost. The costs are computed once
+ * from the road geometry and do not change when roads are inserted or removed, as disabled edges are skipped by the search.
+ */
+public class TurnCostTable {
+	
+	private static final Logger LOG = Logger.getLogger(TurnCostTable.class);
+	
+	private final int[] arcOffsets;     // the arcs of mini edge e are stored in [arcOffsets[e], arcOffsets[e+1])
+	private final byte[] turnCosts;     // the number of turns of each arc
+	private final double[] edgeLengths;     // the length of each mini edge
+	
+	private TurnCostTable(int[] arcOffsets, byte[] turnCosts, double[] edgeLengths) {
+		this.arcOffsets = arcOffsets;
+		this.turnCosts = turnCosts;
+		this.edgeLengths = edgeLengths;
+	}
+	
+	/**
+	 * Compute the turn cost of every pair of consecutive mini edges.
+	 *
+	 * @param offsets     The CSR offsets of the routing graph.
+	 * @param edgeIDs     The mini edge index of each CSR slot.
+	 * @param edgeFrom    The from vertex of each mini edge.
+	 * @param edgeTo      The to vertex of each mini edge.
+	 * @param edgeLengths The length of each mini edge.
+	 * @param roadIDs     The road ID of each mini edge.
+	 * @param vertexX     The x coordinate of each vertex.
+	 * @param vertexY     The y coordinate of each vertex.
+	 */
+	static TurnCostTable build(int[] offsets, int[] edgeIDs, int[] edgeFrom, int[] edgeTo, double[] edgeLengths, String[] roadIDs,
+							   double[] vertexX, double[] vertexY) {
+		long startTime = System.currentTimeMillis();
+		int edgeCount = edgeFrom.length;
+		int[] arcOffsets = new int[edgeCount + 1];
+		for (int e = 0; e < edgeCount; e++)
+			arcOffsets[e + 1] = arcOffsets[e] + offsets[edgeTo[e] + 1] - offsets[edgeTo[e]];
+		byte[] turnCosts = new byte[arcOffsets[edgeCount]];
+		for (int e = 0; e < edgeCount; e++) {
+			int vertex = edgeTo[e];
+			for (int slot = offsets[vertex]; slot < offsets[vertex + 1]; slot++) {
+				int nextEdge = edgeIDs[slot];
+				if (roadIDs[e].equals(roadIDs[nextEdge]))
+					continue;
+				turnCosts[arcOffsets[e] + slot - offsets[vertex]] = (byte) getTurnCost(vertexX[edgeFrom[e]], vertexY[edgeFrom[e]],
+						vertexX[vertex], vertexY[vertex], vertexX[vertex], vertexY[vertex], vertexX[edgeTo[nextEdge]], vertexY[edgeTo[nextEdge]]);
+			}
+		}
+		LOG.info("Turn cost table built in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s, total number of turn arcs: "
+				+ turnCosts.length);
+		return new TurnCostTable(arcOffsets, turnCosts, edgeLengths);
+	}
+	
+	/**
+	 * The number of turns made from one segment to the next, following Osogami (2014): 1 for a turn between 45 and 135 degrees, 2 for a
+	 * sharper turn and 10 for a U-turn.
+	 */
+	public static int getTurnCost(double prevX1, double prevY1, double prevX2, double prevY2, double currX1, double currY1, double currX2,
+								  double currY2) {
+		double heading = Math.abs(SpatialUtils.computeHeading(prevX1, prevY1, prevX2, prevY2));
+		double heading1 = Math.abs(SpatialUtils.computeHeading(currX1, currY1, currX2, currY2));
+		double headingDiff = Math.abs(heading - heading1);
+		if (headingDiff >= 45 && headingDiff <= 135)
+			return 1;
+		else if (headingDiff > 135 && headingDiff < 180)
+			return 2;
+		else if (headingDiff == 180)
+			return 10;
+		return 0;
+	}
+	
+	/**
+	 * @param edge The mini edge index.
+	 * @return The index of the first arc of the mini edge, the arc of CSR slot s of the end vertex is at getArcStart(edge) + s -
+	 * offsets[end vertex].
+	 */
+	int getArcStart(int edge) {
+		return arcOffsets[edge];
+	}
+	
+	int getTurnCost(int arc) {
+		return turnCosts[arc];
+	}
+	
+	double getEdgeLength(int edge) {
+		return edgeLengths[edge];
+	}
+}
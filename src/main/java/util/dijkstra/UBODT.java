@@ -0,0 +1,322 @@
+package util.dijkstra;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Upper-bounded origin-destination table (Yang and Gidofalvi 2018). For every vertex pair of a <tt>RoutingGraph</tt> whose shortest
+ * distance is below the bound delta, the table stores the distance and the first mini edge of the shortest path, so that a query is
+ * answered by one lookup and the path is unrolled by repeated lookups from the next vertex.
+ * <p>
+ * The entries are kept in an open-addressing hash table with linear probing over three parallel primitive arrays (key, distance, first
+ * edge). The key packs the source and target vertex index into one long. A table loaded from file is memory-mapped, the arrays are read
+ * directly from the mapped buffers.
+ */
+public class UBODT {
+	
+	private static final Logger LOG = Logger.getLogger(UBODT.class);
+	private static final int FILE_MAGIC = 0x55424F44;   // "UBOD"
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 40;      // magic, version, fingerprint, vertex count, delta, entry count, capacity
+	private static final int MAX_CAPACITY = 1 << 28;    // every mapped array must stay below 2GB
+	private static final long EMPTY_KEY = -1L;
+	
+	private final int vertexCount;
+	private final long graphFingerprint;    // the fingerprint of the routing graph the table is built from
+	private final double delta;     // the upper bound of the stored shortest distances
+	private final long entryCount;
+	private final int mask;     // capacity - 1, the capacity is a power of two
+	private final LongBuffer keys;      // source << 32 | target, EMPTY_KEY if the slot is empty
+	private final DoubleBuffer distances;
+	private final IntBuffer firstEdges;     // the first mini edge on the shortest path
+	
+	private UBODT(int vertexCount, long graphFingerprint, double delta, long entryCount, LongBuffer keys, DoubleBuffer distances,
+				  IntBuffer firstEdges) {
+		this.vertexCount = vertexCount;
+		this.graphFingerprint = graphFingerprint;
+		this.delta = delta;
+		this.entryCount = entryCount;
+		this.mask = keys.capacity() - 1;
+		this.keys = keys;
+		this.distances = distances;
+		this.firstEdges = firstEdges;
+	}
+	
+	/**
+	 * Precompute the table by running one bounded Dijkstra search from every vertex. The searches run in parallel.
+	 *
+	 * @param vertexCount      Number of vertices.
+	 * @param offsets          The CSR offsets of the graph.
+	 * @param targets          The to vertex of each CSR slot.
+	 * @param lengths          The edge length of each CSR slot.
+	 * @param edgeIDs          The mini edge index of each CSR slot.
+	 * @param isEdgeEnabled    Whether the mini edge is part of the graph.
+	 * @param delta            Only vertex pairs closer than delta are stored.
+	 * @param graphFingerprint The fingerprint of the graph, checked when the table is loaded.
+	 * @return The table.
+	 */
+	static UBODT build(int vertexCount, int[] offsets, int[] targets, double[] lengths, int[] edgeIDs, boolean[] isEdgeEnabled,
+					   double delta, long graphFingerprint) {
+		if (delta <= 0)
+			throw new IllegalArgumentException("The UBODT bound must be positive: " + delta);
+		long startTime = System.currentTimeMillis();
+		int[][] rowTargets = new int[vertexCount][];
+		double[][] rowDistances = new double[vertexCount][];
+		int[][] rowFirstEdges = new int[vertexCount][];
+		ThreadLocal<RowSearch> rowSearch = ThreadLocal.withInitial(() -> new RowSearch(vertexCount));
+		IntStream.range(0, vertexCount).parallel().forEach(source -> {
+			RowSearch search = rowSearch.get();
+			search.run(source, offsets, targets, lengths, edgeIDs, isEdgeEnabled, delta);
+			rowTargets[source] = Arrays.copyOf(search.settled, search.settledCount);
+			rowDistances[source] = new double[search.settledCount];
+			rowFirstEdges[source] = new int[search.settledCount];
+			for (int i = 0; i < search.settledCount; i++) {
+				rowDistances[source][i] = search.distance[search.settled[i]];
+				rowFirstEdges[source][i] = search.firstEdge[search.settled[i]];
+			}
+		});
+		long entryCount = 0;
+		for (int[] row : rowTargets)
+			entryCount += row.length;
+		if (entryCount * 2 > MAX_CAPACITY)
+			throw new IllegalArgumentException("The UBODT has too many entries: " + entryCount + ", use a smaller bound than " + delta);
+		int capacity = Math.max(Integer.highestOneBit((int) Math.max(entryCount * 2 - 1, 1)) << 1, 16);    // load factor <= 0.5
+		long[] keyArray = new long[capacity];
+		double[] distanceArray = new double[capacity];
+		int[] firstEdgeArray = new int[capacity];
+		Arrays.fill(keyArray, EMPTY_KEY);
+		for (int source = 0; source < vertexCount; source++) {
+			for (int i = 0; i < rowTargets[source].length; i++) {
+				long key = getKey(source, rowTargets[source][i]);
+				int slot = hash(key) & (capacity - 1);
+				while (keyArray[slot] != EMPTY_KEY)
+					slot = (slot + 1) & (capacity - 1);
+				keyArray[slot] = key;
+				distanceArray[slot] = rowDistances[source][i];
+				firstEdgeArray[slot] = rowFirstEdges[source][i];
+			}
+			rowTargets[source] = null;  // release the row as soon as it is inserted
+			rowDistances[source] = null;
+			rowFirstEdges[source] = null;
+		}
+		UBODT table = new UBODT(vertexCount, graphFingerprint, delta, entryCount, LongBuffer.wrap(keyArray),
+				DoubleBuffer.wrap(distanceArray), IntBuffer.wrap(firstEdgeArray));
+		LOG.info("UBODT built in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s. Bound: " + delta + "m, total vertices: "
+				+ vertexCount + ", entries: " + entryCount + ", table size: " + table.getTableSize() / 1024 / 1024 + "MB");
+		return table;
+	}
+	
+	long getGraphFingerprint() {
+		return graphFingerprint;
+	}
+	
+	public double getDelta() {
+		return delta;
+	}
+	
+	public long getEntryCount() {
+		return entryCount;
+	}
+	
+	/**
+	 * @return The size of the table arrays in bytes.
+	 */
+	public long getTableSize() {
+		return (long) keys.capacity() * (Long.BYTES + Double.BYTES + Integer.BYTES);
+	}
+	
+	/**
+	 * @param source The source vertex index.
+	 * @param target The target vertex index.
+	 * @return The shortest distance between two vertices, Double.POSITIVE_INFINITY if the distance is not smaller than delta.
+	 */
+	public double getDistance(int source, int target) {
+		if (source == target)
+			return 0;
+		int slot = findSlot(source, target);
+		return slot == -1 ? Double.POSITIVE_INFINITY : distances.get(slot);
+	}
+	
+	/**
+	 * Unroll the shortest path between two vertices.
+	 *
+	 * @param source     The source vertex index.
+	 * @param target     The target vertex index.
+	 * @param miniEdgeTo The to vertex of each mini edge.
+	 * @return The mini edge sequence of the shortest path, null if the pair is not in the table.
+	 */
+	int[] getMiniEdgePath(int source, int target, int[] miniEdgeTo) {
+		int[] path = new int[8];
+		int pathLength = 0;
+		int currVertex = source;
+		while (currVertex != target) {
+			int slot = findSlot(currVertex, target);
+			if (slot == -1 || pathLength == vertexCount) {     // the latter only happens on a cycle of zero-length edges
+				LOG.warn("The UBODT path from " + source + " to " + target + " cannot be unrolled at vertex " + currVertex + ".");
+				return null;
+			}
+			if (pathLength == path.length)
+				path = Arrays.copyOf(path, pathLength * 2);
+			path[pathLength++] = firstEdges.get(slot);
+			currVertex = miniEdgeTo[firstEdges.get(slot)];
+		}
+		return Arrays.copyOf(path, pathLength);
+	}
+	
+	private int findSlot(int source, int target) {
+		long key = getKey(source, target);
+		int slot = hash(key) & mask;
+		while (true) {
+			long slotKey = keys.get(slot);
+			if (slotKey == key)
+				return slot;
+			if (slotKey == EMPTY_KEY)
+				return -1;
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	private static long getKey(int source, int target) {
+		return ((long) source << 32) | (target & 0xFFFFFFFFL);
+	}
+	
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+	
+	/**
+	 * Write the table to a binary file, the arrays are written as they are laid out in memory so that the file can be mapped on load.
+	 *
+	 * @param filePath The output file path.
+	 * @throws IOException File write failure.
+	 */
+	public void save(String filePath) throws IOException {
+		int capacity = keys.capacity();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), 1 << 16))) {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeLong(graphFingerprint);
+			out.writeInt(vertexCount);
+			out.writeDouble(delta);
+			out.writeLong(entryCount);
+			out.writeInt(capacity);
+			for (int i = 0; i < capacity; i++)
+				out.writeLong(keys.get(i));
+			for (int i = 0; i < capacity; i++)
+				out.writeDouble(distances.get(i));
+			for (int i = 0; i < capacity; i++)
+				out.writeInt(firstEdges.get(i));
+		}
+		LOG.info("UBODT saved to " + filePath);
+	}
+	
+	/**
+	 * Map a table file into memory. Nothing is copied to the heap, the pages are loaded by the operating system on first access.
+	 *
+	 * @param filePath         The input file path.
+	 * @param graphFingerprint The fingerprint of the current routing graph.
+	 * @param delta            The expected bound of the table.
+	 * @return The table, or null if the file does not exist or is built from a different graph or bound.
+	 * @throws IOException File read failure.
+	 */
+	public static UBODT load(String filePath, long graphFingerprint, double delta) throws IOException {
+		if (!new File(filePath).exists())
+			return null;
+		long startTime = System.currentTimeMillis();
+		try (RandomAccessFile file = new RandomAccessFile(filePath, "r"); FileChannel channel = file.getChannel()) {
+			if (channel.size() < HEADER_SIZE) {
+				LOG.warn("The UBODT file has unknown format: " + filePath);
+				return null;
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != FILE_MAGIC || header.getInt() != FILE_VERSION) {
+				LOG.warn("The UBODT file has unknown format: " + filePath);
+				return null;
+			}
+			if (header.getLong() != graphFingerprint) {
+				LOG.warn("The UBODT file is built from a different graph: " + filePath);
+				return null;
+			}
+			int vertexCount = header.getInt();
+			if (header.getDouble() != delta) {
+				LOG.warn("The UBODT file is built with a different bound: " + filePath);
+				return null;
+			}
+			long entryCount = header.getLong();
+			int capacity = header.getInt();
+			if (Integer.bitCount(capacity) != 1 || channel.size() != HEADER_SIZE + (long) capacity * (Long.BYTES + Double.BYTES + Integer.BYTES)) {
+				LOG.warn("The UBODT file is truncated: " + filePath);
+				return null;
+			}
+			long position = HEADER_SIZE;
+			LongBuffer keys = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) capacity * Long.BYTES).asLongBuffer();
+			position += (long) capacity * Long.BYTES;
+			DoubleBuffer distances = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) capacity * Double.BYTES).asDoubleBuffer();
+			position += (long) capacity * Double.BYTES;
+			IntBuffer firstEdges = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) capacity * Integer.BYTES).asIntBuffer();
+			UBODT table = new UBODT(vertexCount, graphFingerprint, delta, entryCount, keys, distances, firstEdges);
+			LOG.info("UBODT mapped from " + filePath + " in " + (System.currentTimeMillis() - startTime) + "ms. Entries: " + entryCount
+					+ ", table size: " + table.getTableSize() / 1024 / 1024 + "MB");
+			return table;
+		}
+	}
+	
+	/**
+	 * The bounded Dijkstra search that produces one row of the table, reused by the same thread across sources.
+	 */
+	private static class RowSearch {
+		
+		private final double[] distance;
+		private final int[] firstEdge;  // the first mini edge on the path from the source
+		private final boolean[] isSettled;
+		private final IndexedMinHeap minHeap;
+		private int[] settled = new int[64];    // the settled vertices except the source, in settle order
+		private int settledCount;
+		
+		RowSearch(int vertexCount) {
+			this.distance = new double[vertexCount];
+			this.firstEdge = new int[vertexCount];
+			this.isSettled = new boolean[vertexCount];
+			this.minHeap = new IndexedMinHeap(vertexCount);
+		}
+		
+		void run(int source, int[] offsets, int[] targets, double[] lengths, int[] edgeIDs, boolean[] isEdgeEnabled, double delta) {
+			for (int i = 0; i < settledCount; i++)
+				isSettled[settled[i]] = false;
+			settledCount = 0;
+			minHeap.clear();
+			distance[source] = 0;
+			int currIndex = source;
+			while (currIndex != -1 && distance[currIndex] < delta) {
+				if (currIndex != source) {
+					if (settledCount == settled.length)
+						settled = Arrays.copyOf(settled, settledCount * 2);
+					settled[settledCount++] = currIndex;
+					isSettled[currIndex] = true;
+				}
+				for (int slot = offsets[currIndex]; slot < offsets[currIndex + 1]; slot++) {
+					int nextVertexIndex = targets[slot];
+					if (!isEdgeEnabled[edgeIDs[slot]] || nextVertexIndex == source || isSettled[nextVertexIndex])
+						continue;
+					double distFromSource = distance[currIndex] + lengths[slot];
+					if (minHeap.decreaseKey(nextVertexIndex, distFromSource)) {
+						distance[nextVertexIndex] = distFromSource;
+						firstEdge[nextVertexIndex] = currIndex == source ? edgeIDs[slot] : firstEdge[currIndex];
+					}
+				}
+				currIndex = minHeap.extractMin();
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package util.function;
+
+/**
+ * Equirectangular projection of longitude/latitude coordinates onto local metric planes, used to filter and project candidates with
+ * plain arithmetic instead of the trigonometry of <tt>GreatCircleDistanceFunction</tt>.
+ * <p>
+ * The map area is split into latitude tiles of equal height. A coordinate is projected once into north and east metres, the east metres
+ * are measured at the equator. A query point takes the scale of its tile, cos(centre latitude of the tile), and multiplies the east
+ * offsets by it, so the distances around the query point are measured on the tangent plane of its tile.
+ * <p>
+ * The distances differ from <tt>GreatCircleDistanceFunction.pointToPointDistance()</tt> only by the scale of the east component, which
+ * uses the mean latitude of the two points. The relative error of a distance within r metres of the query point is therefore bounded
+ * by <tt>getMaxScaleError(r)</tt>.
+ */
+public class LocalPlaneProjection {
+	
+	private static final double METRES_PER_DEGREE = Math.toRadians(1) * SpatialUtils.EARTH_RADIUS;
+	
+	private final double minLat;
+	private final double tileHeight;
+	private final double[] tileScales;  // the east scale of each tile, cos of the centre latitude
+	
+	/**
+	 * @param minLat     The minimum latitude of the area.
+	 * @param maxLat     The maximum latitude of the area.
+	 * @param tileHeight The height of each tile, in degrees of latitude.
+	 */
+	public LocalPlaneProjection(double minLat, double maxLat, double tileHeight) {
+		if (tileHeight <= 0 || maxLat < minLat)
+			throw new IllegalArgumentException("Invalid projection area: " + minLat + "," + maxLat + "," + tileHeight);
+		this.minLat = minLat;
+		this.tileHeight = tileHeight;
+		int tileCount = (int) Math.ceil((maxLat - minLat) / tileHeight) + 1;
+		this.tileScales = new double[tileCount];
+		for (int i = 0; i < tileCount; i++)
+			tileScales[i] = Math.cos(Math.toRadians(minLat + (i + 0.5) * tileHeight));
+	}
+	
+	/**
+	 * @param lon Longitude.
+	 * @return The east coordinate in metres at the equator.
+	 */
+	public static double toX(double lon) {
+		return lon * METRES_PER_DEGREE;
+	}
+	
+	/**
+	 * @param lat Latitude.
+	 * @return The north coordinate in metres.
+	 */
+	public static double toY(double lat) {
+		return lat * METRES_PER_DEGREE;
+	}
+	
+	/**
+	 * The scale of the east coordinates around a query point. Points outside the area use their own latitude.
+	 *
+	 * @param lat The latitude of the query point.
+	 * @return The factor that converts the east offsets from <tt>toX()</tt> into metres.
+	 */
+	public double getScale(double lat) {
+		int tile = (int) Math.floor((lat - minLat) / tileHeight);
+		if (tile < 0 || tile >= tileScales.length)
+			return Math.cos(Math.toRadians(lat));
+		return tileScales[tile];
+	}
+	
+	/**
+	 * The maximum relative difference between the east scale of a tile and the east scale of any pair of points within the radius of a
+	 * query point in that tile. It bounds the relative error of the projected distances against the great-circle distance function.
+	 *
+	 * @param radiusM The search radius around the query points, in metres.
+	 * @return The bound of |projected distance - great-circle distance| / great-circle distance.
+	 */
+	public double getMaxScaleError(double radiusM) {
+		double maxOffset = tileHeight / 2 + radiusM / METRES_PER_DEGREE;  // the largest latitude offset from the tile centre
+		double maxError = 0;
+		for (int i = 0; i < tileScales.length; i++) {
+			double centreLat = minLat + (i + 0.5) * tileHeight;
+			double lowerScale = Math.cos(Math.toRadians(centreLat - maxOffset));
+			double upperScale = Math.cos(Math.toRadians(centreLat + maxOffset));
+			maxError = Math.max(maxError, Math.max(Math.abs(lowerScale - tileScales[i]), Math.abs(upperScale - tileScales[i]))
+					/ Math.min(lowerScale, upperScale));
+		}
+		return maxError;
+	}
+}
@@ -696,4 +696,30 @@ public class SpatialUtils implements Serializable {
 		}
 		map.updateBoundary();
 	}
+	
+	/**
+	 * Returns the heading from one lonlat to another lonlat. Headings are
+	 * expressed in degrees clockwise from North within the range [-180,180).
+	 *
+	 * @return The heading in degrees clockwise from north.
+	 */
+	public static double computeHeading(double fromLon, double fromLati, double toLon, double toLati) {
+		double fromLng = Math.toRadians(fromLon);
+		double fromLat = Math.toRadians(fromLati);
+		double toLng = Math.toRadians(toLon);
+		double toLat = Math.toRadians(toLati);
+		double dLng = toLng - fromLng;
+		double heading = Math.atan2(
+				Math.sin(dLng) * Math.cos(toLat),
+				Math.cos(fromLat) * Math.sin(toLat) - Math.sin(fromLat) * Math.cos(toLat) * Math.cos(dLng));
+		return wrap(Math.toDegrees(heading), -180, 180);
+	}
+	
+	private static double wrap(double n, double min, double max) {
+		return (n >= min && n < max) ? n : (mod(n - min, max - min) + min);
+	}
+	
+	private static double mod(double x, double m) {
+		return ((x % m) + m) % m;
+	}
 }
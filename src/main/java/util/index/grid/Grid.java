@@ -8,13 +8,19 @@ import util.object.spatialobject.SpatialObject;
 import util.object.structure.XYObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A grid partition data structure made of n x m cells. This Grid can hold any type of spatial object in 2D.
  * <p>
  * The grid is constructed from left to right, bottom up. The first position in the grid is the position index zero 0=[i,j]=[0,0].
+ * <p>
+ * The grid can be searched by several threads while objects are inserted or removed. The partitions are created on the first insertion
+ * into their cell and never replaced, and each partition copies its object list on write.
  *
  * @param <T> Type of spatial object to store in this Grid.
  * @author uqdalves, Hellisk
@@ -27,9 +33,9 @@ public class Grid<T extends SpatialObject> implements SpatialDataStructure<T> {
 	 */
 	private static boolean IsReplicateBoundary = false;
 	/**
-	 * Matrix of grid cells partitions
+	 * Grid cells partitions, indexed by <tt>GridModel.getCellIndex()</tt>
 	 */
-	private final GridPartition<T>[][] partitions;
+	private final AtomicReferenceArray<GridPartition<T>> partitions;
 	/**
 	 * The spatial index model of this grid
 	 */
@@ -45,14 +51,13 @@ public class Grid<T extends SpatialObject> implements SpatialDataStructure<T> {
 	 * @param maxX Upper-right X coordinate.
 	 * @param maxY Upper-right Y coordinate.
 	 */
-	@SuppressWarnings("unchecked")
 	public Grid(int n, int m, double minX, double minY, double maxX, double maxY, DistanceFunction df) {
 		if (n <= 0 || m <= 0) {
 			throw new IllegalArgumentException("Grid dimensions must be positive: " + n + "," + m);
 		}
 		// create the index model of this partitioning structure
 		this.gridModel = new GridModel(n, m, minX, minY, maxX, maxY, df);
-		this.partitions = new GridPartition[n][m];
+		this.partitions = new AtomicReferenceArray<>(n * m);
 	}
 	
 	/**
@@ -67,23 +72,22 @@ public class Grid<T extends SpatialObject> implements SpatialDataStructure<T> {
 				j < 0 || j >= gridModel.sizeY()) {
 			throw new IndexOutOfBoundsException("Grid index out of bounds.");
 		}
-		return partitions[i][j];
+		return partitions.get(gridModel.getCellIndex(i, j));
 	}
 	
 	@Override
 	public long count() {
 		long count = 0;
-		for (GridPartition<T>[] row : partitions) {
-			for (GridPartition<T> cell : row) {
-				if (cell != null) count += cell.count();
-			}
+		for (int i = 0; i < partitions.length(); i++) {
+			GridPartition<T> cell = partitions.get(i);
+			if (cell != null) count += cell.count();
 		}
 		return count;
 	}
 	
 	@Override
 	public boolean isEmpty() {
-		return (partitions.length == 0);
+		return (partitions.length() == 0);
 	}
 	
 	@Override
@@ -100,10 +104,9 @@ public class Grid<T extends SpatialObject> implements SpatialDataStructure<T> {
 	public List<GridPartition<T>> getPartitions() {
 		List<GridPartition<T>> result = new
 				ArrayList<>(gridModel.size());
-		for (GridPartition<T>[] row : partitions) {
-			for (GridPartition<T> cell : row) {
-				if (cell != null) result.add(cell);
-			}
+		for (int i = 0; i < partitions.length(); i++) {
+			GridPartition<T> cell = partitions.get(i);
+			if (cell != null) result.add(cell);
 		}
 		return result;
 	}
@@ -116,52 +119,75 @@ public class Grid<T extends SpatialObject> implements SpatialDataStructure<T> {
 	@Override
 	public boolean insert(XYObject<T> obj) {
 		// ignore object not in this grid
-		if (obj == null || !gridModel.getBoundary().contains(obj.x(), obj.y())) {
+		if (obj == null) {
 			return false; // object cannot be added
 		}
-		// find the cell to add this object
-		String index = gridModel.search(obj.x(), obj.y());
-		int[] pos = gridModel.getCellPosition(index);
-		int i = pos[0], j = pos[1];
-		
-		// create partition if it does not exist
-		if (partitions[i][j] == null) {
-			partitions[i][j] = new GridPartition<>(index, gridModel.get(i, j));
+		long cell = gridModel.searchCell(obj.x(), obj.y());
+		if (cell == -1) {
+			return false; // object cannot be added
+		}
+		return getOrCreatePartition(cell).insert(obj);
+	}
+	
+	/**
+	 * Insert the objects with one copy of each affected partition. Objects outside the grid are ignored.
+	 *
+	 * @param objList The objects to insert.
+	 */
+	@Override
+	public void insertAll(List<XYObject<T>> objList) {
+		if (objList == null) {
+			throw new NullPointerException("List of spatial objects to insert into a spatial data structure must not be null.");
+		}
+		for (Map.Entry<Long, List<XYObject<T>>> entry : groupByCell(objList).entrySet()) {
+			getOrCreatePartition(entry.getKey()).insertBatch(entry.getValue());
 		}
-		return partitions[i][j].insert(obj);
 	}
 	
 	@Override
 	public boolean remove(XYObject<T> obj) {
 		// ignore object not in this grid
-		if (obj == null || !gridModel.getBoundary().contains(obj.x(), obj.y())) {
+		if (obj == null) {
 			return false; // object is not here
 		}
-		// find the cell to remove this object from
-		String index = gridModel.search(obj.x(), obj.y());
-		int[] pos = gridModel.getCellPosition(index);
-		int i = pos[0], j = pos[1];
+		long cell = gridModel.searchCell(obj.x(), obj.y());
+		if (cell == -1) {
+			return false; // object is not here
+		}
+		GridPartition<T> partition = partitions.get(getIndex(cell));
 		// no partition with the object
-		if (partitions[i][j] == null) {
+		if (partition == null) {
 			return false;
 		}
-		return partitions[i][j].remove(obj);
+		return partition.remove(obj);
+	}
+	
+	/**
+	 * Remove the objects with one copy of each affected partition.
+	 *
+	 * @param objList The objects to remove.
+	 */
+	@Override
+	public void removeAll(List<XYObject<T>> objList) {
+		if (objList == null) {
+			throw new NullPointerException("List of spatial objects to remove from a spatial data structure must not be null.");
+		}
+		for (Map.Entry<Long, List<XYObject<T>>> entry : groupByCell(objList).entrySet()) {
+			GridPartition<T> partition = partitions.get(getIndex(entry.getKey()));
+			if (partition != null) {
+				partition.removeBatch(entry.getValue());
+			}
+		}
 	}
 	
 	@Override
 	public GridPartition<T> partitionSearch(double x, double y) {
-		if (gridModel.getBoundary().contains(x, y)) {
-			// find the cell containing (x,y)
-			String index = gridModel.search(x, y);
-			int[] pos = gridModel.getCellPosition(index);
-
-//            if (partitions[pos[0]][pos[1]] == null) {
-//                LOG.error("Error partition" + pos[0] + "," + pos[1]);
-//            }
-			return partitions[pos[0]][pos[1]];
+		// find the cell containing (x,y)
+		long cell = gridModel.searchCell(x, y);
+		if (cell == -1) {
+			return null; // didn't find anything
 		}
-		
-		return null; // didn't find anything
+		return partitions.get(getIndex(cell));
 	}
 	
 	@Override
@@ -169,13 +195,17 @@ public class Grid<T extends SpatialObject> implements SpatialDataStructure<T> {
 		if (obj == null) {
 			throw new NullPointerException("Spatial object cannot be null.");
 		}
-		HashSet<String> indexList = gridModel.rangeSearch(obj);
 		List<GridPartition<T>> result = new ArrayList<>();
-		for (String index : indexList) {
-			// find the cell containing this partition
-			int[] pos = gridModel.getCellPosition(index);
-			if (!(partitions[pos[0]][pos[1]] == null)) {
-				result.add(partitions[pos[0]][pos[1]]);
+		// object is not in this grid
+		if (!gridModel.getBoundary().intersects(obj)) {
+			return result;
+		}
+		for (int i = 0; i < gridModel.sizeX(); i++) {
+			for (int j = 0; j < gridModel.sizeY(); j++) {
+				GridPartition<T> partition = partitions.get(gridModel.getCellIndex(i, j));
+				if (partition != null && gridModel.get(i, j).intersects(obj)) {
+					result.add(partition);
+				}
 			}
 		}
 		return result;
@@ -195,7 +225,7 @@ public class Grid<T extends SpatialObject> implements SpatialDataStructure<T> {
 		for (String index : indexList) {
 			// find the cell containing this partition
 			int[] pos = gridModel.getCellPosition(index);
-			result.add(partitions[pos[0]][pos[1]]);
+			result.add(get(pos[0], pos[1]));
 		}
 		return result;
 	}
@@ -213,11 +243,73 @@ public class Grid<T extends SpatialObject> implements SpatialDataStructure<T> {
 		for (String index : indexList) {
 			// find the cell containing this partition
 			int[] pos = gridModel.getCellPosition(index);
-			result.add(partitions[pos[0]][pos[1]]);
+			result.add(get(pos[0], pos[1]));
+		}
+		return result;
+	}
+	
+	/**
+	 * Return the non-empty partitions of the cell containing the (x,y) position and its adjacent cells. Equivalent to
+	 * <tt>partitionSearch()</tt> plus <tt>adjacentPartitionSearch()</tt> without the null partitions, but the cells are located by their
+	 * int index instead of their string ID.
+	 *
+	 * @param x Object's X coordinate.
+	 * @param y Object's Y coordinate.
+	 * @return A list of partitions, or an empty list if the position is out of the boundaries of this grid.
+	 */
+	public List<GridPartition<T>> neighbourhoodSearch(double x, double y) {
+		long cell = gridModel.searchCell(x, y);
+		if (cell == -1) {
+			return new ArrayList<>();
+		}
+		int[] range = gridModel.getNeighbourhoodRange(GridModel.getCellX(cell), GridModel.getCellY(cell));
+		List<GridPartition<T>> result = new ArrayList<>(9);
+		for (int i = range[0]; i <= range[2]; i++) {
+			int endIndex = gridModel.getCellIndex(i, range[3]);
+			for (int index = gridModel.getCellIndex(i, range[1]); index <= endIndex; index++) {
+				GridPartition<T> partition = partitions.get(index);
+				if (partition != null) {
+					result.add(partition);
+				}
+			}
 		}
 		return result;
 	}
 	
+	private int getIndex(long cell) {
+		return gridModel.getCellIndex(GridModel.getCellX(cell), GridModel.getCellY(cell));
+	}
+	
+	/**
+	 * Return the partition of the given cell, create it if it does not exist. Concurrent callers get the same partition.
+	 */
+	private GridPartition<T> getOrCreatePartition(long cell) {
+		int index = getIndex(cell);
+		GridPartition<T> partition = partitions.get(index);
+		if (partition == null) {
+			int i = GridModel.getCellX(cell), j = GridModel.getCellY(cell);
+			partition = new GridPartition<>(gridModel.get(i, j).getID(), gridModel.get(i, j));
+			if (!partitions.compareAndSet(index, null, partition)) {
+				partition = partitions.get(index);
+			}
+		}
+		return partition;
+	}
+	
+	private Map<Long, List<XYObject<T>>> groupByCell(List<XYObject<T>> objList) {
+		Map<Long, List<XYObject<T>>> cell2ObjList = new HashMap<>();
+		for (XYObject<T> obj : objList) {
+			if (obj == null) {
+				continue;
+			}
+			long cell = gridModel.searchCell(obj.x(), obj.y());
+			if (cell != -1) {
+				cell2ObjList.computeIfAbsent(cell, k -> new ArrayList<>()).add(obj);
+			}
+		}
+		return cell2ObjList;
+	}
+	
 	@Override
 	public void print() {
 		for (GridPartition<T> cell : getPartitions()) {
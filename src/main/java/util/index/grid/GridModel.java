@@ -181,10 +181,26 @@ public class GridModel implements SpatialIndexModel {
 	
 	@Override
 	public String search(double x, double y) {
-		if (!boundary.contains(x, y)) {
+		long cell = searchCell(x, y);
+		if (cell == -1) {
 			LOG.error("ERROR! The specific location is not included in the map: " + x + "," + y);
 			return null; // didn't find anything
 		}
+		return getIndexString(getCellX(cell), getCellY(cell));
+	}
+	
+	/**
+	 * Find the cell containing the (x,y) position without building its string index.
+	 *
+	 * @param x Object's X coordinate.
+	 * @param y Object's Y coordinate.
+	 * @return The position [i,j] of the cell packed into a long by <tt>packCell()</tt>, or -1 if the position is out of the boundaries
+	 * of this grid.
+	 */
+	public long searchCell(double x, double y) {
+		if (!boundary.contains(x, y)) {
+			return -1;
+		}
 		double width = cellsWidth();
 		double height = cellsHeight();
 		int i = (int) ((x - boundary.minX()) / width);
@@ -192,7 +208,61 @@ public class GridModel implements SpatialIndexModel {
 		if ((x != boundary.minX() && (x - boundary.minX()) % width == 0) || x == boundary.maxX()) i--;
 		if ((y != boundary.minY() && (y - boundary.minY()) % height == 0) || y == boundary.maxY()) j--;
 		
-		return getIndexString(i, j);
+		return packCell(i, j);
+	}
+	
+	/**
+	 * Pack the cell position [i,j] into a long, i in the upper 32 bits and j in the lower 32 bits.
+	 *
+	 * @param i cell position in the horizontal axis (x).
+	 * @param j cell position in the vertical axis (y).
+	 * @return The packed cell position.
+	 */
+	public static long packCell(int i, int j) {
+		return ((long) i << 32) | (j & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * @param cell The packed cell position.
+	 * @return cell position in the horizontal axis (x).
+	 */
+	public static int getCellX(long cell) {
+		return (int) (cell >>> 32);
+	}
+	
+	/**
+	 * @param cell The packed cell position.
+	 * @return cell position in the vertical axis (y).
+	 */
+	public static int getCellY(long cell) {
+		return (int) cell;
+	}
+	
+	/**
+	 * The int index of the cell in the position [i,j]. The cells are numbered column by column, so the cells [i,j1]...[i,j2] have the
+	 * consecutive indices getCellIndex(i, j1)...getCellIndex(i, j2).
+	 *
+	 * @param i cell position in the horizontal axis (x).
+	 * @param j cell position in the vertical axis (y).
+	 * @return The index of the cell, in [0, size()).
+	 */
+	public int getCellIndex(int i, int j) {
+		return i * sizeY + j;
+	}
+	
+	/**
+	 * The block of cells made of the cell [i,j] and its adjacent cells, clipped to the boundaries of this grid. The block covers the
+	 * cell index ranges [getCellIndex(x, range[1]), getCellIndex(x, range[3])] for every column x in [range[0], range[2]].
+	 *
+	 * @param i cell position in the horizontal axis (x).
+	 * @param j cell position in the vertical axis (y).
+	 * @return The range {minI, minJ, maxI, maxJ} of the block, all inclusive.
+	 */
+	public int[] getNeighbourhoodRange(final int i, final int j) {
+		if (i < 0 || i >= sizeX || j < 0 || j >= sizeY) {
+			throw new IndexOutOfBoundsException("Grid index out of bounds.");
+		}
+		return new int[]{Math.max(i - 1, 0), Math.max(j - 1, 0), Math.min(i + 1, sizeX - 1), Math.min(j + 1, sizeY - 1)};
 	}
 	
 	@Override
@@ -6,10 +6,16 @@ import util.object.spatialobject.Rect;
 import util.object.spatialobject.SpatialObject;
 import util.object.structure.XYObject;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * Spatial partition representing a cell in a Grid diagram.
  * <p>
- * Each partition is represented by its its boundary rectangle, and contains the list of spatial objects in the partition.
+ * Each partition is represented by its its boundary rectangle, and contains the list of spatial objects in the partition. The list is
+ * copied on write, so the partition can be read by several threads while objects are inserted or removed. The readers iterate over the
+ * list as it was when the iteration started.
  *
  * @param <T> Type of spatial object to store in this partition.
  * @author uqdalves
@@ -32,6 +38,7 @@ public class GridPartition<T extends SpatialObject> extends SpatialPartition<XYO
 			throw new NullPointerException("Grid cell boundary cannot be null.");
 		}
 		this.boundary = cellBoundary;
+		this.objectsList = new CopyOnWriteArrayList<>();
 	}
 	
 	/**
@@ -46,6 +53,7 @@ public class GridPartition<T extends SpatialObject> extends SpatialPartition<XYO
 	public GridPartition(String cellId, double minX, double minY, double maxX, double maxY, DistanceFunction df) {
 		super(cellId);
 		this.boundary = new Rect(minX, minY, maxX, maxY, df);
+		this.objectsList = new CopyOnWriteArrayList<>();
 	}
 	
 	@Override
@@ -70,4 +78,28 @@ public class GridPartition<T extends SpatialObject> extends SpatialPartition<XYO
 		}
 		return objectsList.remove(obj);
 	}
+	
+	/**
+	 * Insert the objects with one copy of the list. Objects that do not belong in this cell are ignored.
+	 *
+	 * @param objList The objects to insert.
+	 */
+	void insertBatch(List<XYObject<T>> objList) {
+		List<XYObject<T>> insertList = new ArrayList<>(objList.size());
+		for (XYObject<T> obj : objList) {
+			if (obj != null && boundary.contains(obj.x(), obj.y())) {
+				insertList.add(obj);
+			}
+		}
+		objectsList.addAll(insertList);
+	}
+	
+	/**
+	 * Remove the objects with one copy of the list.
+	 *
+	 * @param objList The objects to remove.
+	 */
+	void removeBatch(List<XYObject<T>> objList) {
+		objectsList.removeAll(objList);
+	}
 }
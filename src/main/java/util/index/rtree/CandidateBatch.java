@@ -0,0 +1,119 @@
+package util.index.rtree;
+
+import java.util.Arrays;
+
+/**
+ * The candidate segments of a sequence of query points, stored in flat primitive arrays. The candidates of point i are the entries
+ * [getCandidateStart(i), getCandidateEnd(i)), each entry has the line ID, which is also the mini edge index in <tt>RoutingGraph</tt>, the
+ * closest point on the line, its position along the line and its distance to the query point.
+ * <p>
+ * A batch can be refilled by another search without allocating, see <tt>RTreeIndexing.searchNeighboursInBuffer()</tt>. The arrays only
+ * grow, so a buffer reused by one thread settles at the size of its largest search.
+ */
+public class CandidateBatch {
+	
+	private int[] offsets;
+	private int pointCount;
+	private int[] lineIDs;
+	private double[] ratios;
+	private double[] matchX;
+	private double[] matchY;
+	private double[] distances;
+	private int size = 0;
+	
+	CandidateBatch(int pointCount) {
+		this.offsets = new int[pointCount + 1];
+		this.pointCount = pointCount;
+		int capacity = Math.max(pointCount * 4, 16);
+		this.lineIDs = new int[capacity];
+		this.ratios = new double[capacity];
+		this.matchX = new double[capacity];
+		this.matchY = new double[capacity];
+		this.distances = new double[capacity];
+	}
+	
+	/**
+	 * Remove all candidates and prepare the batch for a search of the given number of points.
+	 */
+	void reset(int pointCount) {
+		if (offsets.length < pointCount + 1)
+			offsets = new int[Math.max(pointCount + 1, offsets.length * 2)];
+		offsets[0] = 0;
+		this.pointCount = pointCount;
+		this.size = 0;
+	}
+	
+	/**
+	 * Append a candidate of the current point, the points are filled in order.
+	 */
+	void add(int lineID, double ratio, double x, double y, double distance) {
+		if (size == lineIDs.length) {
+			int capacity = size * 2;
+			lineIDs = Arrays.copyOf(lineIDs, capacity);
+			ratios = Arrays.copyOf(ratios, capacity);
+			matchX = Arrays.copyOf(matchX, capacity);
+			matchY = Arrays.copyOf(matchY, capacity);
+			distances = Arrays.copyOf(distances, capacity);
+		}
+		lineIDs[size] = lineID;
+		ratios[size] = ratio;
+		matchX[size] = x;
+		matchY[size] = y;
+		distances[size] = distance;
+		size++;
+	}
+	
+	/**
+	 * Close the candidate list of the given point, all candidates added since the previous point belong to it.
+	 */
+	void finishPoint(int pointIndex) {
+		offsets[pointIndex + 1] = size;
+	}
+	
+	public int getPointCount() {
+		return pointCount;
+	}
+	
+	public int getCandidateStart(int pointIndex) {
+		return offsets[pointIndex];
+	}
+	
+	public int getCandidateEnd(int pointIndex) {
+		return offsets[pointIndex + 1];
+	}
+	
+	public int getCandidateCount(int pointIndex) {
+		return offsets[pointIndex + 1] - offsets[pointIndex];
+	}
+	
+	public int getLineID(int candidate) {
+		return lineIDs[candidate];
+	}
+	
+	/**
+	 * @param candidate The candidate index.
+	 * @return The position of the closest point along the line, 0 at the start point and 1 at the end point.
+	 */
+	public double getRatio(int candidate) {
+		return ratios[candidate];
+	}
+	
+	public double getMatchX(int candidate) {
+		return matchX[candidate];
+	}
+	
+	public double getMatchY(int candidate) {
+		return matchY[candidate];
+	}
+	
+	public double getDistance(int candidate) {
+		return distances[candidate];
+	}
+	
+	/**
+	 * @return The total number of candidates of all points.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,141 @@
+package util.index.rtree;
+
+import util.object.structure.StripedLRUCache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of the candidate lines of small grid cells, shared by all threads matching on the same <tt>RTreeIndexing</tt>. The
+ * entry of a cell lists every line that can be within the candidate range of a point in the cell, a superset of the lines within the
+ * candidate range plus half the cell diagonal of the cell centre. A query in the cell only refines the exact distance over the list.
+ * <p>
+ * The cells are a regular grid in the map coordinates, a cell is identified by its column and row packed into a long. The entries are
+ * kept in a <tt>StripedLRUCache</tt> whose capacity is measured in weight, an entry weighs one plus the number of its lines.
+ */
+public class CandidateTileCache {
+	
+	private final StripedLRUCache<int[]> entries;
+	private final double radiusM;   // the candidate range the entries are computed for
+	private final double originX;
+	private final double originY;
+	private final double cellWidth;     // the size of a cell in map coordinates
+	private final double cellHeight;
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	
+	/**
+	 * @param radiusM    The candidate range of the queries answered by the cache.
+	 * @param originX    The x coordinate of the lower-left corner of cell [0,0].
+	 * @param originY    The y coordinate of the lower-left corner of cell [0,0].
+	 * @param cellWidth  The width of a cell in map coordinates.
+	 * @param cellHeight The height of a cell in map coordinates.
+	 * @param maxWeight  The maximum total weight of the cache.
+	 */
+	CandidateTileCache(double radiusM, double originX, double originY, double cellWidth, double cellHeight, long maxWeight) {
+		if (maxWeight <= 0)
+			throw new IllegalArgumentException("The candidate cache capacity must be positive: " + maxWeight);
+		if (cellWidth <= 0 || cellHeight <= 0)
+			throw new IllegalArgumentException("The candidate cache cell size must be positive: " + cellWidth + "," + cellHeight);
+		this.radiusM = radiusM;
+		this.originX = originX;
+		this.originY = originY;
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+		this.entries = new StripedLRUCache<>(maxWeight, lineIDs -> 1 + lineIDs.length);
+	}
+	
+	/**
+	 * @param x The x coordinate of the query point.
+	 * @param y The y coordinate of the query point.
+	 * @return The cell containing the point, column in the upper 32 bits and row in the lower 32 bits.
+	 */
+	long getCell(double x, double y) {
+		int column = (int) Math.floor((x - originX) / cellWidth);
+		int row = (int) Math.floor((y - originY) / cellHeight);
+		return ((long) column << 32) | (row & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * @param cell The cell.
+	 * @return The boundary of the cell, {minX, minY, maxX, maxY}.
+	 */
+	double[] getCellBounds(long cell) {
+		double minX = originX + (int) (cell >>> 32) * cellWidth;
+		double minY = originY + (int) cell * cellHeight;
+		return new double[]{minX, minY, minX + cellWidth, minY + cellHeight};
+	}
+	
+	/**
+	 * @param cell The cell.
+	 * @return The candidate lines of the cell, null if not cached.
+	 */
+	int[] get(long cell) {
+		int[] lineIDs = entries.get(cell);
+		if (lineIDs == null)
+			missCount.increment();
+		else
+			hitCount.increment();
+		return lineIDs;
+	}
+	
+	/**
+	 * Store the candidate lines of a cell. A cell with more lines than a segment of the cache can hold is not stored.
+	 *
+	 * @param cell    The cell.
+	 * @param lineIDs The lines that can be a candidate of a point in the cell, not modified afterwards.
+	 */
+	void put(long cell, int[] lineIDs) {
+		entries.put(cell, lineIDs);
+	}
+	
+	/**
+	 * @param cell The cell.
+	 * @return True if the cell is cached. Does not count as a hit or a miss.
+	 */
+	boolean contains(long cell) {
+		return entries.containsKey(cell);
+	}
+	
+	public double getRadius() {
+		return radiusM;
+	}
+	
+	/**
+	 * Remove all entries.
+	 */
+	public void invalidate() {
+		entries.clear();
+	}
+	
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+	
+	public long getMissCount() {
+		return missCount.sum();
+	}
+	
+	public long getEvictionCount() {
+		return entries.getEvictionCount();
+	}
+	
+	public double getHitRate() {
+		long hit = getHitCount();
+		long miss = getMissCount();
+		return hit + miss == 0 ? 0 : (double) hit / (hit + miss);
+	}
+	
+	public long getWeight() {
+		return entries.getWeight();
+	}
+	
+	public int getCellCount() {
+		return entries.size();
+	}
+	
+	@Override
+	public String toString() {
+		return "Candidate cache hits: " + getHitCount() + ", misses: " + getMissCount() + ", hit rate: " + getHitRate() + ", evictions: "
+				+ getEvictionCount() + ", cells: " + getCellCount() + ", weight: " + getWeight();
+	}
+}
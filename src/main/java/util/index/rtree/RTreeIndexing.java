@@ -1,81 +1,222 @@
 package util.index.rtree;
 
 import com.github.davidmoten.grumpy.core.Position;
-import com.github.davidmoten.rtree.Entry;
-import com.github.davidmoten.rtree.RTree;
-import com.github.davidmoten.rtree.geometry.Geometries;
-import com.github.davidmoten.rtree.geometry.Line;
-import com.github.davidmoten.rtree.geometry.Rectangle;
-import com.github.davidmoten.rtree.geometry.internal.PointDouble;
-import rx.Observable;
+import org.apache.log4j.Logger;
 import util.function.DistanceFunction;
 import util.function.GreatCircleDistanceFunction;
+import util.function.LocalPlaneProjection;
+import util.function.SpatialUtils;
+import util.io.TrajectoryReader;
 import util.object.roadnetwork.RoadNetworkGraph;
 import util.object.roadnetwork.RoadNode;
 import util.object.roadnetwork.RoadWay;
 import util.object.spatialobject.Point;
 import util.object.spatialobject.Segment;
 import util.object.structure.PointMatch;
+import util.settings.BaseProperty;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Map;
 
 /**
- * This class index road network using an R tree
+ * This class index road network using an R tree. Each index instance holds its own packed tree, so indices of different maps can be used
+ * in the same JVM.
+ * <p>
+ * On a longitude/latitude map, the index can project the lines once onto local metric planes (see <tt>LocalPlaneProjection</tt>). The
+ * candidate filtering, the candidate distances and the closest points are then computed with plain arithmetic, and only the final match
+ * point is converted back to longitude/latitude.
+ * <p>
+ * The index can also cache the candidate lines of small grid cells (see <tt>CandidateTileCache</tt>), so the queries in busy areas skip
+ * the tree traversal.
  */
 public class RTreeIndexing {
-	// load road nodes
 	
-	private static RTree<String, Line> rTree = RTree.star().create();
-	private static RoadNetworkGraph currMap = null;
+	private static final Logger LOG = Logger.getLogger(RTreeIndexing.class);
+	private static final int MAX_RUN_LENGTH = 64;   // the maximum number of points answered by one range query in a batch search
+	private static final double MAX_RUN_EXTENT = 4;     // the maximum size of the union search box of a run, in multiples of one box
+	private static final double PROJECTION_TILE_HEIGHT = 0.01;  // the height of the projection tiles, in degrees of latitude
+	
+	private final SegmentRTree rTree;
+	private final RoadNetworkGraph currMap;
+	private final String[] lineIDs;     // the id of each simple line, polylineID + "|" + serial number of the line in the polyline
+	private final String[] roadIDs;     // the polyline id of each simple line
+	private final LocalPlaneProjection projection;  // null if the distances are computed by the distance function of the map
+	private final double[] projectedX1;     // the projected endpoints of each line, east metres at the equator and north metres
+	private final double[] projectedY1;
+	private final double[] projectedX2;
+	private final double[] projectedY2;
+	private CandidateTileCache candidateCache = null;    // null if the candidate cache is disabled
+	private final ThreadLocal<CandidateBatch> candidateBuffer = ThreadLocal.withInitial(() -> new CandidateBatch(0));
 	
 	public RTreeIndexing(RoadNetworkGraph currMap) {
-		RTreeIndexing.currMap = currMap;
-		buildTree();
+		this(currMap, false);
+	}
+	
+	/**
+	 * Create the index with the candidate search options of the map-matching properties: the local projection, the candidate cache and
+	 * its warm-up trajectories.
+	 *
+	 * @param currMap The map to index.
+	 * @param prop    The map-matching properties.
+	 */
+	public RTreeIndexing(RoadNetworkGraph currMap, BaseProperty prop) {
+		this(currMap, isLocalProjection(prop));
+		enableCandidateCache(prop);
+	}
+	
+	/**
+	 * @param currMap             The map to index.
+	 * @param isLocalProjection   Compute the candidates on local metric planes instead of through the distance function. Ignored if the
+	 *                            map does not use <tt>GreatCircleDistanceFunction</tt>.
+	 */
+	public RTreeIndexing(RoadNetworkGraph currMap, boolean isLocalProjection) {
+		this(currMap, buildTree(currMap), getLineRoadIDs(currMap), getLineNumbers(currMap), isLocalProjection);
+	}
+	
+	/**
+	 * Create the index on a tree read from a map index bundle, with the candidate search options of the map-matching properties.
+	 *
+	 * @param currMap     The map the tree is built from.
+	 * @param rTree       The packed tree of the lines of the map.
+	 * @param roadIDs     The polyline id of each line.
+	 * @param lineNumbers The serial number of each line in its polyline.
+	 * @param prop        The map-matching properties.
+	 */
+	public RTreeIndexing(RoadNetworkGraph currMap, SegmentRTree rTree, String[] roadIDs, int[] lineNumbers, BaseProperty prop) {
+		this(currMap, rTree, roadIDs, lineNumbers, isLocalProjection(prop));
+		enableCandidateCache(prop);
+	}
+	
+	/**
+	 * Create the index on a tree read from a map index bundle.
+	 *
+	 * @param currMap           The map the tree is built from.
+	 * @param rTree             The packed tree of the lines of the map.
+	 * @param roadIDs           The polyline id of each line.
+	 * @param lineNumbers       The serial number of each line in its polyline.
+	 * @param isLocalProjection Compute the candidates on local metric planes, see <tt>RTreeIndexing(RoadNetworkGraph, boolean)</tt>.
+	 */
+	public RTreeIndexing(RoadNetworkGraph currMap, SegmentRTree rTree, String[] roadIDs, int[] lineNumbers, boolean isLocalProjection) {
+		if (rTree.size() != roadIDs.length || rTree.size() != lineNumbers.length)
+			throw new IllegalArgumentException("The tree has " + rTree.size() + " lines but " + roadIDs.length + " road IDs and "
+					+ lineNumbers.length + " line numbers are given.");
+		this.currMap = currMap;
+		this.rTree = rTree;
+		int lineCount = rTree.size();
+		this.roadIDs = roadIDs;
+		this.lineIDs = new String[lineCount];
+		for (int i = 0; i < lineCount; i++)
+			lineIDs[i] = roadIDs[i] + "|" + lineNumbers[i];
+		if (isLocalProjection && currMap.getDistanceFunction() instanceof GreatCircleDistanceFunction) {
+			this.projection = new LocalPlaneProjection(currMap.getMinLat(), currMap.getMaxLat(), PROJECTION_TILE_HEIGHT);
+			this.projectedX1 = new double[lineCount];
+			this.projectedY1 = new double[lineCount];
+			this.projectedX2 = new double[lineCount];
+			this.projectedY2 = new double[lineCount];
+			for (int i = 0; i < lineCount; i++) {
+				projectedX1[i] = LocalPlaneProjection.toX(rTree.x1(i));
+				projectedY1[i] = LocalPlaneProjection.toY(rTree.y1(i));
+				projectedX2[i] = LocalPlaneProjection.toX(rTree.x2(i));
+				projectedY2[i] = LocalPlaneProjection.toY(rTree.y2(i));
+			}
+		} else {
+			this.projection = null;
+			this.projectedX1 = null;
+			this.projectedY1 = null;
+			this.projectedX2 = null;
+			this.projectedY2 = null;
+		}
 	}
 	
+	private static boolean isLocalProjection(BaseProperty prop) {
+		return prop.contains("algorithm.mapmatching.UseLocalProjection") && prop.getPropertyBoolean("algorithm.mapmatching" +
+				".UseLocalProjection");
+	}
+	
+	/**
+	 * Enable the candidate cache and load its warm-up trajectories if the cache capacity is set in the properties.
+	 */
+	private void enableCandidateCache(BaseProperty prop) {
+		if (prop.contains("algorithm.mapmatching.CandidateCacheCapacity") && prop.getPropertyLong("algorithm.mapmatching" +
+				".CandidateCacheCapacity") > 0) {
+			enableCandidateCache(prop.getPropertyDouble("algorithm.mapmatching.CandidateRange"),
+					prop.contains("algorithm.mapmatching.CandidateCacheCellSize") ? prop.getPropertyDouble("algorithm.mapmatching" +
+							".CandidateCacheCellSize") : 10, prop.getPropertyLong("algorithm.mapmatching.CandidateCacheCapacity"));
+			if (prop.contains("algorithm.mapmatching.CandidateCacheWarmUpFolder")
+					&& !prop.getPropertyString("algorithm.mapmatching.CandidateCacheWarmUpFolder").isEmpty())
+				warmUpCandidateCache(TrajectoryReader.readTrajectoriesToList(prop.getPropertyString("algorithm.mapmatching" +
+						".CandidateCacheWarmUpFolder"), 1, currMap.getDistanceFunction()), Integer.MAX_VALUE);
+		}
+	}
 	
 	/**
 	 * Add polyline to rtree. One polyline is allowed to contain multiple simple lines.
-	 * Each simple line is an geometric object in rtree with a unique id in the tree: polylineID + startNodeId + endNodeID
+	 * Each simple line is an geometric object in rtree with a unique id in the tree: polylineID + serial number. The lines are numbered in
+	 * the same order as the mini edges in RoutingGraph, so the line number is also the mini edge index.
 	 */
-	private void buildTree() {
+	private static SegmentRTree buildTree(RoadNetworkGraph currMap) {
+		int lineCount = getLineCount(currMap);
+		double[] x1 = new double[lineCount];
+		double[] y1 = new double[lineCount];
+		double[] x2 = new double[lineCount];
+		double[] y2 = new double[lineCount];
+		int lineIndex = 0;
 		for (RoadWay way : currMap.getWays()) {
-			String polylineID = way.getID();
 			for (int i = 0; i < way.getNodes().size() - 1; i++) {
 				RoadNode startNode = way.getNode(i);
-				double[] curCoord = new double[]{startNode.lon(), startNode.lat()};
-				
 				RoadNode endNode = way.getNode(i + 1);
-				double[] nextCoord = new double[]{endNode.lon(), endNode.lat()};
-
-//				String lineID = polylineID + "|" + startNode.getID() + "|" + endNode.getID();
-				String lineID = polylineID + "|" + i;
-				rTree = rTree.add(lineID, Geometries.line(curCoord[0], curCoord[1], nextCoord[0], nextCoord[1]));
+				x1[lineIndex] = startNode.lon();
+				y1[lineIndex] = startNode.lat();
+				x2[lineIndex] = endNode.lon();
+				y2[lineIndex] = endNode.lat();
+				lineIndex++;
 			}
 		}
+		return new SegmentRTree(x1, y1, x2, y2);
+	}
+	
+	private static int getLineCount(RoadNetworkGraph currMap) {
+		int lineCount = 0;
+		for (RoadWay way : currMap.getWays())
+			lineCount += Math.max(way.getNodes().size() - 1, 0);
+		return lineCount;
 	}
 	
 	/**
-	 * Get the road network rTree
-	 *
-	 * @return loaded rtree
+	 * @return The polyline id of each simple line of the map, in line number order.
 	 */
-	public static RTree<String, Line> getTree() {
-		return rTree;
+	public static String[] getLineRoadIDs(RoadNetworkGraph currMap) {
+		String[] roadIDs = new String[getLineCount(currMap)];
+		int lineIndex = 0;
+		for (RoadWay way : currMap.getWays()) {
+			for (int i = 0; i < way.getNodes().size() - 1; i++)
+				roadIDs[lineIndex++] = way.getID();
+		}
+		return roadIDs;
 	}
 	
 	/**
-	 * Point query the rtree
+	 * @return The serial number of each simple line of the map in its polyline, in line number order.
+	 */
+	public static int[] getLineNumbers(RoadNetworkGraph currMap) {
+		int[] lineNumbers = new int[getLineCount(currMap)];
+		int lineIndex = 0;
+		for (RoadWay way : currMap.getWays()) {
+			for (int i = 0; i < way.getNodes().size() - 1; i++)
+				lineNumbers[lineIndex++] = i;
+		}
+		return lineNumbers;
+	}
+	
+	/**
+	 * Get the road network rTree
 	 *
-	 * @param lon       longitude of the query point
-	 * @param lat       latitude of the query point
-	 * @param distanceM search radius (m)
-	 * @return list of line objects that intersect the search box
+	 * @return loaded rtree
 	 */
-	public List<Entry<String, Line>> search(double lon, double lat, final double distanceM) {
-		return priSearch(lon, lat, distanceM).toList().toBlocking().single();
+	public SegmentRTree getTree() {
+		return rTree;
 	}
 	
 	/**
@@ -84,25 +225,40 @@ public class RTreeIndexing {
 	 * @param lon       longitude of the query point
 	 * @param lat       latitude of the query point
 	 * @param distanceM search radius (m)
-	 * @return Observations of lines
+	 * @return the ids of the lines within the search radius
 	 */
-	private Observable<Entry<String, Line>> priSearch(double lon, double lat, final double distanceM) {
-		// First we need to calculate an enclosing lat long rectangle for this distance then we refine on the exact distance
-		final Position from = Position.create(lat, lon);
+	public List<Integer> search(double lon, double lat, final double distanceM) {
 		DistanceFunction distFunc = currMap.getDistanceFunction();
 		final Point searchPoint = new Point(lon, lat, distFunc);
-		Rectangle bounds = createBounds(from, distanceM * 1.5 / 1000);
-//		Rectangle bounds = createBounds(from, distanceM / 1000);
+		List<Integer> result = new ArrayList<>();
+		if (isCandidateCacheUsed(distanceM)) {   // only refine the cached lines of the cell
+			for (int lineID : getCellCandidates(candidateCache.getCell(lon, lat))) {
+				if (getDistance(searchPoint, lineID) < distanceM)
+					result.add(lineID);
+			}
+			return result;
+		}
+		// First we need to calculate an enclosing lat long rectangle for this distance then we refine on the exact distance
+		final Position from = Position.create(lat, lon);
+		double[] bounds = createBounds(from, distanceM * 1.5 / 1000);
+//		double[] bounds = createBounds(from, distanceM / 1000);
 		
-		return rTree
-				// do the first search using the bounds (using L2 distance)
-				.search(bounds)
-				// refine using the exact distance
-				.filter(entry -> {
-					Line line = entry.geometry();
-					Segment segment = new Segment(line.x1(), line.y1(), line.x2(), line.y2(), distFunc);
-					return distFunc.distance(searchPoint, segment) < distanceM;
-				});
+		// do the first search using the bounds (using L2 distance), then refine using the exact distance
+		if (projection != null) {
+			double[] closestPoint = new double[3];
+			double scale = projection.getScale(lat);
+			for (int lineID : rTree.rangeSearch(bounds[0], bounds[1], bounds[2], bounds[3])) {
+				if (projectToLine(lineID, lon, lat, scale, closestPoint) < distanceM)
+					result.add(lineID);
+			}
+			return result;
+		}
+		for (int lineID : rTree.rangeSearch(bounds[0], bounds[1], bounds[2], bounds[3])) {
+			Segment segment = getSegment(lineID, distFunc);
+			if (distFunc.distance(searchPoint, segment) < distanceM)
+				result.add(lineID);
+		}
+		return result;
 	}
 	
 	/**
@@ -110,9 +266,9 @@ public class RTreeIndexing {
 	 *
 	 * @param from       Position of the query point
 	 * @param distanceKm length of the searching radius (km)
-	 * @return searching box
+	 * @return searching box, {minLon, minLat, maxLon, maxLat}
 	 */
-	private Rectangle createBounds(final Position from, final double distanceKm) {
+	private double[] createBounds(final Position from, final double distanceKm) {
 		// this calculates a pretty accurate bounding box. Depending on the
 		// performance you require you wouldn't have to be this accurate because
 		// accuracy is enforced later
@@ -121,7 +277,7 @@ public class RTreeIndexing {
 		Position south = from.predict(distanceKm, 180);
 		Position west = from.predict(distanceKm, 270);
 		
-		return Geometries.rectangle(west.getLon(), south.getLat(), east.getLon(), north.getLat());
+		return new double[]{west.getLon(), south.getLat(), east.getLon(), north.getLat()};
 	}
 	
 	/**
@@ -131,22 +287,11 @@ public class RTreeIndexing {
 	 * @return lists of candidate matches
 	 */
 	public List<PointMatch> searchNeighbours(Point from, double radiusM) {
-		List<Entry<String, Line>> results = search(from.x(), from.y(), radiusM);
+		List<Integer> results = search(from.x(), from.y(), radiusM);
 		List<PointMatch> neighbours = new ArrayList<>();
 		
-		for (Entry<String, Line> pair : results) {
-//			double[] startNode = formatDoubles(new double[]{pair.geometry().x1(), pair.geometry().y1()});
-//			double[] endNode = formatDoubles(new double[]{pair.geometry().x2(), pair.geometry().y2()});
-			double[] startNode = new double[]{pair.geometry().x1(), pair.geometry().y1()};
-			double[] endNode = new double[]{pair.geometry().x2(), pair.geometry().y2()};
-			
-			Point closestPoint = from.getDistanceFunction().getClosestPoint(from.x(), from.y(), startNode[0], startNode[1], endNode[0], endNode[1]);
-			
-			Segment sg = new Segment(startNode[0], startNode[1], endNode[0], endNode[1], from.getDistanceFunction());
-			
-			
-			neighbours.add(new PointMatch(closestPoint, sg, pair.value()));
-		}
+		for (int lineID : results)
+			neighbours.add(createPointMatch(from, lineID));
 		return neighbours;
 	}
 	
@@ -159,23 +304,322 @@ public class RTreeIndexing {
 	 * @return lists of candidate matches
 	 */
 	public List<PointMatch> searchKNeighbours(Point from, int candidateCount, double maxRadiusM) {
-		List<Entry<String, Line>> results = knnSearch(from, candidateCount, maxRadiusM);
+		List<Integer> results = knnSearch(from, candidateCount, maxRadiusM);
 		List<PointMatch> neighbourList = new ArrayList<>();
 		
-		for (Entry<String, Line> pair : results) {
-//			double[] startNode = formatDoubles(new double[]{pair.geometry().x1(), pair.geometry().y1()});
-//			double[] endNode = formatDoubles(new double[]{pair.geometry().x2(), pair.geometry().y2()});
-			double[] startNode = new double[]{pair.geometry().x1(), pair.geometry().y1()};
-			double[] endNode = new double[]{pair.geometry().x2(), pair.geometry().y2()};
-			
-			Point closestPoint = from.getDistanceFunction().getClosestPoint(from.x(), from.y(), startNode[0], startNode[1], endNode[0], endNode[1]);
-			
-			Segment sg = new Segment(startNode[0], startNode[1], endNode[0], endNode[1], from.getDistanceFunction());
-			
-			neighbourList.add(new PointMatch(closestPoint, sg, pair.value()));
-		}
+		for (int lineID : results)
+			neighbourList.add(createPointMatch(from, lineID));
 		return neighbourList;
 	}
+	
+	/**
+	 * Search the road segments in the vicinity of every point of a trajectory, with the same result as <tt>search</tt> on each point.
+	 * Consecutive points are grouped into runs whose search boxes are close to each other. Each run is answered by one range query over
+	 * the union of its boxes, and the lines found are then refined for every point of the run, so the tree is walked once per run
+	 * instead of once per point.
+	 *
+	 * @param pointList The query points, usually the points of a trajectory in time order.
+	 * @param radiusM   searching radius around each point (m)
+	 * @return The candidates of every point.
+	 */
+	public CandidateBatch searchNeighbours(List<? extends Point> pointList, double radiusM) {
+		CandidateBatch batch = new CandidateBatch(pointList.size());
+		searchNeighbours(pointList, radiusM, batch);
+		return batch;
+	}
+	
+	/**
+	 * Same as <tt>searchNeighbours(List, double)</tt>, but the candidates are written into the candidate buffer of the calling thread
+	 * instead of a new batch, so the matching hot path does not allocate per candidate or per search. The returned batch is only valid
+	 * until the next call of this method on the same thread and must not be passed to another thread.
+	 *
+	 * @param pointList The query points, usually the points of a trajectory in time order.
+	 * @param radiusM   searching radius around each point (m)
+	 * @return The candidates of every point, held in the buffer of the calling thread.
+	 */
+	public CandidateBatch searchNeighboursInBuffer(List<? extends Point> pointList, double radiusM) {
+		CandidateBatch batch = candidateBuffer.get();
+		batch.reset(pointList.size());
+		searchNeighbours(pointList, radiusM, batch);
+		return batch;
+	}
+	
+	private void searchNeighbours(List<? extends Point> pointList, double radiusM, CandidateBatch batch) {
+		DistanceFunction distFunc = currMap.getDistanceFunction();
+		int pointCount = pointList.size();
+		double[] closestPointBuffer = new double[3];
+		if (isCandidateCacheUsed(radiusM)) {     // refine the cached lines of the cell of each point
+			for (int i = 0; i < pointCount; i++) {
+				Point point = pointList.get(i);
+				double scale = projection != null ? projection.getScale(point.y()) : 0;
+				for (int lineID : getCellCandidates(candidateCache.getCell(point.x(), point.y())))
+					addCandidate(batch, lineID, point, scale, radiusM, distFunc, closestPointBuffer);
+				batch.finishPoint(i);
+			}
+			return;
+		}
+		double[][] bounds = new double[pointCount][];
+		for (int i = 0; i < pointCount; i++)
+			bounds[i] = createBounds(Position.create(pointList.get(i).y(), pointList.get(i).x()), radiusM * 1.5 / 1000);
+		int runStart = 0;
+		while (runStart < pointCount) {
+			double minX = bounds[runStart][0];
+			double minY = bounds[runStart][1];
+			double maxX = bounds[runStart][2];
+			double maxY = bounds[runStart][3];
+			double maxWidth = (maxX - minX) * MAX_RUN_EXTENT;
+			double maxHeight = (maxY - minY) * MAX_RUN_EXTENT;
+			int runEnd = runStart + 1;
+			while (runEnd < pointCount && runEnd - runStart < MAX_RUN_LENGTH) {
+				double[] currBounds = bounds[runEnd];
+				if (Math.max(maxX, currBounds[2]) - Math.min(minX, currBounds[0]) > maxWidth
+						|| Math.max(maxY, currBounds[3]) - Math.min(minY, currBounds[1]) > maxHeight)
+					break;
+				minX = Math.min(minX, currBounds[0]);
+				minY = Math.min(minY, currBounds[1]);
+				maxX = Math.max(maxX, currBounds[2]);
+				maxY = Math.max(maxY, currBounds[3]);
+				runEnd++;
+			}
+			int[] runLines = rTree.rangeSearch(minX, minY, maxX, maxY);
+			for (int i = runStart; i < runEnd; i++) {
+				Point point = pointList.get(i);
+				double[] pointBounds = bounds[i];
+				double scale = projection != null ? projection.getScale(point.y()) : 0;
+				for (int lineID : runLines) {
+					if (rTree.intersects(lineID, pointBounds[0], pointBounds[1], pointBounds[2], pointBounds[3]))
+						addCandidate(batch, lineID, point, scale, radiusM, distFunc, closestPointBuffer);
+				}
+				batch.finishPoint(i);
+			}
+			runStart = runEnd;
+		}
+	}
+	
+	/**
+	 * Add the line to the candidates of the current point if it is within the radius.
+	 *
+	 * @param scale              The east scale of the point if the projection is used.
+	 * @param closestPointBuffer Buffer of the closest point and its ratio on the projection.
+	 */
+	private void addCandidate(CandidateBatch batch, int lineID, Point point, double scale, double radiusM, DistanceFunction distFunc,
+							  double[] closestPointBuffer) {
+		if (projection != null) {
+			double distance = projectToLine(lineID, point.x(), point.y(), scale, closestPointBuffer);
+			if (distance < radiusM)
+				batch.add(lineID, closestPointBuffer[2], closestPointBuffer[0], closestPointBuffer[1], distance);
+			return;
+		}
+		Point closestPoint = distFunc.getClosestPoint(point.x(), point.y(), rTree.x1(lineID), rTree.y1(lineID), rTree.x2(lineID),
+				rTree.y2(lineID));
+		double distance = distFunc.pointToPointDistance(point.x(), point.y(), closestPoint.x(), closestPoint.y());
+		if (distance < radiusM)
+			batch.add(lineID, getRatio(lineID, closestPoint.x(), closestPoint.y()), closestPoint.x(), closestPoint.y(), distance);
+	}
+	
+	/**
+	 * @return The position of the point projected onto the line, clamped to [0,1].
+	 */
+	private double getRatio(int lineID, double x, double y) {
+		double dx = rTree.x2(lineID) - rTree.x1(lineID);
+		double dy = rTree.y2(lineID) - rTree.y1(lineID);
+		double lengthSquare = dx * dx + dy * dy;
+		if (lengthSquare == 0)
+			return 0;
+		double t = ((x - rTree.x1(lineID)) * dx + (y - rTree.y1(lineID)) * dy) / lengthSquare;
+		return Math.max(0, Math.min(1, t));
+	}
+	
+	/**
+	 * Cache the candidate lines of grid cells for the queries with the given radius. The cells are about cellSizeM x cellSizeM metres.
+	 *
+	 * @param radiusM   The candidate range of the cached queries, queries with another radius are answered by the tree.
+	 * @param cellSizeM The size of the cells, in metres.
+	 * @param maxWeight The capacity of the cache, measured in cached line IDs.
+	 */
+	public void enableCandidateCache(double radiusM, double cellSizeM, long maxWeight) {
+		DistanceFunction distFunc = currMap.getDistanceFunction();
+		double referenceY = (currMap.getMinLat() + currMap.getMaxLat()) / 2;
+		this.candidateCache = new CandidateTileCache(radiusM, currMap.getMinLon(), currMap.getMinLat(),
+				distFunc.getCoordinateOffsetX(cellSizeM, referenceY), distFunc.getCoordinateOffsetY(cellSizeM, currMap.getMinLon()),
+				maxWeight);
+		LOG.info("Candidate cache enabled, radius: " + radiusM + "m, cell size: " + cellSizeM + "m, capacity: " + maxWeight);
+	}
+	
+	/**
+	 * Load the candidate lines of the cells visited most often by the given trajectories, in decreasing order of the number of points
+	 * in the cell. Stops when the cache starts evicting.
+	 *
+	 * @param trajectoryList The historical trajectories.
+	 * @param maxCellCount   The maximum number of cells to load.
+	 */
+	public void warmUpCandidateCache(List<? extends List<? extends Point>> trajectoryList, int maxCellCount) {
+		if (candidateCache == null)
+			throw new IllegalArgumentException("The candidate cache is not enabled.");
+		long startTime = System.currentTimeMillis();
+		Map<Long, Integer> cell2PointCount = new HashMap<>();
+		for (List<? extends Point> trajectory : trajectoryList) {
+			for (Point point : trajectory)
+				cell2PointCount.merge(candidateCache.getCell(point.x(), point.y()), 1, Integer::sum);
+		}
+		List<Map.Entry<Long, Integer>> cellList = new ArrayList<>(cell2PointCount.entrySet());
+		cellList.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+		long evictionCount = candidateCache.getEvictionCount();
+		int loadedCount = 0;
+		for (Map.Entry<Long, Integer> entry : cellList) {
+			if (loadedCount >= maxCellCount || candidateCache.getEvictionCount() != evictionCount)
+				break;
+			if (!candidateCache.contains(entry.getKey()))
+				candidateCache.put(entry.getKey(), computeCellCandidates(entry.getKey()));
+			loadedCount++;
+		}
+		LOG.info("Candidate cache warmed up in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s, " + loadedCount + " of "
+				+ cellList.size() + " visited cells loaded.");
+	}
+	
+	/**
+	 * @return The candidate cache and its metrics, null if the cache is disabled.
+	 */
+	public CandidateTileCache getCandidateCache() {
+		return candidateCache;
+	}
+	
+	private boolean isCandidateCacheUsed(double radiusM) {
+		return candidateCache != null && radiusM == candidateCache.getRadius();
+	}
+	
+	private int[] getCellCandidates(long cell) {
+		int[] lineIDs = candidateCache.get(cell);
+		if (lineIDs == null) {
+			lineIDs = computeCellCandidates(cell);
+			candidateCache.put(cell, lineIDs);
+		}
+		return lineIDs;
+	}
+	
+	/**
+	 * Find the lines that can be a candidate of a point in the cell, which are the lines intersecting the search box of any point in the
+	 * cell. The box of a point is the box of <tt>search</tt>, its height is fixed and its width only depends on the latitude, so the
+	 * boxes of the four cell corners cover the boxes of all points in the cell. The union is larger than the candidate range plus half
+	 * the cell diagonal around the cell centre.
+	 */
+	private int[] computeCellCandidates(long cell) {
+		double[] cellBounds = candidateCache.getCellBounds(cell);
+		double distanceKm = candidateCache.getRadius() * 1.5 / 1000;
+		double[] lowerLeft = createBounds(Position.create(cellBounds[1], cellBounds[0]), distanceKm);
+		double[] lowerRight = createBounds(Position.create(cellBounds[1], cellBounds[2]), distanceKm);
+		double[] upperLeft = createBounds(Position.create(cellBounds[3], cellBounds[0]), distanceKm);
+		double[] upperRight = createBounds(Position.create(cellBounds[3], cellBounds[2]), distanceKm);
+		return rTree.rangeSearch(Math.min(lowerLeft[0], upperLeft[0]), Math.min(lowerLeft[1], lowerRight[1]),
+				Math.max(lowerRight[2], upperRight[2]), Math.max(upperLeft[3], upperRight[3]));
+	}
+	
+	/**
+	 * Create the match point of a candidate found by the batch search.
+	 *
+	 * @param batch     The batch search result.
+	 * @param candidate The candidate index in the batch.
+	 * @param distFunc  The distance function of the match point.
+	 * @return The match point, its road ID is the line ID and its edge index is set.
+	 */
+	public PointMatch getPointMatch(CandidateBatch batch, int candidate, DistanceFunction distFunc) {
+		return getPointMatch(batch.getLineID(candidate), batch.getMatchX(candidate), batch.getMatchY(candidate), distFunc);
+	}
+	
+	/**
+	 * Create the match point of a candidate kept in primitive form, usually when the final match result is output.
+	 *
+	 * @param lineID   The line ID returned by the search.
+	 * @param x        The x coordinate of the match point on the line.
+	 * @param y        The y coordinate of the match point on the line.
+	 * @param distFunc The distance function of the match point.
+	 * @return The match point, its road ID is the line ID and its edge index is set.
+	 */
+	public PointMatch getPointMatch(int lineID, double x, double y, DistanceFunction distFunc) {
+		return new PointMatch(new Point(x, y, distFunc), getSegment(lineID, distFunc), lineIDs[lineID], lineID);
+	}
+	
+	/**
+	 * @param lineID The line ID returned by the search.
+	 * @return The id of the polyline the line belongs to.
+	 */
+	public String getRoadID(int lineID) {
+		return roadIDs[lineID];
+	}
+	
+	/**
+	 * @param lineID The line ID returned by the search.
+	 * @return The id of the line used as road ID by the match points, polylineID + "|" + serial number of the line in the polyline.
+	 */
+	public String getLineName(int lineID) {
+		return lineIDs[lineID];
+	}
+	
+	private PointMatch createPointMatch(Point from, int lineID) {
+		Point closestPoint;
+		if (projection != null) {
+			double[] closestPointCoordinates = new double[3];
+			projectToLine(lineID, from.x(), from.y(), projection.getScale(from.y()), closestPointCoordinates);
+			closestPoint = new Point(closestPointCoordinates[0], closestPointCoordinates[1], from.getDistanceFunction());
+		} else
+			closestPoint = from.getDistanceFunction().getClosestPoint(from.x(), from.y(), rTree.x1(lineID), rTree.y1(lineID),
+					rTree.x2(lineID), rTree.y2(lineID));
+		Segment sg = getSegment(lineID, from.getDistanceFunction());
+		return new PointMatch(closestPoint, sg, lineIDs[lineID], lineID);
+	}
+	
+	/**
+	 * Find the closest point of a line to the query point on the local plane of the query point.
+	 *
+	 * @param lineID       The line.
+	 * @param lon          Longitude of the query point.
+	 * @param lat          Latitude of the query point.
+	 * @param scale        The east scale of the query point, from <tt>LocalPlaneProjection.getScale()</tt>.
+	 * @param closestPoint Output, the longitude and latitude of the closest point and its ratio along the line.
+	 * @return The distance between the query point and the closest point, in metres.
+	 */
+	private double projectToLine(int lineID, double lon, double lat, double scale, double[] closestPoint) {
+		double x = LocalPlaneProjection.toX(lon);
+		double y = LocalPlaneProjection.toY(lat);
+		double ax = (projectedX1[lineID] - x) * scale;
+		double ay = projectedY1[lineID] - y;
+		double dx = (projectedX2[lineID] - projectedX1[lineID]) * scale;
+		double dy = projectedY2[lineID] - projectedY1[lineID];
+		double lengthSquare = dx * dx + dy * dy;
+		double t = lengthSquare == 0 ? 0 : -(ax * dx + ay * dy) / lengthSquare;
+		if (t <= 0) {
+			t = 0;
+			closestPoint[0] = rTree.x1(lineID);
+			closestPoint[1] = rTree.y1(lineID);
+		} else if (t >= 1) {
+			t = 1;
+			closestPoint[0] = rTree.x2(lineID);
+			closestPoint[1] = rTree.y2(lineID);
+		} else {    // the projection is linear, so the closest point is interpolated on the longitude/latitude of the line
+			closestPoint[0] = rTree.x1(lineID) + t * (rTree.x2(lineID) - rTree.x1(lineID));
+			closestPoint[1] = rTree.y1(lineID) + t * (rTree.y2(lineID) - rTree.y1(lineID));
+		}
+		closestPoint[2] = t;
+		double offsetX = ax + t * dx;
+		double offsetY = ay + t * dy;
+		return Math.sqrt(offsetX * offsetX + offsetY * offsetY);
+	}
+	
+	/**
+	 * @return The projection used for the candidate search, null if the distances are computed by the distance function of the map.
+	 */
+	public LocalPlaneProjection getProjection() {
+		return projection;
+	}
+	
+	/**
+	 * @param lineID   The line ID returned by the search.
+	 * @param distFunc The distance function of the segment.
+	 * @return The segment of the line.
+	 */
+	public Segment getSegment(int lineID, DistanceFunction distFunc) {
+		return new Segment(rTree.x1(lineID), rTree.y1(lineID), rTree.x2(lineID), rTree.y2(lineID), distFunc);
+	}
 
 //	/**
 //	 * Round 14 decimal places to 5 decimal places
@@ -191,70 +635,66 @@ public class RTreeIndexing {
 //	}
 	
 	/**
-	 * K-nearest neighbour search for point query.
+	 * K-nearest neighbour search for point query. The search is exact in metres: on a longitude/latitude map the tree is traversed with
+	 * the metric lower bounds of <tt>GreatCircleMetric</tt> instead of the Euclidean distance in degrees.
 	 *
 	 * @param searchPoint    The query point
 	 * @param candidateCount Number of candidate required for the point
 	 * @param radiusM        Maximum distance used to search the index
-	 * @return Observations of lines
+	 * @return the ids of the nearest lines, ordered by increasing distance
 	 */
-	private List<Entry<String, Line>> knnSearch(Point searchPoint, final int candidateCount, final double radiusM) {
+	private List<Integer> knnSearch(Point searchPoint, final int candidateCount, final double radiusM) {
 		
-		final PointDouble from = PointDouble.create(searchPoint.x(), searchPoint.y());
 		DistanceFunction distFunc = searchPoint.getDistanceFunction();
-		if (distFunc instanceof GreatCircleDistanceFunction) {
-			Observable<Entry<String, Line>> roughRes = rTree.nearest(from, radiusM * 4, (int) (candidateCount * 1.5));  // obtain
-			// more candidate than required since they use different distance function.
-			List<Entry<String, Line>> candidateList = roughRes.filter(entry -> {
-				Line line = entry.geometry();
-				Segment segment = new Segment(line.x1(), line.y1(), line.x2(), line.y2(), distFunc);
-				return distFunc.distance(searchPoint, segment) < radiusM;
-			}).toList().toBlocking().single();
-			
-			if (candidateList.size() <= candidateCount)    // the number of candidate already no more than requirement, output right
-				// away.
-				return candidateList;
-			
-			// otherwise, pick up the top-k results
-			PriorityQueue<DistanceItem> candidateQueue = new PriorityQueue<>();
-			for (Entry<String, Line> entry : candidateList) {
-				Line line = entry.geometry();
-				Segment segment = new Segment(line.x1(), line.y1(), line.x2(), line.y2(), distFunc);
-				double distance = distFunc.distance(searchPoint, segment);
-				candidateQueue.add(new DistanceItem(entry, distance));
-			}
-			List<Entry<String, Line>> resList = new ArrayList<>();
-			for (int i = 0; i < candidateCount; i++) {
-				if (candidateQueue.size() == 0)
-					throw new IllegalArgumentException("The candidate queue should not be empty.");
-				resList.add(candidateQueue.poll().getItem());
-			}
-			return resList;
-		} else {    // Euclidean distance, which is exactly what RTree is using
-			return rTree.nearest(from, radiusM, candidateCount).toList().toBlocking().single();
+		List<Integer> candidateList = new ArrayList<>();
+		int[] nearestLines;
+		if (distFunc instanceof GreatCircleDistanceFunction)
+			nearestLines = rTree.nearest(searchPoint.x(), searchPoint.y(), radiusM, candidateCount, new GreatCircleMetric(searchPoint));
+		else    // Euclidean distance, which is exactly what RTree is using
+			nearestLines = rTree.nearest(searchPoint.x(), searchPoint.y(), radiusM, candidateCount);
+		// the bound is inclusive in the tree, exclusive in the candidate search
+		for (int lineID : nearestLines) {
+			if (getDistance(searchPoint, lineID) < radiusM)
+				candidateList.add(lineID);
 		}
+		return candidateList;
 	}
 	
-	private static class DistanceItem implements Comparable<DistanceItem> {
-		private final Entry<String, Line> item;
-		private final double distance;
-		
-		DistanceItem(Entry<String, Line> item, double distance) {
-			this.item = item;
-			this.distance = distance;
-		}
+	private double getDistance(Point searchPoint, int lineID) {
+		if (projection != null)
+			return projectToLine(lineID, searchPoint.x(), searchPoint.y(), projection.getScale(searchPoint.y()), new double[3]);
+		DistanceFunction distFunc = searchPoint.getDistanceFunction();
+		return distFunc.distance(searchPoint, getSegment(lineID, distFunc));
+	}
+	
+	/**
+	 * The metres distance of the candidate search on a longitude/latitude map, used by the KNN search. The distance of a line is the
+	 * candidate distance of <tt>getDistance()</tt>. The bound of a box follows <tt>GreatCircleDistanceFunction.pointToPointDistance()
+	 * </tt>: the latitude and longitude gaps to the box, with the east gap scaled by the smallest cos(mean latitude) over the box. It is
+	 * loosened by 0.1% plus one metre, which covers the five decimal rounding of the closest points and the tile scale of the local
+	 * projection.
+	 */
+	private class GreatCircleMetric implements SegmentRTree.DistanceMetric {
+		private final Point searchPoint;
 		
-		public Entry<String, Line> getItem() {
-			return item;
+		GreatCircleMetric(Point searchPoint) {
+			this.searchPoint = searchPoint;
 		}
 		
-		public double getDistance() {
-			return distance;
+		@Override
+		public double boxDistance(double x, double y, double minX, double minY, double maxX, double maxY) {
+			double latGap = Math.max(0, Math.max(minY - y, y - maxY));
+			double lonGap = Math.max(0, Math.max(minX - x, x - maxX));
+			double scale = Math.min(Math.cos(Math.toRadians((y + minY) / 2)), Math.cos(Math.toRadians((y + maxY) / 2)));
+			double northDistance = Math.toRadians(latGap);
+			double eastDistance = Math.toRadians(lonGap) * Math.max(scale, 0);
+			double bound = SpatialUtils.EARTH_RADIUS * Math.sqrt(northDistance * northDistance + eastDistance * eastDistance);
+			return Math.max(0, bound * 0.999 - 1);
 		}
 		
 		@Override
-		public int compareTo(DistanceItem o) {
-			return Double.compare(this.distance, o.distance);
+		public double segmentDistance(int segmentID, double x, double y) {
+			return getDistance(searchPoint, segmentID);
 		}
 	}
 }
@@ -0,0 +1,430 @@
+package util.index.rtree;
+
+import util.io.MapIndexBundle;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable packed R-tree over line segments, bulk-loaded with the Sort-Tile-Recursive (STR) method of Leutenegger et al. (ICDE 1997).
+ * The segments are identified by their position in the input arrays. All nodes are stored in flat arrays: the nodes of each level are
+ * consecutive, the leaves come first and the root is the last node. The children of a node, either segments or nodes of the level below,
+ * are a consecutive range, so no object is created for the tree structure or during the queries.
+ * <p>
+ * The distances used in the queries are Euclidean distances in the coordinate space of the segments, unless a <tt>DistanceMetric</tt>
+ * is given to the nearest neighbour search.
+ */
+public class SegmentRTree {
+	
+	private static final int NODE_CAPACITY = 16;
+	
+	/**
+	 * The distance used by the nearest neighbour search.
+	 */
+	public interface DistanceMetric {
+		
+		/**
+		 * A lower bound of the distance from the query point to any segment inside the box. The bound of a box must not exceed the
+		 * bound of a box inside it, nor the distance of a segment inside it.
+		 */
+		double boxDistance(double x, double y, double minX, double minY, double maxX, double maxY);
+		
+		/**
+		 * The distance from the query point to the segment.
+		 */
+		double segmentDistance(int segmentID, double x, double y);
+	}
+	
+	private final double[] x1;  // the coordinates of each segment, indexed by segment ID
+	private final double[] y1;
+	private final double[] x2;
+	private final double[] y2;
+	private final int[] segmentIDs;     // the segment IDs in packed order, the leaves refer to ranges of this array
+	private final double[] nodeMinX;
+	private final double[] nodeMinY;
+	private final double[] nodeMaxX;
+	private final double[] nodeMaxY;
+	private final int[] childStart;     // the first child of each node, a segment position for leaves, a node index otherwise
+	private final int[] childEnd;       // exclusive
+	private final int leafCount;        // nodes [0, leafCount) are leaves
+	private final int height;
+	
+	/**
+	 * Build the tree over the given segments, the segment ID is the index in the coordinate arrays. The arrays are kept by the tree and
+	 * must not be modified afterwards.
+	 */
+	public SegmentRTree(double[] x1, double[] y1, double[] x2, double[] y2) {
+		if (x1.length != y1.length || x1.length != x2.length || x1.length != y2.length)
+			throw new IllegalArgumentException("The segment coordinate arrays have different sizes.");
+		this.x1 = x1;
+		this.y1 = y1;
+		this.x2 = x2;
+		this.y2 = y2;
+		int count = x1.length;
+		
+		// the bounding boxes of the current level, starting from the segments
+		double[] minX = new double[count];
+		double[] minY = new double[count];
+		double[] maxX = new double[count];
+		double[] maxY = new double[count];
+		for (int i = 0; i < count; i++) {
+			minX[i] = Math.min(x1[i], x2[i]);
+			minY[i] = Math.min(y1[i], y2[i]);
+			maxX[i] = Math.max(x1[i], x2[i]);
+			maxY[i] = Math.max(y1[i], y2[i]);
+		}
+		int[] order = strOrder(minX, minY, maxX, maxY);
+		this.segmentIDs = order;
+		minX = permute(minX, order);
+		minY = permute(minY, order);
+		maxX = permute(maxX, order);
+		maxY = permute(maxY, order);
+		
+		// the total number of nodes of all levels
+		int nodeCount = 0;
+		int levelCount = 0;
+		for (int size = count; ; size = (size + NODE_CAPACITY - 1) / NODE_CAPACITY) {
+			nodeCount += (size + NODE_CAPACITY - 1) / NODE_CAPACITY;
+			levelCount++;
+			if (size <= NODE_CAPACITY)
+				break;
+		}
+		this.nodeMinX = new double[nodeCount];
+		this.nodeMinY = new double[nodeCount];
+		this.nodeMaxX = new double[nodeCount];
+		this.nodeMaxY = new double[nodeCount];
+		this.childStart = new int[nodeCount];
+		this.childEnd = new int[nodeCount];
+		this.leafCount = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+		this.height = levelCount;
+		
+		// pack each level into the nodes of the level above, the items of the current level are already in STR order
+		int levelStart = 0;     // the index of the first node of the level being built
+		int childOffset = 0;    // the index of the first item of the current level
+		int itemCount = count;
+		while (true) {
+			int parentCount = (itemCount + NODE_CAPACITY - 1) / NODE_CAPACITY;
+			for (int p = 0; p < parentCount; p++) {
+				int node = levelStart + p;
+				int from = p * NODE_CAPACITY;
+				int to = Math.min(from + NODE_CAPACITY, itemCount);
+				nodeMinX[node] = Double.POSITIVE_INFINITY;
+				nodeMinY[node] = Double.POSITIVE_INFINITY;
+				nodeMaxX[node] = Double.NEGATIVE_INFINITY;
+				nodeMaxY[node] = Double.NEGATIVE_INFINITY;
+				for (int i = from; i < to; i++) {
+					nodeMinX[node] = Math.min(nodeMinX[node], minX[i]);
+					nodeMinY[node] = Math.min(nodeMinY[node], minY[i]);
+					nodeMaxX[node] = Math.max(nodeMaxX[node], maxX[i]);
+					nodeMaxY[node] = Math.max(nodeMaxY[node], maxY[i]);
+				}
+				childStart[node] = childOffset + from;
+				childEnd[node] = childOffset + to;
+			}
+			if (parentCount <= 1)
+				break;
+			// sort the new level in STR order, the children ranges move with their nodes
+			minX = Arrays.copyOfRange(nodeMinX, levelStart, levelStart + parentCount);
+			minY = Arrays.copyOfRange(nodeMinY, levelStart, levelStart + parentCount);
+			maxX = Arrays.copyOfRange(nodeMaxX, levelStart, levelStart + parentCount);
+			maxY = Arrays.copyOfRange(nodeMaxY, levelStart, levelStart + parentCount);
+			order = strOrder(minX, minY, maxX, maxY);
+			int[] start = Arrays.copyOfRange(childStart, levelStart, levelStart + parentCount);
+			int[] end = Arrays.copyOfRange(childEnd, levelStart, levelStart + parentCount);
+			for (int i = 0; i < parentCount; i++) {
+				nodeMinX[levelStart + i] = minX[order[i]];
+				nodeMinY[levelStart + i] = minY[order[i]];
+				nodeMaxX[levelStart + i] = maxX[order[i]];
+				nodeMaxY[levelStart + i] = maxY[order[i]];
+				childStart[levelStart + i] = start[order[i]];
+				childEnd[levelStart + i] = end[order[i]];
+			}
+			minX = permute(minX, order);
+			minY = permute(minY, order);
+			maxX = permute(maxX, order);
+			maxY = permute(maxY, order);
+			childOffset = levelStart;
+			levelStart += parentCount;
+			itemCount = parentCount;
+		}
+	}
+	
+	private SegmentRTree(double[] x1, double[] y1, double[] x2, double[] y2, int[] segmentIDs, double[] nodeMinX, double[] nodeMinY,
+						 double[] nodeMaxX, double[] nodeMaxY, int[] childStart, int[] childEnd, int leafCount, int height) {
+		this.x1 = x1;
+		this.y1 = y1;
+		this.x2 = x2;
+		this.y2 = y2;
+		this.segmentIDs = segmentIDs;
+		this.nodeMinX = nodeMinX;
+		this.nodeMinY = nodeMinY;
+		this.nodeMaxX = nodeMaxX;
+		this.nodeMaxY = nodeMaxY;
+		this.childStart = childStart;
+		this.childEnd = childEnd;
+		this.leafCount = leafCount;
+		this.height = height;
+	}
+	
+	/**
+	 * Read a tree written by <tt>write()</tt>. The packed layout is read as it is, nothing is sorted again.
+	 *
+	 * @param buffer The buffer positioned at the tree, usually a mapped bundle file. The position is moved to the end of the tree.
+	 * @return The tree.
+	 */
+	public static SegmentRTree read(ByteBuffer buffer) {
+		int count = buffer.getInt();
+		int nodeCount = buffer.getInt();
+		int leafCount = buffer.getInt();
+		int height = buffer.getInt();
+		double[] x1 = MapIndexBundle.readDoubleArray(buffer, count);
+		double[] y1 = MapIndexBundle.readDoubleArray(buffer, count);
+		double[] x2 = MapIndexBundle.readDoubleArray(buffer, count);
+		double[] y2 = MapIndexBundle.readDoubleArray(buffer, count);
+		int[] segmentIDs = MapIndexBundle.readIntArray(buffer, count);
+		double[] nodeMinX = MapIndexBundle.readDoubleArray(buffer, nodeCount);
+		double[] nodeMinY = MapIndexBundle.readDoubleArray(buffer, nodeCount);
+		double[] nodeMaxX = MapIndexBundle.readDoubleArray(buffer, nodeCount);
+		double[] nodeMaxY = MapIndexBundle.readDoubleArray(buffer, nodeCount);
+		int[] childStart = MapIndexBundle.readIntArray(buffer, nodeCount);
+		int[] childEnd = MapIndexBundle.readIntArray(buffer, nodeCount);
+		return new SegmentRTree(x1, y1, x2, y2, segmentIDs, nodeMinX, nodeMinY, nodeMaxX, nodeMaxY, childStart, childEnd, leafCount,
+				height);
+	}
+	
+	/**
+	 * Write the segments and the packed nodes, in the layout read by <tt>read()</tt>.
+	 *
+	 * @param out The output stream.
+	 * @throws IOException File write failure.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(x1.length);
+		out.writeInt(nodeMinX.length);
+		out.writeInt(leafCount);
+		out.writeInt(height);
+		MapIndexBundle.writeDoubleArray(out, x1);
+		MapIndexBundle.writeDoubleArray(out, y1);
+		MapIndexBundle.writeDoubleArray(out, x2);
+		MapIndexBundle.writeDoubleArray(out, y2);
+		MapIndexBundle.writeIntArray(out, segmentIDs);
+		MapIndexBundle.writeDoubleArray(out, nodeMinX);
+		MapIndexBundle.writeDoubleArray(out, nodeMinY);
+		MapIndexBundle.writeDoubleArray(out, nodeMaxX);
+		MapIndexBundle.writeDoubleArray(out, nodeMaxY);
+		MapIndexBundle.writeIntArray(out, childStart);
+		MapIndexBundle.writeIntArray(out, childEnd);
+	}
+	
+	/**
+	 * Find the segments whose bounding box intersects the given rectangle.
+	 *
+	 * @return The segment IDs, in no particular order.
+	 */
+	public int[] rangeSearch(double minX, double minY, double maxX, double maxY) {
+		if (segmentIDs.length == 0)
+			return new int[0];
+		int[] result = new int[NODE_CAPACITY];
+		int resultCount = 0;
+		int[] stack = new int[height * NODE_CAPACITY + 1];
+		int stackSize = 0;
+		stack[stackSize++] = childStart.length - 1;
+		while (stackSize > 0) {
+			int node = stack[--stackSize];
+			if (nodeMinX[node] > maxX || nodeMaxX[node] < minX || nodeMinY[node] > maxY || nodeMaxY[node] < minY)
+				continue;
+			if (node < leafCount) {
+				for (int i = childStart[node]; i < childEnd[node]; i++) {
+					int id = segmentIDs[i];
+					if (!intersects(id, minX, minY, maxX, maxY))
+						continue;
+					if (resultCount == result.length)
+						result = Arrays.copyOf(result, resultCount * 2);
+					result[resultCount++] = id;
+				}
+			} else {
+				for (int child = childStart[node]; child < childEnd[node]; child++)
+					stack[stackSize++] = child;
+			}
+		}
+		return Arrays.copyOf(result, resultCount);
+	}
+	
+	/**
+	 * Find the nearest segments to a point by best-first traversal, using the Euclidean distance.
+	 *
+	 * @param x           The x coordinate of the query point.
+	 * @param y           The y coordinate of the query point.
+	 * @param maxDistance Only the segments within maxDistance are returned.
+	 * @param maxCount    The maximum number of segments returned.
+	 * @return The segment IDs, ordered by increasing distance.
+	 */
+	public int[] nearest(double x, double y, double maxDistance, int maxCount) {
+		return nearest(x, y, maxDistance, maxCount, null);
+	}
+	
+	/**
+	 * Find the nearest segments to a point by best-first traversal. The nodes are visited in the order of the lower bound of their
+	 * boxes and a segment is reported once its distance is below the bound of every unvisited node, so the result is exact for the
+	 * given metric.
+	 *
+	 * @param x           The x coordinate of the query point.
+	 * @param y           The y coordinate of the query point.
+	 * @param maxDistance Only the segments within maxDistance are returned.
+	 * @param maxCount    The maximum number of segments returned.
+	 * @param metric      The distance of the search, the Euclidean distance if null.
+	 * @return The segment IDs, ordered by increasing distance.
+	 */
+	public int[] nearest(double x, double y, double maxDistance, int maxCount, DistanceMetric metric) {
+		if (segmentIDs.length == 0 || maxCount <= 0)
+			return new int[0];
+		int[] result = new int[Math.min(maxCount, segmentIDs.length)];
+		int resultCount = 0;
+		// the queue holds nodes as (node index) and segments as (-1 - segment ID)
+		double[] queueKeys = new double[NODE_CAPACITY * 4];
+		int[] queueItems = new int[NODE_CAPACITY * 4];
+		int queueSize = 0;
+		int root = childStart.length - 1;
+		queueKeys[0] = boxDistance(root, x, y, metric);
+		queueItems[0] = root;
+		queueSize++;
+		while (queueSize > 0 && resultCount < result.length) {
+			double key = queueKeys[0];
+			int item = queueItems[0];
+			// remove the head of the binary heap
+			queueSize--;
+			double lastKey = queueKeys[queueSize];
+			int lastItem = queueItems[queueSize];
+			int slot = 0;
+			while (2 * slot + 1 < queueSize) {
+				int child = 2 * slot + 1;
+				if (child + 1 < queueSize && queueKeys[child + 1] < queueKeys[child])
+					child++;
+				if (queueKeys[child] >= lastKey)
+					break;
+				queueKeys[slot] = queueKeys[child];
+				queueItems[slot] = queueItems[child];
+				slot = child;
+			}
+			queueKeys[slot] = lastKey;
+			queueItems[slot] = lastItem;
+			
+			if (key > maxDistance)
+				break;
+			if (item < 0) {
+				result[resultCount++] = -1 - item;
+				continue;
+			}
+			int childCount = childEnd[item] - childStart[item];
+			if (queueSize + childCount > queueKeys.length) {
+				queueKeys = Arrays.copyOf(queueKeys, Math.max(queueKeys.length * 2, queueSize + childCount));
+				queueItems = Arrays.copyOf(queueItems, queueKeys.length);
+			}
+			for (int i = childStart[item]; i < childEnd[item]; i++) {
+				double childKey;
+				int childItem;
+				if (item < leafCount) {
+					childItem = -1 - segmentIDs[i];
+					childKey = metric == null ? segmentDistance(segmentIDs[i], x, y) : metric.segmentDistance(segmentIDs[i], x, y);
+				} else {
+					childItem = i;
+					childKey = boxDistance(i, x, y, metric);
+				}
+				if (childKey > maxDistance)
+					continue;
+				// insert into the binary heap
+				slot = queueSize++;
+				while (slot > 0 && queueKeys[(slot - 1) / 2] > childKey) {
+					queueKeys[slot] = queueKeys[(slot - 1) / 2];
+					queueItems[slot] = queueItems[(slot - 1) / 2];
+					slot = (slot - 1) / 2;
+				}
+				queueKeys[slot] = childKey;
+				queueItems[slot] = childItem;
+			}
+		}
+		return Arrays.copyOf(result, resultCount);
+	}
+	
+	public int size() {
+		return x1.length;
+	}
+	
+	public double x1(int segmentID) {
+		return x1[segmentID];
+	}
+	
+	public double y1(int segmentID) {
+		return y1[segmentID];
+	}
+	
+	public double x2(int segmentID) {
+		return x2[segmentID];
+	}
+	
+	public double y2(int segmentID) {
+		return y2[segmentID];
+	}
+	
+	/**
+	 * @return True if the bounding box of the segment intersects the given rectangle.
+	 */
+	public boolean intersects(int segmentID, double minX, double minY, double maxX, double maxY) {
+		return Math.min(x1[segmentID], x2[segmentID]) <= maxX && Math.max(x1[segmentID], x2[segmentID]) >= minX
+				&& Math.min(y1[segmentID], y2[segmentID]) <= maxY && Math.max(y1[segmentID], y2[segmentID]) >= minY;
+	}
+	
+	/**
+	 * The Euclidean distance from a point to a segment.
+	 */
+	public double segmentDistance(int segmentID, double x, double y) {
+		double dx = x2[segmentID] - x1[segmentID];
+		double dy = y2[segmentID] - y1[segmentID];
+		double lengthSquare = dx * dx + dy * dy;
+		double t = lengthSquare == 0 ? 0 : ((x - x1[segmentID]) * dx + (y - y1[segmentID]) * dy) / lengthSquare;
+		t = Math.max(0, Math.min(1, t));
+		double px = x1[segmentID] + t * dx - x;
+		double py = y1[segmentID] + t * dy - y;
+		return Math.sqrt(px * px + py * py);
+	}
+	
+	private double boxDistance(int node, double x, double y, DistanceMetric metric) {
+		if (metric != null)
+			return metric.boxDistance(x, y, nodeMinX[node], nodeMinY[node], nodeMaxX[node], nodeMaxY[node]);
+		double dx = Math.max(0, Math.max(nodeMinX[node] - x, x - nodeMaxX[node]));
+		double dy = Math.max(0, Math.max(nodeMinY[node] - y, y - nodeMaxY[node]));
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+	
+	/**
+	 * Sort the boxes in STR order: sort by the x of the centre, cut into vertical slices of S * NODE_CAPACITY boxes, then sort each slice
+	 * by the y of the centre.
+	 *
+	 * @return The box indices in STR order.
+	 */
+	private static int[] strOrder(double[] minX, double[] minY, double[] maxX, double[] maxY) {
+		int count = minX.length;
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+		Arrays.sort(order, Comparator.comparingDouble(i -> minX[i] + maxX[i]));
+		int nodeCount = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+		int sliceSize = (int) Math.ceil(Math.sqrt(nodeCount)) * NODE_CAPACITY;
+		for (int from = 0; from < count; from += sliceSize)
+			Arrays.sort(order, from, Math.min(from + sliceSize, count), Comparator.comparingDouble(i -> minY[i] + maxY[i]));
+		int[] result = new int[count];
+		for (int i = 0; i < count; i++)
+			result[i] = order[i];
+		return result;
+	}
+	
+	private static double[] permute(double[] values, int[] order) {
+		double[] result = new double[order.length];
+		for (int i = 0; i < order.length; i++)
+			result[i] = values[order[i]];
+		return result;
+	}
+}
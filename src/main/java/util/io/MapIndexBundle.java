@@ -0,0 +1,275 @@
+package util.io;
+
+import org.apache.log4j.Logger;
+import util.dijkstra.RoutingGraph;
+import util.index.rtree.RTreeIndexing;
+import util.index.rtree.SegmentRTree;
+import util.object.roadnetwork.RoadNetworkGraph;
+import util.object.roadnetwork.RoadNode;
+import util.object.roadnetwork.RoadWay;
+import util.settings.BaseProperty;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Versioned binary bundle of the map-matching indices of a map: the CSR arrays of the <tt>RoutingGraph</tt>, the packed
+ * <tt>SegmentRTree</tt> and the road ID dictionary of the mini edges. Both indices are otherwise rebuilt by every matcher from the
+ * parsed map, through string-keyed maps and a full STR sort. The bundle is written once per map and mapped by <tt>FileChannel.map</tt>
+ * afterwards, so a matcher starts by copying flat arrays.
+ * <p>
+ * The file starts with the magic number, the format version, the fingerprint of the map and the section offsets, followed by the road
+ * dictionary, the routing graph and the tree. A bundle of another map or another format is ignored on load. Only the static map is
+ * bundled, the graph of a map with new roads to insert is still built from the map.
+ */
+public class MapIndexBundle {
+	
+	private static final Logger LOG = Logger.getLogger(MapIndexBundle.class);
+	private static final int FILE_MAGIC = 0x4D494458;   // "MIDX"
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 40;      // magic, version, fingerprint, road count, edge count, graph offset, tree offset
+	
+	private final RoadNetworkGraph map;
+	private final String[] edgeRoadIDs;     // the road ID of each mini edge, shared by the graph and the tree
+	private final int[] lineNumbers;        // the serial number of each mini edge in its road
+	private final ByteBuffer graphSection;
+	private final ByteBuffer treeSection;
+	
+	private MapIndexBundle(RoadNetworkGraph map, String[] edgeRoadIDs, int[] lineNumbers, ByteBuffer graphSection,
+						   ByteBuffer treeSection) {
+		this.map = map;
+		this.edgeRoadIDs = edgeRoadIDs;
+		this.lineNumbers = lineNumbers;
+		this.graphSection = graphSection;
+		this.treeSection = treeSection;
+	}
+	
+	/**
+	 * Open the bundle of the map from the matching cache folder if the bundle is enabled in the properties. The bundle is built and
+	 * saved first if the folder does not have one for the map.
+	 *
+	 * @param map  The map to match on.
+	 * @param prop The map-matching properties.
+	 * @return The bundle, or null if the bundle is disabled or cannot be read or written.
+	 */
+	public static MapIndexBundle open(RoadNetworkGraph map, BaseProperty prop) {
+		if (!prop.contains("algorithm.mapmatching.UseIndexBundle") || !prop.getPropertyBoolean("algorithm.mapmatching.UseIndexBundle"))
+			return null;
+		String cacheFolder = prop.contains("algorithm.mapmatching.path.CacheFolder") ?
+				prop.getPropertyString("algorithm.mapmatching.path.CacheFolder") : "";
+		if (cacheFolder.isEmpty()) {
+			LOG.warn("The map index bundle is enabled but the matching cache folder is not set.");
+			return null;
+		}
+		String filePath = cacheFolder + "index_" + Long.toHexString(getMapFingerprint(map)) + ".bin";
+		try {
+			MapIndexBundle bundle = load(filePath, map);
+			if (bundle == null) {
+				IOService.createFolder(cacheFolder);
+				build(map, filePath);
+				bundle = load(filePath, map);
+			}
+			return bundle;
+		} catch (IOException e) {
+			LOG.error("Failed to read or write the map index bundle: " + filePath, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Build the routing graph and the tree of the map and write them into a bundle file.
+	 *
+	 * @param map      The map.
+	 * @param filePath The output file path.
+	 * @throws IOException File write failure.
+	 */
+	public static void build(RoadNetworkGraph map, String filePath) throws IOException {
+		long startTime = System.currentTimeMillis();
+		RoutingGraph routingGraph = new RoutingGraph(map, false);
+		SegmentRTree tree = new RTreeIndexing(map, false).getTree();
+		String[] edgeRoadIDs = RTreeIndexing.getLineRoadIDs(map);
+		int[] lineNumbers = RTreeIndexing.getLineNumbers(map);
+		
+		// the road dictionary, each road ID is stored once and the mini edges refer to it by index
+		HashMap<String, Integer> roadID2Index = new HashMap<>();
+		int[] edgeRoadIndices = new int[edgeRoadIDs.length];
+		for (int i = 0; i < edgeRoadIDs.length; i++)
+			edgeRoadIndices[i] = roadID2Index.computeIfAbsent(edgeRoadIDs[i], id -> roadID2Index.size());
+		String[] roadIDs = new String[roadID2Index.size()];
+		for (String roadID : roadID2Index.keySet())
+			roadIDs[roadID2Index.get(roadID)] = roadID;
+		
+		long graphOffset;
+		long treeOffset;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), 1 << 16))) {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeLong(getMapFingerprint(map));
+			out.writeInt(roadIDs.length);
+			out.writeInt(edgeRoadIDs.length);
+			out.writeLong(0);   // the section offsets are filled in after the sections are written
+			out.writeLong(0);
+			for (String roadID : roadIDs) {
+				byte[] bytes = roadID.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			writeIntArray(out, edgeRoadIndices);
+			writeIntArray(out, lineNumbers);
+			graphOffset = out.size();
+			routingGraph.write(out);
+			treeOffset = out.size();
+			tree.write(out);
+			if (out.size() == Integer.MAX_VALUE)     // the byte counter of the stream stops at 2GB
+				throw new IOException("The map index bundle is too large: " + filePath);
+		}
+		try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
+			file.seek(HEADER_SIZE - 2 * Long.BYTES);
+			file.writeLong(graphOffset);
+			file.writeLong(treeOffset);
+		}
+		LOG.info("Map index bundle built in " + (System.currentTimeMillis() - startTime) / 1000.0 + "s and saved to " + filePath);
+	}
+	
+	/**
+	 * Map a bundle file into memory and read its road dictionary. The graph and the tree are read when they are created.
+	 *
+	 * @param filePath The input file path.
+	 * @param map      The map the bundle should be built from.
+	 * @return The bundle, or null if the file does not exist, has another format or is built from a different map.
+	 * @throws IOException File read failure.
+	 */
+	public static MapIndexBundle load(String filePath, RoadNetworkGraph map) throws IOException {
+		if (!new File(filePath).exists())
+			return null;
+		long startTime = System.currentTimeMillis();
+		try (RandomAccessFile file = new RandomAccessFile(filePath, "r"); FileChannel channel = file.getChannel()) {
+			if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+				LOG.warn("The map index bundle has unknown format: " + filePath);
+				return null;
+			}
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != FILE_MAGIC || buffer.getInt() != FILE_VERSION) {
+				LOG.warn("The map index bundle has unknown format: " + filePath);
+				return null;
+			}
+			if (buffer.getLong() != getMapFingerprint(map)) {
+				LOG.warn("The map index bundle is built from a different map: " + filePath);
+				return null;
+			}
+			int roadCount = buffer.getInt();
+			int edgeCount = buffer.getInt();
+			long graphOffset = buffer.getLong();
+			long treeOffset = buffer.getLong();
+			if (graphOffset <= HEADER_SIZE || treeOffset <= graphOffset || treeOffset >= channel.size()) {
+				LOG.warn("The map index bundle is truncated: " + filePath);
+				return null;
+			}
+			String[] roadIDs = new String[roadCount];
+			for (int i = 0; i < roadCount; i++) {
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				roadIDs[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			int[] edgeRoadIndices = readIntArray(buffer, edgeCount);
+			int[] lineNumbers = readIntArray(buffer, edgeCount);
+			String[] edgeRoadIDs = new String[edgeCount];
+			for (int i = 0; i < edgeCount; i++)
+				edgeRoadIDs[i] = roadIDs[edgeRoadIndices[i]];
+			ByteBuffer graphSection = buffer.duplicate().position((int) graphOffset).slice();
+			ByteBuffer treeSection = buffer.duplicate().position((int) treeOffset).slice();
+			LOG.info("Map index bundle mapped from " + filePath + " in " + (System.currentTimeMillis() - startTime) + "ms. Roads: "
+					+ roadCount + ", mini edges: " + edgeCount);
+			return new MapIndexBundle(map, edgeRoadIDs, lineNumbers, graphSection, treeSection);
+		}
+	}
+	
+	/**
+	 * @return A new routing graph of the map without any search option, same as <tt>new RoutingGraph(map, false)</tt>.
+	 */
+	public RoutingGraph createRoutingGraph() {
+		return RoutingGraph.read(graphSection.duplicate(), edgeRoadIDs, map.getDistanceFunction());
+	}
+	
+	/**
+	 * @param prop The map-matching properties, which set the search options of the graph.
+	 * @return A new routing graph of the map, same as <tt>new RoutingGraph(map, false, prop)</tt>.
+	 */
+	public RoutingGraph createRoutingGraph(BaseProperty prop) {
+		return RoutingGraph.read(graphSection.duplicate(), edgeRoadIDs, map.getDistanceFunction(), prop);
+	}
+	
+	/**
+	 * @return A new index of the map, same as <tt>new RTreeIndexing(map)</tt>.
+	 */
+	public RTreeIndexing createRTreeIndexing() {
+		return new RTreeIndexing(map, SegmentRTree.read(treeSection.duplicate()), edgeRoadIDs, lineNumbers, false);
+	}
+	
+	/**
+	 * @param prop The map-matching properties, which set the candidate search options of the index.
+	 * @return A new index of the map, same as <tt>new RTreeIndexing(map, prop)</tt>.
+	 */
+	public RTreeIndexing createRTreeIndexing(BaseProperty prop) {
+		return new RTreeIndexing(map, SegmentRTree.read(treeSection.duplicate()), edgeRoadIDs, lineNumbers, prop);
+	}
+	
+	/**
+	 * The fingerprint identifies the map a bundle is built from. It covers everything the indices depend on: the order, ID and location
+	 * of the nodes, the order, ID and nodes of the roads, and the distance function.
+	 *
+	 * @param map The map.
+	 * @return The fingerprint of the map.
+	 */
+	public static long getMapFingerprint(RoadNetworkGraph map) {
+		long fingerprint = 1125899906842597L;
+		fingerprint = 31 * fingerprint + map.getDistanceFunction().getClass().getName().hashCode();
+		for (RoadNode node : map.getNodes()) {
+			fingerprint = 31 * fingerprint + node.getID().hashCode();
+			fingerprint = 31 * fingerprint + Double.doubleToLongBits(node.lon());
+			fingerprint = 31 * fingerprint + Double.doubleToLongBits(node.lat());
+		}
+		for (RoadWay way : map.getWays()) {
+			fingerprint = 31 * fingerprint + way.getID().hashCode();
+			for (RoadNode node : way.getNodes()) {
+				fingerprint = 31 * fingerprint + node.getID().hashCode();
+				fingerprint = 31 * fingerprint + Double.doubleToLongBits(node.lon());
+				fingerprint = 31 * fingerprint + Double.doubleToLongBits(node.lat());
+			}
+		}
+		return fingerprint;
+	}
+	
+	/**
+	 * Read an array written by <tt>writeIntArray()</tt> and move the buffer position to its end.
+	 */
+	public static int[] readIntArray(ByteBuffer buffer, int length) {
+		int[] array = new int[length];
+		buffer.asIntBuffer().get(array);
+		buffer.position(buffer.position() + length * Integer.BYTES);
+		return array;
+	}
+	
+	/**
+	 * Read an array written by <tt>writeDoubleArray()</tt> and move the buffer position to its end.
+	 */
+	public static double[] readDoubleArray(ByteBuffer buffer, int length) {
+		double[] array = new double[length];
+		buffer.asDoubleBuffer().get(array);
+		buffer.position(buffer.position() + length * Double.BYTES);
+		return array;
+	}
+	
+	public static void writeIntArray(DataOutputStream out, int[] array) throws IOException {
+		for (int value : array)
+			out.writeInt(value);
+	}
+	
+	public static void writeDoubleArray(DataOutputStream out, double[] array) throws IOException {
+		for (double value : array)
+			out.writeDouble(value);
+	}
+}
@@ -58,19 +58,9 @@ public class TrajectoryReader {
 		if (!inputFile.exists())
 			throw new IllegalArgumentException("The input trajectory path doesn't exist: " + fileFolder);
 		if (inputFile.isDirectory()) {
-			File[] trajectoryFiles = inputFile.listFiles();
-			if (trajectoryFiles != null) {
-				for (File trajectoryFile : trajectoryFiles) {
-					if (!trajectoryFile.getName().substring(trajectoryFile.getName().indexOf(".")).matches(".txt")) {
-						continue;
-					}
-					String trajID = trajectoryFile.getName().substring(trajectoryFile.getName().indexOf('_') + 1,
-							trajectoryFile.getName().indexOf('.'));
-					Trajectory newTrajectory = readTrajectory(trajectoryFile.getAbsolutePath(), trajID, downSampleRate, df);
-					trajectoryList.add(newTrajectory);
-				}
-			} else
-				LOG.error("The input trajectory dictionary is empty: " + fileFolder);
+			for (File trajectoryFile : listTrajectoryFiles(fileFolder)) {
+				trajectoryList.add(readTrajectory(trajectoryFile, downSampleRate, df));
+			}
 		} else {
 			trajectoryList.add(readTrajectory(fileFolder, 0 + "", downSampleRate, df));
 		}
@@ -83,6 +73,42 @@ public class TrajectoryReader {
 		return trajectoryList;
 	}
 	
+	/**
+	 * List the trajectory files in a folder, which are the files with the .txt extension.
+	 *
+	 * @param fileFolder The folder path.
+	 * @return The trajectory files, empty if the folder is empty.
+	 */
+	public static List<File> listTrajectoryFiles(String fileFolder) {
+		File[] files = new File(fileFolder).listFiles();
+		List<File> trajectoryFileList = new ArrayList<>();
+		if (files == null) {
+			LOG.error("The input trajectory dictionary is empty: " + fileFolder);
+			return trajectoryFileList;
+		}
+		for (File trajectoryFile : files) {
+			String fileName = trajectoryFile.getName();
+			if (fileName.contains(".") && fileName.substring(fileName.indexOf(".")).matches(".txt"))
+				trajectoryFileList.add(trajectoryFile);
+		}
+		return trajectoryFileList;
+	}
+	
+	/**
+	 * Read one trajectory file listed by <tt>listTrajectoryFiles()</tt>. The trajectory ID is the part of the file name between the
+	 * first '_' and the extension.
+	 *
+	 * @param trajectoryFile The trajectory file.
+	 * @param downSampleRate Down-sample the input trajectory rate by
+	 * @param df             The distance function.
+	 * @return The trajectory.
+	 */
+	public static Trajectory readTrajectory(File trajectoryFile, int downSampleRate, DistanceFunction df) {
+		String fileName = trajectoryFile.getName();
+		String trajID = fileName.substring(fileName.indexOf('_') + 1, fileName.indexOf('.'));
+		return readTrajectory(trajectoryFile.getAbsolutePath(), trajID, downSampleRate, df);
+	}
+	
 	/**
 	 * Read and parse the input CSV trajectory files to a Stream
 	 * of trajectories.
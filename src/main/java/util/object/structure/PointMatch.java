@@ -16,6 +16,7 @@ public class PointMatch extends LengthObject {
 	
 	private Point matchPoint;
 	private Segment matchedSegment;
+	private int edgeIndex = -1;     // the mini edge index of the matched segment in the routing graph, -1 if not resolved
 	
 	public PointMatch(DistanceFunction df) {
 		super(df);
@@ -31,6 +32,15 @@ public class PointMatch extends LengthObject {
 		this.matchedSegment = matchedSegment;
 	}
 	
+	/**
+	 * Create a match point which carries the mini edge index of its matched segment, so that the routing graph does not need to look
+	 * it up.
+	 */
+	public PointMatch(Point matchingPoint, Segment matchedSegment, String roadID, int edgeIndex) {
+		this(matchingPoint, matchedSegment, roadID);
+		this.edgeIndex = edgeIndex;
+	}
+	
 	public static PointMatch parsePointMatch(String s, DistanceFunction df) {
 		String[] matchInfo = s.split(" ");
 		if (matchInfo.length != 7)
@@ -62,6 +72,7 @@ public class PointMatch extends LengthObject {
 		super.setID(matchedSegment.getID());
 		super.setLength(matchedSegment.length());
 		this.matchedSegment = matchedSegment;
+		this.edgeIndex = -1;
 	}
 	
 	public String getRoadID() {
@@ -72,6 +83,14 @@ public class PointMatch extends LengthObject {
 		super.setID(roadID);
 	}
 	
+	public int getEdgeIndex() {
+		return edgeIndex;
+	}
+	
+	public void setEdgeIndex(int edgeIndex) {
+		this.edgeIndex = edgeIndex;
+	}
+	
 	public double lon() {
 		return this.matchPoint.x();
 	}
@@ -81,7 +100,7 @@ public class PointMatch extends LengthObject {
 	}
 	
 	public PointMatch clone() {
-		return new PointMatch(this.matchPoint, this.matchedSegment, this.getRoadID());
+		return new PointMatch(this.matchPoint, this.matchedSegment, this.getRoadID(), this.edgeIndex);
 	}
 	
 	@Override
@@ -29,6 +29,7 @@ public class SegmentWithIndex extends SimpleSpatialObject {
 	private Segment segment;
 	private int selectPosition;    // -1: from node, 0: to node, >0: the i-th intermediate node
 	private String roadID;          // the id of the corresponding road
+	private int edgeIndex = -1;     // the mini edge index of the segment in the routing graph, -1 if unknown
 	private double intervalLength;        // the threshold for extra indexing point, segments that exceed such threshold will generate extra indexing point(s)
 	
 	// auxiliary point from JTS old version
@@ -42,6 +43,12 @@ public class SegmentWithIndex extends SimpleSpatialObject {
 		this.distFunc = distFunc;
 	}
 	
+	public SegmentWithIndex(Segment segment, int selectPosition, String roadID, int edgeIndex, double intervalLength,
+							DistanceFunction distFunc) {
+		this(segment, selectPosition, roadID, intervalLength, distFunc);
+		this.edgeIndex = edgeIndex;
+	}
+	
 	/**
 	 * Return the x axis of the index point.
 	 *
@@ -100,6 +107,10 @@ public class SegmentWithIndex extends SimpleSpatialObject {
 		this.roadID = roadID;
 	}
 	
+	public int getEdgeIndex() {
+		return edgeIndex;
+	}
+	
 	public Point getPoint() {
 		return new Point(x(), y(), distFunc);
 	}
@@ -160,7 +171,8 @@ public class SegmentWithIndex extends SimpleSpatialObject {
 	
 	@Override
 	public SegmentWithIndex clone() {
-		SegmentWithIndex clone = new SegmentWithIndex(this.segment, this.selectPosition, this.roadID, this.intervalLength, this.distFunc);
+		SegmentWithIndex clone = new SegmentWithIndex(this.segment, this.selectPosition, this.roadID, this.edgeIndex, this.intervalLength,
+				this.distFunc);
 		super.cloneTo(clone); // clone semantics
 		return clone;
 	}
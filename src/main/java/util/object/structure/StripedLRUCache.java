@@ -0,0 +1,154 @@
+package util.object.structure;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded LRU cache with <tt>long</tt> keys, shared by multiple threads. The cache is split into lock-striped segments, each an
+ * access-ordered <tt>LinkedHashMap</tt> with its own share of the capacity. The capacity is measured in weight, the weight of an entry is
+ * given by the weigher. An entry heavier than the share of one segment is not cached at all.
+ *
+ * @param <V> the value type
+ */
+public class StripedLRUCache<V> {
+	
+	private static final int SEGMENT_COUNT = 16;
+	
+	private final Segment[] segments;
+	private final long maxSegmentWeight;
+	private final ToLongFunction<V> weigher;
+	private final LongAdder evictionCount = new LongAdder();
+	
+	/**
+	 * @param maxWeight The maximum total weight of the cache.
+	 * @param weigher   The weight of a value, positive.
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedLRUCache(long maxWeight, ToLongFunction<V> weigher) {
+		if (maxWeight <= 0)
+			throw new IllegalArgumentException("The cache capacity must be positive: " + maxWeight);
+		this.maxSegmentWeight = Math.max(maxWeight / SEGMENT_COUNT, 1);
+		this.weigher = weigher;
+		this.segments = new StripedLRUCache.Segment[SEGMENT_COUNT];
+		for (int i = 0; i < SEGMENT_COUNT; i++)
+			segments[i] = new Segment();
+	}
+	
+	/**
+	 * @return The value of the key and mark it as recently used, null if not cached.
+	 */
+	public V get(long key) {
+		return getSegment(key).get(key);
+	}
+	
+	/**
+	 * @return True if the key is cached. Does not change the access order.
+	 */
+	public boolean containsKey(long key) {
+		return getSegment(key).containsKey(key);
+	}
+	
+	/**
+	 * Store a value, replacing the previous value of the key.
+	 *
+	 * @see #put(long, Object, BiPredicate)
+	 */
+	public boolean put(long key, V value) {
+		return put(key, value, null);
+	}
+	
+	/**
+	 * Store a value and evict the least recently used entries of its segment until the segment fits in its share of the capacity.
+	 *
+	 * @param key           The key.
+	 * @param value         The value, not modified afterwards.
+	 * @param isReplaceable Decides whether the value is stored, given the previous value of the key (null if none) and the new value.
+	 *                      It is evaluated under the lock of the segment, so it is atomic with the insertion. Null to always store.
+	 * @return True if the value is stored.
+	 */
+	public boolean put(long key, V value, BiPredicate<V, V> isReplaceable) {
+		long valueWeight = weigher.applyAsLong(value);
+		if (valueWeight > maxSegmentWeight)
+			return false;   // it would evict the whole segment and itself
+		return getSegment(key).put(key, value, valueWeight, isReplaceable);
+	}
+	
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		for (Segment segment : segments)
+			segment.clear();
+	}
+	
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+	
+	public long getWeight() {
+		long weight = 0;
+		for (Segment segment : segments)
+			weight += segment.getWeight();
+		return weight;
+	}
+	
+	public int size() {
+		int count = 0;
+		for (Segment segment : segments)
+			count += segment.size();
+		return count;
+	}
+	
+	private Segment getSegment(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return segments[(int) (hash >>> 60) & (SEGMENT_COUNT - 1)];
+	}
+	
+	private class Segment {
+		private final LinkedHashMap<Long, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+		private long weight = 0;
+		
+		synchronized V get(long key) {
+			return entries.get(key);
+		}
+		
+		synchronized boolean containsKey(long key) {
+			return entries.containsKey(key);
+		}
+		
+		synchronized boolean put(long key, V value, long valueWeight, BiPredicate<V, V> isReplaceable) {
+			V previous = entries.get(key);
+			if (isReplaceable != null && !isReplaceable.test(previous, value))
+				return false;
+			entries.put(key, value);
+			if (previous != null)
+				weight -= weigher.applyAsLong(previous);
+			weight += valueWeight;
+			Iterator<Map.Entry<Long, V>> iterator = entries.entrySet().iterator();
+			while (weight > maxSegmentWeight && iterator.hasNext()) {
+				V eldest = iterator.next().getValue();
+				iterator.remove();
+				weight -= weigher.applyAsLong(eldest);
+				evictionCount.increment();
+			}
+			return true;
+		}
+		
+		synchronized void clear() {
+			entries.clear();
+			weight = 0;
+		}
+		
+		synchronized long getWeight() {
+			return weight;
+		}
+		
+		synchronized int size() {
+			return entries.size();
+		}
+	}
+}